@@ -46,7 +46,11 @@ sourceSets {
     }
 }
 
-tasks.withType<JavaCompile> { options.encoding = "UTF-8" }
+tasks.withType<JavaCompile> {
+    options.encoding = "UTF-8"
+    // FEC uses the Vector API if it is available at runtime, see GF256Kernel
+    options.compilerArgs.add("--add-modules=jdk.incubator.vector")
+}
 tasks.withType<Javadoc> { options.encoding = "UTF-8" }
 tasks.withType<org.jetbrains.kotlin.gradle.tasks.KotlinJvmCompile>().configureEach {
     compilerOptions.jvmTarget.set(org.jetbrains.kotlin.gradle.dsl.JvmTarget.JVM_21)
@@ -202,6 +206,7 @@ tasks.test {
         jvmArgs("--add-opens=java.base/java.util=ALL-UNNAMED")
         jvmArgs("--add-opens=java.base/java.io=ALL-UNNAMED")
         jvmArgs("--add-opens=java.base/java.util.zip=ALL-UNNAMED")
+        jvmArgs("--add-modules=jdk.incubator.vector")
     }
     minHeapSize = "128m"
     maxHeapSize = "512m"
@@ -0,0 +1,173 @@
+package network.crypta.client;
+
+/** Arithmetic in GF(2^8) and the matrices for the Reed-Solomon code used by splitfiles. This is
+ * Luigi Rizzo's Vandermonde code, as implemented by com.onionnetworks.fec.PureCode, and must
+ * produce exactly the same check blocks, or we won't be able to fetch old files. */
+final class GF256 {
+
+    private GF256() {}
+
+    /** Primitive polynomial x^8 + x^4 + x^3 + x^2 + 1, lowest bit first. */
+    private static final String PRIMITIVE_POLYNOMIAL = "101110001";
+
+    static final int SIZE = 255;
+
+    /** Powers of the generator, twice over so we don't need to reduce a sum of two logs. */
+    private static final int[] EXP = new int[2 * SIZE];
+    private static final int[] LOG = new int[SIZE + 1];
+    private static final int[] INVERSE = new int[SIZE + 1];
+    /** MUL[a][b] = a*b. 64KB, but it is what every multiply-accumulate loop wants. */
+    static final byte[][] MUL = new byte[SIZE + 1][SIZE + 1];
+
+    static {
+        int mask = 1;
+        EXP[8] = 0;
+        for(int i=0;i<8;i++, mask <<= 1) {
+            EXP[i] = mask;
+            LOG[EXP[i]] = i;
+            if(PRIMITIVE_POLYNOMIAL.charAt(i) == '1')
+                EXP[8] ^= mask;
+        }
+        LOG[EXP[8]] = 8;
+        mask = 1 << 7;
+        for(int i=9;i<SIZE;i++) {
+            if(EXP[i-1] >= mask)
+                EXP[i] = EXP[8] ^ ((EXP[i-1] ^ mask) << 1);
+            else
+                EXP[i] = EXP[i-1] << 1;
+            LOG[EXP[i]] = i;
+        }
+        LOG[0] = SIZE;
+        for(int i=0;i<SIZE;i++)
+            EXP[i + SIZE] = EXP[i];
+        INVERSE[0] = 0;
+        INVERSE[1] = 1;
+        for(int i=2;i<=SIZE;i++)
+            INVERSE[i] = EXP[SIZE - LOG[i]];
+        for(int a=0;a<=SIZE;a++)
+            for(int b=0;b<=SIZE;b++)
+                MUL[a][b] = (byte) slowMul(a, b);
+    }
+
+    private static int slowMul(int a, int b) {
+        if(a == 0 || b == 0) return 0;
+        return EXP[LOG[a] + LOG[b]];
+    }
+
+    static int mul(int a, int b) {
+        return MUL[a][b] & 0xff;
+    }
+
+    /** x mod 255, for exponents. */
+    private static int modnn(int x) {
+        while(x >= SIZE) {
+            x -= SIZE;
+            x = (x >> 8) + (x & SIZE);
+        }
+        return x;
+    }
+
+    /**
+     * Build the rows of the systematic encoding matrix for the check blocks. Row i (0-based) gives
+     * the coefficients of the k data blocks in block k+i.
+     * @return An (n-k) by k matrix, row-major.
+     */
+    static byte[] createEncodeMatrix(int k, int n) {
+        if(k < 1 || n > SIZE + 1 || k > n) throw new IllegalArgumentException("Bad k="+k+" n="+n);
+        // Vandermonde matrix on the points 0, 1, a, a^2 ... a^(n-2).
+        int[] vdm = new int[n * k];
+        vdm[0] = 1;
+        for(int row=0, p=k;row<n-1;row++, p+=k)
+            for(int col=0;col<k;col++)
+                vdm[p+col] = EXP[modnn(row * col)];
+        // Invert the top k by k and multiply the rest by it, leaving the identity on top.
+        invertVandermonde(vdm, k);
+        byte[] enc = new byte[(n - k) * k];
+        for(int row=0;row<n-k;row++) {
+            for(int col=0;col<k;col++) {
+                int acc = 0;
+                for(int i=0;i<k;i++)
+                    acc ^= mul(vdm[(k + row) * k + i], vdm[i * k + col]);
+                enc[row * k + col] = (byte) acc;
+            }
+        }
+        return enc;
+    }
+
+    /** Invert the k by k Vandermonde matrix at the top of src in place, in O(k^2), using the
+     * coefficients of prod(x - p_i). Row i of src must be the powers of p_i = src[i*k+1]. */
+    private static void invertVandermonde(int[] src, int k) {
+        if(k == 1) return;
+        int[] c = new int[k];
+        int[] b = new int[k];
+        int[] p = new int[k];
+        for(int i=0, j=1;i<k;i++, j+=k)
+            p[i] = src[j];
+        // c[] holds the coefficients of P(x) = prod(x - p_i), apart from the implicit c[k] = 1.
+        // Subtraction is addition in GF(2^n).
+        c[k-1] = p[0];
+        for(int i=1;i<k;i++) {
+            int pi = p[i];
+            for(int j=k-1-(i-1);j<k-1;j++)
+                c[j] ^= mul(pi, c[j+1]);
+            c[k-1] ^= pi;
+        }
+        for(int row=0;row<k;row++) {
+            // Synthetic division of P(x) by (x - p_row), evaluating the quotient at p_row.
+            int xx = p[row];
+            int t = 1;
+            b[k-1] = 1;
+            for(int i=k-2;i>=0;i--) {
+                b[i] = c[i+1] ^ mul(xx, b[i+1]);
+                t = mul(xx, t) ^ b[i];
+            }
+            for(int col=0;col<k;col++)
+                src[col * k + row] = mul(INVERSE[t], b[col]);
+        }
+    }
+
+    /** Invert a k by k matrix in place by Gauss-Jordan elimination.
+     * @throws IllegalArgumentException If the matrix is singular. */
+    static void invert(int[] m, int k) {
+        int[] row = new int[k];
+        int[] swapped = new int[k];
+        for(int col=0;col<k;col++) {
+            // Find a pivot.
+            int pivot = col;
+            while(pivot < k && m[pivot * k + col] == 0) pivot++;
+            if(pivot == k) throw new IllegalArgumentException("Singular matrix");
+            swapped[col] = pivot;
+            if(pivot != col) {
+                System.arraycopy(m, pivot * k, row, 0, k);
+                System.arraycopy(m, col * k, m, pivot * k, k);
+                System.arraycopy(row, 0, m, col * k, k);
+            }
+            // Scale the pivot row. We are inverting in place, so the pivot slot becomes column
+            // col of the inverse.
+            int inv = INVERSE[m[col * k + col]];
+            m[col * k + col] = 1;
+            for(int j=0;j<k;j++)
+                m[col * k + j] = mul(inv, m[col * k + j]);
+            // Eliminate it from every other row.
+            for(int r=0;r<k;r++) {
+                if(r == col) continue;
+                int f = m[r * k + col];
+                if(f == 0) continue;
+                m[r * k + col] = 0;
+                for(int j=0;j<k;j++)
+                    m[r * k + j] ^= mul(f, m[col * k + j]);
+            }
+        }
+        // We inverted the matrix with its rows swapped, so swap the columns of the inverse back.
+        for(int col=k-1;col>=0;col--) {
+            int other = swapped[col];
+            if(other == col) continue;
+            for(int r=0;r<k;r++) {
+                int t = m[r * k + col];
+                m[r * k + col] = m[r * k + other];
+                m[r * k + other] = t;
+            }
+        }
+    }
+
+}
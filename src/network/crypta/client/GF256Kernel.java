@@ -0,0 +1,77 @@
+package network.crypta.client;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import network.crypta.support.Logger;
+
+/** The inner loop of FEC encoding and decoding: multiply a block by a constant in GF(2^8) and
+ * add it to another. Almost all the CPU time of a segment encode or decode is spent here. */
+abstract class GF256Kernel {
+
+    /** Uses SIMD lanes if the JVM was started with --add-modules=jdk.incubator.vector, unless
+     * -Dcrypta.fec.vector=false. Otherwise the scalar table lookup. */
+    static final GF256Kernel INSTANCE = choose();
+
+    /** dst[dstOff...dstOff+len-1] ^= c * src[srcOff...srcOff+len-1] */
+    abstract void addMul(byte[] dst, int dstOff, byte[] src, int srcOff, int c, int len);
+
+    private static GF256Kernel choose() {
+        GF256Kernel scalar = new Scalar();
+        if(!"true".equalsIgnoreCase(System.getProperty("crypta.fec.vector", "true")))
+            return scalar;
+        if(!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+            return scalar;
+        GF256Kernel vector;
+        try {
+            vector = (GF256Kernel) Class.forName("network.crypta.client.VectorGF256Kernel")
+                .getDeclaredConstructor().newInstance();
+            if(!sameResults(scalar, vector)) {
+                Logger.error(GF256Kernel.class, "Vector FEC kernel gives wrong results, not using it");
+                return scalar;
+            }
+        } catch (Throwable t) {
+            // Including failures in the kernel itself, which would otherwise break all FEC.
+            Logger.error(GF256Kernel.class, "Unable to use vector FEC kernel: "+t, t);
+            return scalar;
+        }
+        Logger.normal(GF256Kernel.class, "Using "+vector+" for FEC");
+        return vector;
+    }
+
+    /** Check the fast kernel against the simple one on every coefficient, including unaligned
+     * offsets and odd lengths. */
+    static boolean sameResults(GF256Kernel a, GF256Kernel b) {
+        Random random = new Random(0);
+        byte[] src = new byte[1031];
+        random.nextBytes(src);
+        byte[] dstA = new byte[src.length];
+        random.nextBytes(dstA);
+        byte[] dstB = dstA.clone();
+        for(int c=0;c<256;c++) {
+            int off = c % 7;
+            int len = src.length - off - (c % 13);
+            a.addMul(dstA, off, src, (c % 3), c, len - 3);
+            b.addMul(dstB, off, src, (c % 3), c, len - 3);
+        }
+        return Arrays.equals(dstA, dstB);
+    }
+
+    static final class Scalar extends GF256Kernel {
+
+        @Override
+        void addMul(byte[] dst, int dstOff, byte[] src, int srcOff, int c, int len) {
+            if(c == 0) return;
+            byte[] table = GF256.MUL[c];
+            for(int i=0;i<len;i++)
+                dst[dstOff + i] ^= table[src[srcOff + i] & 0xff];
+        }
+
+        @Override
+        public String toString() {
+            return "scalar GF(2^8) kernel";
+        }
+
+    }
+
+}
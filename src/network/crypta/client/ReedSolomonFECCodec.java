@@ -0,0 +1,228 @@
+package network.crypta.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+
+import network.crypta.support.LRUMap;
+
+/** The same code as OnionFECCodec, with byte-identical check blocks, but computed in-tree: the
+ * block arithmetic goes through GF256Kernel, which can use SIMD lanes, and we work through the
+ * blocks in stripes so the inputs stay in cache while we produce every output. The stripes (and
+ * groups of output blocks) are independent, so a big encode or decode is spread over a shared
+ * fork-join pool, see setMaxParallelism(). This needs no memory beyond the blocks themselves,
+ * so the MemoryLimitedJob accounting is unchanged. */
+public class ReedSolomonFECCodec extends OnionFECCodec {
+
+    /** Bytes of each block processed at a time. 128 inputs of this size fit in L2. */
+    static final int STRIPE_SIZE = 4096;
+
+    /** Don't bother with the pool for less than this many byte multiplies. */
+    static final long MIN_PARALLEL_WORK = 1024 * 1024;
+
+    /** Shared by every codec, so the number of FEC threads is bounded however many segments
+     * are being decoded at once. Null if we run everything on the calling thread. */
+    private static volatile ForkJoinPool pool;
+    private static int maxParallelism = 1;
+
+    private final GF256Kernel kernel;
+
+    public ReedSolomonFECCodec() {
+        this(GF256Kernel.INSTANCE);
+    }
+
+    ReedSolomonFECCodec(GF256Kernel kernel) {
+        this.kernel = kernel;
+    }
+
+    @Override
+    public void decode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent, boolean[] checkBlocksPresent, int blockLength) {
+        int k = dataBlocks.length;
+        int n = dataBlocks.length + checkBlocks.length;
+        int missing = 0;
+        for(int i=0;i<dataBlocks.length;i++) {
+            if(dataBlocks[i].length != blockLength) throw new IllegalArgumentException();
+            if(!dataBlocksPresent[i]) missing++;
+        }
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocksPresent[i] && checkBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+        }
+        if(missing == 0) return;
+        byte[] encodeMatrix = getEncodeMatrix(k, n);
+        // Rows of the code for the blocks we have: the data blocks, then check blocks standing in
+        // for the missing data blocks, in order.
+        int[] matrix = new int[k * k];
+        byte[][] inputs = new byte[k][];
+        int check = 0;
+        for(int i=0;i<k;i++) {
+            if(dataBlocksPresent[i]) {
+                matrix[i * k + i] = 1;
+                inputs[i] = dataBlocks[i];
+                continue;
+            }
+            while(check < checkBlocks.length && !checkBlocksPresent[check]) check++;
+            if(check == checkBlocks.length)
+                throw new IllegalArgumentException("Not enough blocks to decode");
+            for(int j=0;j<k;j++)
+                matrix[i * k + j] = encodeMatrix[check * k + j] & 0xff;
+            inputs[i] = checkBlocks[check++];
+        }
+        GF256.invert(matrix, k);
+        // Only the rows of the inverse for the missing data blocks.
+        byte[] coefficients = new byte[missing * k];
+        byte[][] outputs = new byte[missing][];
+        int x = 0;
+        for(int i=0;i<k;i++) {
+            if(dataBlocksPresent[i]) continue;
+            for(int j=0;j<k;j++)
+                coefficients[x * k + j] = (byte) matrix[i * k + j];
+            outputs[x++] = dataBlocks[i];
+        }
+        combine(coefficients, inputs, outputs, blockLength);
+    }
+
+    @Override
+    public void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent,
+            int blockLength) {
+        int k = dataBlocks.length;
+        int n = dataBlocks.length + checkBlocks.length;
+        for(byte[] data : dataBlocks) {
+            if(data == null || data.length != blockLength)
+                throw new IllegalArgumentException();
+        }
+        int mustEncode = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocks[i] == null || checkBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+            if(!checkBlocksPresent[i]) mustEncode++;
+        }
+        if(mustEncode == 0) return; // Done already.
+        byte[] encodeMatrix = getEncodeMatrix(k, n);
+        byte[] coefficients = new byte[mustEncode * k];
+        byte[][] outputs = new byte[mustEncode][];
+        int x = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocksPresent[i]) continue;
+            System.arraycopy(encodeMatrix, i * k, coefficients, x * k, k);
+            outputs[x++] = checkBlocks[i];
+        }
+        combine(coefficients, dataBlocks, outputs, blockLength);
+    }
+
+    /** outputs[r] = sum over i of coefficients[r*k+i] * inputs[i], where k = inputs.length. */
+    private void combine(final byte[] coefficients, final byte[][] inputs, final byte[][] outputs,
+            final int blockLength) {
+        ForkJoinPool p = pool;
+        if(p == null || (long) blockLength * inputs.length * outputs.length < MIN_PARALLEL_WORK) {
+            combine(coefficients, inputs, outputs, 0, blockLength, 0, outputs.length);
+            return;
+        }
+        // One task per stripe, split further by output blocks if that isn't enough to go round.
+        int stripes = (blockLength + STRIPE_SIZE - 1) / STRIPE_SIZE;
+        int groups = Math.min(outputs.length, (2 * p.getParallelism() + stripes - 1) / stripes);
+        final List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(stripes * groups);
+        for(int stripe=0;stripe<stripes;stripe++) {
+            final int start = stripe * STRIPE_SIZE;
+            final int end = Math.min(blockLength, start + STRIPE_SIZE);
+            for(int group=0;group<groups;group++) {
+                final int from = group * outputs.length / groups;
+                final int to = (group + 1) * outputs.length / groups;
+                tasks.add(ForkJoinTask.adapt(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        combine(coefficients, inputs, outputs, start, end, from, to);
+                    }
+
+                }));
+            }
+        }
+        try {
+            p.invoke(ForkJoinTask.adapt(new Runnable() {
+
+                @Override
+                public void run() {
+                    ForkJoinTask.invokeAll(tasks);
+                }
+
+            }));
+        } catch (RejectedExecutionException e) {
+            // The pool was replaced while we were setting up. Nothing has been written yet.
+            combine(coefficients, inputs, outputs, 0, blockLength, 0, outputs.length);
+        }
+    }
+
+    /** Compute bytes [start, end) of outputs [from, to). */
+    private void combine(byte[] coefficients, byte[][] inputs, byte[][] outputs, int start,
+            int end, int from, int to) {
+        int k = inputs.length;
+        for(int off=start;off<end;off+=STRIPE_SIZE) {
+            int len = Math.min(STRIPE_SIZE, end - off);
+            for(int r=from;r<to;r++) {
+                byte[] out = outputs[r];
+                Arrays.fill(out, off, off + len, (byte)0);
+                for(int i=0;i<k;i++)
+                    kernel.addMul(out, off, inputs[i], off, coefficients[r * k + i] & 0xff, len);
+            }
+        }
+    }
+
+    /** Encode matrices by {k,n}. At most 64KB each and cheap to rebuild, so just keep the few
+     * most recently used. */
+    private static final LRUMap<Integer, byte[]> encodeMatrices = LRUMap.createSafeMap();
+    private static final int MAX_CACHED_MATRICES = 16;
+
+    private static byte[] getEncodeMatrix(int k, int n) {
+        Integer key = (n << 16) + k;
+        synchronized(encodeMatrices) {
+            byte[] matrix = encodeMatrices.get(key);
+            if(matrix != null) {
+                encodeMatrices.push(key, matrix);
+                return matrix;
+            }
+        }
+        byte[] matrix = GF256.createEncodeMatrix(k, n);
+        synchronized(encodeMatrices) {
+            encodeMatrices.push(key, matrix);
+            while(encodeMatrices.size() > MAX_CACHED_MATRICES)
+                encodeMatrices.popKey();
+        }
+        return matrix;
+    }
+
+    /** Set the maximum number of threads a single encode or decode may use. This also limits
+     * the total across all concurrent FEC jobs, apart from their calling threads. */
+    public static synchronized void setMaxParallelism(int threads) {
+        if(threads < 1) throw new IllegalArgumentException();
+        if(threads == maxParallelism) return;
+        maxParallelism = threads;
+        ForkJoinPool old = pool;
+        pool = threads == 1 ? null : new ForkJoinPool(threads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("FEC worker "+thread.getPoolIndex());
+                return thread;
+            }
+
+        }, null, false);
+        // Jobs already running on the old pool will complete.
+        if(old != null) old.shutdown();
+    }
+
+    public static synchronized int getMaxParallelism() {
+        return maxParallelism;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString()+":"+kernel;
+    }
+
+}
@@ -0,0 +1,57 @@
+package network.crypta.client;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/** Multiply-accumulate with split-nibble tables: c*x = c*(x & 15) ^ c*(x & 240), and each half
+ * is a 16-entry lookup, which is a single byte shuffle per vector. Only loaded by GF256Kernel if
+ * the jdk.incubator.vector module is present. */
+final class VectorGF256Kernel extends GF256Kernel {
+
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    /** c times each low nibble, and times each high nibble, repeated to fill a vector. */
+    private static final byte[][] LOW = new byte[256][SPECIES.length()];
+    private static final byte[][] HIGH = new byte[256][SPECIES.length()];
+
+    static {
+        for(int c=0;c<256;c++) {
+            for(int i=0;i<SPECIES.length();i++) {
+                LOW[c][i] = GF256.MUL[c][i & 15];
+                HIGH[c][i] = GF256.MUL[c][(i & 15) << 4];
+            }
+        }
+    }
+
+    VectorGF256Kernel() {
+        // The nibble lookups index 16 lanes, e.g. not available with -XX:MaxVectorSize=8.
+        if(SPECIES.length() < 16)
+            throw new UnsupportedOperationException("Only "+SPECIES.length()+" byte lanes");
+    }
+
+    @Override
+    void addMul(byte[] dst, int dstOff, byte[] src, int srcOff, int c, int len) {
+        if(c == 0) return;
+        ByteVector low = ByteVector.fromArray(SPECIES, LOW[c], 0);
+        ByteVector high = ByteVector.fromArray(SPECIES, HIGH[c], 0);
+        int bound = SPECIES.loopBound(len);
+        int i = 0;
+        for(;i<bound;i+=SPECIES.length()) {
+            ByteVector x = ByteVector.fromArray(SPECIES, src, srcOff + i);
+            ByteVector product = x.and((byte)0x0f).selectFrom(low)
+                .lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHR, 4).and((byte)0x0f).selectFrom(high));
+            ByteVector.fromArray(SPECIES, dst, dstOff + i).lanewise(VectorOperators.XOR, product)
+                .intoArray(dst, dstOff + i);
+        }
+        byte[] table = GF256.MUL[c];
+        for(;i<len;i++)
+            dst[dstOff + i] ^= table[src[srcOff + i] & 0xff];
+    }
+
+    @Override
+    public String toString() {
+        return SPECIES.vectorBitSize()+"-bit vector GF(2^8) kernel";
+    }
+
+}
@@ -87,6 +87,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onEncode(BaseClientKey key, ClientPutState state, ClientContext context) {
+			changed();
 			if (logMINOR) Logger.minor(this, "onEncode(" + key.getURI().toString(false, false) + ") for " + this);
 
 			synchronized (BaseManifestPutter.this) {
@@ -142,6 +143,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onEncode(BaseClientKey key, ClientPutState state, ClientContext context) {
+			changed();
 			if (logMINOR) Logger.minor(this, "onEncode(" + key.getURI().toString(false, false) + ") for " + this);
 
 			if (rootContainerPutHandler == this) {
@@ -190,6 +192,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onEncode(BaseClientKey key, ClientPutState state, ClientContext context) {
+			changed();
 			if (logMINOR) Logger.minor(this, "onEncode(" + key + ") for " + this);
 
 			//debugDecompose("ExternPutHandler.onEncode Begin");
@@ -295,6 +298,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 
 		@Override
 		public void onEncode(BaseClientKey key, ClientPutState state, ClientContext context) {
+			changed();
 			if (logMINOR) Logger.minor(this, "onEncode(" + key.getURI().toString(false, false) + ") for " + this);
 
 			if (rootMetaPutHandler == this) {
@@ -481,6 +485,13 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 			return null;
 		}
 
+		/** The handlers are written as part of the manifest putter. */
+		@Override
+		public void changed() {
+			super.changed();
+			BaseManifestPutter.this.changed();
+		}
+
 		@Override
 		public boolean isFinished() {
 			if(logMINOR) Logger.minor(this, "Finished "+this, new Exception("debug"));
@@ -500,6 +511,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 			}
 
 			if (logMINOR) Logger.minor(this, "Completed '" + this.itemName + "' " + this);
+			changed();
 
 			if (putHandlersWaitingForFetchable.contains(this))
 				BaseManifestPutter.this.onFetchable(this);
@@ -541,6 +553,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 				oldState = currentState;
 				currentState = null;
 			}
+			changed();
 			if(logMINOR) Logger.minor(this, "Failed: "+this+" - "+e, e);
 			fail(e, context);
 		}
@@ -558,6 +571,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 			synchronized (this) {
 				if (currentState == oldState) {
 					currentState = newState;
+					changed();
 					if(logMINOR)
 						Logger.minor(this, "onTransition: cur=" + currentState + ", old=" + oldState + ", new=" + newState+" for "+this);
 					return;
@@ -930,6 +944,7 @@ public abstract class BaseManifestPutter extends ManifestPutter {
 		if (containerMode) throw new IllegalStateException();
 		if(logMINOR) Logger.minor(this, "Got all metadata");
 		baseMetadata = makeMetadata(rootDir);
+		changed();
 		context.jobRunner.setCheckpointASAP();
 		resolveAndStartBase(context);
 	}
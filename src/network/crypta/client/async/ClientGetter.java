@@ -18,6 +18,7 @@ import java.io.Serializable;
 import java.net.MalformedURLException;
 import java.net.URISyntaxException;
 import java.util.List;
+import java.util.concurrent.Semaphore;
 
 import network.crypta.client.ArchiveContext;
 import network.crypta.client.ClientMetadata;
@@ -62,9 +63,13 @@ import network.crypta.support.io.StorageFormatException;
  * example fetches a key, parses the metadata, and if necessary creates other states to e.g. fetch splitfiles.
  */
 public class ClientGetter extends BaseClientGetter
-implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
+implements WantsCooldownCallback, FileGetCompletionCallback, StreamingGetCompletionCallback, Serializable {
 
     private static final long serialVersionUID = 1L;
+    /** Each streaming completion holds a thread (and its decompressor and filter threads) until
+     * its download finishes, so only this many run at once. The rest write at the end. */
+    private static final int MAX_STREAMING_COMPLETIONS = 4;
+    private static final Semaphore streamingSlots = new Semaphore(MAX_STREAMING_COMPLETIONS);
     private static volatile boolean logMINOR;
 
 	static {
@@ -109,6 +114,8 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 	 * be compatible with this extension. */
 	final String forceCompatibleExtension;
 	private transient boolean resumedFetcher;
+	/** Writing out the data of the final splitfile while it is still downloading. */
+	private transient StreamingCompletion streaming;
 
 	// Shorter constructors for convenience and backwards compatibility.
 
@@ -287,18 +294,151 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			}
 		}
 
+		StreamingCompletion s;
 		synchronized(this) {
 			finished = true;
 			currentState = null;
 			expectedMIME = mimeType;
+			s = streaming;
+			streaming = null;
+		}
+		FetchResult result;
+		try {
+			if(s != null && s.state == state) {
+				if(logMINOR) Logger.minor(this, "Waiting for the data already being written");
+				result = s.waitFinished();
+			} else {
+				if(s != null) {
+					// Don't let the old stream write to (or free) returnBucket after we open it.
+					s.abandon();
+					s.waitStopped();
+				}
+				result = writeResult(streamGenerator, clientMetadata, decompressors, context, false);
+			}
+		} catch (FetchException e) {
+			onFailure(e, state, context, true);
+			return;
+		}
+		changed();
+		context.getJobRunner(persistent()).setCheckpointASAP();
+		clientCallback.onSuccess(result, ClientGetter.this);
+	}
+
+	@Override
+	public boolean onStreamStart(StreamGenerator streamGenerator, ClientMetadata clientMetadata,
+			List<? extends Compressor> decompressors, ClientGetState state, ClientContext context) {
+		StreamingCompletion s;
+		synchronized(this) {
+			if(finished || cancelled || streaming != null || currentState != state) return false;
+			if(binaryBlobWriter != null) return false;
+			if(!streamingSlots.tryAcquire()) {
+				if(logMINOR) Logger.minor(this, "Too many streaming completions, writing "+this+" at the end");
+				return false;
+			}
+			s = new StreamingCompletion(streamGenerator, clientMetadata, decompressors, state, context);
+			streaming = s;
+		}
+		if(logMINOR) Logger.minor(this, "Streaming data from "+state+" before the fetch finishes");
+		context.getMainExecutor().execute(s, "Writing data for "+this);
+		return true;
+	}
+
+	/** Runs writeResult() while the fetch is still going, for onSuccess() to pick up. */
+	private class StreamingCompletion implements Runnable {
+
+		final ClientGetState state;
+		private final StreamGenerator streamGenerator;
+		private final ClientMetadata clientMetadata;
+		private final List<? extends Compressor> decompressors;
+		private final ClientContext context;
+		private boolean done;
+		private boolean abandoned;
+		private FetchResult result;
+		private FetchException failure;
+
+		StreamingCompletion(StreamGenerator streamGenerator, ClientMetadata clientMetadata,
+				List<? extends Compressor> decompressors, ClientGetState state, ClientContext context) {
+			this.streamGenerator = streamGenerator;
+			this.clientMetadata = clientMetadata;
+			this.decompressors = decompressors;
+			this.state = state;
+			this.context = context;
+		}
+
+		@Override
+		public void run() {
+			FetchResult r = null;
+			FetchException f = null;
+			try {
+				r = writeResult(streamGenerator, clientMetadata, decompressors, context, true);
+			} catch (FetchException e) {
+				f = e;
+			} finally {
+				streamingSlots.release();
+			}
+			boolean free;
+			synchronized(this) {
+				done = true;
+				result = r;
+				failure = f;
+				free = abandoned && r != null;
+				notifyAll();
+			}
+			if(free) freeResult(r);
+		}
+
+		synchronized FetchResult waitFinished() throws FetchException {
+			while(!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+			if(failure != null) throw failure;
+			return result;
+		}
+
+		/** Wait until the stream has stopped writing. It must have been abandoned, and its state
+		 * finished, so that it fails promptly if it isn't done. */
+		synchronized void waitStopped() {
+			while(!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore.
+				}
+			}
+		}
 
+		/** Nobody wants the data, free it when we're done. */
+		void abandon() {
+			FetchResult r;
+			synchronized(this) {
+				abandoned = true;
+				r = result;
+				result = null;
+			}
+			if(r != null) freeResult(r);
 		}
-		// Rest of method does not need to be synchronized.
-		// Variables will be updated on exit of method, and the only thing that is
-		// set is the returnBucket and the result. Not locking not only prevents
-		// nested locking resulting in deadlocks, it also prevents long locks due to
-		// doing massive encrypted I/Os while holding a lock.
 
+	}
+
+	private void freeResult(FetchResult result) {
+		Bucket data = result.asBucket();
+		if(data != returnBucket) data.free();
+	}
+
+	/**
+	 * Decompress, filter, hash and write the data to the final bucket. The data is generated on
+	 * this thread, decompression and filtering run on their own threads.
+	 * @param keepReturnBucket If true, don't free returnBucket on failure, because the data may
+	 * still be written to it again.
+	 * @throws FetchException If it failed. The final bucket will have been freed.
+	 */
+	private FetchResult writeResult(StreamGenerator streamGenerator, ClientMetadata clientMetadata,
+			List<? extends Compressor> decompressors, ClientContext context, boolean keepReturnBucket)
+			throws FetchException {
 		PipedOutputStream dataOutput = new PipedOutputStream();
 		PipedInputStream dataInput = new PipedInputStream();
 		OutputStream output = null;
@@ -307,6 +447,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		ClientGetWorkerThread worker = null;
 		Bucket finalResult = null;
 		FetchResult result = null;
+		String mimeType = clientMetadata == null ? null : clientMetadata.getMIMEType();
 
         long maxLen = -1;
         synchronized(this) {
@@ -397,18 +538,17 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 			Closer.close(output);
 		}
 		if(ex != null) {
-			onFailure(ex, state, context, true);
 			if(finalResult != null && finalResult != returnBucket) {
 				finalResult.free();
 			}
 			if(result != null) {
 			Bucket data = result.asBucket();
-			data.free();
+			if(!(keepReturnBucket && data == returnBucket))
+				data.free();
 			}
-			return;
+			throw ex;
 		}
-		context.getJobRunner(persistent()).setCheckpointASAP();
-		clientCallback.onSuccess(result, ClientGetter.this);
+		return result;
 	}
 
     @Override
@@ -492,6 +632,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
                 }
             tempFile.delete();
         } else {
+            changed();
             context.getJobRunner(persistent()).setCheckpointASAP();
             clientCallback.onSuccess(result, ClientGetter.this);
         }
@@ -517,9 +658,11 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		if(logMINOR)
 			Logger.minor(this, "Failed from "+state+" : "+e+" on "+this, e);
 		ClientGetState oldState = null;
+		StreamingCompletion s = null;
 		if(expectedSize > 0 && (e.expectedSize <= 0 || finalBlocksTotal != 0))
 			e.expectedSize = expectedSize;
 
+		changed();
 		context.getJobRunner(persistent()).setCheckpointASAP();
 
 		if(e.mode == FetchExceptionMode.TOO_BIG && ctx.filterData) {
@@ -573,7 +716,11 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 				String mime = e.getExpectedMimeType();
 				if(mime != null)
 				    this.expectedMIME = mime;
+				s = streaming;
+				streaming = null;
 			}
+			// The fetcher has been cancelled, so the stream will fail if it hasn't finished.
+			if(s != null) s.abandon();
 			if(!alreadyFinished) {
 				try {
 					if (binaryBlobWriter != null && !dontFinalizeBlobWriter) binaryBlobWriter.finalizeBucket();
@@ -703,6 +850,7 @@ implements WantsCooldownCallback, FileGetCompletionCallback, Serializable {
 		synchronized(this) {
 			if(currentState == oldState) {
 				currentState = newState;
+				changed();
 				if(logMINOR) Logger.minor(this, "Transition: "+oldState+" -> "+newState+" on "+this+" persistent = "+persistent()+" instance = "+super.toString(), new Exception("debug"));
 			} else {
 				if(logMINOR) Logger.minor(this, "Ignoring transition: "+oldState+" -> "+newState+" because current = "+currentState+" on "+this+" persistent = "+persistent(), new Exception("debug"));
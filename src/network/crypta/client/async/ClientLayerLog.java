@@ -0,0 +1,176 @@
+package network.crypta.client.async;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import network.crypta.crypt.ChecksumChecker;
+import network.crypta.crypt.ChecksumFailedException;
+import network.crypta.support.Logger;
+import network.crypta.support.io.FileUtil;
+
+/** The files making up the log-structured client.dat. A checkpoint either writes a snapshot of
+ * every request to client.dat (moving the old one to client.dat.bak, as before), or a delta
+ * containing only the requests that have changed or been removed since the last checkpoint.
+ * Deltas are separate files, named after the generation of the snapshot they apply to, so we
+ * never need to append to an encrypted file, and a half written delta only loses that
+ * checkpoint.
+ *
+ * Each file starts with a header: magic, version, type, snapshot generation, delta sequence
+ * number and the global salt. Then come records: a type byte, then for requests the request
+ * identifier, the serialized request and the recovery data, each with a checksum. After the
+ * last record come the bandwidth stats and the buckets to free, as before.
+ *
+ * ClientLayerPersister does the reading and writing of records; this class just deals with the
+ * files and headers. */
+class ClientLayerLog {
+
+    static final long MAGIC = 0x5d0bd6b81c2a6f3eL;
+    static final int VERSION = 2;
+
+    static final byte SEGMENT_SNAPSHOT = 0;
+    static final byte SEGMENT_DELTA = 1;
+
+    static final byte RECORD_END = 0;
+    static final byte RECORD_REQUEST = 1;
+    static final byte RECORD_REMOVED = 2;
+
+    private static final String DELTA = ".delta-";
+    private static final String CRYPT = ".crypt";
+
+    private final File dir;
+    private final String baseName;
+
+    ClientLayerLog(File dir, String baseName) {
+        this.dir = dir;
+        this.baseName = baseName;
+    }
+
+    /** The header of a snapshot or delta. */
+    static class Header {
+        final byte type;
+        final long generation;
+        final int sequence;
+        /** Null if the checksum failed */
+        final byte[] salt;
+
+        Header(byte type, long generation, int sequence, byte[] salt) {
+            this.type = type;
+            this.generation = generation;
+            this.sequence = sequence;
+            this.salt = salt;
+        }
+    }
+
+    /** A delta file found on disk. */
+    static class Delta implements Comparable<Delta> {
+        final File file;
+        final long generation;
+        final int sequence;
+        final boolean encrypted;
+
+        Delta(File file, long generation, int sequence, boolean encrypted) {
+            this.file = file;
+            this.generation = generation;
+            this.sequence = sequence;
+            this.encrypted = encrypted;
+        }
+
+        @Override
+        public int compareTo(Delta d) {
+            return Integer.compare(sequence, d.sequence);
+        }
+    }
+
+    static void writeHeader(DataOutputStream dos, byte type, long generation, int sequence,
+            byte[] salt, ChecksumChecker checker) throws IOException {
+        dos.writeLong(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeByte(type);
+        dos.writeLong(generation);
+        dos.writeInt(sequence);
+        checker.writeAndChecksum(dos, salt, 0, salt.length);
+    }
+
+    /** Read the rest of the header, after the magic. */
+    static Header readHeader(DataInputStream dis, ChecksumChecker checker) throws IOException {
+        int version = dis.readInt();
+        if(version != VERSION) throw new IOException("Bad version "+version);
+        byte type = dis.readByte();
+        if(type != SEGMENT_SNAPSHOT && type != SEGMENT_DELTA) throw new IOException("Bad type "+type);
+        long generation = dis.readLong();
+        int sequence = dis.readInt();
+        byte[] salt = new byte[32];
+        try {
+            checker.readAndChecksum(dis, salt, 0, salt.length);
+        } catch (ChecksumFailedException e) {
+            Logger.error(ClientLayerLog.class, "Unable to read global salt (checksum failed)");
+            salt = null;
+        }
+        return new Header(type, generation, sequence, salt);
+    }
+
+    File deltaFile(long generation, int sequence, boolean encrypted) {
+        return new File(dir, baseName + DELTA + Long.toHexString(generation) + "-" + sequence +
+                (encrypted ? CRYPT : ""));
+    }
+
+    /** All the deltas on disk for a snapshot, in order. */
+    List<Delta> listDeltas(long generation, boolean encrypted) {
+        List<Delta> deltas = new ArrayList<Delta>();
+        for(Delta d : listAllDeltas()) {
+            if(d.generation == generation && d.encrypted == encrypted)
+                deltas.add(d);
+        }
+        Collections.sort(deltas);
+        return deltas;
+    }
+
+    List<Delta> listAllDeltas() {
+        List<Delta> deltas = new ArrayList<Delta>();
+        String[] names = dir.list();
+        if(names == null) return deltas;
+        String prefix = baseName + DELTA;
+        for(String name : names) {
+            if(!name.startsWith(prefix)) continue;
+            String s = name.substring(prefix.length());
+            boolean encrypted = s.endsWith(CRYPT);
+            if(encrypted) s = s.substring(0, s.length() - CRYPT.length());
+            int dash = s.indexOf('-');
+            if(dash == -1) continue;
+            try {
+                long generation = Long.parseUnsignedLong(s.substring(0, dash), 16);
+                int sequence = Integer.parseInt(s.substring(dash+1));
+                deltas.add(new Delta(new File(dir, name), generation, sequence, encrypted));
+            } catch (NumberFormatException e) {
+                // Not ours.
+            }
+        }
+        return deltas;
+    }
+
+    /** Delete the deltas of every snapshot except the one given. */
+    void deleteDeltasExcept(long generation, boolean encrypted) {
+        for(Delta d : listAllDeltas()) {
+            if(d.generation == generation && d.encrypted == encrypted) continue;
+            d.file.delete();
+        }
+    }
+
+    void secureDeleteAllDeltas() {
+        for(Delta d : listAllDeltas()) {
+            try {
+                FileUtil.secureDelete(d.file);
+            } catch (IOException e) {
+                d.file.delete();
+                if(d.file.exists())
+                    System.err.println("Failed to delete "+d.file);
+            }
+        }
+    }
+
+}
@@ -13,9 +13,13 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import network.crypta.clients.fcp.ClientRequest;
 import network.crypta.clients.fcp.RequestIdentifier;
@@ -47,7 +51,8 @@ import static java.util.concurrent.TimeUnit.MINUTES;
  * 1) Splitfile persistence. The downloaded data and all the status for a splitfile is kept in a 
  * single random access file (technically a LockableRandomAccessBuffer).
  * 2) Java persistence. The overall list of ClientRequest's is stored to client.dat using 
- * serialization, by this class.
+ * serialization, by this class. Only the requests that have changed since the last checkpoint are
+ * written, to a delta file, with a full snapshot now and then; see ClientLayerLog.
  * 3) A simple binary fallback. For complicated requests this will just record enough information 
  * to restart the request, but for simple splitfile downloads, we can resume from (1).
  * 
@@ -100,7 +105,29 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     private File otherDeleteAfterSuccessfulWrite;
     private File dir;
     private String baseName;
-    
+    private ClientLayerLog log;
+    /** Key for the deltas, or null if we are not encrypting. */
+    private DatabaseKey writeEncryptionKey;
+    /** Generation of the snapshot in writeToFilename, or 0 if there isn't one. */
+    private long generation;
+    /** If true, the next checkpoint writes a snapshot rather than a delta. */
+    private boolean writeSnapshot = true;
+    private int nextDelta;
+    private long snapshotLength;
+    private long deltasLength;
+    /** The requests written successfully by the last checkpoint. The others are written at the
+     * next one whether or not ClientRequest.clearChanged() says they have changed. */
+    private Set<RequestIdentifier> written = new HashSet<RequestIdentifier>();
+    /** Generation of the snapshot read from client.dat on startup, and whether it was encrypted. */
+    private long loadedGeneration;
+    private boolean loadedEncrypted;
+
+    /** Write a snapshot after this many deltas, or when the deltas add up to more than the
+     * snapshot, so startup doesn't have to read too much. */
+    static final int MAX_DELTAS = 32;
+
+    /** The old format, where every checkpoint serialized everything. Still read, so we can
+     * migrate: the first checkpoint after loading always writes a snapshot. */
     private static final long MAGIC = 0xd332925f3caf4aedL;
     private static final int VERSION = 1;
     
@@ -138,6 +165,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         synchronized(serializeCheckpoints) {
             this.dir = dir;
             this.baseName = baseName;
+            this.log = new ClientLayerLog(dir, baseName);
             if(noWrite) {
                 writeToBucket = null;
                 writeToFilename = null;
@@ -146,6 +174,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 deleteFile(dir, baseName, false, true);
                 deleteFile(dir, baseName, true, false);
                 deleteFile(dir, baseName, true, true);
+                log.secureDeleteAllDeltas();
                 onStarted(true);
                 if(salt == null) {
                     salt = new byte[32];
@@ -193,7 +222,11 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
+        writeEncryptionKey = writeEncrypted ? encryptionKey : null;
         if(writeToFilename.equals(oldWriteToFilename)) return;
+        // The deltas must be encrypted the same way as the snapshot.
+        generation = 0;
+        writeSnapshot = true;
         System.out.println("Will save downloads to "+writeToFilename);
         deleteAfterSuccessfulWrite = makeFilename(dir, baseName, false, !writeEncrypted);
         otherDeleteAfterSuccessfulWrite = makeFilename(dir, baseName, true, !writeEncrypted);
@@ -228,16 +261,16 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         boolean failedSerialize = false;
         PartialLoad loaded = new PartialLoad();
         if(clientDatExists) {
-            innerLoad(loaded, makeBucket(dir, baseName, false, null), noSerialize, context, requestStarters, random);
+            innerLoad(loaded, false, null, noSerialize, context, requestStarters, random);
         }
         if(clientDatCryptExists && loaded.needsMore()) {
-            innerLoad(loaded, makeBucket(dir, baseName, false, encryptionKey), noSerialize, context, requestStarters, random);
+            innerLoad(loaded, false, encryptionKey, noSerialize, context, requestStarters, random);
         }
         if(clientDatBakExists) {
-            innerLoad(loaded, makeBucket(dir, baseName, true, null), noSerialize, context, requestStarters, random);
+            innerLoad(loaded, true, null, noSerialize, context, requestStarters, random);
         }
         if(clientDatBakCryptExists && loaded.needsMore()) {
-            innerLoad(loaded, makeBucket(dir, baseName, true, encryptionKey), noSerialize, context, requestStarters, random);
+            innerLoad(loaded, true, encryptionKey, noSerialize, context, requestStarters, random);
         }
         
         deleteAfterSuccessfulWrite = writeEncrypted ? clientDat : clientDatCrypt;
@@ -246,6 +279,11 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
+        writeEncryptionKey = writeEncrypted ? encryptionKey : null;
+        // We don't know which requests have changed since they were written, so the first
+        // checkpoint writes a snapshot. Keep the deltas of the old one until then.
+        generation = loadedEncrypted == writeEncrypted ? loadedGeneration : 0;
+        writeSnapshot = true;
         
         if(loaded.doneSomething()) {
             if(!noSerialize) {
@@ -328,7 +366,10 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
      * @param encryptionKey Non-null if we want an encrypted file.
      */
     private Bucket makeBucket(File dir, String baseName, boolean backup, DatabaseKey encryptionKey) {
-        File filename = makeFilename(dir, baseName, backup, encryptionKey != null);
+        return makeBucket(makeFilename(dir, baseName, backup, encryptionKey != null), encryptionKey);
+    }
+
+    private Bucket makeBucket(File filename, DatabaseKey encryptionKey) {
         Bucket bucket = new FileBucket(filename, false, false, false, false);
         if(encryptionKey != null)
             bucket = encryptionKey.createEncryptedBucketForClientLayer(bucket);
@@ -412,14 +453,24 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private void innerLoad(PartialLoad loaded, Bucket bucket, boolean noSerialize,
-            ClientContext context, RequestStarterGroup requestStarters, Random random) {
+    private void innerLoad(PartialLoad loaded, boolean backup, DatabaseKey encryptionKey,
+            boolean noSerialize, ClientContext context, RequestStarterGroup requestStarters, Random random) {
+        Bucket bucket = makeBucket(dir, baseName, backup, encryptionKey);
         long length = bucket.size();
+        boolean latest = !noSerialize && !loaded.doneSomething();
         InputStream fis = null;
         try {
             fis = bucket.getInputStream();
-            innerLoad(loaded, fis, length, !noSerialize && !loaded.doneSomething(), context, 
-                    requestStarters, random, noSerialize);
+            long magic = new DataInputStream(fis).readLong();
+            fis.close();
+            fis = null;
+            if(magic == ClientLayerLog.MAGIC) {
+                innerLoadLog(loaded, bucket, backup, encryptionKey, latest, context, requestStarters,
+                        noSerialize);
+            } else {
+                fis = bucket.getInputStream();
+                innerLoad(loaded, fis, length, latest, context, requestStarters, random, noSerialize);
+            }
         } catch (IOException e) {
             // FIXME tell user more obviously.
             Logger.error(this, "Failed to load persistent requests from "+bucket+" : "+e, e);
@@ -441,6 +492,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
+    /** Load the old format. */
     private void innerLoad(PartialLoad loaded, InputStream fis, long length, boolean latest, 
             ClientContext context, RequestStarterGroup requestStarters, Random random, boolean noSerialize) throws NodeInitException, IOException {
         ObjectInputStream ois = new ObjectInputStream(fis);
@@ -458,91 +510,223 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         requestStarters.setGlobalSalt(salt);
         int requestCount = ois.readInt();
         for(int i=0;i<requestCount;i++) {
-            ClientRequest request = null;
             RequestIdentifier reqID = readRequestIdentifier(ois);
-            if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
-                Logger.warning(this, "Not reading request because already have it");
-                skipChecksummedObject(ois, length); // Request itself
-                skipChecksummedObject(ois, length); // Recovery data
-                continue;
-            }
+            readRequest(loaded, ois, length, reqID, context, noSerialize);
+        }
+        if(latest) {
             try {
-                if(!noSerialize) {
-                    request = (ClientRequest) readChecksummedObject(ois, length);
-                    if(request != null) {
-                        if(reqID != null) {
-                            if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
-                                Logger.error(this, "Request does not match request identifier, discarding");
-                                request = null;
-                            } else {
-                                loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
-                            }
-                        }
-                    }
-                } else
-                    skipChecksummedObject(ois, length);
-            } catch (ChecksumFailedException e) {
-                Logger.error(this, "Failed to load request (checksum failed)");
-                System.err.println("Failed to load a request (checksum failed)");
+                // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
+                readStatsAndBuckets(ois, length, context);
             } catch (Throwable t) {
-                // Some more serious problem. Try to load the rest anyway.
-                Logger.error(this, "Failed to load request: "+t, t);
-                System.err.println("Failed to load a request: "+t);
-                t.printStackTrace();
+                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
             }
-            if(request == null || logMINOR) {
-                try {
-                    ClientRequest restored = readRequestFromRecoveryData(ois, length, reqID);
-                    if(request == null && restored != null) {
-                        request = restored;
-                        boolean loadedFully = restored.fullyResumed();
-                        loaded.addPartiallyLoadedRequest(reqID, request, 
-                                loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
+        }
+        ois.close();
+        fis = null;
+    }
+
+    /** Load a snapshot and its deltas. First we find the last record for each request, then we
+     * only deserialize that one, skipping older versions and removed requests. Every live request
+     * is still deserialized at startup: it has to be resumed and scheduled straight away, so
+     * there is nothing to gain from materializing it lazily. */
+    private void innerLoadLog(PartialLoad loaded, Bucket snapshot, boolean backup,
+            DatabaseKey encryptionKey, boolean latest, ClientContext context,
+            RequestStarterGroup requestStarters, boolean noSerialize) throws IOException {
+        Map<RequestIdentifier, Long> lastRecords = new HashMap<RequestIdentifier, Long>();
+        ClientLayerLog.Header header = indexSegment(snapshot, 0, lastRecords);
+        if(header.type != ClientLayerLog.SEGMENT_SNAPSHOT) throw new IOException("Not a snapshot");
+        if(header.salt != null)
+            loaded.setSalt(header.salt);
+        requestStarters.setGlobalSalt(header.salt != null ? header.salt : new byte[32]);
+        if(!backup) {
+            loadedGeneration = header.generation;
+            loadedEncrypted = encryptionKey != null;
+        }
+        List<Bucket> segments = new ArrayList<Bucket>();
+        segments.add(snapshot);
+        for(ClientLayerLog.Delta delta : log.listDeltas(header.generation, encryptionKey != null)) {
+            Bucket bucket = makeBucket(delta.file, encryptionKey);
+            try {
+                Map<RequestIdentifier, Long> deltaRecords = new HashMap<RequestIdentifier, Long>();
+                ClientLayerLog.Header h = indexSegment(bucket, segments.size(), deltaRecords);
+                if(h.type != ClientLayerLog.SEGMENT_DELTA || h.generation != header.generation ||
+                        h.sequence != delta.sequence)
+                    throw new IOException("Header does not match file name");
+                lastRecords.putAll(deltaRecords);
+                segments.add(bucket);
+            } catch (IOException e) {
+                // Later deltas are still worth reading, they contain complete requests.
+                Logger.error(this, "Unable to read "+delta.file+" : "+e, e);
+                System.err.println("Unable to read "+delta.file+" : "+e);
+                loaded.setSomethingFailed();
+            }
+        }
+        PersistentStatsPutter stats = null;
+        for(int i=0;i<segments.size();i++) {
+            Bucket bucket = segments.get(i);
+            long length = bucket.size();
+            InputStream is = null;
+            try {
+                is = bucket.getInputStream();
+                DataInputStream dis = new DataInputStream(is);
+                if(dis.readLong() != ClientLayerLog.MAGIC) throw new IOException("Bad magic");
+                ClientLayerLog.readHeader(dis, checker);
+                for(int record=0;;record++) {
+                    byte type = dis.readByte();
+                    if(type == ClientLayerLog.RECORD_END) break;
+                    RequestIdentifier reqID = readRequestIdentifier(dis);
+                    if(type == ClientLayerLog.RECORD_REMOVED) continue;
+                    if(type != ClientLayerLog.RECORD_REQUEST) throw new IOException("Bad record type "+type);
+                    // If the identifier is corrupt we don't know whether it's the latest version.
+                    Long last = reqID == null ? null : lastRecords.get(reqID);
+                    if(reqID != null && (last == null || last != recordPosition(i, record))) {
+                        skipChecksummedObject(dis, length); // Request itself
+                        skipChecksummedObject(dis, length); // Recovery data
+                        continue;
                     }
-                } catch (ChecksumFailedException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recover a request (checksum failed)");
-                        System.err.println("Failed to recover a request (checksum failed)");
-                    } else {
-                        Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
+                    readRequest(loaded, dis, length, reqID, context, noSerialize);
+                }
+                if(latest) {
+                    // Free the buckets listed in every file, but the stats are cumulative.
+                    try {
+                        PersistentStatsPutter s = (PersistentStatsPutter) readChecksummedObject(dis, length);
+                        if(s != null) stats = s;
+                        readBuckets(dis, length);
+                    } catch (Throwable t) {
+                        Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
                     }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
-                } catch (StorageFormatException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
-                        System.err.println("Failed to recovery a request (storage format): "+e);
-                        e.printStackTrace();
-                    } else {
-                        Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
+                }
+            } catch (IOException e) {
+                Logger.error(this, "Failed to load persistent requests from "+bucket+" : "+e, e);
+                System.err.println("Failed to load persistent requests from "+bucket+" : "+e);
+                loaded.setSomethingFailed();
+            } finally {
+                if(is != null) is.close();
+            }
+        }
+        if(stats != null)
+            bandwidthStatsPutter.addFrom(stats);
+    }
+
+    /** Read the header of a snapshot or delta, and record where each request was last written.
+     * A corrupt record ends the file, later records can't be found anyway.
+     * @throws IOException If the header can't be read. */
+    private ClientLayerLog.Header indexSegment(Bucket bucket, int segment,
+            Map<RequestIdentifier, Long> lastRecords) throws IOException {
+        long length = bucket.size();
+        InputStream is = bucket.getInputStream();
+        try {
+            DataInputStream dis = new DataInputStream(is);
+            if(dis.readLong() != ClientLayerLog.MAGIC) throw new IOException("Bad magic");
+            ClientLayerLog.Header header = ClientLayerLog.readHeader(dis, checker);
+            try {
+                for(int record=0;;record++) {
+                    byte type = dis.readByte();
+                    if(type == ClientLayerLog.RECORD_END) break;
+                    RequestIdentifier reqID = readRequestIdentifier(dis);
+                    if(type == ClientLayerLog.RECORD_REQUEST) {
+                        skipChecksummedObject(dis, length);
+                        skipChecksummedObject(dis, length);
+                    } else if(type != ClientLayerLog.RECORD_REMOVED) {
+                        throw new IOException("Bad record type "+type);
                     }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
+                    if(reqID != null)
+                        lastRecords.put(reqID, recordPosition(segment, record));
                 }
-            } else {
-                skipChecksummedObject(ois, length);
+            } catch (IOException e) {
+                Logger.error(this, "Truncated or corrupt persistent requests in "+bucket+" : "+e, e);
             }
+            return header;
+        } finally {
+            is.close();
         }
-        if(latest) {
+    }
+
+    private static long recordPosition(int segment, int record) {
+        return ((long)segment << 32) | record;
+    }
+
+    /** Read a request, or restart it from the recovery data if it can't be deserialized.
+     * @param reqID The request identifier, or null if it was corrupted. */
+    private void readRequest(PartialLoad loaded, InputStream is, long length, RequestIdentifier reqID,
+            ClientContext context, boolean noSerialize) throws IOException {
+        ClientRequest request = null;
+        if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
+            Logger.warning(this, "Not reading request because already have it");
+            skipChecksummedObject(is, length); // Request itself
+            skipChecksummedObject(is, length); // Recovery data
+            return;
+        }
+        try {
+            if(!noSerialize) {
+                request = (ClientRequest) readChecksummedObject(is, length);
+                if(request != null) {
+                    if(reqID != null) {
+                        if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
+                            Logger.error(this, "Request does not match request identifier, discarding");
+                            request = null;
+                        } else {
+                            loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
+                        }
+                    }
+                }
+            } else
+                skipChecksummedObject(is, length);
+        } catch (ChecksumFailedException e) {
+            Logger.error(this, "Failed to load request (checksum failed)");
+            System.err.println("Failed to load a request (checksum failed)");
+        } catch (Throwable t) {
+            // Some more serious problem. Try to load the rest anyway.
+            Logger.error(this, "Failed to load request: "+t, t);
+            System.err.println("Failed to load a request: "+t);
+            t.printStackTrace();
+        }
+        if(request == null || logMINOR) {
             try {
-                // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
-                readStatsAndBuckets(ois, length, context);
-            } catch (Throwable t) {
-                Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
+                ClientRequest restored = readRequestFromRecoveryData(is, length, reqID);
+                if(request == null && restored != null) {
+                    request = restored;
+                    boolean loadedFully = restored.fullyResumed();
+                    loaded.addPartiallyLoadedRequest(reqID, request,
+                            loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
+                }
+            } catch (ChecksumFailedException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recover a request (checksum failed)");
+                    System.err.println("Failed to recover a request (checksum failed)");
+                } else {
+                    Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
+                }
+                if(request == null)
+                    loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
+            } catch (StorageFormatException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
+                    System.err.println("Failed to recovery a request (storage format): "+e);
+                    e.printStackTrace();
+                } else {
+                    Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
+                }
+                if(request == null)
+                    loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
             }
+        } else {
+            skipChecksummedObject(is, length);
         }
-        ois.close();
-        fis = null;
     }
 
     private void readStatsAndBuckets(ObjectInputStream ois, long length, ClientContext context) throws IOException, ClassNotFoundException {
         PersistentStatsPutter storedStatsPutter = (PersistentStatsPutter) ois.readObject();
         this.bandwidthStatsPutter.addFrom(storedStatsPutter);
-        int count = ois.readInt();
+        readBuckets(ois, length);
+    }
+
+    private void readBuckets(InputStream is, long length) throws IOException, ClassNotFoundException {
+        int count = new DataInputStream(is).readInt();
         DelayedFree[] buckets = new DelayedFree[count];
         for(int i=0;i<count;i++) {
             try {
-                buckets[i] = (DelayedFree) readChecksummedObject(ois, length);
+                buckets[i] = (DelayedFree) readChecksummedObject(is, length);
             } catch (ChecksumFailedException e) {
                 Logger.warning(this, "Failed to load a bucket to free");
             }
@@ -557,10 +741,23 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     
     protected void save(boolean shutdown) {
         if(writeToFilename == null) return;
+        if(!writeSnapshot && nextDelta <= MAX_DELTAS && deltasLength <= snapshotLength) {
+            // If it fails, the next checkpoint writes a snapshot.
+            innerSaveDelta(shutdown);
+            return;
+        }
+        // The deltas of the snapshot we move to .bak are still needed if we have to fall back to it.
+        long keepGeneration = 0;
         if(writeToFilename.exists()) {
+            keepGeneration = generation;
             FileUtil.moveTo(writeToFilename, writeToBackupFilename);
         }
-        if(innerSave(shutdown)) {
+        long newGeneration;
+        do {
+            newGeneration = node.getFastWeakRandom().nextLong();
+        } while(newGeneration == 0);
+        Set<RequestIdentifier> saved = new HashSet<RequestIdentifier>();
+        if(innerSave(shutdown, newGeneration, saved)) {
             if(deleteAfterSuccessfulWrite != null) {
                 deleteAfterSuccessfulWrite.delete();
                 deleteAfterSuccessfulWrite = null;
@@ -569,58 +766,105 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 otherDeleteAfterSuccessfulWrite.delete();
                 otherDeleteAfterSuccessfulWrite = null;
             }
+            log.deleteDeltasExcept(keepGeneration, writeEncryptionKey != null);
+            generation = newGeneration;
+            writeSnapshot = false;
+            nextDelta = 1;
+            snapshotLength = writeToBucket.size();
+            deltasLength = 0;
+            written = saved;
+        } else {
+            generation = 0;
         }
     }
     
-    private boolean innerSave(boolean shutdown) {
+    /** Write a snapshot of every request. */
+    private boolean innerSave(boolean shutdown, long generation, Set<RequestIdentifier> saved) {
         DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
         OutputStream fos = null;
         try {
             fos = writeToBucket.getOutputStream();
-            BufferedOutputStream bos = new BufferedOutputStream(fos);
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeLong(MAGIC);
-            oos.writeInt(VERSION);
-            checker.writeAndChecksum(oos, salt);
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+            ClientLayerLog.writeHeader(dos, ClientLayerLog.SEGMENT_SNAPSHOT, generation, 0, salt, checker);
             ClientRequest[] requests = getRequests();
-            if(shutdown) {
-                for(ClientRequest req : requests) {
-                    if(req == null) continue;
-                    try {
-                        req.onShutdown(getClientContext());
-                    } catch (Throwable t) {
-                        Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
-                    }
-                }
+            if(shutdown)
+                onShutdown(requests);
+            for(ClientRequest req : requests) {
+                req.clearChanged();
+                writeRequest(dos, req, saved);
             }
-            oos.writeInt(requests.length);
+            dos.writeByte(ClientLayerLog.RECORD_END);
+            writeStatsAndBuckets(dos, buckets);
+            dos.close();
+            fos = null;
+            Logger.normal(this, "Saved "+requests.length+" requests to "+writeToFilename);
+            persistentTempFactory.finishDelayedFree(buckets);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to write persistent requests: "+e);
+            e.printStackTrace();
+            return false;
+        } finally {
+            try {
+                if(fos != null) fos.close();
+            } catch (IOException e) {
+                System.err.println("Failed to write persistent requests: "+e);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Write a delta with only the requests that have changed or gone since the last checkpoint.
+     * Requests and their ClientRequester's mark themselves as changed, see
+     * ClientRequest.clearChanged(). Anything they miss is still written by the next snapshot. */
+    private boolean innerSaveDelta(boolean shutdown) {
+        File filename = log.deltaFile(generation, nextDelta, writeEncryptionKey != null);
+        Bucket bucket = makeBucket(filename, writeEncryptionKey);
+        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+        OutputStream fos = null;
+        try {
+            fos = bucket.getOutputStream();
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+            ClientLayerLog.writeHeader(dos, ClientLayerLog.SEGMENT_DELTA, generation, nextDelta, salt, checker);
+            ClientRequest[] requests = getRequests();
+            if(shutdown)
+                onShutdown(requests);
+            Set<RequestIdentifier> saved = new HashSet<RequestIdentifier>();
+            Set<RequestIdentifier> current = new HashSet<RequestIdentifier>();
+            int changed = 0;
+            int removed = 0;
             for(ClientRequest req : requests) {
-                // Write the request identifier so we can skip reading the request if we already have it.
-                writeRequestIdentifier(oos, req.getRequestIdentifier());
-                // Write the actual request.
-                writeChecksummedObject(oos, req, req.toString());
-                // Write recovery data. This is just enough to restart the request from scratch, 
-                // but may support continuing the request in simple cases e.g. if a fetch is now
-                // just a single splitfile.
-                writeRecoveryData(oos, req);
+                RequestIdentifier reqID = req.getRequestIdentifier();
+                current.add(reqID);
+                if(!req.clearChanged() && written.contains(reqID)) {
+                    saved.add(reqID);
+                    continue;
+                }
+                writeRequest(dos, req, saved);
+                changed++;
             }
-            bandwidthStatsPutter.updateData(node);
-            oos.writeObject(bandwidthStatsPutter);
-            if(buckets == null) {
-                oos.writeInt(0);
-            } else {
-                oos.writeInt(buckets.length);
-                for(DelayedFree bucket : buckets)
-                    writeChecksummedObject(oos, bucket, null);
+            for(RequestIdentifier reqID : written) {
+                if(current.contains(reqID)) continue;
+                dos.writeByte(ClientLayerLog.RECORD_REMOVED);
+                writeRequestIdentifier(dos, reqID);
+                removed++;
             }
-            oos.close();
+            dos.writeByte(ClientLayerLog.RECORD_END);
+            writeStatsAndBuckets(dos, buckets);
+            dos.close();
             fos = null;
-            Logger.normal(this, "Saved "+requests.length+" requests to "+writeToFilename);
+            Logger.normal(this, "Saved "+changed+" changed and "+removed+" removed requests out of "+
+                    requests.length+" to "+filename);
             persistentTempFactory.finishDelayedFree(buckets);
+            written = saved;
+            nextDelta++;
+            deltasLength += bucket.size();
             return true;
         } catch (IOException e) {
             System.err.println("Failed to write persistent requests: "+e);
             e.printStackTrace();
+            // We have forgotten which requests changed.
+            writeSnapshot = true;
             return false;
         } finally {
             try {
@@ -632,7 +876,47 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private void writeRecoveryData(ObjectOutputStream os, ClientRequest req) throws IOException {
+    private void onShutdown(ClientRequest[] requests) {
+        for(ClientRequest req : requests) {
+            if(req == null) continue;
+            try {
+                req.onShutdown(getClientContext());
+            } catch (Throwable t) {
+                Logger.error(this, "Caught while calling shutdown callback on "+req+": "+t, t);
+            }
+        }
+    }
+
+    /** Write a request record, and remember it if it was serialized successfully. */
+    private void writeRequest(DataOutputStream dos, ClientRequest req,
+            Set<RequestIdentifier> saved) throws IOException {
+        RequestIdentifier reqID = req.getRequestIdentifier();
+        dos.writeByte(ClientLayerLog.RECORD_REQUEST);
+        // Write the request identifier so we can skip reading the request if we already have it.
+        writeRequestIdentifier(dos, reqID);
+        // Write the actual request.
+        boolean serialized = writeChecksummedObject(dos, req, req.toString());
+        // Write recovery data. This is just enough to restart the request from scratch,
+        // but may support continuing the request in simple cases e.g. if a fetch is now
+        // just a single splitfile.
+        writeRecoveryData(dos, req);
+        if(serialized)
+            saved.add(reqID);
+    }
+
+    private void writeStatsAndBuckets(DataOutputStream dos, DelayedFree[] buckets) throws IOException {
+        bandwidthStatsPutter.updateData(node);
+        writeChecksummedObject(dos, bandwidthStatsPutter, null);
+        if(buckets == null) {
+            dos.writeInt(0);
+        } else {
+            dos.writeInt(buckets.length);
+            for(DelayedFree bucket : buckets)
+                writeChecksummedObject(dos, bucket, null);
+        }
+    }
+
+    private void writeRecoveryData(OutputStream os, ClientRequest req) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         DataOutputStream dos = new DataOutputStream(oos);
         try {
@@ -649,7 +933,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private ClientRequest readRequestFromRecoveryData(ObjectInputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
+    private ClientRequest readRequestFromRecoveryData(InputStream is, long totalLength, RequestIdentifier reqID) throws IOException, ChecksumFailedException, StorageFormatException {
         InputStream tmp = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
         try {
             DataInputStream dis = new DataInputStream(tmp);
@@ -666,22 +950,25 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
-    private void writeChecksummedObject(ObjectOutputStream os, Object req, String name) throws IOException {
+    /** @return False if the object couldn't be serialized. */
+    private boolean writeChecksummedObject(OutputStream os, Object req, String name) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         try {
             ObjectOutputStream innerOOS = new ObjectOutputStream(oos);
             innerOOS.writeObject(req);
             innerOOS.close();
             oos = null;
+            return true;
         } catch (Throwable e) {
             Logger.error(this, "Unable to write recovery data for "+name+" : "+e, e);
             oos.abort();
+            return false;
         } finally {
             if(oos != null) oos.close();
         }
     }
     
-    private Object readChecksummedObject(ObjectInputStream is, long totalLength) throws IOException, ChecksumFailedException, ClassNotFoundException {
+    private Object readChecksummedObject(InputStream is, long totalLength) throws IOException, ChecksumFailedException, ClassNotFoundException {
         InputStream ois = checker.checksumReaderWithLength(is, this.tempBucketFactory, totalLength);
         try {
             ObjectInputStream oo = new ObjectInputStream(ois);
@@ -698,8 +985,8 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
-    private void skipChecksummedObject(ObjectInputStream is, long totalLength) throws IOException {
-        long length = is.readLong();
+    private void skipChecksummedObject(InputStream is, long totalLength) throws IOException {
+        long length = new DataInputStream(is).readLong();
         if(length > totalLength) throw new IOException("Too long: "+length+" > "+totalLength);
         FileUtil.skipFully(is, length + checker.checksumLength());
     }
@@ -757,6 +1044,8 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             deleteFile(dir, baseName, false, true);
             deleteFile(dir, baseName, true, false);
             deleteFile(dir, baseName, true, true);
+            if(log != null)
+                log.secureDeleteAllDeltas();
         }
     }
 
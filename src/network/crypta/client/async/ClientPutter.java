@@ -393,6 +393,7 @@ public class ClientPutter extends BaseClientPutter implements PutCompletionCallb
 		synchronized (this) {
 			if (currentState == oldState) {
 				currentState = newState;
+				changed();
 				return;
 			}
 		}
@@ -4,8 +4,8 @@ import java.lang.ref.WeakReference;
 import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Deque;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import network.crypta.client.FetchContext;
 import network.crypta.crypt.RandomSource;
@@ -26,6 +26,8 @@ import network.crypta.support.LogThresholdCallback;
 import network.crypta.support.Logger;
 import network.crypta.support.Logger.LogLevel;
 import network.crypta.support.RandomGrabArray;
+import network.crypta.support.RandomGrabArrayItem;
+import network.crypta.support.RandomGrabArrayItemExclusionList;
 import network.crypta.support.RandomGrabArrayWithObject;
 import network.crypta.support.RemoveRandom.RemoveRandomReturn;
 import network.crypta.support.RemoveRandomParent;
@@ -44,22 +46,20 @@ import network.crypta.support.TimeUtil;
  * wakeup time is Long.MAX_VALUE) or because a key has been fetched repeatedly and has entered 
  * a cooldown period, meaning it will be fetchable in 30 minutes.
  * 
- * LOCKING: Consequently we need to lock the entire tree whenever we access either the tree or the
- * cooldown tracker (which really should be part of the tree, TODO!): When a request completes, we
- * start at the request itself and go up the tree until we stop updating the wakeup times. However
- * when we choose a request to send, we start at the top and go down (and update the cooldown times
- * when backtracking back up the tree if we don't find anything).
- * 
- * **We lock on ClientRequestSelector** when using the tree, including the cooldown times.
- * 
- * REDFLAG LOCKING: Actually in the completion case we could find the top and then lock the whole 
- * tree, and then update the cooldowns; and/or we could avoid updating the cooldowns during request 
- * selection, e.g. by making sure that each structure always does a bottom-up update when something
- * changes, although that would not help with locking...
- * 
- * FIXME: More seriously, we should really combine the cooldown tracker and the RGAs. The RGAs and 
- * SRGAs should contain their own wakeup times. This could significantly simplify the code. 
- * CooldownTracker is left over from the DB4O era.
+ * LOCKING: There is no lock for the whole tree. When a request completes, we start at the request
+ * itself and go up the tree until we stop updating the wakeup times. However when we choose a
+ * request to send, we start at the top and go down (and update the cooldown times when
+ * backtracking back up the tree if we don't find anything). So that these can run at the same
+ * time, and requests can be added and removed while the RequestStarter is choosing one:
+ * - Each node's children are copy-on-write, so choosing a request reads a snapshot and takes no
+ *   locks.
+ * - Adding or removing a child locks only that node, and no node calls another while holding its
+ *   own lock, so there is no lock ordering to get wrong.
+ * - A node is marked removed, and then unlinked from its parent, only when it is empty. Adding to
+ *   a removed node fails, and we start again from the top (see addToTree()).
+ * - Wakeup times only get reduced or cleared on the way up. The one place a node's wakeup time is
+ *   increased, after a RandomGrabArray has checked all its requests, is skipped if it has been
+ *   cleared in the meantime, so we can't hide a request that has just become fetchable.
  */
 public class ClientRequestSelector implements KeysFetchingLocally {
 	
@@ -94,7 +94,7 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	/**
      * The base of the tree.
      */
-    protected RequestClientRGANode[] priorities;
+    protected final RequestClientRGANode[] priorities;
     
     protected final Deque<BaseSendableGet>recentSuccesses;
     
@@ -104,16 +104,18 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 		this.isSSKScheduler = isSSKScheduler;
 		this.isRTScheduler = isRTScheduler;
 		if(!isInsertScheduler) {
-			keysFetching = new HashSet<Key>();
-			transientRequestsWaitingForKeysFetching = new HashMap<Key, WeakReference<BaseSendableGet>[]>();
+			keysFetching = new ConcurrentHashMap<Key, WeakReference<BaseSendableGet>[]>();
 			runningInserts = null;
 			recentSuccesses = new ArrayDeque<BaseSendableGet>();
 		} else {
 			keysFetching = null;
-			runningInserts = new HashSet<SendableRequestItemKey>();
+			runningInserts = ConcurrentHashMap.newKeySet();
 			recentSuccesses = null;
 		}
 		priorities = new RequestClientRGANode[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		// Created up front and never removed, so we don't need to lock to find them.
+		for(int i=0;i<priorities.length;i++)
+			priorities[i] = new RequestClientRGANode(null, this);
 	}
 	
 	private static volatile boolean logMINOR;
@@ -129,25 +131,23 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	}
 	
 	/**
-	 * All Key's we are currently fetching. 
+	 * All Key's we are currently fetching, and the transient requests waiting for them to finish.
 	 * Locally originated requests only, avoids some complications with HTL, 
 	 * and also has the benefit that we can see stuff that's been scheduled on a SenderThread
 	 * but that thread hasn't started yet. FIXME: Both issues can be avoided: first we'd get 
 	 * rid of the SenderThread and start the requests directly and asynchronously, secondly
 	 * we'd move this to node but only track keys we are fetching at max HTL.
-	 * LOCKING: Always lock this LAST.
 	 */
-	private final transient HashSet<Key> keysFetching;
+	private final transient ConcurrentHashMap<Key, WeakReference<BaseSendableGet>[]> keysFetching;
 	
-	private transient HashMap<Key, WeakReference<BaseSendableGet>[]> transientRequestsWaitingForKeysFetching;
+	private transient final Set<SendableRequestItemKey> runningInserts;
 	
-	private transient final HashSet<SendableRequestItemKey> runningInserts;
+	@SuppressWarnings("unchecked")
+	private static final WeakReference<BaseSendableGet>[] NO_WAITERS = (WeakReference<BaseSendableGet>[])new WeakReference<?>[0];
 	
 	/** Choose a priority to start requests from.
-	 * @return The priority chosen or the time at which a priority will have requests to send.
-	 * LOCKING: Synchronized because we may create new priorities. Both the cooldown queue and the 
-	 * RGA hierarchy, rooted at the priorities, use ClientRequestSelector lock. */
-	private synchronized long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
+	 * @return The priority chosen or the time at which a priority will have requests to send. */
+	private long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
 	    RequestClientRGANode result = null;
 		
 		long wakeupTime = Long.MAX_VALUE;
@@ -308,7 +308,7 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	 * most of the time.
 	 * @return Either a chosen request or the time at which we should try again if all priorities 
 	 * are waiting for requests to finish / cooldown periods to expire. */
-	SelectorReturn chooseRequestInner(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RequestStarter starter, boolean realTime, ClientContext context, long now) {
+	SelectorReturn chooseRequestInner(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RandomGrabArrayItemExclusionList starter, boolean realTime, ClientContext context, long now) {
 		// Priorities start at 0
 		if(logMINOR) Logger.minor(this, "removeFirst()");
 		boolean tryOfferedKeys = offeredKeys != null && random.nextBoolean();
@@ -336,10 +336,6 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CLASS;choosenPriorityClass++) {
 			if(logMINOR) Logger.minor(this, "Using priority "+choosenPriorityClass);
 			RequestClientRGANode chosenTracker = priorities[choosenPriorityClass];
-			if(chosenTracker == null) {
-				if(logMINOR) Logger.minor(this, "No requests to run: chosen priority empty");
-				continue; // Try next priority
-			}
 			while(true) {
 			    long cooldownTime = chosenTracker.getWakeupTime(context, now);
 			    if(cooldownTime > 0) {
@@ -350,15 +346,9 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 				
 				if(logMINOR)
 					Logger.minor(this, "Got priority tracker "+chosenTracker);
-				RemoveRandomReturn val;
-				synchronized(this) {
-				    // We must hold the overall lock, just as in addToGrabArrays.
-				    // This is important for keeping the cooldown tracker consistent amongst other 
-				    // things: We can get a race condition between thread A reading the tree, 
-				    // finding nothing and setCachedWakeup(), and thread B waking up a request, 
-				    // resulting in the request not being accessible.
-				    val = chosenTracker.removeRandom(starter, context, now);
-				}
+				// No lock: See the class javadocs for why we can't miss a request that has just
+				// become fetchable.
+				RemoveRandomReturn val = chosenTracker.removeRandom(starter, context, now);
 				SendableRequest req;
 				if(val == null) {
 					Logger.normal(this, "Priority "+choosenPriorityClass+" returned null - nothing to schedule, should remove priority");
@@ -384,10 +374,7 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 					if(clientGrabber != null) {
 						RandomGrabArray baseRGA = clientGrabber.getGrabber(req.getSchedulerGroup());
 						if(baseRGA != null) {
-							// Must synchronize to avoid nasty race conditions with cooldown.
-							synchronized(this) {
-								baseRGA.remove(req, context);
-							}
+							baseRGA.remove(req, context);
 						} else {
 							// Okay, it's been removed already. Cool.
 						}
@@ -502,62 +489,46 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 	 * @return True unless the key was already present.
 	 */
 	public boolean addToFetching(Key key) {
-		synchronized(keysFetching) {
-			boolean retval = keysFetching.add(key);
-			if(!retval) {
-				Logger.normal(this, "Already in keysFetching: "+key);
-			} else {
-				if(logMINOR)
-					Logger.minor(this, "Added to keysFetching: "+key);
-			}
-			return retval;
+		boolean retval = keysFetching.putIfAbsent(key, NO_WAITERS) == null;
+		if(!retval) {
+			Logger.normal(this, "Already in keysFetching: "+key);
+		} else {
+			if(logMINOR)
+				Logger.minor(this, "Added to keysFetching: "+key);
 		}
+		return retval;
 	}
 	
 	@Override
-	@SuppressWarnings("unchecked")
-	public boolean hasKey(Key key, BaseSendableGet getterWaiting) {
+	public boolean hasKey(Key key, final BaseSendableGet getterWaiting) {
 		if(keysFetching == null) {
 			throw new NullPointerException();
 		}
-		synchronized(keysFetching) {
-			boolean ret = keysFetching.contains(key);
-			if(!ret) return ret;
-			// It is being fetched. Add the BaseSendableGet to the wait list so it gets woken up when the request finishes.
-			if(getterWaiting != null) {
-			    WeakReference<BaseSendableGet>[] waiting = transientRequestsWaitingForKeysFetching.get(key);
-			    if(waiting == null) {
-			        transientRequestsWaitingForKeysFetching.put(key, (WeakReference<BaseSendableGet>[])new WeakReference<?>[] { new WeakReference<BaseSendableGet>(getterWaiting) });
-			    } else {
-			        for(WeakReference<BaseSendableGet> ref : waiting) {
-			            if(ref.get() == getterWaiting) return true;
-			        }
-			        WeakReference<BaseSendableGet>[] newWaiting = Arrays.copyOf(waiting, waiting.length+1);
-			        newWaiting[waiting.length] = new WeakReference<BaseSendableGet>(getterWaiting);
-			        transientRequestsWaitingForKeysFetching.put(key, newWaiting);
-			    }
+		if(getterWaiting == null)
+			return keysFetching.containsKey(key);
+		// If it is being fetched, add the BaseSendableGet to the wait list so it gets woken up
+		// when the request finishes. Atomic with respect to removeFetchingKey().
+		return keysFetching.computeIfPresent(key, (k, waiting) -> {
+			for(WeakReference<BaseSendableGet> ref : waiting) {
+				if(ref.get() == getterWaiting) return waiting;
 			}
-			return true;
-		}
+			WeakReference<BaseSendableGet>[] newWaiting = Arrays.copyOf(waiting, waiting.length+1);
+			newWaiting[waiting.length] = new WeakReference<BaseSendableGet>(getterWaiting);
+			return newWaiting;
+		}) != null;
 	}
 
 	/** LOCKING: Caller should hold as few locks as possible */ 
 	public void removeFetchingKey(final Key key) {
-		WeakReference<BaseSendableGet>[] transientWaiting;
 		if(logMINOR)
 			Logger.minor(this, "Removing from keysFetching: "+key);
 		if(key != null) {
-			synchronized(keysFetching) {
-				keysFetching.remove(key);
-				transientWaiting = this.transientRequestsWaitingForKeysFetching.remove(key);
-			}
+			WeakReference<BaseSendableGet>[] transientWaiting = keysFetching.remove(key);
 			if(transientWaiting != null) {
-				if(transientWaiting != null) {
-					for(WeakReference<BaseSendableGet> ref : transientWaiting) {
-						BaseSendableGet get = ref.get();
-						if(get == null) continue;
-						get.clearWakeupTime(sched.getContext());
-					}
+				for(WeakReference<BaseSendableGet> ref : transientWaiting) {
+					BaseSendableGet get = ref.get();
+					if(get == null) continue;
+					get.clearWakeupTime(sched.getContext());
 				}
 			}
 		}
@@ -565,31 +536,25 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 
 	@Override
 	public boolean hasInsert(SendableRequestItemKey token) {
-		synchronized(runningInserts) {
-			return runningInserts.contains(token);
-		}
+		return runningInserts.contains(token);
 	}
 
 	public boolean addRunningInsert(SendableRequestItemKey token) {
-		synchronized(runningInserts) {
-			boolean retval = runningInserts.add(token);
-			if(!retval) {
-			    // This shouldn't happen often, because the chooseBlock()'s should check for it...
-				Logger.error(this, "Already in runningInserts: "+token);
-			} else {
-				if(logMINOR)
-					Logger.minor(this, "Added to runningInserts: "+token);
-			}
-			return retval;
+		boolean retval = runningInserts.add(token);
+		if(!retval) {
+		    // This shouldn't happen often, because the chooseBlock()'s should check for it...
+			Logger.error(this, "Already in runningInserts: "+token);
+		} else {
+			if(logMINOR)
+				Logger.minor(this, "Added to runningInserts: "+token);
 		}
+		return retval;
 	}
 	
 	public void removeRunningInsert(SendableRequestItemKey token) {
 		if(logMINOR)
 			Logger.minor(this, "Removing from runningInserts: "+token);
-		synchronized(runningInserts) {
-			runningInserts.remove(token);
-		}
+		runningInserts.remove(token);
 	}
 
 	@Override
@@ -614,32 +579,34 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
      * that are not persisted in the database, e.g. executors, temporary filename generator, etc.
      */
     void addToGrabArray(short priorityClass, RequestClient client, ClientRequestSchedulerGroup cr, SendableRequest req, ClientContext context) {
+        addToTree(priorityClass, client, cr, req, context);
+        sched.wakeStarter();
+    }
+
+    void addToTree(short priorityClass, RequestClient client, ClientRequestSchedulerGroup cr, SendableRequest req, ClientContext context) {
         if((priorityClass > RequestStarter.PAUSED_PRIORITY_CLASS) || (priorityClass < RequestStarter.MAXIMUM_PRIORITY_CLASS))
             throw new IllegalStateException("Invalid priority: "+priorityClass+" - range is "+RequestStarter.MAXIMUM_PRIORITY_CLASS+" (most important) to "+RequestStarter.PAUSED_PRIORITY_CLASS+" (least important)");
         // Client
-        synchronized(this) {
+        while(true) {
             ClientRequestRGANode requestGrabber = makeSRGAForClient(priorityClass, client, context);
-            requestGrabber.add(cr, req, context);
+            if(requestGrabber.add(cr, req, context)) return;
+            // It was removed for being empty while we were adding to it.
+            if(logMINOR) Logger.minor(this, "Grabber for "+client+" removed while adding "+req+", retrying");
         }
-        sched.wakeStarter();
     }
 
     private ClientRequestRGANode makeSRGAForClient(short priorityClass,
             RequestClient client, ClientContext context) {
         RequestClientRGANode clientGrabber = priorities[priorityClass];
-        if(clientGrabber == null) {
-            clientGrabber = new RequestClientRGANode(null, this);
-            priorities[priorityClass] = clientGrabber;
-            if(logMINOR) Logger.minor(this, "Registering client tracker for priority "+priorityClass+" : "+clientGrabber);
-        }
         // Request
         ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
-        if(requestGrabber == null) {
+        if(requestGrabber == null || requestGrabber.isRemoved()) {
             requestGrabber = new ClientRequestRGANode(client, clientGrabber, this);
             if(logMINOR)
                 Logger.minor(this, "Creating new grabber: "+requestGrabber+" for "+client+" from "+clientGrabber+" : prio="+priorityClass);
-            clientGrabber.addGrabber(client, requestGrabber, context);
-            clientGrabber.clearWakeupTime(context);
+            // The priorities are never removed, so this can't fail, but it may return one
+            // created by another thread.
+            requestGrabber = clientGrabber.addGrabber(client, requestGrabber, context);
         }
         return requestGrabber;
     }
@@ -652,54 +619,59 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
             return;
         }
         ClientRequestSchedulerGroup group = request.getSchedulerGroup();
-        synchronized(this) {
-            // First by priority
-            RequestClientRGANode clientGrabber = priorities[oldPrio];
-            if(clientGrabber == null) {
-                // Normal as most of the schedulers aren't relevant to any given insert/request.
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            // Then by RequestClient
-            ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
-            if(requestGrabber == null) {
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            RandomGrabArrayWithObject<ClientRequestSchedulerGroup> rga = requestGrabber.getGrabber(group);
-            if(rga == null) {
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            requestGrabber.maybeRemove(rga, context);
+        // First by priority
+        RequestClientRGANode clientGrabber = priorities[oldPrio];
+        // Then by RequestClient
+        ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
+        if(requestGrabber == null) {
+            // Normal as most of the schedulers aren't relevant to any given insert/request.
+            if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
+            return;
+        }
+        RandomGrabArrayWithObject<ClientRequestSchedulerGroup> rga = requestGrabber.getGrabber(group);
+        if(rga == null || !requestGrabber.removeGrabber(rga, context)) {
+            if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
+            return;
+        }
+        while(true) {
             requestGrabber = makeSRGAForClient(newPrio, client, context);
-            if(requestGrabber.getGrabber(group) != null) {
-                Logger.error(this, "RGA already exists for "+request+" : "+requestGrabber.getGrabber(group)+
+            rga.setParent(requestGrabber);
+            RandomGrabArrayWithObject<ClientRequestSchedulerGroup> added =
+                requestGrabber.addGrabber(group, rga, context);
+            if(added == null) continue; // Removed for being empty, try again.
+            if(added != rga) {
+                Logger.error(this, "RGA already exists for "+request+" : "+added+
                         " but want to insert "+rga, new Exception("error"));
-                requestGrabber.maybeRemove(rga, context);
+                for(RandomGrabArrayItem item : rga.moveElementsTo(added, context))
+                    addToTree(newPrio, client, group, (SendableRequest) item, context);
             }
-            requestGrabber.addGrabber(group, rga, context);
+            return;
         }
     }
 
-    public synchronized long countQueuedRequests(ClientContext context) {
+    public long countQueuedRequests(ClientContext context) {
         long total = 0;
         for(int i=0;i<priorities.length;i++) {
             RequestClientRGANode prio = priorities[i];
-            if(prio == null || prio.isEmpty())
+            if(prio.isEmpty())
                 System.out.println("Priority "+i+" : empty");
             else {
                 System.out.println("Priority "+i+" : "+prio.size());
                     System.out.println("Clients: "+prio.size()+" for "+prio);
                     for(int k=0;k<prio.size();k++) {
+                        // May have changed since we started looking.
                         RequestClient client = prio.getClient(k);
+                        if(client == null) break;
                         System.out.println("Client "+k+" : "+client);
                         ClientRequestRGANode requestGrabber = prio.getGrabber(client);
+                        if(requestGrabber == null) continue;
                         System.out.println("SRGA for client: "+requestGrabber);
                         for(int l=0;l<requestGrabber.size();l++) {
                             ClientRequestSchedulerGroup cr = requestGrabber.getClient(l);
+                            if(cr == null) break;
                             System.out.println("Request "+l+" : "+cr);
                             RandomGrabArray rga = requestGrabber.getGrabber(cr);
+                            if(rga == null) continue;
                             System.out.println("Queued SendableRequests: "+rga.size()+" on "+rga);
                             long sendable = 0;
                             long all = 0;
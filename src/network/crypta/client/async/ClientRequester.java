@@ -51,6 +51,9 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	 * persistent, and also we round-robin between different RequestClient's
 	 * in scheduling within a given priority class and retry count. */
 	protected transient RequestClient client;
+	/** Set when something that is serialized may have changed, cleared when the request is
+	 * written to disk. */
+	private transient volatile boolean changed;
 
 	/** What is our priority class? */
 	public short getPriorityClass() {
@@ -86,6 +89,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	protected synchronized boolean cancel() {
 		boolean ret = cancelled;
 		cancelled = true;
+		changed();
 		return ret;
 	}
 
@@ -173,6 +177,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
     }
 
 	protected synchronized void resetBlocks() {
+		changed();
 		totalBlocks = 0;
 		successfulBlocks = 0;
 		// See ClientRequester.getLatestSuccess() for why this defaults to current time.
@@ -205,6 +210,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		boolean wasFinalized;
 		synchronized (this) {
 			totalBlocks++;
+			changed();
 			wasFinalized = blockSetFinalized;
 		}
 
@@ -223,6 +229,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		boolean wasFinalized;
 		synchronized (this) {
 			totalBlocks += num;
+			changed();
 			wasFinalized = blockSetFinalized;
 		}
 
@@ -244,6 +251,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			if(cancelled) return;
 			successfulBlocks++;
 			latestSuccess = new Date();
+			changed();
 		}
 		if(dontNotify) return;
 		notifyClients(context);
@@ -256,6 +264,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
         synchronized(this) {
             failedBlocks++;
             latestFailure = new Date();
+            changed();
         }
         if(!dontNotify)
             notifyClients(context);
@@ -271,6 +280,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized(this) {
 			fatallyFailedBlocks++;
 			latestFailure = new Date();
+			changed();
 		}
 		notifyClients(context);
 	}
@@ -279,6 +289,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	public synchronized void addMustSucceedBlocks(int blocks) {
 		totalBlocks += blocks;
 		minSuccessBlocks += blocks;
+		changed();
 		if(logMINOR) Logger.minor(this, "addMustSucceedBlocks("+blocks+"): total="+totalBlocks+" successful="+successfulBlocks+" failed="+failedBlocks+" required="+minSuccessBlocks); 
 	}
 
@@ -286,11 +297,13 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	public synchronized void addRedundantBlocksInsert(int blocks) {
 		totalBlocks += blocks;
 		minSuccessBlocks += blocks;
+		changed();
 		if(logMINOR) Logger.minor(this, "addMustSucceedBlocks("+blocks+"): total="+totalBlocks+" successful="+successfulBlocks+" failed="+failedBlocks+" required="+minSuccessBlocks); 
 	}
 	
 	/** Notify clients by calling innerNotifyClients off-thread. */
 	public final void notifyClients(ClientContext context) {
+	    changed();
 	    context.getJobRunner(persistent()).queueNormalOrDrop(new PersistentJob() {
 
             @Override
@@ -316,6 +329,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 			if(sentToNetwork) return;
 			sentToNetwork = true;
 		}
+		changed();
 		innerToNetwork(context);
 	}
 
@@ -324,6 +338,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 	protected abstract void innerToNetwork(ClientContext context);
 
 	protected void clearCountersOnRestart() {
+		changed();
 		this.blockSetFinalized = false;
 		this.cancelled = false;
 		this.failedBlocks = 0;
@@ -337,6 +352,19 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		this.totalBlocks = 0;
 	}
 
+	/** Something that is serialized has changed, e.g. the current state, so the request must be
+	 * written at the next checkpoint. Counters and cancellation are tracked here already. */
+	public void changed() {
+		changed = true;
+	}
+
+	/** @return True if the request has changed since the last call. Called when writing it. */
+	public boolean clearChanged() {
+		boolean ret = changed;
+		changed = false;
+		return ret;
+	}
+
 	/** Get client context object */
 	public RequestClient getClient() {
 		return client;
@@ -351,6 +379,7 @@ public abstract class ClientRequester implements Serializable, ClientRequestSche
 		synchronized(this) {
 			oldPrio = priorityClass;
 			this.priorityClass = newPriorityClass;
+			changed();
 		}
 		if(logMINOR) Logger.minor(this, "Changing priority class of "+this+" from "+oldPrio+" to "+newPriorityClass);
 		ctx.getChkFetchScheduler(realTimeFlag).reregisterAll(this, oldPrio);
@@ -4,8 +4,12 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import network.crypta.support.math.MersenneTwister;
 
@@ -24,6 +28,15 @@ import network.crypta.support.Logger.LogLevel;
 import network.crypta.support.io.NativeThread;
 
 /**
+ * Checks the datastore for the keys of new requests before they are started.
+ *
+ * Keys are checked in batches of up to MAX_BATCH_KEYS, taken from the highest priority requests
+ * first. A request with more keys than that is split across batches, and goes to the back of its
+ * queue after each one, so a big splitfile doesn't hold up other requests. Each batch is sorted by
+ * where the keys are in the store and looked up by up to MAX_PARALLEL_READS threads, so the disk
+ * sees mostly ascending, overlapping reads instead of one random read at a time. Found keys are
+ * passed on immediately, and a request is registered as soon as all its keys have been checked.
+ *
  * @author Matthew Toseland <toad@amphibian.dyndns.org> (0xE43DA450)
  */
 public class DatastoreChecker implements PrioRunnable {
@@ -40,6 +53,13 @@ public class DatastoreChecker implements PrioRunnable {
 	// In normal operation KILL_BLOCKS should be 0 !!!!
 	static final int KILL_BLOCKS = 0;
 	static final int RESET_COUNTER = 100;
+
+	/** Maximum number of keys to check in one batch. */
+	static final int MAX_BATCH_KEYS = 1024;
+	/** Maximum number of lookups at once, including the checker thread itself. */
+	static final int MAX_PARALLEL_READS = 4;
+	/** Don't start another reader thread for fewer keys than this. */
+	static final int MIN_KEYS_PER_READER = 32;
 	
 	private static volatile boolean logMINOR;
 
@@ -60,15 +80,24 @@ public class DatastoreChecker implements PrioRunnable {
         /** Arrays of keys to check. */
         Key[] keys;
         final BlockSet blockSet;
+        /** Index of the next key to put in a batch. LOCKING: Protected by the DatastoreChecker. */
+        int nextKey;
+        /** Keys not checked yet. We call finishRegister() when this reaches 0. */
+        final AtomicInteger unchecked;
+        /** True if any key was not found. */
+        volatile boolean anyValid;
+        /** Set by removeRequest(), so keys that are already in a batch are skipped. */
+        volatile boolean cancelled;
 		QueueItem(Key[] keys, SendableGet getter, BlockSet blockSet) {
 			this.getter = getter;
             this.keys = keys;
             this.blockSet = blockSet;
+            this.unchecked = new AtomicInteger(keys == null ? 0 : keys.length);
 		}
 
 		@Override
 		public boolean equals(Object o) {
-		    // Hack to make queue.remove() work, see removeRequest() below.
+		    // Hack to make queue.contains() work, see queueRequest() below.
 			if(!(o instanceof QueueItem)) return false; // equals() should not throw ClassCastException
 			return this.getter == ((QueueItem)o).getter;
 		}
@@ -82,12 +111,39 @@ public class DatastoreChecker implements PrioRunnable {
 		}
 	}
 
+	/** A key in a batch. Sorted by type and then by where it is in the store. */
+	private static class Check implements Comparable<Check> {
+		final Key key;
+		final QueueItem item;
+		long slot;
+		Check(Key key, QueueItem item) {
+			this.key = key;
+			this.item = item;
+		}
+
+		private int type() {
+			return key instanceof NodeSSK ? 1 : 0;
+		}
+
+		@Override
+		public int compareTo(Check c) {
+			int cmp = Integer.compare(type(), c.type());
+			if(cmp != 0) return cmp;
+			return Long.compare(slot, c.slot);
+		}
+	}
+
 	/** List of requests to check the datastore for. */
 	private final ArrayDeque<QueueItem>[] queue;
 
 	private ClientContext context;
 	private final Node node;
 
+	private final AtomicLong keysChecked = new AtomicLong();
+	private final AtomicLong keysFound = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong checkTimeNanos = new AtomicLong();
+
 	public synchronized void setContext(ClientContext context) {
 		this.context = context;
 	}
@@ -135,42 +191,22 @@ public class DatastoreChecker implements PrioRunnable {
 		}
 	}
 
-	/** Process a single job, waiting if necessary.
+	/** Check a single batch, waiting if necessary.
 	 * @return True if lazy=true and there are no jobs to run.
 	 */
 	private boolean realRun() {
-		Random random;
-		if(KILL_BLOCKS != 0)
-			random = new MersenneTwister();
-		else
-			random = null;
-		Key[] keys = null;
-		SendableGet getter = null;
-		ClientRequestScheduler sched = null;
-		BlockSet blocks = null;
-		boolean waited = false;
+		ArrayList<Check> checks = new ArrayList<Check>();
+		ArrayList<QueueItem> noKeys = new ArrayList<QueueItem>();
 		synchronized(this) {
 			while(true) {
-				for(short prio = 0;prio<queue.length;prio++) {
-				    QueueItem trans;
-					if((trans = queue[prio].pollFirst()) != null) {
-						keys = trans.keys;
-						getter = trans.getter;
-						// sched assigned out of loop
-						blocks = trans.blockSet;
-						if(logMINOR)
-							Logger.minor(this, "Checking transient request "+getter+" prio "+prio+" of "+queue[prio].size());
-						break;
-					}
-				}
-				if(keys != null)
+				fillBatch(checks, noKeys);
+				if(!(checks.isEmpty() && noKeys.isEmpty()))
 					break;
 				if(logMINOR) Logger.minor(this, "Waiting for more transient requests");
 				if(lazy) {
 				    running = false;
 				    return true;
 				}
-				waited = true;
 				try {
 					// Wait for anything.
 					wait(SECONDS.toMillis(100));
@@ -179,49 +215,154 @@ public class DatastoreChecker implements PrioRunnable {
 				}
 			}
 		}
-		sched = getter.getScheduler(context);
-		boolean anyValid = false;
-		for(Key key : keys) {
-			if(random != null) {
-				if(random.nextInt(RESET_COUNTER) < KILL_BLOCKS) {
-					anyValid = true;
+		for(QueueItem item : noKeys)
+			finishRegister(item);
+		if(checks.isEmpty()) return false;
+		long startTime = System.nanoTime();
+		Check[] batch = checks.toArray(new Check[checks.size()]);
+		for(Check c : batch) {
+			if(c.item.blockSet == null)
+				c.slot = node.getStoreSlotHint(c.key);
+		}
+		Arrays.sort(batch);
+		BatchReader reader = new BatchReader(batch);
+		reader.start();
+		reader.readAll();
+		reader.waitForHelpers();
+		batches.incrementAndGet();
+		checkTimeNanos.addAndGet(System.nanoTime() - startTime);
+		if(logMINOR) Logger.minor(this, "Checked "+batch.length+" keys");
+		return false;
+	}
+
+	/** Take up to MAX_BATCH_KEYS keys from the queues, highest priority first. A request we only
+	 * take some of the keys from goes to the back of its queue.
+	 * LOCKING: Caller must hold the lock on this.
+	 * @param noKeys Requests with no keys at all, which just need to be registered.
+	 */
+	private void fillBatch(ArrayList<Check> checks, ArrayList<QueueItem> noKeys) {
+		int budget = MAX_BATCH_KEYS;
+		for(short prio = 0;prio<queue.length && budget > 0;prio++) {
+			QueueItem item;
+			while(budget > 0 && (item = queue[prio].pollFirst()) != null) {
+				if(item.keys.length == 0) {
+					noKeys.add(item);
 					continue;
 				}
+				int count = Math.min(budget, item.keys.length - item.nextKey);
+				for(int i=0;i<count;i++)
+					checks.add(new Check(item.keys[item.nextKey++], item));
+				budget -= count;
+				if(item.nextKey < item.keys.length)
+					queue[prio].addLast(item);
+				if(logMINOR)
+					Logger.minor(this, "Checking "+count+" keys of "+item.keys.length+" for transient request "+item.getter+" prio "+prio+" of "+queue[prio].size());
+			}
+		}
+	}
+
+	/** Looks up the keys in a sorted batch, on this thread and up to MAX_PARALLEL_READS-1 helper
+	 * threads. Each thread takes the next key from a shared cursor. */
+	private class BatchReader implements PrioRunnable {
+
+		private final Check[] batch;
+		private final AtomicInteger next = new AtomicInteger();
+		private final int helpers;
+		private final CountDownLatch helpersDone;
+
+		BatchReader(Check[] batch) {
+			this.batch = batch;
+			helpers = Math.min(MAX_PARALLEL_READS - 1, batch.length / MIN_KEYS_PER_READER);
+			helpersDone = new CountDownLatch(helpers);
+		}
+
+		void start() {
+			for(int i=0;i<helpers;i++)
+				executor.execute(this, threadName+" reader");
+		}
+
+		@Override
+		public void run() {
+			try {
+				readAll();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" in datastore checker reader", t);
+			} finally {
+				helpersDone.countDown();
 			}
-			KeyBlock block;
-			if(blocks != null)
-				block = blocks.get(key);
+		}
+
+		void readAll() {
+			Random random;
+			if(KILL_BLOCKS != 0)
+				random = new MersenneTwister();
 			else
-				block = node.fetch(key, true, true, false, false, null);
-			if(block != null) {
-				if(logMINOR) Logger.minor(this, "Found key");
-				if(key instanceof NodeSSK)
-					sched.tripPendingKey(block);
-				else // CHK
-					sched.tripPendingKey(block);
+				random = null;
+			int i;
+			while((i = next.getAndIncrement()) < batch.length)
+				check(batch[i], random);
+		}
+
+		void waitForHelpers() {
+			while(true) {
+				try {
+					helpersDone.await();
+					return;
+				} catch (InterruptedException e) {
+					// Ok
+				}
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.NORM_PRIORITY;
+		}
+
+	}
+
+	private void check(Check c, Random random) {
+		QueueItem item = c.item;
+		if(!item.cancelled) {
+			if(random != null && random.nextInt(RESET_COUNTER) < KILL_BLOCKS) {
+				item.anyValid = true;
 			} else {
-				anyValid = true;
+				KeyBlock block;
+				if(item.blockSet != null)
+					block = item.blockSet.get(c.key);
+				else
+					block = node.fetch(c.key, true, true, false, false, null);
+				keysChecked.incrementAndGet();
+				if(block != null) {
+					if(logMINOR) Logger.minor(this, "Found key");
+					keysFound.incrementAndGet();
+					item.getter.getScheduler(context).tripPendingKey(block);
+				} else {
+					item.anyValid = true;
+				}
 			}
-//			synchronized(this) {
-//				keysToCheck[priority].remove(key);
-//			}
 		}
-		if(logMINOR) Logger.minor(this, "Checked "+keys.length+" keys");
+		if(item.unchecked.decrementAndGet() == 0 && !item.cancelled)
+			finishRegister(item);
+	}
+
+	private void finishRegister(QueueItem item) {
+		final SendableGet getter = item.getter;
+		final ClientRequestScheduler sched = getter.getScheduler(context);
+		final boolean anyValid = item.anyValid;
+		if(logMINOR) Logger.minor(this, "Checked all "+item.keys.length+" keys for "+getter);
 		if(getter.persistent()) {
-			final SendableGet get = getter;
-			final ClientRequestScheduler scheduler = sched;
-			final boolean valid = anyValid;
 			try {
 				context.jobRunner.queue(new PersistentJob() {
 
 					@Override
 					public boolean run(ClientContext context) {
 						try {
-							scheduler.finishRegister(new SendableGet[] { get }, true, valid);
+							sched.finishRegister(new SendableGet[] { getter }, true, anyValid);
 						} catch (Throwable t) {
-							Logger.error(this, "Failed to register "+get+": "+t, t);
+							Logger.error(this, "Failed to register "+getter+": "+t, t);
 							try {
-								get.onFailure(new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR, "Internal error: "+t, t), null, context);
+								getter.onFailure(new LowLevelGetException(LowLevelGetException.INTERNAL_ERROR, "Internal error: "+t, t), null, context);
 							} catch (Throwable t1) {
 								Logger.error(this, "Failed to fail: "+t, t);
 							}
@@ -234,14 +375,47 @@ public class DatastoreChecker implements PrioRunnable {
 						return "DatastoreCheckerFinishRegister";
 					}
 
-				}, NativeThread.NORM_PRIORITY);
+				}, NativeThread.PriorityLevel.NORM_PRIORITY.value);
 			} catch (PersistenceDisabledException e) {
 				// Impossible
 			}
 		} else {
 			sched.finishRegister(new SendableGet[] { getter }, false, anyValid);
 		}
-		return false;
+	}
+
+	public long getKeysChecked() {
+		return keysChecked.get();
+	}
+
+	public long getKeysFound() {
+		return keysFound.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/** @return Total time spent checking batches, in milliseconds. */
+	public long getCheckTime() {
+		return checkTimeNanos.get() / 1000000;
+	}
+
+	/** @return Keys checked per second of time spent checking. */
+	public double getKeysPerSecond() {
+		long nanos = checkTimeNanos.get();
+		if(nanos == 0) return 0.0;
+		return keysChecked.get() * 1e9 / nanos;
+	}
+
+	/** @return The number of keys waiting to be checked, not including the current batch. */
+	public synchronized int getQueuedKeys() {
+		int total = 0;
+		for(ArrayDeque<QueueItem> q : queue) {
+			for(QueueItem item : q)
+				total += item.keys.length - item.nextKey;
+		}
+		return total;
 	}
 
 	synchronized void wakeUp() {
@@ -277,9 +451,18 @@ public class DatastoreChecker implements PrioRunnable {
 
 	public void removeRequest(SendableGet request, boolean persistent, ClientContext context, short prio) {
 		if(logMINOR) Logger.minor(this, "Removing request prio="+prio+" persistent="+persistent);
-		QueueItem requestMatcher = new QueueItem(null, request, null);
 		synchronized(this) {
-		    if(!queue[prio].remove(requestMatcher)) return;
+		    QueueItem removed = null;
+		    for(QueueItem item : queue[prio]) {
+		        if(item.getter == request) {
+		            removed = item;
+		            break;
+		        }
+		    }
+		    if(removed == null) return;
+		    // Some of its keys may be in the batch being checked.
+		    removed.cancelled = true;
+		    queue[prio].remove(removed);
 		}
 		if(logMINOR) Logger.minor(this, "Removed transient request");
 	}
@@ -0,0 +1,23 @@
+package network.crypta.client.async;
+
+import java.util.List;
+
+import network.crypta.keys.Key;
+
+/**
+ * A KeyListener which can list the keys it wants, so that KeyListenerTracker can index them
+ * rather than calling probablyWantKey() on it for every block the node sees.
+ */
+public interface IndexableKeyListener extends KeyListener {
+
+    /**
+     * List the keys we still want. Called once, off-thread, shortly after registration; may do
+     * disk I/O. May include keys we no longer want, since every match is confirmed with
+     * probablyWantKey(), but must not omit any key that probablyWantKey() would accept, as
+     * the listener will no longer be asked about keys which are not in the index.
+     * @return The keys, or null if they cannot be listed, in which case the tracker keeps
+     * checking this listener for every key.
+     */
+    List<Key> getWantedKeys();
+
+}
@@ -1,5 +1,8 @@
 package network.crypta.client.async;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -8,13 +11,12 @@ import network.crypta.client.InsertException;
 import network.crypta.client.InsertException.InsertExceptionMode;
 import network.crypta.config.Config;
 import network.crypta.crypt.HashResult;
-import network.crypta.crypt.MultiHashInputStream;
+import network.crypta.crypt.PipelinedMultiHashInputStream;
 import network.crypta.keys.CHKBlock;
 import network.crypta.node.PrioRunnable;
 import network.crypta.support.LogThresholdCallback;
 import network.crypta.support.Logger;
 import network.crypta.support.Logger.LogLevel;
-import network.crypta.support.api.Bucket;
 import network.crypta.support.api.BucketFactory;
 import network.crypta.support.api.RandomAccessBucket;
 import network.crypta.support.compress.CompressJob;
@@ -22,7 +24,10 @@ import network.crypta.support.compress.CompressionOutputSizeException;
 import network.crypta.support.compress.CompressionRatioException;
 import network.crypta.support.compress.Compressor.COMPRESSOR_TYPE;
 import network.crypta.support.compress.InvalidCompressionCodecException;
-import network.crypta.support.io.Closer;
+import network.crypta.support.compress.RealCompressor;
+import network.crypta.support.compress.SharedCompressionLimit;
+import network.crypta.support.io.CountedInputStream;
+import network.crypta.support.io.FileUtil;
 import network.crypta.support.io.NativeThread;
 
 /**
@@ -49,6 +54,9 @@ public class InsertCompressor implements CompressJob {
 	private final long generateHashes;
 	private final boolean pre1254;
 	private final Config config;
+	/** Chunks of the data to compress to predict whether it is worth compressing at all */
+	private static final int SAMPLE_CHUNKS = 8;
+	private static final int SAMPLE_CHUNK_SIZE = 65536;
 
 	static {
 		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
@@ -93,121 +101,51 @@ public class InsertCompressor implements CompressJob {
 		long origNumberOfBlocks = origSize/CHKBlock.DATA_LENGTH;
 		COMPRESSOR_TYPE bestCodec = null;
 		RandomAccessBucket bestCompressedData = origData;
-		long bestCompressedDataSize = origSize;
-		long bestNumberOfBlocks = origNumberOfBlocks;
 
 		HashResult[] hashes = null;
+		Trial[] trials = new Trial[0];
+		boolean handedOver = false;
 
 		if(logMINOR) Logger.minor(this, "Attempt to compress the data");
 		// Try to compress the data.
-		// Try each algorithm, starting with the fastest and weakest.
-		// Stop when run out of algorithms, or the compressed data fits in a single block.
+		// Try every algorithm at once, if there are compressor threads to spare. Each finished
+		// algorithm sets the size the ones after it have to beat, so an algorithm that can no
+		// longer win gives up early, and the winner is the same whichever finishes first.
+		// Stop when the compressed data fits in a single block.
 		try {
 			COMPRESSOR_TYPE[] comps = COMPRESSOR_TYPE.getCompressorsArray(compressorDescriptor);
-			boolean first = true;
 			long amountOfDataToCheckCompressionRatio = config.get("node").getLong("amountOfDataToCheckCompressionRatio");
 			int minimumCompressionPercentage = config.get("node").getInt("minimumCompressionPercentage");
-			for (final COMPRESSOR_TYPE comp : comps) {
-				boolean shouldFreeOnFinally = true;
-				RandomAccessBucket result = null;
-				try {
-					if(logMINOR)
-						Logger.minor(this, "Attempt to compress using " + comp);
-					// Only produce if we are compressing *the original data*
-					if(persistent) {
-						context.jobRunner.queue(new PersistentJob() {
-
-							@Override
-							public boolean run(ClientContext context) {
-								inserter.onStartCompression(comp, context);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY+1);
-					} else {
-						try {
-							inserter.onStartCompression(comp, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
-
-					InputStream is = null;
-					OutputStream os = null;
-					MultiHashInputStream hasher = null;
-					try {
-						is = origData.getInputStream();
-						result = bucketFactory.makeBucket(-1);
-						os = result.getOutputStream();
-						if(first && generateHashes != 0) {
-							if(logMINOR) Logger.minor(this, "Generating hashes: "+generateHashes);
-							is = hasher = new MultiHashInputStream(is, generateHashes);
-						}
-						try {
-							comp.compress(is, os, origSize, bestCompressedDataSize,
-									amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
-						} catch (CompressionOutputSizeException | CompressionRatioException e) {
-							if(hasher != null) {
-								is.skip(Long.MAX_VALUE);
-								hashes = hasher.getResults();
-								first = false;
-							}
-							continue; // try next compressor type
-						} catch (RuntimeException e) {
-							// ArithmeticException has been seen in bzip2 codec.
-							Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
-							// Try the next one
-							// RuntimeException is iffy, so lets not try the hasher.
-							continue;
-						}
-						if(hasher != null) {
-							hashes = hasher.getResults();
-							first = false;
-						}
-					} finally {
-						Closer.close(is);
-						Closer.close(os);
-					}
-					long resultSize = result.size();
-					long resultNumberOfBlocks = resultSize/CHKBlock.DATA_LENGTH;
-					// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
-					if(resultSize <= minSize) {
-						if(logMINOR)
-							Logger.minor(this, "New size " + resultSize + " smaller then minSize " + minSize);
-
-						bestCodec = comp;
-						if(bestCompressedData != null && bestCompressedData != origData)
-							// Don't need to removeFrom() : we haven't stored it.
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestNumberOfBlocks = resultNumberOfBlocks;
-						shouldFreeOnFinally = false;
-						break;
-					}
-					if(resultNumberOfBlocks < bestNumberOfBlocks) {
-						if(logMINOR)
-							Logger.minor(this, "New size "+resultSize+" ("+resultNumberOfBlocks+" blocks) better than old best "+bestCompressedDataSize+ " ("+bestNumberOfBlocks+" blocks)");
-						if(bestCompressedData != null && bestCompressedData != origData)
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestNumberOfBlocks = resultNumberOfBlocks;
-						bestCodec = comp;
-						shouldFreeOnFinally = false;
-					}
-				} catch (PersistenceDisabledException e) {
-				    if(!context.jobRunner.shuttingDown())
-				        Logger.error(this, "Database disabled compressing data", new Exception("error"));
-					shouldFreeOnFinally = true;
-					if(bestCompressedData != null && bestCompressedData != origData && bestCompressedData != result)
-						bestCompressedData.free();
-				} finally {
-					if(shouldFreeOnFinally && (result != null) && result != origData)
-						result.free();
-				}
-
+			if(comps.length > 0 && predictIncompressible(origSize, amountOfDataToCheckCompressionRatio, minimumCompressionPercentage)) {
+				if(logMINOR) Logger.minor(this, "Sample didn't compress, not trying to compress "+this);
+				context.rc.onTrialsSkipped(comps, Math.min(origSize, amountOfDataToCheckCompressionRatio));
+				comps = new COMPRESSOR_TYPE[0];
+			}
+			SharedCompressionLimit limit = new SharedCompressionLimit(comps.length, origSize, minSize, CHKBlock.DATA_LENGTH);
+			trials = new Trial[comps.length];
+			for(int i=0;i<comps.length;i++) {
+				// Only the first (fastest) codec computes the hashes.
+				trials[i] = new Trial(comps[i], i, limit, i == 0 ? generateHashes : 0,
+						amountOfDataToCheckCompressionRatio, minimumCompressionPercentage, context);
+			}
+			runTrials(trials, context);
+			for(Trial trial : trials) {
+				if(trial.failure != null) throw trial.failure;
+				if(trial.hashes != null) hashes = trial.hashes;
 			}
+			long[] sizes = new long[trials.length];
+			for(int i=0;i<trials.length;i++)
+				sizes[i] = trials[i].result == null ? -1 : trials[i].result.size();
+			int best = chooseResult(sizes, origSize, minSize);
+			if(best >= 0) {
+				bestCodec = trials[best].comp;
+				bestCompressedData = trials[best].result;
+				if(logMINOR)
+					Logger.minor(this, "Best is "+bestCodec+" : "+sizes[best]+" ("+sizes[best]/CHKBlock.DATA_LENGTH+" blocks), was "+origSize+" ("+origNumberOfBlocks+" blocks)");
+			}
+			if(hashes == null && generateHashes != 0)
+				hashes = hash(context);
+			context.rc.onInsertCompressed();
 
 			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
 
@@ -244,18 +182,239 @@ public class InsertCompressor implements CompressJob {
 
 				}, "Insert thread for "+this);
 			}
+			handedOver = true;
 		} catch (PersistenceDisabledException e) {
 			Logger.error(this, "Database disabled compressing data", new Exception("error"));
-			if(bestCompressedData != null && bestCompressedData != origData)
-				bestCompressedData.free();
 		} catch (InvalidCompressionCodecException e) {
-			fail(new InsertException(InsertExceptionMode.INTERNAL_ERROR, e, null), context, bestCompressedData);
+			fail(new InsertException(InsertExceptionMode.INTERNAL_ERROR, e, null), context);
 		} catch (final IOException e) {
-			fail(new InsertException(InsertExceptionMode.BUCKET_ERROR, e, null), context, bestCompressedData);
+			fail(new InsertException(InsertExceptionMode.BUCKET_ERROR, e, null), context);
+		} finally {
+			for(Trial trial : trials) {
+				if(trial.result != null && !(handedOver && trial.result == bestCompressedData))
+					trial.result.free();
+			}
+		}
+	}
+
+	/**
+	 * Pick the result to insert, in codec order: the first that fits in minSize, otherwise the
+	 * first with fewer blocks than any before it, if that is fewer than the original data.
+	 * SharedCompressionLimit relies on these rules.
+	 * @param sizes The size of each codec's result, or -1 if it has none.
+	 * @return The index of the codec, or -1 to insert the original data.
+	 */
+	static int chooseResult(long[] sizes, long origSize, int minSize) {
+		int best = -1;
+		long bestNumberOfBlocks = origSize/CHKBlock.DATA_LENGTH;
+		for(int i=0;i<sizes.length;i++) {
+			if(sizes[i] < 0) continue;
+			// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
+			if(sizes[i] <= minSize)
+				return i;
+			long numberOfBlocks = sizes[i]/CHKBlock.DATA_LENGTH;
+			if(numberOfBlocks < bestNumberOfBlocks) {
+				best = i;
+				bestNumberOfBlocks = numberOfBlocks;
+			}
+		}
+		return best;
+	}
+
+	private void onStartCompression(final COMPRESSOR_TYPE comp, ClientContext context) {
+		if(logMINOR)
+			Logger.minor(this, "Attempt to compress using " + comp);
+		// Only produce if we are compressing *the original data*
+		if(persistent) {
+			try {
+				context.jobRunner.queue(new PersistentJob() {
+
+					@Override
+					public boolean run(ClientContext context) {
+						inserter.onStartCompression(comp, context);
+						return false;
+					}
+
+				}, NativeThread.NORM_PRIORITY+1);
+			} catch (PersistenceDisabledException e) {
+			    if(!context.jobRunner.shuttingDown())
+			        Logger.error(this, "Database disabled compressing data", new Exception("error"));
+			}
+		} else {
+			try {
+				inserter.onStartCompression(comp, context);
+			} catch (Throwable t) {
+				Logger.error(this, "Transient insert callback threw "+t, t);
+			}
+		}
+	}
+
+	/** Run the trials on separate threads if there is more than one core and RealCompressor has
+	 * threads to spare, otherwise one after another on this thread. */
+	private void runTrials(Trial[] trials, ClientContext context) {
+		boolean parallel = Runtime.getRuntime().availableProcessors() > 1;
+		for(int i=1;i<trials.length && parallel;i++) {
+			if(!context.rc.tryStartTrialThread()) break;
+			trials[i].ownThread = true;
+			context.getMainExecutor().execute(trials[i], "Compressing with "+trials[i].comp+" for "+this);
+		}
+		for(Trial trial : trials) {
+			if(!trial.ownThread) trial.run();
+		}
+		for(Trial trial : trials)
+			trial.waitFinished();
+	}
+
+	/** Compress with one codec. Gives up as soon as the output is bigger than its limit, and
+	 * lowers the limits of the codecs after it if it finishes. */
+	private class Trial implements PrioRunnable {
+
+		final COMPRESSOR_TYPE comp;
+		/** The position of the codec in the descriptor */
+		private final int index;
+		private final SharedCompressionLimit limit;
+		private final long generateHashes;
+		private final long amountOfDataToCheckCompressionRatio;
+		private final int minimumCompressionPercentage;
+		private final ClientContext context;
+		/** The compressed data if the trial completed, otherwise null */
+		RandomAccessBucket result;
+		HashResult[] hashes;
+		IOException failure;
+		/** Running on a thread counted by RealCompressor.tryStartTrialThread() */
+		boolean ownThread;
+		private boolean finished;
+
+		Trial(COMPRESSOR_TYPE comp, int index, SharedCompressionLimit limit, long generateHashes,
+				long amountOfDataToCheckCompressionRatio, int minimumCompressionPercentage, ClientContext context) {
+			this.comp = comp;
+			this.index = index;
+			this.limit = limit;
+			this.generateHashes = generateHashes;
+			this.amountOfDataToCheckCompressionRatio = amountOfDataToCheckCompressionRatio;
+			this.minimumCompressionPercentage = minimumCompressionPercentage;
+			this.context = context;
+		}
+
+		@Override
+		public void run() {
+			long startTime = RealCompressor.threadCPUTime();
+			long origSize = origData.size();
+			long bytesRead = 0;
+			boolean aborted = false;
+			RandomAccessBucket output = null;
+			try {
+				if(limit.get(index) < 0 && generateHashes == 0) {
+					// An earlier codec already fits it in one block.
+					aborted = true;
+					return;
+				}
+				onStartCompression(comp, context);
+				output = bucketFactory.makeBucket(-1);
+				if(logMINOR && generateHashes != 0) Logger.minor(this, "Generating hashes: "+generateHashes);
+				try(CountedInputStream counter = new CountedInputStream(origData.getInputStream());
+						// Hash on other threads, so the codec runs at full speed.
+						PipelinedMultiHashInputStream hasher = generateHashes == 0 ? null :
+							PipelinedMultiHashInputStream.start(counter, generateHashes, context.getMainExecutor());
+						OutputStream os = output.getOutputStream()) {
+					InputStream is = hasher == null ? counter : hasher;
+					try {
+						comp.compress(is, limit.wrap(index, os), origSize, origSize,
+								amountOfDataToCheckCompressionRatio, minimumCompressionPercentage);
+						bytesRead = counter.count();
+					} catch (CompressionOutputSizeException | CompressionRatioException e) {
+						if(logMINOR) Logger.minor(this, "Giving up on "+comp+" : "+e);
+						bytesRead = counter.count();
+						aborted = true;
+						if(hasher != null) {
+							is.skip(Long.MAX_VALUE);
+							hashes = hasher.getResults();
+						}
+						return;
+					} catch (RuntimeException e) {
+						// ArithmeticException has been seen in bzip2 codec.
+						Logger.error(this, "Compression failed with codec "+comp+" : "+e, e);
+						// RuntimeException is iffy, so lets not try the hasher.
+						return;
+					}
+					if(hasher != null)
+						hashes = hasher.getResults();
+				}
+				limit.finished(index, output.size());
+				result = output;
+			} catch (IOException e) {
+				failure = e;
+			} finally {
+				if(result == null && output != null)
+					output.free();
+				context.rc.onTrialFinished(comp, bytesRead, aborted ? origSize - bytesRead : 0,
+						RealCompressor.threadCPUTime() - startTime);
+				if(ownThread)
+					context.rc.onTrialThreadFinished();
+				synchronized(this) {
+					finished = true;
+					notifyAll();
+				}
+			}
+		}
+
+		synchronized void waitFinished() {
+			while(!finished) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.PriorityLevel.MIN_PRIORITY.value;
+		}
+
+	}
+
+	/** Compress a few chunks spread over the data with the fastest codec. If they don't compress
+	 * by even half the minimum percentage, no codec is likely to reach it on the whole file, so
+	 * we don't try. Data too small for the codecs to check the ratio is always tried. */
+	private boolean predictIncompressible(long origSize, long amountOfDataToCheckCompressionRatio,
+			int minimumCompressionPercentage) throws IOException {
+		if(minimumCompressionPercentage == 0 || amountOfDataToCheckCompressionRatio == 0) return false;
+		if(origSize <= Math.max(amountOfDataToCheckCompressionRatio, SAMPLE_CHUNKS * SAMPLE_CHUNK_SIZE * 4L))
+			return false;
+		byte[] buf = new byte[SAMPLE_CHUNK_SIZE];
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(SAMPLE_CHUNK_SIZE);
+		long compressedSize = 0;
+		long step = origSize / SAMPLE_CHUNKS;
+		long pos = 0;
+		try(InputStream is = origData.getInputStreamUnbuffered()) {
+			for(int i=0;i<SAMPLE_CHUNKS;i++) {
+				// The middle of each stretch
+				long offset = i * step + (step - SAMPLE_CHUNK_SIZE) / 2;
+				FileUtil.skipFully(is, offset - pos);
+				new DataInputStream(is).readFully(buf);
+				pos = offset + SAMPLE_CHUNK_SIZE;
+				compressed.reset();
+				COMPRESSOR_TYPE.GZIP.compress(new ByteArrayInputStream(buf), compressed, buf.length, Long.MAX_VALUE);
+				compressedSize += compressed.size();
+			}
+		}
+		long percentage = 100 - compressedSize * 100 / ((long)SAMPLE_CHUNKS * SAMPLE_CHUNK_SIZE);
+		if(logMINOR) Logger.minor(this, "Sample compressed by "+percentage+"% for "+this);
+		return percentage * 2 < minimumCompressionPercentage;
+	}
+
+	/** Compute the hashes when no codec trial did. */
+	private HashResult[] hash(ClientContext context) throws IOException {
+		try(PipelinedMultiHashInputStream hasher =
+				PipelinedMultiHashInputStream.start(origData.getInputStream(), generateHashes, context.getMainExecutor())) {
+			hasher.skip(Long.MAX_VALUE);
+			return hasher.getResults();
 		}
 	}
 
-	private void fail(final InsertException ie, ClientContext context, Bucket bestCompressedData) {
+	private void fail(final InsertException ie, ClientContext context) {
 		if(persistent) {
 			try {
 				context.jobRunner.queue(new PersistentJob() {
@@ -269,8 +428,6 @@ public class InsertCompressor implements CompressJob {
 				}, NativeThread.NORM_PRIORITY+1);
 			} catch (PersistenceDisabledException e1) {
 				Logger.error(this, "Database disabled compressing data", new Exception("error"));
-				if(bestCompressedData != null && bestCompressedData != origData)
-					bestCompressedData.free();
 			}
 		} else {
 			inserter.cb.onFailure(ie, inserter, context);
@@ -15,6 +15,7 @@ import network.crypta.keys.KeyBlock;
 import network.crypta.keys.NodeSSK;
 import network.crypta.node.SendableGet;
 import network.crypta.support.ByteArrayWrapper;
+import network.crypta.support.Executor;
 import network.crypta.support.LogThresholdCallback;
 import network.crypta.support.Logger;
 import network.crypta.support.Logger.LogLevel;
@@ -62,6 +63,15 @@ class KeyListenerTracker implements KeySalter {
 	/** Transient even for persistent scheduler. There is one for each of transient, persistent. */
 	protected final ArrayList<KeyListener> keyListeners;
 	protected final Map<ByteArrayWrapper,Object> singleKeyListeners;
+	/** Listeners whose keys are in keyIndex, by id. They are not in keyListeners, so we only ask
+	 * them about keys which match the index. Id 0 is never used, removed listeners are null
+	 * until the next compaction. */
+	private final ArrayList<KeyListener> indexedListeners;
+	private final IdentityHashMap<KeyListener,Integer> indexedIds;
+	/** Fingerprints of the salted keys wanted by indexedListeners. */
+	private final SaltedKeyIndex keyIndex;
+	/** Compact once this many ids are dead and they outnumber the live ones. */
+	private static final int MIN_DEAD_IDS_TO_COMPACT = 16;
 
 	final boolean persistent;
 	
@@ -75,6 +85,10 @@ class KeyListenerTracker implements KeySalter {
 		this.isRTScheduler = forRT;
 		this.sched = sched;
 		keyListeners = new ArrayList<KeyListener>();
+		indexedListeners = new ArrayList<KeyListener>();
+		indexedListeners.add(null);
+		indexedIds = new IdentityHashMap<KeyListener,Integer>();
+		keyIndex = new SaltedKeyIndex();
 		singleKeyListeners = this.isSSKScheduler ? new TreeMap<ByteArrayWrapper,Object>(ByteArrayWrapper.FAST_COMPARATOR) : new HashMap<ByteArrayWrapper,Object>();
 		if(globalSalt == null) {
 		    globalSalt = new byte[32];
@@ -127,13 +141,126 @@ class KeyListenerTracker implements KeySalter {
 					singleKeyListeners.put(wrapper, newListeners);
 				}
 			} else {
-				if(keyListeners.contains(listener))
+				if(keyListeners.contains(listener) || indexedIds.containsKey(listener))
 					return;
 				keyListeners.add(listener);
 			}
 		}
 		if (logMINOR)
 			Logger.minor(this, "Added pending keys to "+this+" : size now "+this.keyListeners.size()+"/"+singleKeyListeners.size()+" : "+listener);
+		if(wantedKey == null && listener instanceof IndexableKeyListener)
+			queueIndexListener((IndexableKeyListener)listener);
+	}
+
+	/** Reading the keys may need disk I/O, so index the listener off-thread. Until then it is
+	 * checked for every key, as before. */
+	private void queueIndexListener(final IndexableKeyListener listener) {
+		if(sched == null || sched.clientContext == null) return;
+		Executor executor = sched.clientContext.getMainExecutor();
+		if(executor == null) return;
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				indexListener(listener);
+			}
+
+		}, "Indexing keys for "+listener);
+	}
+
+	/**
+	 * Move a listener from the list we scan for every key to the key index.
+	 * @return False if the listener could not list its keys, or was removed or indexed already.
+	 */
+	boolean indexListener(IndexableKeyListener listener) {
+		List<Key> keys;
+		try {
+			keys = listener.getWantedKeys();
+		} catch (Throwable t) {
+			Logger.error(this, format("Error in getWantedKeys callback for %s", listener), t);
+			return false;
+		}
+		if(keys == null) return false;
+		long[] fingerprints = new long[keys.size()];
+		for(int i=0;i<fingerprints.length;i++)
+			fingerprints[i] = SaltedKeyIndex.fingerprint(saltKey(keys.get(i)));
+		int indexSize;
+		synchronized(this) {
+			if(!keyListeners.remove(listener)) return false;
+			int id = indexedListeners.size();
+			indexedListeners.add(listener);
+			indexedIds.put(listener, id);
+			for(long fingerprint : fingerprints)
+				keyIndex.add(fingerprint, id);
+			indexSize = keyIndex.size();
+		}
+		if(logMINOR)
+			Logger.minor(this, "Indexed "+fingerprints.length+" keys for "+listener+" on "+this+" : index size now "+indexSize);
+		return true;
+	}
+
+	/** Caller must hold the lock. */
+	private boolean unindexListener(KeyListener listener) {
+		Integer id = indexedIds.remove(listener);
+		if(id == null) return false;
+		indexedListeners.set(id, null);
+		int dead = indexedListeners.size() - 1 - indexedIds.size();
+		if(dead >= MIN_DEAD_IDS_TO_COMPACT && dead > indexedIds.size())
+			compactIndex();
+		return true;
+	}
+
+	/** Drop the entries of removed listeners and renumber the rest. Caller must hold the lock. */
+	private void compactIndex() {
+		int[] renumber = new int[indexedListeners.size()];
+		int next = 1;
+		for(int id=1;id<renumber.length;id++) {
+			KeyListener listener = indexedListeners.get(id);
+			if(listener == null) continue;
+			renumber[id] = next;
+			indexedListeners.set(next, listener);
+			indexedIds.put(listener, next);
+			next++;
+		}
+		indexedListeners.subList(next, indexedListeners.size()).clear();
+		keyIndex.renumber(renumber);
+	}
+
+	/** The block has been handled, so the listener doesn't need to hear about the key again. */
+	private synchronized void onFoundKey(KeyListener listener, byte[] saltedKey) {
+		Integer id = indexedIds.get(listener);
+		if(id != null)
+			keyIndex.remove(SaltedKeyIndex.fingerprint(saltedKey), id);
+	}
+
+	/** Add the indexed listeners that probably want the key to matches. Caller must hold the
+	 * lock.
+	 * @return matches, or a new list if it was null and there are any. */
+	private ArrayList<KeyListener> indexedMatches(Key key, byte[] saltedKey, ArrayList<KeyListener> matches) {
+		if(keyIndex.size() == 0) return matches;
+		int[] ids = keyIndex.get(SaltedKeyIndex.fingerprint(saltedKey));
+		if(ids == null) return matches;
+		for(int id : ids) {
+			KeyListener listener = indexedListeners.get(id);
+			if(listener == null) continue;
+			try {
+				if(!listener.probablyWantKey(key, saltedKey)) continue;
+			} catch (Throwable t) {
+				Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
+				continue;
+			}
+			if(matches == null) matches = new ArrayList<KeyListener>();
+			matches.add(listener);
+		}
+		return matches;
+	}
+
+	synchronized int countIndexedListeners() {
+		return indexedIds.size();
+	}
+
+	synchronized int countIndexedKeys() {
+		return keyIndex.size();
 	}
 	
 	public boolean removePendingKeys(KeyListener listener) {
@@ -179,7 +306,7 @@ class KeyListenerTracker implements KeySalter {
 					}
 				}
 			} else {
-				ret = keyListeners.remove(listener);
+				ret = keyListeners.remove(listener) || unindexListener(listener);
 			}
 			listener.onRemove();
 		}
@@ -251,6 +378,15 @@ class KeyListenerTracker implements KeySalter {
 						Logger.minor(this, "Removed pending keys from "+this+" : size now "+this.keyListeners.size()+"/"+singleKeyListeners.size()+" : "+listener);
 				}
 			}
+			for(KeyListener listener : new ArrayList<KeyListener>(indexedIds.keySet())) {
+				if(listener.getHasKeyListener() == hasListener) {
+					ret = true;
+					unindexListener(listener);
+					listener.onRemove();
+					if (logMINOR)
+						Logger.minor(this, "Removed indexed keys from "+this+" : "+listener);
+				}
+			}
 		}
 		return ret;
 	}
@@ -281,7 +417,7 @@ class KeyListenerTracker implements KeySalter {
 			if(matches == null) matches = new ArrayList<KeyListener> ();
 			matches.add(listener);
 		}
-		return matches;
+		return indexedMatches(key, saltedKey, matches);
 	}
 	public short getKeyPrio(Key key, short priority, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
@@ -323,6 +459,13 @@ class KeyListenerTracker implements KeySalter {
 				Logger.error(this, format("Error in countKeys callback for %s", listener), t);
 			}
 		}
+		for (KeyListener listener : indexedIds.keySet()) {
+			try {
+				count += listener.countKeys();
+			} catch (Throwable t) {
+				Logger.error(this, format("Error in countKeys callback for %s", listener), t);
+			}
+		}
 		return count;
 	}
 	
@@ -370,7 +513,7 @@ class KeyListenerTracker implements KeySalter {
 				Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
 			}
 		}
-		return false;
+		return indexedMatches(key, saltedKey, null) != null;
 	}
 	
 	public boolean tripPendingKey(Key key, KeyBlock block, ClientContext context) {
@@ -390,6 +533,7 @@ class KeyListenerTracker implements KeySalter {
 				try {
 					if (listener.handleBlock(key, saltedKey, block, context)) {
 						ret = true;
+						onFoundKey(listener, saltedKey);
 					}
 				} catch (Throwable t) {
 					Logger.error(this, format("Error in handleBlock callback for %s", listener), t);
@@ -483,6 +627,7 @@ class KeyListenerTracker implements KeySalter {
 				}
 				matches.add(listener);
 			}
+			indexedMatches(key, saltedKey, matches);
 		}
 		return matches;
 	}
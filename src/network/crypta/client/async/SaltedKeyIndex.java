@@ -0,0 +1,156 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package network.crypta.client.async;
+
+import java.util.Arrays;
+
+import network.crypta.support.Fields;
+
+/**
+ * Multimap from the fingerprint of a salted key to the ids of the KeyListeners that want it.
+ * Lets KeyListenerTracker find the handful of downloads interested in a block with one probe
+ * rather than checking the Bloom filters of every queued splitfile.
+ *
+ * Open addressing with linear probing and backward-shift deletion, so there are no tombstones
+ * and lookups of absent keys stay short however much churn there is. The fingerprint is only 64
+ * bits, so a hit must still be confirmed with the listener. Id 0 marks an empty slot.
+ *
+ * Not thread-safe: the caller synchronizes.
+ */
+final class SaltedKeyIndex {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] fingerprints;
+	private int[] ids;
+	private int mask;
+	private int size;
+
+	SaltedKeyIndex() {
+		allocate(MIN_CAPACITY);
+	}
+
+	/** The salted key is a SHA-256 hash (or an SSK pubkey hash), so any 8 bytes will do. */
+	static long fingerprint(byte[] saltedKey) {
+		return Fields.bytesToLong(saltedKey);
+	}
+
+	private void allocate(int capacity) {
+		fingerprints = new long[capacity];
+		ids = new int[capacity];
+		mask = capacity - 1;
+		size = 0;
+	}
+
+	private int home(long fingerprint) {
+		long h = fingerprint * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+
+	/** @return False if the entry was already present. */
+	boolean add(long fingerprint, int id) {
+		if(id <= 0) throw new IllegalArgumentException();
+		int i = home(fingerprint);
+		while(ids[i] != 0) {
+			if(ids[i] == id && fingerprints[i] == fingerprint) return false;
+			i = (i + 1) & mask;
+		}
+		fingerprints[i] = fingerprint;
+		ids[i] = id;
+		if(++size > (ids.length >> 1) + (ids.length >> 2))
+			resize(ids.length << 1, null);
+		return true;
+	}
+
+	/** @return False if the entry was not present. */
+	boolean remove(long fingerprint, int id) {
+		int i = home(fingerprint);
+		while(ids[i] != 0) {
+			if(ids[i] == id && fingerprints[i] == fingerprint) {
+				deleteSlot(i);
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	private void deleteSlot(int i) {
+		int j = i;
+		while(true) {
+			j = (j + 1) & mask;
+			if(ids[j] == 0) break;
+			int k = home(fingerprints[j]);
+			// Leave it if its home slot is cyclically in (i, j].
+			if(i <= j ? (i < k && k <= j) : (i < k || k <= j)) continue;
+			fingerprints[i] = fingerprints[j];
+			ids[i] = ids[j];
+			i = j;
+		}
+		fingerprints[i] = 0;
+		ids[i] = 0;
+		size--;
+	}
+
+	/** @return The ids stored against the fingerprint, or null if there are none. */
+	int[] get(long fingerprint) {
+		int i = home(fingerprint);
+		int[] found = null;
+		int count = 0;
+		while(ids[i] != 0) {
+			if(fingerprints[i] == fingerprint) {
+				if(found == null)
+					found = new int[2];
+				else if(count == found.length)
+					found = Arrays.copyOf(found, count * 2);
+				found[count++] = ids[i];
+			}
+			i = (i + 1) & mask;
+		}
+		if(found == null || count == found.length) return found;
+		return Arrays.copyOf(found, count);
+	}
+
+	/**
+	 * Rewrite every id through the table, dropping the entries whose new id is 0, and shrink the
+	 * table if that leaves it mostly empty.
+	 * @param renumber Maps each old id to its new id. Must cover every id in the index.
+	 */
+	void renumber(int[] renumber) {
+		int live = 0;
+		for(int id : ids)
+			if(id != 0 && renumber[id] != 0) live++;
+		int capacity = MIN_CAPACITY;
+		while(live > (capacity >> 1)) capacity <<= 1;
+		resize(capacity, renumber);
+	}
+
+	private void resize(int capacity, int[] renumber) {
+		long[] oldFingerprints = fingerprints;
+		int[] oldIds = ids;
+		allocate(capacity);
+		for(int i=0;i<oldIds.length;i++) {
+			int id = oldIds[i];
+			if(id == 0) continue;
+			if(renumber != null) {
+				id = renumber[id];
+				if(id == 0) continue;
+			}
+			int j = home(oldFingerprints[i]);
+			while(ids[j] != 0) j = (j + 1) & mask;
+			fingerprints[j] = oldFingerprints[i];
+			ids[j] = id;
+			size++;
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	int capacity() {
+		return ids.length;
+	}
+
+}
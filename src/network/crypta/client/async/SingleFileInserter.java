@@ -20,7 +20,7 @@ import network.crypta.client.events.ExpectedHashesEvent;
 import network.crypta.client.events.StartedCompressionEvent;
 import network.crypta.crypt.HashResult;
 import network.crypta.crypt.HashType;
-import network.crypta.crypt.MultiHashOutputStream;
+import network.crypta.crypt.PipelinedMultiHashInputStream;
 import network.crypta.keys.BaseClientKey;
 import network.crypta.keys.CHKBlock;
 import network.crypta.keys.FreenetURI;
@@ -34,7 +34,6 @@ import network.crypta.support.api.RandomAccessBucket;
 import network.crypta.support.compress.Compressor.COMPRESSOR_TYPE;
 import network.crypta.support.io.BucketTools;
 import network.crypta.support.io.NotPersistentBucket;
-import network.crypta.support.io.NullOutputStream;
 import network.crypta.support.io.ResumeFailedException;
 
 /**
@@ -461,14 +460,13 @@ class SingleFileInserter implements ClientPutState, Serializable {
 			HashResult[] hashes = null;
 			if(wantHashes != 0) {
 				// Need to get the hashes anyway
-				NullOutputStream nos = new NullOutputStream();
-				MultiHashOutputStream hasher = new MultiHashOutputStream(nos, wantHashes);
-				try {
-					BucketTools.copyTo(data, hasher, data.size());
+				try(PipelinedMultiHashInputStream hasher =
+						PipelinedMultiHashInputStream.start(data.getInputStream(), wantHashes, context.getMainExecutor())) {
+					hasher.skip(Long.MAX_VALUE);
+					hashes = hasher.getResults();
 				} catch (IOException e) {
 					throw new InsertException(InsertExceptionMode.BUCKET_ERROR, "I/O error generating hashes", e, null);
 				}
-				hashes = hasher.getResults();
 			}
 			final CompressionOutput output = new CompressionOutput(data, null, hashes);
 			context.getJobRunner(persistent).queueNormalOrDrop(new PersistentJob() {
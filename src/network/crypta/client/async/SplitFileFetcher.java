@@ -89,6 +89,11 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
      * The download will be stored in this file until it is complete, at which point the storage
      * will truncate it and we will feed it to the callback. */
     final File fileCompleteViaTruncation;
+    /** If true, cb is a StreamingGetCompletionCallback, and we will start streaming the data to it
+     * as soon as the first segment has decoded. Not persisted, we just recompute it on resume. */
+    private transient boolean streamToCallback;
+    /** True once we have called onStreamStart() and the callback accepted. */
+    private transient boolean streaming;
     final boolean realTimeFlag;
     final FetchContext blockFetchContext;
     final long token;
@@ -164,6 +169,9 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
             cb.onFinalizedMetadata();
         if(eventualLength > 0 && fetchContext.maxOutputLength > 0 && eventualLength > fetchContext.maxOutputLength)
             throw new FetchException(FetchExceptionMode.TOO_BIG, eventualLength, true, clientMetadata.getMIMEType());
+        streamToCallback = isFinalFetch && cb instanceof StreamingGetCompletionCallback &&
+                callbackCompleteViaTruncation == null && !wantBinaryBlob && 
+                storage.segments.length > 1;
         getter = new SplitFileFetcherGet(this, storage);
         raf = storage.getRAF();
         if(logMINOR)
@@ -265,12 +273,32 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
                     finalLength, storage.clientMetadata, this, context);
             // Don't need to call storage.finishedFetcher().
         } else {
-            cb.onSuccess(storage.streamGenerator(), storage.clientMetadata, storage.decompressors, 
+            boolean wasStreaming;
+            synchronized(this) {
+                wasStreaming = streaming;
+            }
+            // If we are already streaming, the callback will wait for it to finish.
+            cb.onSuccess(wasStreaming ? storage.incrementalStreamGenerator() : 
+                    storage.streamGenerator(), storage.clientMetadata, storage.decompressors, 
                     this, context);
             storage.finishedFetcher();
         }
     }
     
+    @Override
+    public void onFirstSegmentSucceeded() {
+        synchronized(this) {
+            if(!streamToCallback || streaming || succeeded || failed) return;
+            streaming = true;
+        }
+        if(!((StreamingGetCompletionCallback)cb).onStreamStart(storage.incrementalStreamGenerator(), 
+                storage.clientMetadata, storage.decompressors, this, context)) {
+            synchronized(this) {
+                streaming = false;
+            }
+        }
+    }
+    
     @Override
     public void onClosed() {
         // Don't need to do anything.
@@ -398,6 +426,7 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         // We need to fetch more blocks. Some of them may even be in the datastore.
         getter.unregister(context, getPriorityClass());
         getter.schedule(context, false);
+        parent.changed();
         context.jobRunner.setCheckpointASAP();
     }
 
@@ -449,6 +478,11 @@ public class SplitFileFetcher implements ClientGetState, SplitFileFetcherStorage
         }
         synchronized(this) {
             lastNotifiedStoreFetch = System.currentTimeMillis();
+            // Only the final fetch is restored from the ClientGetter's progress. Otherwise we 
+            // don't know, so don't stream.
+            streamToCallback = resumed && cb instanceof StreamingGetCompletionCallback && 
+                callbackCompleteViaTruncation == null && !wantBinaryBlob && 
+                storage.segments.length > 1;
         }
         getter = new SplitFileFetcherGet(this, storage);
         if (storage.start(resumed)) {
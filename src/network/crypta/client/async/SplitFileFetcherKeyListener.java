@@ -6,6 +6,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
 
 import network.crypta.client.FetchException;
 import network.crypta.client.FetchException.FetchExceptionMode;
@@ -22,7 +24,7 @@ import network.crypta.support.CountingBloomFilter;
 import network.crypta.support.Logger;
 import network.crypta.support.io.StorageFormatException;
 
-public class SplitFileFetcherKeyListener implements KeyListener {
+public class SplitFileFetcherKeyListener implements IndexableKeyListener {
     
     private static volatile boolean logMINOR;
     static {
@@ -267,6 +269,19 @@ public class SplitFileFetcherKeyListener implements KeyListener {
         return -1;
     }
 
+    @Override
+    public List<Key> getWantedKeys() {
+        List<Key> wanted = new ArrayList<Key>();
+        try {
+            for(SplitFileFetcherSegmentStorage segment : storage.segments)
+                segment.addWantedKeys(wanted);
+        } catch (IOException e) {
+            Logger.error(this, "Unable to read keys for "+this+" : "+e, e);
+            return null;
+        }
+        return wanted;
+    }
+
     @Override
     public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ClientContext context) {
         // FIXME Ignored. We don't use the cooldown *queue*.
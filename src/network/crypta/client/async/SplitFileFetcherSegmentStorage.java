@@ -1094,6 +1094,18 @@ public class SplitFileFetcherSegmentStorage {
         }
     }
 
+    /** Add every key that definitelyWantKey() would currently accept to the list. */
+    void addWantedKeys(List<Key> wanted) throws IOException {
+        synchronized(this) {
+            if(succeeded || failed || finished) return;
+        }
+        SplitFileSegmentKeys keys = getSegmentKeys();
+        for(int i=0;i<keys.totalKeys();i++) {
+            if(blockChooser.hasSucceeded(i)) continue;
+            wanted.add(keys.getNodeKey(i, null, false));
+        }
+    }
+
     /** Write minimal fixed metadata for the segment. This should include lengths rather than 
      * offsets. Does not write cross-segment block assignments; these are handled by the 
      * cross-segments. 
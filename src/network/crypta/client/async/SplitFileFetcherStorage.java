@@ -74,9 +74,10 @@ import network.crypta.support.math.MersenneTwister;
  * belong to, check that we still have enough valid keys (update the metadata if the counts were 
  * wrong), do the decode, and write the data blocks back in the correct order; the segment is 
  * finished. When all the segments are finished, we generate a stream as usual, i.e. we still need
- * to copy the file. It may be possible in future to simply truncate the file but in many cases we
- * need to decompress or filter, and there are significant issues with code complexity and seeks 
- * during FEC decodes, see bug #6063. 
+ * to copy the file, unless we are completing via truncation. If the fetcher wants it, we can also
+ * start streaming the data before the download has finished, one segment at a time in order, as 
+ * each decodes (see incrementalStreamGenerator()), so the copy (and any decompressing or 
+ * filtering) overlaps with the download. See bug #6063.
  * 
  * KEY LIST: The original key list. Not changed when a block is fetched.
  * - Fixed and checksummed (each segment has a checksum).
@@ -173,6 +174,10 @@ public class SplitFileFetcherStorage {
     private boolean finishedEncoding;
     private boolean cancelled;
     private boolean succeeded;
+    /** Notified when a segment succeeds or the download finishes, for incrementalStreamGenerator().
+     * Taken last, never while calling out. */
+    private final Object streamingLock = new Object();
+    private int streamingEvents;
     
     /** Errors. For now, this is not persisted (FIXME). */
     private FailureCodeTracker errors;
@@ -929,6 +934,8 @@ public class SplitFileFetcherStorage {
             }
             fetcher.setSplitfileBlocks(splitfileDataBlocks + totalCrossCheckBlocks, splitfileCheckBlocks);
             fetcher.onResume(succeededBlocks, failedBlocks, clientMetadata, decompressedLength);
+            if(segments[0].hasSucceeded())
+                callFirstSegmentSucceededOffThread();
         }
         if(crossSegments != null) {
             for(SplitFileFetcherCrossSegmentStorage segment : crossSegments) {
@@ -1130,10 +1137,26 @@ public class SplitFileFetcherStorage {
      * @throws PersistenceDisabledException */
     public void finishedSuccess(SplitFileFetcherSegmentStorage segment) {
         if(logMINOR) Logger.minor(this, "finishedSuccess on "+this+" from "+segment+" for "+fetcher, new Exception("debug"));
+        notifyStreaming();
+        if(segment == segments[0])
+            callFirstSegmentSucceededOffThread();
         if(!(completeViaTruncation || fetcher.wantBinaryBlob()))
             maybeComplete();
     }
     
+    private void callFirstSegmentSucceededOffThread() {
+        jobRunner.queueNormalOrDrop(new PersistentJob() {
+            
+            @Override
+            public boolean run(ClientContext context) {
+                if(hasFinished()) return false;
+                fetcher.onFirstSegmentSucceeded();
+                return false;
+            }
+            
+        });
+    }
+    
     private void maybeComplete() {
         if(allSucceeded()) {
             callSuccessOffThread();
@@ -1194,6 +1217,64 @@ public class SplitFileFetcherStorage {
             
         };
     }
+    
+    /** Like streamGenerator(), but may be used before the download has finished: writeTo() 
+     * writes each segment as soon as it and all the segments before it have been decoded, and 
+     * throws if the download fails or is cancelled first. The caller must not call 
+     * finishedFetcher() until writeTo() has returned. */
+    public StreamGenerator incrementalStreamGenerator() {
+        return new StreamGenerator() {
+
+            @Override
+            public void writeTo(OutputStream os, ClientContext context)
+                    throws IOException {
+                for(SplitFileFetcherSegmentStorage segment : segments) {
+                    waitForSegment(segment);
+                    LockableRandomAccessBuffer.RAFLock lock = raf.lockOpen();
+                    try {
+                        segment.writeToInner(os);
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+                os.close();
+            }
+
+            @Override
+            public long size() {
+                return finalLength;
+            }
+            
+        };
+    }
+    
+    private void waitForSegment(SplitFileFetcherSegmentStorage segment) throws IOException {
+        while(true) {
+            int events;
+            synchronized(streamingLock) {
+                events = streamingEvents;
+            }
+            if(segment.hasSucceeded()) return;
+            if(hasFinished())
+                throw new IOException("Download finished before segment "+segment.segNo+" was decoded");
+            synchronized(streamingLock) {
+                while(events == streamingEvents) {
+                    try {
+                        streamingLock.wait();
+                    } catch (InterruptedException e) {
+                        // Ignore.
+                    }
+                }
+            }
+        }
+    }
+    
+    private void notifyStreaming() {
+        synchronized(streamingLock) {
+            streamingEvents++;
+            streamingLock.notifyAll();
+        }
+    }
 
     static final long LAZY_WRITE_METADATA_DELAY = TimeUnit.MINUTES.toMillis(5);
     
@@ -1250,6 +1331,9 @@ public class SplitFileFetcherStorage {
                 return;
             }
             finishedFetcher = true;
+        }
+        notifyStreaming();
+        synchronized(this) {
             if(completeViaTruncation && !cancelled) return; // Ignore.
             if(!finishedEncoding) return;
         }
@@ -1514,6 +1598,7 @@ public class SplitFileFetcherStorage {
         synchronized(this) {
             cancelled = true;
         }
+        notifyStreaming();
         for(SplitFileFetcherSegmentStorage segment : segments)
             segment.cancel();
         if(crossSegments != null) {
@@ -24,6 +24,10 @@ public interface SplitFileFetcherStorageCallback {
      * storage and call close() here. */
     void onSuccess();
     
+    /** Called off-thread when the first segment has been decoded, so 
+     * incrementalStreamGenerator() can start writing data. May be called again after a restart. */
+    void onFirstSegmentSucceeded();
+    
     /** Get the priority class of the request. Needed for e.g. FEC decoding scheduling. */
     short getPriorityClass();
 
@@ -0,0 +1,31 @@
+package network.crypta.client.async;
+
+import java.util.List;
+
+import network.crypta.client.ClientMetadata;
+import network.crypta.support.compress.Compressor;
+
+/** If a splitfile is the final stage of a download, and we can't complete via truncation, we can
+ * start decompressing, filtering and writing out the data as soon as the first segment has
+ * decoded, rather than copying the whole file after the last segment has decoded.
+ *
+ * This saves a lot of time at the end of a big download, and the (peak) disk space for the copy
+ * is used gradually.
+ *
+ * The ClientGetState calling the callback must only use this interface if it is the final fetch.
+ */
+public interface StreamingGetCompletionCallback extends GetCompletionCallback {
+
+    /** Start consuming the data before the fetch has finished. The generator's writeTo() will
+     * block until each part of the data is available, and will throw an IOException if the fetch
+     * fails, in which case onFailure() will be called as usual. If the fetch succeeds,
+     * onSuccess() will be called as usual, with the same arguments, and must wait for the stream
+     * already started rather than calling writeTo() again. The caller must not free the data
+     * until onSuccess() has returned.
+     * @return False if the callback won't consume the data early. It will then be passed to
+     * onSuccess() as normal.
+     */
+    boolean onStreamStart(StreamGenerator streamGenerator, ClientMetadata clientMetadata,
+            List<? extends Compressor> decompressors, ClientGetState state, ClientContext context);
+
+}
@@ -312,6 +312,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 
 	@Override
 	public void start(ClientContext context) {
+		changed();
 		try {
 			synchronized(this) {
 				if(finished) return;
@@ -568,6 +569,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 
 	@Override
 	public void receive(ClientEvent ce, ClientContext context) {
+		changed();
 	    if(logMINOR) Logger.minor(this, "Receiving "+ce+" on "+this);
 	    final FCPMessage progress;
 		final int verbosityMask;
@@ -861,6 +863,7 @@ public class ClientGet extends ClientRequest implements ClientGetCallback, Clien
 
 	@Override
 	public boolean restart(ClientContext context, final boolean disableFilterData) {
+		changed();
 		if(!canRestart()) return false;
 		FreenetURI redirect = null;
 		synchronized(this) {
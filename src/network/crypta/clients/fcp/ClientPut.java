@@ -281,6 +281,7 @@ public class ClientPut extends ClientPutBase {
 	
 	@Override
 	public void start(ClientContext context) {
+		changed();
 		if(logMINOR)
 			Logger.minor(this, "Starting "+this+" : "+identifier);
 		synchronized(this) {
@@ -402,6 +403,7 @@ public class ClientPut extends ClientPutBase {
 
 	@Override
 	public boolean restart(ClientContext context, final boolean disableFilterData) {
+		changed();
 		if(!canRestart()) return false;
 		setVarsRestart();
 		try {
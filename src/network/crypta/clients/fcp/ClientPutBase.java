@@ -204,6 +204,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 
 	@Override
 	public void onGeneratedURI(FreenetURI uri, BaseClientPutter state) {
+		changed();
 		synchronized(this) {
 			if(generatedURI != null) {
 				if(!uri.equals(generatedURI))
@@ -229,6 +230,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 	
 	@Override
 	public void onGeneratedMetadata(Bucket metadata, BaseClientPutter state) {
+		changed();
 		boolean delete = false;
 		synchronized(this) {
 			if(generatedURI != null)
@@ -287,6 +289,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 
 	@Override
 	public void receive(final ClientEvent ce, ClientContext context) {
+		changed();
 		if(finished) return;
 		if(logMINOR) Logger.minor(this, "Receiving event "+ce+" on "+this);
 		if(ce instanceof SplitfileProgressEvent) {
@@ -331,6 +334,7 @@ public abstract class ClientPutBase extends ClientRequest implements ClientPutCa
 
 	@Override
 	public void onFetchable(BaseClientPutter putter) {
+		changed();
 		if(finished) return;
 		if((verbosity & VERBOSITY_PUT_FETCHABLE) == VERBOSITY_PUT_FETCHABLE) {
 			FreenetURI temp;
@@ -191,6 +191,7 @@ public class ClientPutDir extends ClientPutBase {
 
 	@Override
 	public void start(ClientContext context) {
+		changed();
 		if(finished) return;
 		if(started) return;
 		try {
@@ -316,6 +317,7 @@ public class ClientPutDir extends ClientPutBase {
 
 	@Override
 	public boolean restart(ClientContext context, final boolean disableFilterData) {
+		changed();
 		if(!canRestart()) return false;
 		setVarsRestart();
 		if(client != null) {
@@ -64,6 +64,9 @@ public abstract class ClientRequest implements Serializable {
 	protected long completionTime;
 
 	protected transient RequestClient lowLevelClient;
+	/** Set when something that is serialized may have changed, cleared when the request is
+	 * written to disk. */
+	private transient volatile boolean changed;
 	private final int hashCode; // for debugging it is good to have a persistent id
 	
 	@Override
@@ -251,6 +254,7 @@ public abstract class ClientRequest implements Serializable {
 
 	/** Request completed. But we may have to stick around until we are acked. */
 	protected void finish() {
+		changed();
 		if(persistence == Persistence.CONNECTION)
 			origHandler.finishedClientRequest(this);
 		else
@@ -277,6 +281,23 @@ public abstract class ClientRequest implements Serializable {
 
 	protected boolean started;
 
+	/** Something that is serialized has changed, so the request must be written at the next
+	 * checkpoint. Changes to the ClientRequester are tracked there. */
+	protected void changed() {
+		changed = true;
+	}
+
+	/** @return True if this request or its ClientRequester has changed since the last call.
+	 * Called by ClientLayerPersister when writing the request. */
+	public boolean clearChanged() {
+		boolean ret = changed;
+		changed = false;
+		ClientRequester cr = getClientRequest();
+		if(cr != null && cr.clearChanged())
+			ret = true;
+		return ret;
+	}
+
 	public boolean isStarted() {
 		return started;
 	}
@@ -347,6 +368,7 @@ public abstract class ClientRequest implements Serializable {
 			return; // quick return, nothing was changed
 		}
 		
+		changed();
 		server.getCore().getClientContext().jobRunner.setCheckpointASAP();
 		
 		// this could become too complex with more parameters, but for now its ok
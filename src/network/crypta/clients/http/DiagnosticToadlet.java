@@ -9,6 +9,7 @@ import network.crypta.io.xfer.BlockTransmitter;
 import network.crypta.l10n.BaseL10n;
 import network.crypta.node.*;
 import network.crypta.node.diagnostics.ThreadDiagnostics;
+import network.crypta.node.diagnostics.threads.ExecutorStatistics;
 import network.crypta.node.diagnostics.threads.NodeThreadInfo;
 import network.crypta.node.diagnostics.threads.NodeThreadSnapshot;
 import network.crypta.node.stats.DataStoreInstanceType;
@@ -17,6 +18,7 @@ import network.crypta.node.stats.StatsNotAvailableException;
 import network.crypta.node.stats.StoreAccessStats;
 import network.crypta.pluginmanager.PluginInfoWrapper;
 import network.crypta.pluginmanager.PluginManager;
+import network.crypta.store.saltedhash.SaltedHashFreenetStore;
 import network.crypta.support.BandwidthStatsContainer;
 import network.crypta.support.SizeUtil;
 import network.crypta.support.api.HTTPRequest;
@@ -169,6 +171,19 @@ public class DiagnosticToadlet extends Toadlet {
             }
             textBuilder.append("\n");
 
+            // Salted hash store read latencies
+            textBuilder.append("Store Read Latency:\n");
+            for (Map.Entry<DataStoreInstanceType, SaltedHashFreenetStore<?>> entry : node.getSaltedHashStores().entrySet()) {
+                DataStoreInstanceType instance = entry.getKey();
+                SaltedHashFreenetStore<?> store = entry.getValue();
+                textBuilder.append(l10n(instance.store.name())).append(": (")
+                           .append(l10n(instance.key.name())).append(")")
+                           .append(store.isUsingMappedMetadata() ? " mmap" : "").append("\n");
+                textBuilder.append("  metadata: ").append(store.getMetadataReadLatency()).append("\n");
+                textBuilder.append("  header/data: ").append(store.getHeaderDataReadLatency()).append("\n");
+            }
+            textBuilder.append("\n");
+
             // drawActivity
             textBuilder.append("Activity:\n");
             RequestTracker tracker = node.getTracker();
@@ -617,6 +632,26 @@ public class DiagnosticToadlet extends Toadlet {
             sb.append(line);
         }
 
+        ExecutorStatistics executorStatistics = threadSnapshot.getExecutorStatistics();
+        if (executorStatistics != null) {
+            sb.append(String.format("%nExecutor: %s, virtual threads running %d, started %d%n",
+                                    executorStatistics.isUsingVirtualThreads() ? "virtual" : "pooled",
+                                    executorStatistics.getVirtualThreads(),
+                                    executorStatistics.getVirtualThreadsStarted()));
+            sb.append(String.format("%5s %15s %20s %20s%n", "Prio.", "Jobs started", "Avg. start delay ms",
+                                    "Max. start delay ms"));
+            long[] jobsStarted = executorStatistics.getJobsStarted();
+            double[] averageStartDelay = executorStatistics.getAverageStartDelay();
+            double[] maxStartDelay = executorStatistics.getMaxStartDelay();
+            for (int i = 0; i < jobsStarted.length; i++) {
+                if (jobsStarted[i] == 0) {
+                    continue;
+                }
+                sb.append(String.format("%5d %15d %20.3f %20.3f%n", i + 1, jobsStarted[i], averageStartDelay[i],
+                                        maxStartDelay[i]));
+            }
+        }
+
         return sb;
     }
 
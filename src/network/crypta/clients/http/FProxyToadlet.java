@@ -1241,6 +1241,9 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		server.register(diagnosticToadlet, "FProxyToadlet.categoryStatus", "/diagnostic/", true,
 		        "FProxyToadlet.diagnosticTitle", "FProxyToadlet.diagnostic", true, null);
 
+		MetricsToadlet metricsToadlet = new MetricsToadlet(client, node.getMetrics());
+		server.register(metricsToadlet, null, MetricsToadlet.PATH, true, false);
+
 		ConnectivityToadlet connectivityToadlet = new ConnectivityToadlet(client, node);
 		server.register(connectivityToadlet, "FProxyToadlet.categoryStatus", "/connectivity/", true,
 		        "ConnectivityToadlet.connectivityTitle", "ConnectivityToadlet.connectivity", true, null);
@@ -0,0 +1,40 @@
+package network.crypta.clients.http;
+
+import java.io.IOException;
+import java.net.URI;
+
+import network.crypta.client.HighLevelSimpleClient;
+import network.crypta.support.MetricsRegistry;
+import network.crypta.support.api.HTTPRequest;
+
+/**
+ * Node statistics in the Prometheus text format, for monitoring systems to scrape. Accessible
+ * from <code>http://.../metrics</code> by clients with full access.
+ */
+public class MetricsToadlet extends Toadlet {
+
+	public static final String PATH = "/metrics";
+
+	private final MetricsRegistry metrics;
+
+	MetricsToadlet(HighLevelSimpleClient client, MetricsRegistry metrics) {
+		super(client);
+		this.metrics = metrics;
+	}
+
+	public void handleMethodGET(URI uri, HTTPRequest request, ToadletContext ctx) throws ToadletContextClosedException, IOException {
+		if(!ctx.checkFullAccess(this))
+			return;
+		// Hold the lock until the buffer has been written, so a concurrent scrape can't reuse it.
+		synchronized(metrics) {
+			int length = metrics.scrape();
+			writeReply(ctx, 200, MetricsRegistry.CONTENT_TYPE, "OK", metrics.getBuffer(), 0, length);
+		}
+	}
+
+	@Override
+	public String path() {
+		return PATH;
+	}
+
+}
@@ -13,6 +13,7 @@ import java.text.NumberFormat;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
@@ -20,12 +21,15 @@ import network.crypta.client.HighLevelSimpleClient;
 import network.crypta.client.async.ClientRequester;
 import network.crypta.config.SubConfig;
 import network.crypta.crypt.ciphers.Rijndael;
+import network.crypta.io.comm.IncomingPacketDispatcher;
 import network.crypta.io.comm.IncomingPacketFilterImpl;
+import network.crypta.io.comm.Message;
 import network.crypta.io.xfer.BlockReceiver;
 import network.crypta.io.xfer.BlockTransmitter;
 import network.crypta.keys.FreenetURI;
 import network.crypta.l10n.NodeL10n;
 import network.crypta.node.Location;
+import network.crypta.node.NewPacketFormat;
 import network.crypta.node.Node;
 import network.crypta.node.NodeClientCore;
 import network.crypta.node.NodeStarter;
@@ -36,6 +40,7 @@ import network.crypta.node.PeerNodeStatus;
 import network.crypta.node.RequestClient;
 import network.crypta.node.RequestStarterGroup;
 import network.crypta.node.RequestTracker;
+import network.crypta.node.TrafficStats;
 import network.crypta.node.Version;
 import network.crypta.node.stats.DataStoreInstanceType;
 import network.crypta.node.stats.DataStoreStats;
@@ -43,6 +48,7 @@ import network.crypta.node.stats.StatsNotAvailableException;
 import network.crypta.node.stats.StoreAccessStats;
 import network.crypta.support.BandwidthStatsContainer;
 import network.crypta.support.HTMLNode;
+import network.crypta.support.LatencyHistogram;
 import network.crypta.support.SizeUtil;
 import network.crypta.support.TimeUtil;
 import network.crypta.support.api.HTTPRequest;
@@ -448,6 +454,12 @@ public class StatisticsToadlet extends Toadlet {
 			// rejection reasons box
 			drawRejectReasonsBox(nextTableCell, false);
 			drawRejectReasonsBox(nextTableCell, true);
+
+			TrafficStats traffic = stats.getTrafficStats();
+			if(traffic.isEnabled()) {
+				drawTrafficBox(nextTableCell.addChild("div", "class", "infobox"), l10n("trafficByType"), l10n("messageType"), traffic.getCountersByType());
+				drawTrafficBox(nextTableCell.addChild("div", "class", "infobox"), l10n("trafficByPeer"), l10n("peer"), traffic.getCountersByPeer(peers));
+			}
 			
 			OpennetManager om = node.getOpennet();
 			if(om != null) {
@@ -621,6 +633,36 @@ public class StatisticsToadlet extends Toadlet {
 		}
 	}
 	
+	private void drawTrafficBox(HTMLNode box, String title, String nameColumn, List<Map.Entry<String, TrafficStats.Counters>> counters) {
+		box.addChild("div", "class", "infobox-header", title);
+		HTMLNode table = box.addChild("div", "class", "infobox-content").addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", nameColumn);
+		row.addChild("th", l10n("messages"));
+		row.addChild("th", l10n("bytes"));
+		row.addChild("th", l10n("queueTime"));
+		long total = 0;
+		for(Map.Entry<String, TrafficStats.Counters> entry : counters)
+			total += entry.getValue().getBytes();
+		for(Map.Entry<String, TrafficStats.Counters> entry : counters) {
+			TrafficStats.Counters c = entry.getValue();
+			LatencyHistogram queueTime = c.getQueueTime();
+			row = table.addChild("tr");
+			row.addChild("td", entry.getKey());
+			row.addChild("td", Long.toString(c.getMessages()));
+			row.addChild("td", SizeUtil.formatSize(c.getBytes()) + "\u00a0(" + fix3p1pct.format(total == 0 ? 0.0 : ((double) c.getBytes()) / total) + ')');
+			row.addChild("td", formatQueueTime(queueTime.percentile(0.5)) + "\u00a0/\u00a0" + formatQueueTime(queueTime.percentile(0.99)));
+		}
+	}
+
+	/** @param micros The limit of a LatencyHistogram bucket. */
+	private static String formatQueueTime(long micros) {
+		if(micros < 0) return "-";
+		if(micros < 1000) return "<1ms";
+		if(micros == Long.MAX_VALUE) return ">" + TimeUtil.formatTime(LatencyHistogram.bucketLimit(LatencyHistogram.BUCKETS - 2) / 1000);
+		return "<=" + TimeUtil.formatTime(micros / 1000, 2, true);
+	}
+
 	private void drawThreadPriorityStatsBox(HTMLNode node) {
 		
 		node.addChild("div", "class", "infobox-header", l10n("threadsByPriority"));
@@ -1276,7 +1318,29 @@ public class StatisticsToadlet extends Toadlet {
 		if(decoded != null) {
 			overviewList.addChild("li", "packetsDecoded:\u00a0"+fix3p1pct.format(((double)decoded[0])/((double)decoded[1]))+"\u00a0("+decoded[1]+")");
 		}
+		long[] trials = IncomingPacketFilterImpl.getTrialDecrypts();
+		if(trials[0] > 0) {
+			overviewList.addChild("li", "trialDecryptsPerPacket:\u00a0"+fix1p2.format(((double)trials[1])/((double)trials[0]))+
+					"\u00a0data,\u00a0"+fix1p2.format(((double)trials[2])/((double)trials[0]))+"\u00a0auth");
+		}
+		long[] encoded = Message.getEncodeStats();
+		if(encoded[0] > 0) {
+			double copies = ((double)(encoded[1] + NewPacketFormat.getFragmentBytesSent()))/((double)encoded[0]);
+			overviewList.addChild("li", "sendCopiesPerByte:\u00a0"+fix1p2.format(copies)+
+					"\u00a0("+fix1p2.format(((double)encoded[2])/((double)encoded[0]))+"\u00a0bytes\u00a0allocated)");
+		}
 		
+		drawPacketDispatcherStats(overviewList, "darknet", node.getDarknetCrypto().getSocket().getDispatcher());
+		OpennetManager om = node.getOpennet();
+		if(om != null)
+			drawPacketDispatcherStats(overviewList, "opennet", om.getCrypto().getSocket().getDispatcher());
+		
+	}
+
+	private void drawPacketDispatcherStats(HTMLNode overviewList, String name, IncomingPacketDispatcher dispatcher) {
+		if(dispatcher == null) return;
+		overviewList.addChild("li", name+"DecodeQueue:\u00a0"+dispatcher.getQueueDepth()+"\u00a0(max\u00a0"+dispatcher.getMaxQueueDepth()+",\u00a0"+dispatcher.getThreadCount()+"\u00a0threads)");
+		overviewList.addChild("li", name+"DecodedPackets:\u00a0"+dispatcher.getPacketsProcessed()+"\u00a0/\u00a0"+dispatcher.getPacketsQueued()+"\u00a0queued,\u00a0"+dispatcher.getPacketsDropped()+"\u00a0dropped,\u00a0"+fix1p2.format(dispatcher.getAverageBatchSize())+"\u00a0per\u00a0batch");
 	}
 
 	private void drawBandwidthBox(HTMLNode bandwidthInfobox, long nodeUptimeSeconds, boolean isAdvancedModeEnabled) {
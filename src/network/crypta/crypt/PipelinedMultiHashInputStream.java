@@ -0,0 +1,210 @@
+package network.crypta.crypt;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import network.crypta.support.Executor;
+import network.crypta.support.Logger;
+
+/** Same results as MultiHashInputStream, but each hash is computed on its own thread. So hashing
+ * doesn't hold up whoever is reading the stream (e.g. a compressor), and computing several hashes
+ * takes as long as the slowest one rather than all of them added up. At most MAX_QUEUED chunks
+ * are buffered for each hash. Must be closed, or getResults() called, or the threads will wait
+ * forever. */
+public class PipelinedMultiHashInputStream extends FilterInputStream {
+
+	static final int CHUNK_SIZE = 32768;
+	static final int MAX_QUEUED = 32;
+	/** Tells the workers there is no more data. */
+	private static final byte[] END = new byte[0];
+
+	private Worker[] workers;
+	private byte[] pending = new byte[CHUNK_SIZE];
+	private int pendingLength;
+	private long readBytes;
+
+	private static class Worker implements Runnable {
+		final HashType hashType;
+		private MessageDigest digest;
+		final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(MAX_QUEUED);
+		private boolean finished;
+		private HashResult result;
+
+		Worker(HashType hashType) throws NoSuchAlgorithmException {
+			this.hashType = hashType;
+			digest = hashType.get();
+		}
+
+		@Override
+		public void run() {
+			HashResult r = null;
+			try {
+				while(true) {
+					byte[] buf = queue.take();
+					if(buf == END) break;
+					digest.update(buf);
+				}
+				r = new HashResult(hashType, digest.digest());
+			} catch (InterruptedException e) {
+				Logger.error(this, "Interrupted computing "+hashType);
+			} finally {
+				synchronized(this) {
+					digest = null;
+					finished = true;
+					result = r;
+					notifyAll();
+				}
+			}
+		}
+
+		synchronized boolean isFinished() {
+			return finished;
+		}
+
+		synchronized HashResult waitForResult() throws IOException {
+			while(!finished) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			if(result == null) throw new IOException("Failed to compute "+hashType);
+			return result;
+		}
+	}
+
+	private PipelinedMultiHashInputStream(InputStream proxy, Worker[] workers) {
+		super(proxy);
+		this.workers = workers;
+	}
+
+	/** Create the stream and start a thread on the executor for each hash in generateHashes. */
+	public static PipelinedMultiHashInputStream start(InputStream proxy, long generateHashes, Executor executor) {
+		ArrayList<Worker> workers = new ArrayList<Worker>();
+		for(HashType type : HashType.values()) {
+			if((generateHashes & type.bitmask) == type.bitmask) {
+				try {
+					workers.add(new Worker(type));
+				} catch (NoSuchAlgorithmException e) {
+					Logger.error(PipelinedMultiHashInputStream.class, "Algorithm not available: "+type);
+				}
+			}
+		}
+		PipelinedMultiHashInputStream is =
+			new PipelinedMultiHashInputStream(proxy, workers.toArray(new Worker[workers.size()]));
+		for(Worker w : is.workers)
+			executor.execute(w, "Computing "+w.hashType+" hash");
+		return is;
+	}
+
+	@Override
+	public int read(byte[] buf, int off, int len) throws IOException {
+		int ret = in.read(buf, off, len);
+		if(ret <= 0) return ret;
+		if(workers == null) throw new IOException("Already finished hashing");
+		readBytes += ret;
+		for(int done=0;done<ret;) {
+			int copy = Math.min(ret - done, CHUNK_SIZE - pendingLength);
+			System.arraycopy(buf, off + done, pending, pendingLength, copy);
+			pendingLength += copy;
+			done += copy;
+			if(pendingLength == CHUNK_SIZE) flush();
+		}
+		return ret;
+	}
+
+	@Override
+	public int read(byte[] buf) throws IOException {
+		return read(buf, 0, buf.length);
+	}
+
+	/** Slow, you should buffer the stream to avoid this! */
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int ret = read(b, 0, 1);
+		if(ret <= 0) return -1;
+		return b[0] & 0xFF;
+	}
+
+	@Override
+	public long skip(long length) throws IOException {
+		byte[] buf = new byte[(int)Math.min(CHUNK_SIZE, length)];
+		long skipped = 0;
+		while(length > 0) {
+			int x = read(buf, 0, (int)Math.min(buf.length, length));
+			if(x == -1) return skipped;
+			skipped += x;
+			length -= x;
+		}
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/** Hand the buffered data to every hash. The chunk is shared, so we need a new one. */
+	private void flush() throws IOException {
+		if(pendingLength == 0) return;
+		byte[] chunk = pendingLength == CHUNK_SIZE ? pending : Arrays.copyOf(pending, pendingLength);
+		for(Worker w : workers)
+			put(w, chunk);
+		pending = new byte[CHUNK_SIZE];
+		pendingLength = 0;
+	}
+
+	private static void put(Worker w, byte[] chunk) throws IOException {
+		try {
+			while(!w.queue.offer(chunk, 1, TimeUnit.SECONDS)) {
+				if(w.isFinished()) throw new IOException("Failed to compute "+w.hashType);
+			}
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	/** Wait for all the hashes of the data read so far. Can only be called once. */
+	public HashResult[] getResults() throws IOException {
+		if(workers == null) throw new IllegalStateException("Already got results");
+		Worker[] w = workers;
+		flush();
+		end();
+		HashResult[] results = new HashResult[w.length];
+		for(int i=0;i<w.length;i++)
+			results[i] = w[i].waitForResult();
+		return results;
+	}
+
+	private void end() throws IOException {
+		Worker[] w = workers;
+		workers = null;
+		pending = null;
+		for(Worker worker : w)
+			put(worker, END);
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if(workers != null) end();
+		} finally {
+			super.close();
+		}
+	}
+
+	public long getReadBytes() {
+		return readBytes;
+	}
+}
@@ -0,0 +1,28 @@
+package network.crypta.io.comm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Where UdpSocketHandler actually sends and receives datagrams: a real UDP socket, or a
+ * SimulatedNetwork.
+ */
+interface DatagramTransport {
+
+	/** Wait until there may be packets to receive, or until wakeup() or close() is called. */
+	void await() throws IOException;
+
+	/** Read one packet into the buffer, without blocking.
+	 * @return The sender, or null if no packet is waiting. */
+	InetSocketAddress receive(ByteBuffer buffer) throws IOException;
+
+	/** @return False if the packet could not be sent because the socket's send buffer stayed full,
+	 * in which case it has been dropped. */
+	boolean send(ByteBuffer packet, InetSocketAddress destination) throws IOException;
+
+	void wakeup();
+
+	void close() throws IOException;
+
+}
@@ -33,6 +33,14 @@ public class IOStatisticCollector {
         return new long[]{totalBytesOut, totalBytesIn};
     }
 
+    public synchronized long getTotalBytesOut() {
+        return totalBytesOut;
+    }
+
+    public synchronized long getTotalBytesIn() {
+        return totalBytesIn;
+    }
+
     private static boolean isLocal(InetAddress address) {
         return address.isLinkLocalAddress() || address.isLoopbackAddress() || IPUtil.isSiteLocalAddress(address);
     }
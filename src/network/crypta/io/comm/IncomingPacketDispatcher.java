@@ -0,0 +1,234 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package network.crypta.io.comm;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import network.crypta.node.PrioRunnable;
+import network.crypta.support.Executor;
+import network.crypta.support.LogThresholdCallback;
+import network.crypta.support.Logger;
+import network.crypta.support.Logger.LogLevel;
+import network.crypta.support.io.NativeThread;
+
+/**
+ * Decodes incoming packets on a small pool of worker threads, so that the socket's receive thread
+ * only has to drain the socket. Packets are assigned to a worker by sender (see
+ * {@link IncomingPacketFilter#getSender}), so packets from any one peer, whichever address they
+ * come from, are handed to the {@link IncomingPacketFilter} on one thread in the order they
+ * arrived. Packets from unknown addresses need trial decryption against many peers, so if there is
+ * more than one worker they get a worker of their own rather than holding up a known peer's. Each
+ * worker has a bounded queue; if it is full, the packet is dropped, just as the kernel would have
+ * dropped it if we had not read the socket in time.
+ *
+ * Packet buffers are recycled once the filter has returned, which is safe because the filter is
+ * required to copy anything it wants to keep (see {@link IncomingPacketFilter#process}).
+ */
+public class IncomingPacketDispatcher {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, IncomingPacketDispatcher.class);
+			}
+		});
+	}
+
+	/** Maximum number of packets queued for each worker before we start dropping. */
+	static final int QUEUE_SIZE_PER_WORKER = 512;
+
+	private final IncomingPacketFilter filter;
+	private final Worker[] workers;
+	private final ArrayBlockingQueue<ByteBuffer> freeBuffers;
+	private final int bufferSize;
+	private final String name;
+	private volatile boolean running;
+
+	private final AtomicLong packetsQueued = new AtomicLong();
+	private final AtomicLong packetsDropped = new AtomicLong();
+	private final AtomicLong packetsProcessed = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong maxQueueDepth = new AtomicLong();
+
+	/**
+	 * @param filter The filter which will decode the packets.
+	 * @param threads The number of worker threads. Must be at least 1.
+	 * @param bufferSize The maximum size of a received packet.
+	 * @param name Used for thread names.
+	 */
+	public IncomingPacketDispatcher(IncomingPacketFilter filter, int threads, int bufferSize, String name) {
+		if(threads < 1) throw new IllegalArgumentException("Need at least one thread");
+		this.filter = filter;
+		this.bufferSize = bufferSize;
+		this.name = name;
+		workers = new Worker[threads];
+		for(int i=0;i<threads;i++)
+			workers[i] = new Worker(i);
+		freeBuffers = new ArrayBlockingQueue<ByteBuffer>(threads * QUEUE_SIZE_PER_WORKER);
+	}
+
+	public void start(Executor executor) {
+		running = true;
+		for(Worker w : workers)
+			executor.execute(w, "Packet decoder "+w.index+" for "+name);
+	}
+
+	/** Stop the workers. Packets still queued are discarded. */
+	public void stop() {
+		running = false;
+		for(Worker w : workers)
+			w.queue.clear();
+	}
+
+	/** Get an empty buffer to receive a packet into. Must be passed to {@link #dispatch} or
+	 * {@link #release} afterwards. */
+	public ByteBuffer acquireBuffer() {
+		ByteBuffer buf = freeBuffers.poll();
+		if(buf == null) return ByteBuffer.allocate(bufferSize);
+		buf.clear();
+		return buf;
+	}
+
+	/** Return a buffer which turned out not to be needed. */
+	public void release(ByteBuffer buf) {
+		freeBuffers.offer(buf);
+	}
+
+	/**
+	 * Queue a received packet for decoding. The buffer must be flipped, i.e. the packet is between
+	 * 0 and its limit. Ownership of the buffer passes to the dispatcher.
+	 * @return False if the packet was dropped because the worker's queue is full.
+	 */
+	public boolean dispatch(ByteBuffer buf, Peer peer, long now) {
+		Object sender = filter.getSender(peer);
+		Worker w = workerFor(sender);
+		if(!w.queue.offer(new ReceivedPacket(buf, peer, sender, now))) {
+			packetsDropped.incrementAndGet();
+			release(buf);
+			if(logMINOR) Logger.minor(this, "Dropped packet from "+peer+": decode queue full");
+			return false;
+		}
+		packetsQueued.incrementAndGet();
+		int depth = w.queue.size();
+		long max;
+		while(depth > (max = maxQueueDepth.get())) {
+			if(maxQueueDepth.compareAndSet(max, depth)) break;
+		}
+		return true;
+	}
+
+	/** The first worker is kept for unknown senders if there is more than one. */
+	private Worker workerFor(Object sender) {
+		if(sender == null || workers.length == 1) return workers[0];
+		return workers[1 + (sender.hashCode() & Integer.MAX_VALUE) % (workers.length - 1)];
+	}
+
+	/** Called by the receive thread after draining a batch of packets from the socket. */
+	public void onBatchReceived() {
+		batches.incrementAndGet();
+	}
+
+	/** @return The number of packets currently waiting to be decoded. */
+	public int getQueueDepth() {
+		int total = 0;
+		for(Worker w : workers)
+			total += w.queue.size();
+		return total;
+	}
+
+	/** @return The largest number of packets queued on a single worker since startup. */
+	public long getMaxQueueDepth() {
+		return maxQueueDepth.get();
+	}
+
+	public long getPacketsQueued() {
+		return packetsQueued.get();
+	}
+
+	public long getPacketsDropped() {
+		return packetsDropped.get();
+	}
+
+	public long getPacketsProcessed() {
+		return packetsProcessed.get();
+	}
+
+	/** @return The average number of packets drained from the socket per wakeup. */
+	public double getAverageBatchSize() {
+		long b = batches.get();
+		if(b == 0) return 0.0;
+		return ((double)(packetsQueued.get() + packetsDropped.get())) / b;
+	}
+
+	public int getThreadCount() {
+		return workers.length;
+	}
+
+	private static class ReceivedPacket {
+		final ByteBuffer buf;
+		final Peer peer;
+		final Object sender;
+		final long now;
+
+		ReceivedPacket(ByteBuffer buf, Peer peer, Object sender, long now) {
+			this.buf = buf;
+			this.peer = peer;
+			this.sender = sender;
+			this.now = now;
+		}
+	}
+
+	private class Worker implements PrioRunnable {
+
+		final int index;
+		final ArrayBlockingQueue<ReceivedPacket> queue =
+			new ArrayBlockingQueue<ReceivedPacket>(QUEUE_SIZE_PER_WORKER);
+
+		Worker(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public void run() {
+			while(running) {
+				ReceivedPacket packet;
+				try {
+					packet = queue.poll(1, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if(packet == null) continue;
+				try {
+					long startTime = System.currentTimeMillis();
+					filter.process(packet.buf.array(), 0, packet.buf.limit(), packet.peer, packet.sender, packet.now);
+					long endTime = System.currentTimeMillis();
+					if(endTime - startTime > 50) {
+						if(endTime-startTime > 3000) {
+							Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
+						} else {
+							if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
+						}
+					}
+				} catch (Throwable t) {
+					Logger.error(this, "Caught " + t + " from " + filter, t);
+				} finally {
+					packetsProcessed.incrementAndGet();
+					release(packet.buf);
+				}
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.PriorityLevel.MAX_PRIORITY.value;
+		}
+
+	}
+
+}
@@ -34,6 +34,24 @@ public interface IncomingPacketFilter {
      */
 	DECODED process(byte[] buf, int offset, int length, Peer peer, long now);
 
+	/**
+	 * Find who sent packets from the given address, if we know. {@link IncomingPacketDispatcher}
+	 * decodes all the packets from one sender on the same thread, in the order they arrived, and
+	 * passes the result back to {@link #process(byte[], int, int, Peer, Object, long)}.
+	 * @return The sender, e.g. a PeerNode, or null if the address is unknown.
+	 */
+	default Object getSender(Peer peer) {
+		return peer;
+	}
+
+	/**
+	 * Process an incoming packet whose sender has already been looked up.
+	 * @param sender As returned by {@link #getSender(Peer)} for the packet's address.
+	 */
+	default DECODED process(byte[] buf, int offset, int length, Peer peer, Object sender, long now) {
+		return process(buf, offset, length, peer, now);
+	}
+
     // Outgoing packets are handled elsewhere...
     
     /**
@@ -46,6 +46,8 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 	
 	private static final AtomicLong successfullyDecodedPackets = new AtomicLong();
 	private static final AtomicLong failedDecodePackets = new AtomicLong();
+	private static final AtomicLong packetsProcessed = new AtomicLong();
+	private static final AtomicLong dataTrialDecrypts = new AtomicLong();
 	
 	public static long[] getDecodedPackets() {
 		if(!logMINOR) return null;
@@ -54,31 +56,53 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		return new long[] { decoded, decoded+failed };
 	}
 
+	/**
+	 * @return The number of packets processed, the number of attempts to decrypt them with a
+	 * session key, and the number of attempts to decrypt them with a setup key.
+	 */
+	public static long[] getTrialDecrypts() {
+		return new long[] { packetsProcessed.get(), dataTrialDecrypts.get(),
+			FNPPacketMangler.getAuthTrialDecrypts() };
+	}
+
 	@Override
 	public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+		return process(buf, offset, length, peer, getSender(peer), now);
+	}
+
+	@Override
+	public PeerNode getSender(Peer peer) {
+		return node.getPeers().getByPeer(peer, mangler);
+	}
+
+	@Override
+	public DECODED process(byte[] buf, int offset, int length, Peer peer, Object sender, long now) {
 		if(logMINOR) Logger.minor(this, "Packet length "+length+" from "+peer);
 		node.getRandom().acceptTimerEntropy(fnpTimingSource, 0.25);
-		PeerNode opn = node.getPeers().getByPeer(peer, mangler);
+		packetsProcessed.incrementAndGet();
+		PeerNode opn = (PeerNode) sender;
 
 		if(opn != null) {
-			if(opn.handleReceivedPacket(buf, offset, length, now, peer)) {
-				if(logMINOR) successfullyDecodedPackets.incrementAndGet();
-				return DECODED.DECODED;
-			}
+			if(tryDecode(opn, buf, offset, length, peer, now)) return DECODED.DECODED;
 		} else {
 			Logger.normal(this, "Got packet from unknown address");
 		}
+		// A peer whose address has changed? Only the sessions expecting this sequence number can
+		// decode it, so try those before the (much more expensive) auth packet handling.
+		for(PeerNode pn : crypto.getPeersExpectingPacket(buf, offset, length)) {
+			if(pn == opn) continue;
+			if(tryDecode(pn, buf, offset, length, peer, now)) return DECODED.DECODED;
+		}
 		DECODED decoded = mangler.process(buf, offset, length, peer, opn, now);
 		if(decoded == DECODED.DECODED) {
 			if(logMINOR) successfullyDecodedPackets.incrementAndGet();
 		} else if(decoded == DECODED.NOT_DECODED) {
 			
+			// Sessions which haven't received anything yet aren't in the index.
 			for(PeerNode pn : crypto.getPeerNodes()) {
 				if(pn == opn) continue;
-				if(pn.handleReceivedPacket(buf, offset, length, now, peer)) {
-					if(logMINOR) successfullyDecodedPackets.incrementAndGet();
-					return DECODED.DECODED;
-				}
+				if(!pn.hasUnindexedSessionKey()) continue;
+				if(tryDecode(pn, buf, offset, length, peer, now)) return DECODED.DECODED;
 			}
 			
 			if(logMINOR) failedDecodePackets.incrementAndGet();
@@ -86,4 +110,13 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		return decoded;
 	}
 
+	private boolean tryDecode(PeerNode pn, byte[] buf, int offset, int length, Peer peer, long now) {
+		dataTrialDecrypts.incrementAndGet();
+		if(pn.handleReceivedPacket(buf, offset, length, now, peer)) {
+			if(logMINOR) successfullyDecodedPackets.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
 }
@@ -28,6 +28,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import network.crypta.support.ByteBufferInputStream;
 import network.crypta.support.Fields;
@@ -273,7 +274,7 @@ public class Message {
 	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
 
 		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		MessageOutputStream baos = new MessageOutputStream(expectedLength(includeSubMessages));
 		DataOutputStream dos = new DataOutputStream(baos);
 		try {
 			dos.writeInt(_spec.getName().hashCode());
@@ -299,11 +300,86 @@ public class Message {
 			}
 		}
 
-		byte[] buf = baos.toByteArray();
+		byte[] buf = baos.getBytes();
+		if (!isSubMessage) encodedBytes.addAndGet(buf.length);
+		encodeBytesCopied.addAndGet(baos.copied);
+		encodeBytesAllocated.addAndGet(baos.allocated);
 		if (logDEBUG) Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
 		return buf;
 	}
 
+	/** @return The length of the encoded message, exact unless some fields are of types whose
+	 * length is not known in advance. */
+	private int expectedLength(boolean includeSubMessages) {
+		int length = 4;
+		for (String name : _spec.getOrderedFields()) {
+			int fieldLength = Serializer.encodedLength(_payload.get(name));
+			length += fieldLength < 0 ? 32 : fieldLength;
+		}
+		if (_subMessages != null && includeSubMessages) {
+			for (Message _subMessage : _subMessages) {
+				length += 2 + _subMessage.expectedLength(false);
+			}
+		}
+		return length;
+	}
+
+	/** Bytes of encoded messages, including their sub-messages. */
+	private static final AtomicLong encodedBytes = new AtomicLong();
+	/** Bytes copied while encoding them: each byte written, plus any copying when the buffer grows
+	 * or has to be trimmed. Sub-messages are encoded separately and then copied in. */
+	private static final AtomicLong encodeBytesCopied = new AtomicLong();
+	/** Bytes of arrays allocated while encoding them. */
+	private static final AtomicLong encodeBytesAllocated = new AtomicLong();
+
+	/** @return The number of bytes of messages encoded for sending, the number of bytes copied
+	 * while encoding them, and the number of bytes allocated while encoding them. */
+	public static long[] getEncodeStats() {
+		return new long[] { encodedBytes.get(), encodeBytesCopied.get(), encodeBytesAllocated.get() };
+	}
+
+	/** Starts at the expected length of the message, so that usually the array it fills can be
+	 * returned as is rather than copied, and counts what is copied and allocated. Not thread-safe. */
+	private static class MessageOutputStream extends ByteArrayOutputStream {
+
+		long copied;
+		long allocated;
+
+		MessageOutputStream(int length) {
+			super(length);
+			allocated = length;
+		}
+
+		@Override
+		public void write(int b) {
+			byte[] old = buf;
+			super.write(b);
+			if (buf != old) grew(1);
+			copied++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			byte[] old = buf;
+			super.write(b, off, len);
+			if (buf != old) grew(len);
+			copied += len;
+		}
+
+		private void grew(int written) {
+			copied += count - written;
+			allocated += buf.length;
+		}
+
+		byte[] getBytes() {
+			if (count == buf.length) return buf;
+			copied += count;
+			allocated += count;
+			return toByteArray();
+		}
+
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder ret = new StringBuilder(1000);
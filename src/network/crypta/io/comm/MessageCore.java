@@ -24,9 +24,14 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import network.crypta.io.comm.MessageFilter.MATCHED;
 import network.crypta.node.PeerNode;
@@ -55,23 +60,112 @@ public class MessageCore {
 
 	private Dispatcher _dispatcher;
 	private final Executor _executor;
-	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
-	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
+	/** The filters and unclaimed messages are split by UID, so that messages for different
+	 * requests don't contend for one lock. A filter is in the stripe for its UID if every part of
+	 * it requires the same UID, otherwise it is in _global. A message is in the stripe for its UID,
+	 * or for its type if it has none. */
+	private static final int STRIPES = 16;
+	private final Stripe[] _stripes = new Stripe[STRIPES];
+	/** The filters which don't have a single UID. Protected by all the stripe locks: hold any
+	 * one of them to read it, and all of them, taken in order, to change it. */
+	private final MessageFilterIndex _global;
+	private final AtomicLong _unclaimedSequence = new AtomicLong();
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
+	private static final int MAX_UNMATCHED_STRIPE_SIZE = MAX_UNMATCHED_FIFO_SIZE / STRIPES;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = MINUTES.toMillis(10);  // maybe this should be per message type??
-	// FIXME do we need MIN_FILTER_REMOVE_TIME? Can we make this more efficient?
-	// FIXME may not work well for newly added filters with timeouts close to the minimum, or filters with timeouts close to the minimum in general.
+	/** Filters which time out are removed when they are due, but we check at least this often,
+	 * because a filter's callback may ask for it to time out early. */
 	private static final long MAX_FILTER_REMOVE_TIME = SECONDS.toMillis(10);
+	/** The minimum interval between checking the callbacks of all filters which have them. */
 	private static final long MIN_FILTER_REMOVE_TIME = SECONDS.toMillis(1);
+	/** Protects the timeout job's schedule. Taken last. */
+	private final Object _timeoutLock = new Object();
+	private Ticker _ticker;
+	/** When the timeout job will next run. Protected by _timeoutLock. */
+	private long _nextTimeoutCheck = Long.MAX_VALUE;
+	/** Protected by _timeoutLock. */
+	private long _lastCallbackCheck;
+	private final Runnable _timeoutChecker = new Runnable() {
+
+		@Override
+		public void run() {
+			long nextRun = System.currentTimeMillis() + MAX_FILTER_REMOVE_TIME;
+			try {
+				nextRun = removeTimedOutFilters();
+			} catch (Throwable t) {
+				Logger.error(this, "Failed to remove timed out filters: "+t, t);
+			} finally {
+				_ticker.queueTimedJobAbsolute(this, "Remove timed out message filters", nextRun, false, true);
+			}
+		}
+
+	};
 	private long startedTime;
 	
 	public synchronized long getStartedTime() {
 		return startedTime;
 	}
 
+	/** A share of the filters and unclaimed messages, see _stripes. */
+	private static final class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		final MessageFilterIndex filters;
+		/** Unclaimed messages in the order they arrived, with their sequence numbers. */
+		final LinkedHashMap<Message, Long> unclaimed = new LinkedHashMap<Message, Long>();
+		/** Unclaimed messages by type, so a filter only has to look at the types it can match. */
+		final Map<MessageType, LinkedHashSet<Message>> unclaimedByType = new HashMap<MessageType, LinkedHashSet<Message>>();
+
+		Stripe(AtomicLong sequence) {
+			filters = new MessageFilterIndex(sequence);
+		}
+	}
+
 	public MessageCore(Executor executor) {
 		_executor = executor;
+		AtomicLong sequence = new AtomicLong();
+		for(int i = 0; i < STRIPES; i++)
+			_stripes[i] = new Stripe(sequence);
+		_global = new MessageFilterIndex(sequence);
+	}
+
+	private Stripe stripeFor(Object key) {
+		return _stripes[(key.hashCode() & Integer.MAX_VALUE) % STRIPES];
+	}
+
+	private Stripe stripeFor(Message m) {
+		return stripeFor(m.isSet(DMT.UID) ? m.getFromPayload(DMT.UID) : m.getSpec());
+	}
+
+	private void lockAll() {
+		for(Stripe s : _stripes)
+			s.lock.lock();
+	}
+
+	private void unlockAll() {
+		for(int i = STRIPES - 1; i >= 0; i--)
+			_stripes[i].lock.unlock();
+	}
+
+	/** Lock what the filter is indexed under.
+	 * @return The filter's stripe, or null if it is global and all the stripes are locked. */
+	private Stripe lockFor(MessageFilter filter) {
+		Object uid = MessageFilterIndex.getUID(filter);
+		if(uid == null) {
+			lockAll();
+			return null;
+		}
+		Stripe s = stripeFor(uid);
+		s.lock.lock();
+		return s;
+	}
+
+	private void unlock(Stripe s) {
+		if(s == null) unlockAll();
+		else s.lock.unlock();
+	}
+
+	private MessageFilterIndex indexFor(Stripe s) {
+		return s == null ? _global : s.filters;
 	}
 
 	/**
@@ -92,77 +186,112 @@ public class MessageCore {
     }
 
     public void start(final Ticker ticker) {
+    	long now;
     	synchronized(this) {
-    		startedTime = System.currentTimeMillis();
+    		startedTime = now = System.currentTimeMillis();
     	}
-    	ticker.queueTimedJob(new Runnable() {
+    	synchronized(_timeoutLock) {
+    		_ticker = ticker;
+    		_nextTimeoutCheck = now + MIN_FILTER_REMOVE_TIME;
+    	}
+    	ticker.queueTimedJobAbsolute(_timeoutChecker, "Remove timed out message filters", now + MIN_FILTER_REMOVE_TIME, false, true);
+    }
 
-			@Override
-			public void run() {
-				long now = System.currentTimeMillis();
-				long nextRun = now + MAX_FILTER_REMOVE_TIME;
-				try {
-					nextRun = removeTimedOutFilters(nextRun);
-				} catch (Throwable t) {
-					Logger.error(this, "Failed to remove timed out filters: "+t, t);
-				} finally {
-					ticker.queueTimedJob(this, Math.max(MIN_FILTER_REMOVE_TIME, nextRun - System.currentTimeMillis()));
-				}
-			}
-    		
-    	}, MIN_FILTER_REMOVE_TIME);
+    /**
+     * Make sure the timeout job runs in time for a filter which has just been added.
+     * @param timeout The filter's timeout.
+     * @return True if the caller must call {@link #rescheduleTimeoutCheck(long)}, after
+     * releasing the lock. */
+    private boolean needTimeoutCheckBy(long timeout) {
+		synchronized(_timeoutLock) {
+			if(_ticker == null || timeout >= _nextTimeoutCheck) return false;
+			_nextTimeoutCheck = timeout;
+			return true;
+		}
     }
-    
+
+    /** Called by a waiting filter when its timeout is changed. */
+    void onTimeoutChanged(MessageFilter filter) {
+		boolean reschedule = false;
+		long timeout;
+		Stripe s = lockFor(filter);
+		try {
+			if(!indexFor(s).updateTimeout(filter)) return;
+			timeout = filter.getTimeout();
+			reschedule = needTimeoutCheckBy(timeout);
+		} finally {
+			unlock(s);
+		}
+		if(reschedule) rescheduleTimeoutCheck(timeout);
+		// waitFor() may be waiting for the old timeout.
+		synchronized(filter) {
+			filter.notifyAll();
+		}
+    }
+
+    private void rescheduleTimeoutCheck(long time) {
+    	// If the job is already queued for a later time, it will be moved.
+    	_ticker.queueTimedJobAbsolute(_timeoutChecker, "Remove timed out message filters", time, false, true);
+    }
+
     /**
      * Remove timed out filters.
+     * @return The time at which we should next be called.
      */
-	long removeTimedOutFilters(long nextTimeout) {
+	long removeTimedOutFilters() {
 		long tStart = System.currentTimeMillis() + 1;
 		// Extra millisecond to give waitFor() a chance to remove the filter.
 		// Avoids exhaustive and unsuccessful search in waitFor() removal of a timed out filter.
 		if(logMINOR)
 			Logger.minor(this, "Removing timed out filters");
-		HashSet<MessageFilter> timedOutFilters = null;
-		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.timedOut(tStart)) {
-					if(logMINOR)
-						Logger.minor(this, "Removing "+f);
-					i.remove();
-					if(timedOutFilters == null) 
-						timedOutFilters = new HashSet<MessageFilter>();
-					if(!timedOutFilters.add(f))
-						Logger.error(this, "Filter "+f+" is in filter list twice!");
-					if(logMINOR) {
-						for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
-							Message m = it.next();
-							MATCHED status = f.match(m, true, tStart);
-							if (status == MATCHED.MATCHED) {
-								// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
-								Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
-								break;
-							}
-						}
-					}
-				} else {
-					if(f.hasCallback() && nextTimeout > f.getTimeout())
-						nextTimeout = f.getTimeout();
-				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
-				// See also the end of waitFor() for another weird case.
+		List<MessageFilter> timedOutFilters = new ArrayList<MessageFilter>();
+		boolean checkCallbacks;
+		synchronized(_timeoutLock) {
+			checkCallbacks = tStart - _lastCallbackCheck >= MIN_FILTER_REMOVE_TIME;
+			if(checkCallbacks) _lastCallbackCheck = tStart;
+			// Filters added while we run will reschedule us.
+			_nextTimeoutCheck = Long.MAX_VALUE;
+		}
+		long next = Long.MAX_VALUE;
+		for(Stripe s : _stripes) {
+			s.lock.lock();
+			try {
+				removeTimedOut(s, tStart, checkCallbacks, timedOutFilters);
+				next = Math.min(next, s.filters.getNextTimeout());
+			} finally {
+				s.lock.unlock();
 			}
 		}
-		
-		if(timedOutFilters != null) {
-			for(MessageFilter f : timedOutFilters) {
-				f.setMessage(null);
-				f.onTimedOut(_executor);
+		boolean globalDue;
+		_stripes[0].lock.lock();
+		try {
+			globalDue = _global.getNextTimeout() < tStart || (checkCallbacks && _global.hasCallbacks());
+			if(!globalDue) next = Math.min(next, _global.getNextTimeout());
+		} finally {
+			_stripes[0].lock.unlock();
+		}
+		if(globalDue) {
+			lockAll();
+			try {
+				removeTimedOut(null, tStart, checkCallbacks, timedOutFilters);
+				next = Math.min(next, _global.getNextTimeout());
+			} finally {
+				unlockAll();
 			}
 		}
+		// Timeouts are exclusive, see MessageFilter.timedOut().
+		if(next != Long.MAX_VALUE) next++;
+		long nextRun;
+		synchronized(_timeoutLock) {
+			nextRun = Math.min(Math.min(next, _nextTimeoutCheck),
+					System.currentTimeMillis() + MAX_FILTER_REMOVE_TIME);
+			_nextTimeoutCheck = nextRun;
+		}
+		
+		for(MessageFilter f : timedOutFilters) {
+			f.setMessage(null);
+			f.onTimedOut(_executor);
+		}
 		
 		long tEnd = System.currentTimeMillis();
 		if(tEnd - tStart > 50) {
@@ -171,7 +300,183 @@ public class MessageCore {
 			else
 				if(logMINOR) Logger.minor(this, "removeTimedOutFilters took "+(tEnd-tStart)+"ms");
 		}
-		return nextTimeout;
+		return nextRun;
+	}
+
+	/** Remove the timed out filters from a stripe, or from _global if s is null. */
+	private void removeTimedOut(Stripe s, long now, boolean checkCallbacks, List<MessageFilter> timedOut) {
+		int start = timedOut.size();
+		indexFor(s).removeTimedOut(now, checkCallbacks, timedOut);
+		if(logMINOR) {
+			Set<MessageFilter> seen = new HashSet<MessageFilter>();
+			for(MessageFilter f : timedOut.subList(start, timedOut.size())) {
+				Logger.minor(this, "Removing "+f);
+				if(!seen.add(f))
+					Logger.error(this, "Filter "+f+" is in filter list twice!");
+				Message m = findUnclaimed(s, f, now);
+				if(m != null) {
+					// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
+					Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
+				}
+			}
+		}
+	}
+
+	/** Add a message to the stripe's unclaimed FIFO, dropping the oldest if it is full. */
+	private void addUnclaimed(Stripe s, Message m) {
+		assert(s.lock.isHeldByCurrentThread());
+		while (s.unclaimed.size() > MAX_UNMATCHED_STRIPE_SIZE) {
+			Message removed = s.unclaimed.keySet().iterator().next();
+			removeUnclaimed(s, removed);
+			long messageLifeTime = System.currentTimeMillis() - removed.localInstantiationTime;
+			if ((removed.getSource()) instanceof PeerNode) {
+				Logger.normal(this, "Dropping unclaimed from "+removed.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
+			} else {
+				Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
+			}
+		}
+		s.unclaimed.put(m, _unclaimedSequence.getAndIncrement());
+		LinkedHashSet<Message> byType = s.unclaimedByType.get(m.getSpec());
+		if(byType == null) {
+			byType = new LinkedHashSet<Message>();
+			s.unclaimedByType.put(m.getSpec(), byType);
+		}
+		byType.add(m);
+	}
+
+	private static void removeUnclaimed(Stripe s, Message m) {
+		s.unclaimed.remove(m);
+		LinkedHashSet<Message> byType = s.unclaimedByType.get(m.getSpec());
+		byType.remove(m);
+		if(byType.isEmpty()) s.unclaimedByType.remove(m.getSpec());
+	}
+
+	/**
+	 * Find the oldest unclaimed message which the filter matches, in the given stripe, or in all
+	 * of them if s is null.
+	 * @return The message, or null.
+	 */
+	private Message findUnclaimed(Stripe s, MessageFilter filter, long now) {
+		if(s != null) return findUnclaimedInStripe(s, filter, now);
+		Message best = null;
+		long bestSequence = Long.MAX_VALUE;
+		for(Stripe st : _stripes) {
+			Message m = findUnclaimedInStripe(st, filter, now);
+			if(m != null && st.unclaimed.get(m) < bestSequence) {
+				best = m;
+				bestSequence = st.unclaimed.get(m);
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Find the oldest unclaimed message in the stripe which the filter matches. Only the
+	 * unclaimed messages of the types the filter accepts are checked, unless part of it accepts
+	 * any type.
+	 * @return The message, or null.
+	 */
+	private static Message findUnclaimedInStripe(Stripe s, MessageFilter filter, long now) {
+		assert(s.lock.isHeldByCurrentThread());
+		Set<MessageType> types = new HashSet<MessageType>();
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			if(f.getType() == null) {
+				types = null;
+				break;
+			}
+			types.add(f.getType());
+		}
+		if(types == null)
+			return findUnclaimed(filter, now, s.unclaimed.keySet());
+		Message best = null;
+		for(MessageType type : types) {
+			LinkedHashSet<Message> byType = s.unclaimedByType.get(type);
+			if(byType == null) continue;
+			Message m = findUnclaimed(filter, now, byType);
+			if(m != null && (best == null || s.unclaimed.get(m) < s.unclaimed.get(best)))
+				best = m;
+		}
+		return best;
+	}
+
+	private static Message findUnclaimed(MessageFilter filter, long now, Iterable<Message> messages) {
+		for(Message m : messages) {
+			// These messages have already arrived, so we can match against them even if we are timed out.
+			if(filter.match(m, true, now) == MATCHED.MATCHED)
+				return m;
+		}
+		return null;
+	}
+
+	/**
+	 * Find and remove the oldest unclaimed message which the filter matches, from the given
+	 * stripe or from all of them if s is null. Also drop any unclaimed messages there which are
+	 * older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME.
+	 * @return The message, or null.
+	 */
+	private Message claimUnclaimed(Stripe s, MessageFilter filter, long now) {
+		Message ret = findUnclaimed(s, filter, now);
+		if(ret != null) {
+			removeUnclaimed(s != null ? s : stripeFor(ret), ret);
+			if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
+		}
+		if(s != null) {
+			dropOldUnclaimed(s, now);
+		} else {
+			for(Stripe st : _stripes)
+				dropOldUnclaimed(st, now);
+		}
+		return ret;
+	}
+
+	private void dropOldUnclaimed(Stripe s, long now) {
+		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
+		for(Iterator<Message> i = s.unclaimed.keySet().iterator(); i.hasNext();) {
+			Message m = i.next();
+			// Close enough to the order they were created in.
+			if(m.localInstantiationTime >= messageDropTime) break;
+			i.remove();
+			LinkedHashSet<Message> byType = s.unclaimedByType.get(m.getSpec());
+			byType.remove(m);
+			if(byType.isEmpty()) s.unclaimedByType.remove(m.getSpec());
+			long messageLifeTime = now - m.localInstantiationTime;
+			if ((m.getSource()) instanceof PeerNode) {
+				Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+			} else {
+				Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+			}
+		}
+	}
+
+	/**
+	 * Find the filter which should get a message, remove it, and give it the message. Only the
+	 * message's stripe is locked, unless a global filter could match it.
+	 * @param addIfUnclaimed If true, add the message to the unclaimed FIFO if no filter wants it.
+	 * @return The filter, or null.
+	 */
+	private MessageFilter match(Message m, long now, List<MessageFilter> timedOut, boolean addIfUnclaimed) {
+		Stripe s = stripeFor(m);
+		s.lock.lock();
+		boolean all = false;
+		try {
+			if(_global.mayMatch(m)) {
+				// Can't take the other locks out of order.
+				s.lock.unlock();
+				lockAll();
+				all = true;
+			}
+			MessageFilter match = s.filters.match(m, now, timedOut, all ? _global : null);
+			if(match != null) {
+				// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
+				match.setMessage(m);
+			} else if(addIfUnclaimed) {
+				addUnclaimed(s, m);
+			}
+			return match;
+		} finally {
+			if(all) unlockAll();
+			else s.lock.unlock();
+		}
 	}
 
 	/**
@@ -193,40 +498,16 @@ public class MessageCore {
 			Logger.minor(this, "" + (System.currentTimeMillis() % 60000) + ' ' + from + " <- "
 					+ m.getSource() + " : " + m);
 		}
-		MessageFilter match = null;
-		ArrayList<MessageFilter> timedOut = null;
-		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.matched()) {
-					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
-					continue;
-				}
-				MATCHED status = f.match(m, false, tStart);
-				if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-					if(timedOut == null)
-						timedOut = new ArrayList<MessageFilter>();
-					timedOut.add(f);
-					i.remove();
-					continue;
-				} else if(status == MATCHED.MATCHED) {
-					matched = true;
-					i.remove();
-					match = f;
-					// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
-					f.setMessage(m);
-					if(logMINOR) Logger.minor(this, "Matched (1): "+f);
-					break; // Only one match permitted per message
-				} else if(logDEBUG) Logger.minor(this, "Did not match "+f);
-			}
-		}
-		if(timedOut != null) {
-			for(MessageFilter f : timedOut) {
-				if(logMINOR) Logger.minor(this, "Timed out "+f);
-				f.setMessage(null);
-				f.onTimedOut(_executor);
-			}
+		ArrayList<MessageFilter> timedOut = new ArrayList<MessageFilter>(0);
+		MessageFilter match = match(m, tStart, timedOut, false);
+		if(match != null) {
+			matched = true;
+			if(logMINOR) Logger.minor(this, "Matched (1): "+match);
+		} else if(logDEBUG) Logger.minor(this, "Did not match "+m);
+		for(MessageFilter f : timedOut) {
+			if(logMINOR) Logger.minor(this, "Timed out "+f);
+			f.setMessage(null);
+			f.onTimedOut(_executor);
 		}
 		if(match != null) {
 			match.onMatched(_executor);
@@ -240,7 +521,7 @@ public class MessageCore {
 		        Logger.error(this, "Dispatcher threw "+t, t);
 		    }
 		}
-		if(timedOut != null) timedOut.clear();
+		timedOut.clear();
 		// Keep the last few _unclaimed messages around in case the intended receiver isn't receiving yet
 		if (!matched) {
 			if(logMINOR) Logger.minor(this, "Unclaimed: "+m);
@@ -265,75 +546,36 @@ public class MessageCore {
 		     * Another race is possible if we merely recheck the
 		     * filters after we return from dispatcher, for example.
 		     */
-			synchronized (_filters) {
-				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
-					MATCHED status = f.match(m, false, tStart);
-					if(status == MATCHED.MATCHED) {
-						matched = true;
-						match = f;
-						i.remove();
-						if(logMINOR) Logger.minor(this, "Matched (2): "+f);
-						match.setMessage(m);
-						break; // Only one match permitted per message
-					} else if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-						if(timedOut == null)
-							timedOut = new ArrayList<MessageFilter>();
-						timedOut.add(f);
-						i.remove();
-						continue;
-					}
-				}
-				if(!matched) {
-				    while (_unclaimed.size() > MAX_UNMATCHED_FIFO_SIZE) {
-				        Message removed = _unclaimed.removeFirst();
-				        long messageLifeTime = System.currentTimeMillis() - removed.localInstantiationTime;
-				        if ((removed.getSource()) instanceof PeerNode) {
-				            Logger.normal(this, "Dropping unclaimed from "+removed.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
-				        } else {
-				            Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
-				        }
-				    }
-				    _unclaimed.addLast(m);
-				    if(logMINOR) Logger.minor(this, "Done");
-				}
+			if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
+			match = match(m, tStart, timedOut, true);
+			if(match != null) {
+				matched = true;
+				if(logMINOR) Logger.minor(this, "Matched (2): "+match);
+			} else {
+			    if(logMINOR) Logger.minor(this, "Done");
 			}
 			if(match != null) {
 				match.onMatched(_executor);
 			}
-			if(timedOut != null) {
-				for(MessageFilter f : timedOut) {
-					f.setMessage(null);
-					f.onTimedOut(_executor);
-				}
+			for(MessageFilter f : timedOut) {
+				f.setMessage(null);
+				f.onTimedOut(_executor);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
 		long dT = tEnd - tStart;
 		if(dT > 50) {
 			if(dT > 3000)
-				Logger.error(this, "checkFilters took "+(dT)+"ms with unclaimedFIFOSize of "+_unclaimed.size()+" for matched: "+matched);
+				Logger.error(this, "checkFilters took "+(dT)+"ms with unclaimedFIFOSize of "+getUnclaimedFIFOSize()+" for matched: "+matched);
 			else
-				if(logMINOR) Logger.minor(this, "checkFilters took "+(dT)+"ms with unclaimedFIFOSize of "+_unclaimed.size()+" for matched: "+matched);
+				if(logMINOR) Logger.minor(this, "checkFilters took "+(dT)+"ms with unclaimedFIFOSize of "+getUnclaimedFIFOSize()+" for matched: "+matched);
 		}
 	}
 	
 	/** IncomingPacketFilter should call this when a node is disconnected. */
 	public void onDisconnect(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
-	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesDroppedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
-	    }
+		List<MessageFilter> droppedFilters; // rare operation, we can waste objects for better locking
+	    droppedFilters = removeForConnection(ctx, false);
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
 		        mf.onDroppedConnection(ctx, _executor);
@@ -343,19 +585,8 @@ public class MessageCore {
 	
 	/** IncomingPacketFilter should call this when a node connects with a new boot ID */
 	public void onRestart(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
-	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesRestartedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
-	    }
+		List<MessageFilter> droppedFilters; // rare operation, we can waste objects for better locking
+	    droppedFilters = removeForConnection(ctx, true);
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
 		        mf.onRestartedConnection(ctx, _executor);
@@ -363,8 +594,33 @@ public class MessageCore {
 	    }
 	}
 
+	private List<MessageFilter> removeForConnection(PeerContext ctx, boolean restarted) {
+		List<MessageFilter> dropped = null;
+		lockAll();
+		try {
+			for(MessageFilterIndex index : indexes()) {
+				List<MessageFilter> d = index.removeForConnection(ctx, restarted);
+				if(d == null) continue;
+				if(dropped == null) dropped = d;
+				else dropped.addAll(d);
+			}
+		} finally {
+			unlockAll();
+		}
+		return dropped;
+	}
+
+	private List<MessageFilterIndex> indexes() {
+		List<MessageFilterIndex> indexes = new ArrayList<MessageFilterIndex>(STRIPES + 1);
+		for(Stripe s : _stripes)
+			indexes.add(s.filters);
+		indexes.add(_global);
+		return indexes;
+	}
+
 	public void addAsyncFilter(MessageFilter filter, AsyncMessageFilterCallback callback, ByteCounter ctr) throws DisconnectedException {
 		filter.setAsyncCallback(callback, ctr);
+		filter.setCore(this);
 		if(filter.matched()) {
 			Logger.error(this, "addAsyncFilter() on a filter which is already matched: "+filter, new Exception("error"));
 			filter.clearMatched();
@@ -379,58 +635,33 @@ public class MessageCore {
 		// Check to see whether the filter matches any of the recently _unclaimed messages
 		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
-		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		long timeout = filter.getTimeout();
-		synchronized (_filters) {
+		boolean added = false;
+		boolean reschedule = false;
+		Stripe s = lockFor(filter);
+		try {
 			//Once in the list, it is up to the callback system to trigger the disconnection, however, we may
 			//have disconnected between check above and locking, so we *must* check again.
 			if(filter.anyConnectionsDropped()) {
 				throw new DisconnectedException();
 				//or... filter.onDroppedConnection(filter.droppedConnection());
-				//but we are holding the _filters lock!
+				//but we are holding the lock!
 			}
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				// These messages have already arrived, so we can match against them even if we are timed out.
-				MATCHED status = filter.match(m, true, now);
-				if (status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			ret = claimUnclaimed(s, filter, now);
 			if (ret == null && timeout >= System.currentTimeMillis()) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						return;
-					}
-				}
+				indexFor(s).add(filter);
+				added = true;
+				if(logMINOR) Logger.minor(this, "Added filter with timeout "+timeout);
+				reschedule = needTimeoutCheckBy(timeout);
 			}
+		} finally {
+			unlock(s);
 		}
-		if(ret != null) {
+		if(added) {
+			if(reschedule) rescheduleTimeoutCheck(timeout);
+		} else if(ret != null) {
 			filter.setMessage(ret);
 			filter.onMatched(_executor);
 			filter.clearMatched();
@@ -462,6 +693,7 @@ public class MessageCore {
 			Logger.error(this, "waitFor() on a filter which is already matched: "+filter, new Exception("error"));
 			filter.clearMatched();
 		}
+		filter.setCore(this);
 		filter.onStartWaiting(true);
 		Message ret = null;
 		if(filter.anyConnectionsDropped()) {
@@ -471,54 +703,28 @@ public class MessageCore {
 		// Check to see whether the filter matches any of the recently _unclaimed messages
 		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
-		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
-		synchronized (_filters) {
+		boolean reschedule = false;
+		Stripe s = lockFor(filter);
+		try {
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				MATCHED status = filter.match(m, true, startTime);
-				if(status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			ret = claimUnclaimed(s, filter, now);
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end "+filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout()+" filter "+filter);
-						break;
-					}
-				}
+				indexFor(s).add(filter);
+				if(logMINOR) Logger.minor(this, "Added filter "+filter+" with timeout "+filter.getTimeout());
+				// The waiting thread times out by itself, but the filter must still be removed.
+				reschedule = needTimeoutCheckBy(filter.getTimeout());
 			}
+		} finally {
+			unlock(s);
 		}
+		if(reschedule) rescheduleTimeoutCheck(filter.getTimeout());
 		long tEnd = System.currentTimeMillis();
 		if(tEnd - now > 50) {
 			if(tEnd - now > 3000)
-				Logger.error(this, "waitFor _unclaimed iteration took "+(tEnd-now)+"ms with unclaimedFIFOSize of "+_unclaimed.size()+" for ret of "+ret);
+				Logger.error(this, "waitFor _unclaimed iteration took "+(tEnd-now)+"ms with unclaimedFIFOSize of "+getUnclaimedFIFOSize()+" for ret of "+ret);
 			else
-				if(logMINOR) Logger.minor(this, "waitFor _unclaimed iteration took "+(tEnd-now)+"ms with unclaimedFIFOSize of "+_unclaimed.size()+" for ret of "+ret);
+				if(logMINOR) Logger.minor(this, "waitFor _unclaimed iteration took "+(tEnd-now)+"ms with unclaimedFIFOSize of "+getUnclaimedFIFOSize()+" for ret of "+ret);
 		}
 		// Unlock to wait on filter
 		// Waiting on the filter won't release the outer lock
@@ -527,7 +733,7 @@ public class MessageCore {
 			if(logMINOR) Logger.minor(this, "Waiting...");
 			synchronized (filter) {
 				try {
-					// Precaution against filter getting matched between being added to _filters and
+					// Precaution against filter getting matched between being added to the index and
 					// here - bug discovered by Mason
 					// Check reallyTimedOut() too a) for paranoia, b) for filters with a callback (we could conceivably waitFor() them).
 				    while(!(filter.matched() || (filter.droppedConnection() != null) || (filter.reallyTimedOut(now = System.currentTimeMillis())))) {
@@ -547,12 +753,13 @@ public class MessageCore {
 		
 		// More tricky locking ...
 		
-		synchronized(_filters) {
+		s = lockFor(filter);
+		try {
 			// Some nasty race conditions can happen here.
 			// E.g. the filter can be matched and yet we timeout at the same time.
 			// Hence we need to be absolutely sure that when we remove it it hasn't been matched.
 			// Note also that the locking does work here - the filter lock is taken last, and
-			// _filters protects both the unwanted messages (above), the filter list, and 
+			// the stripe lock protects both the unwanted messages (above), the filter list, and
 			// is taken when a match is found too.
 			if(ret == null) {
 				// Check again.
@@ -561,13 +768,12 @@ public class MessageCore {
 				}
 			}
 			filter.clearMatched();
-			// We must remove it from _filters before we return, or when it is re-added,
+			// We must remove it from the index before we return, or when it is re-added,
 			// it will be in the list twice, and potentially many more times than twice!
-			// Fortunately, it will be close to the beginning of the filters list, having
-			// just timed out. That is assuming it hasn't already been removed; in that
-			// case, this will be slower.
-			_filters.remove(filter);
+			indexFor(s).remove(filter);
 			// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
+		} finally {
+			unlock(s);
 		}
 		
 		// Probably get rid...
@@ -603,24 +809,27 @@ public class MessageCore {
 	 * @return the number of received messages that are currently unclaimed
 	 */
 	public int getUnclaimedFIFOSize() {
-		synchronized (_filters){
-			return _unclaimed.size();
+		int size = 0;
+		for(Stripe s : _stripes) {
+			s.lock.lock();
+			try {
+				size += s.unclaimed.size();
+			} finally {
+				s.lock.unlock();
+			}
 		}
+		return size;
 	}
 	
 	public Map<String, Integer> getUnclaimedFIFOMessageCounts() {
 		Map<String, Integer> messageCounts = new HashMap<String, Integer>();
-		synchronized(_filters) {
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				String messageName = m.getSpec().getName();
-				Integer messageCount = messageCounts.get(messageName);
-				if (messageCount == null) {
-					messageCounts.put(messageName, 1);
-				} else {
-					messageCount = messageCount + 1;
-					messageCounts.put(messageName, messageCount );
-				}
+		for(Stripe s : _stripes) {
+			s.lock.lock();
+			try {
+				for (Map.Entry<MessageType, LinkedHashSet<Message>> e : s.unclaimedByType.entrySet())
+					messageCounts.merge(e.getKey().getName(), e.getValue().size(), Integer::sum);
+			} finally {
+				s.lock.unlock();
 			}
 		}
 		return messageCounts;
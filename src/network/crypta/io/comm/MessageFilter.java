@@ -59,6 +59,8 @@ public final class MessageFilter {
     private AsyncMessageFilterCallback _callback;
     private ByteCounter _ctr;
     private boolean _setTimeout = false;
+    /** The MessageCore the filter was last added to, told when the timeout changes. */
+    private volatile MessageCore _core;
 
     private MessageFilter() {
         _timeoutFromWait = true;
@@ -109,6 +111,7 @@ public final class MessageFilter {
 		_setTimeout = true;
 		_initialTimeout = timeout;
 		_timeout = System.currentTimeMillis() + timeout;
+		onTimeoutChanged();
 		return this;
 	}
 
@@ -116,8 +119,18 @@ public final class MessageFilter {
 		_setTimeout = true;
 		_timeout = Long.MAX_VALUE;
 		_initialTimeout = 0;
+		onTimeoutChanged();
 		return this;
 	}
+
+	private void onTimeoutChanged() {
+		MessageCore core = _core;
+		if(core != null) core.onTimeoutChanged(this);
+	}
+
+	void setCore(MessageCore core) {
+		_core = core;
+	}
 	
 	public MessageFilter setType(MessageType type) {
 		_type = type;
@@ -316,6 +329,22 @@ public final class MessageFilter {
     public void clearOr() {
         _or = null;
     }
+
+    MessageType getType() {
+        return _type;
+    }
+
+    MessageFilter getOr() {
+        return _or;
+    }
+
+    /** @return The value the given field must have, or null if the filter doesn't check it. */
+    Object getFieldValue(String fieldName) {
+        synchronized (_fields) {
+            final int i = _fieldNames.indexOf(fieldName);
+            return i < 0 ? null : _fields.get(i);
+        }
+    }
     
     public boolean matchesDroppedConnection(PeerContext ctx) {
     	if(_source == ctx) return true;
@@ -0,0 +1,321 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package network.crypta.io.comm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import network.crypta.io.comm.MessageFilter.MATCHED;
+import network.crypta.support.Logger;
+
+/**
+ * The filters which are waiting for a message, indexed so that an incoming message is only
+ * compared against the filters which could match it: those for its type and UID, those for its
+ * type with no UID, and those with no type (which should be rare). An or()ed filter is indexed
+ * under each of its parts.
+ *
+ * Filters are ordered by their timeout and then by the order in which they were added, as with the
+ * sorted list we used to keep, so that where two filters match the same message, the one with the
+ * nearest timeout still gets it. If a filter's timeout is changed while it is waiting, it must be
+ * re-sorted with {@link #updateTimeout(MessageFilter)}.
+ *
+ * Not thread-safe: MessageCore locks it.
+ */
+final class MessageFilterIndex {
+
+	private static final Key WILDCARD = new Key(null, null);
+
+	private final Map<MessageFilter, Entry> entries = new IdentityHashMap<MessageFilter, Entry>();
+	private final Map<Key, TreeSet<Entry>> buckets = new HashMap<Key, TreeSet<Entry>>();
+	private final TreeSet<Entry> byTimeout = new TreeSet<Entry>();
+	/** Filters with a callback, which may ask to time out early, see
+	 * {@link AsyncMessageFilterCallback#shouldTimeout()}. */
+	private final LinkedHashSet<Entry> withCallback = new LinkedHashSet<Entry>();
+	/** Shared by the indexes whose filters are compared in match(). */
+	private final AtomicLong nextSequence;
+
+	MessageFilterIndex(AtomicLong sequence) {
+		this.nextSequence = sequence;
+	}
+
+	/** The index key for part of a filter. Either field may be null, meaning any. */
+	private static final class Key {
+		final MessageType type;
+		final Object uid;
+
+		Key(MessageType type, Object uid) {
+			this.type = type;
+			this.uid = uid;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return Objects.equals(type, k.type) && Objects.equals(uid, k.uid);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hashCode(type) * 31 + Objects.hashCode(uid);
+		}
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+		final MessageFilter filter;
+		final long timeout;
+		final long sequence;
+		final Key[] keys;
+
+		Entry(MessageFilter filter, long timeout, long sequence, Key[] keys) {
+			this.filter = filter;
+			this.timeout = timeout;
+			this.sequence = sequence;
+			this.keys = keys;
+		}
+
+		@Override
+		public int compareTo(Entry e) {
+			if(timeout != e.timeout) return timeout < e.timeout ? -1 : 1;
+			return Long.compare(sequence, e.sequence);
+		}
+	}
+
+	/** Add a filter. Does nothing if it is already in the index. */
+	void add(MessageFilter filter) {
+		if(entries.containsKey(filter)) {
+			Logger.error(this, "Filter "+filter+" is already waiting", new Exception("error"));
+			return;
+		}
+		List<Key> keys = new ArrayList<Key>(1);
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			Key key = new Key(f.getType(), f.getFieldValue(DMT.UID));
+			if(!keys.contains(key)) keys.add(key);
+		}
+		add(new Entry(filter, filter.getTimeout(), nextSequence.getAndIncrement(),
+				keys.toArray(new Key[keys.size()])));
+	}
+
+	private void add(Entry entry) {
+		MessageFilter filter = entry.filter;
+		entries.put(filter, entry);
+		for(Key key : entry.keys) {
+			TreeSet<Entry> bucket = buckets.get(key);
+			if(bucket == null) {
+				bucket = new TreeSet<Entry>();
+				buckets.put(key, bucket);
+			}
+			bucket.add(entry);
+		}
+		byTimeout.add(entry);
+		if(filter.hasCallback()) withCallback.add(entry);
+	}
+
+	/** @return True if the filter was in the index. */
+	boolean remove(MessageFilter filter) {
+		Entry entry = entries.remove(filter);
+		if(entry == null) return false;
+		for(Key key : entry.keys) {
+			TreeSet<Entry> bucket = buckets.get(key);
+			bucket.remove(entry);
+			if(bucket.isEmpty()) buckets.remove(key);
+		}
+		byTimeout.remove(entry);
+		withCallback.remove(entry);
+		return true;
+	}
+
+	/**
+	 * Re-sort a filter whose timeout has changed, keeping its place among filters with the same
+	 * timeout.
+	 * @return True if the filter was in the index.
+	 */
+	boolean updateTimeout(MessageFilter filter) {
+		Entry entry = entries.get(filter);
+		if(entry == null) return false;
+		long timeout = filter.getTimeout();
+		if(timeout != entry.timeout) {
+			remove(filter);
+			add(new Entry(filter, timeout, entry.sequence, entry.keys));
+		}
+		return true;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/** @return The UID which every part of the filter requires, or null if there isn't one. */
+	static Object getUID(MessageFilter filter) {
+		Object uid = null;
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			Object u = f.getFieldValue(DMT.UID);
+			if(u == null || (uid != null && !uid.equals(u))) return null;
+			uid = u;
+		}
+		return uid;
+	}
+
+	/** @return True if any filter is indexed where it could match the message. */
+	boolean mayMatch(Message m) {
+		if(buckets.isEmpty()) return false;
+		MessageType type = m.getSpec();
+		Object uid = m.isSet(DMT.UID) ? m.getFromPayload(DMT.UID) : null;
+		if(uid != null &&
+				(buckets.containsKey(new Key(type, uid)) || buckets.containsKey(new Key(null, uid))))
+			return true;
+		return buckets.containsKey(new Key(type, null)) || buckets.containsKey(WILDCARD);
+	}
+
+	/**
+	 * Find the filter which should get a message, and remove it. Filters which are found to have
+	 * timed out along the way are removed too.
+	 * @param timedOut Filters which have timed out are added to this list. The caller must call
+	 * onTimedOut() on them.
+	 * @return The matching filter, or null.
+	 */
+	MessageFilter match(Message m, long now, List<MessageFilter> timedOut) {
+		return match(m, now, timedOut, null);
+	}
+
+	/**
+	 * As {@link #match(Message, long, List)}, but the filter may also come from another index
+	 * sharing the same sequence, in which case it is removed from that one.
+	 */
+	MessageFilter match(Message m, long now, List<MessageFilter> timedOut, MessageFilterIndex other) {
+		Entry best = find(m, now, timedOut);
+		MessageFilterIndex from = this;
+		if(other != null) {
+			Entry e = other.find(m, now, timedOut);
+			if(e != null && (best == null || e.compareTo(best) < 0)) {
+				best = e;
+				from = other;
+			}
+		}
+		if(best == null) return null;
+		from.remove(best.filter);
+		return best.filter;
+	}
+
+	/** @return The filter which should get the message, if any, without removing it. */
+	private Entry find(Message m, long now, List<MessageFilter> timedOut) {
+		MessageType type = m.getSpec();
+		Object uid = m.isSet(DMT.UID) ? m.getFromPayload(DMT.UID) : null;
+		Entry best = null;
+		if(uid != null) {
+			best = first(best, match(new Key(type, uid), m, now, timedOut));
+			best = first(best, match(new Key(null, uid), m, now, timedOut));
+		}
+		best = first(best, match(new Key(type, null), m, now, timedOut));
+		best = first(best, match(WILDCARD, m, now, timedOut));
+		return best;
+	}
+
+	/** @return The first filter in the bucket which matches the message, if any. */
+	private Entry match(Key key, Message m, long now, List<MessageFilter> timedOut) {
+		TreeSet<Entry> bucket = buckets.get(key);
+		if(bucket == null) return null;
+		Entry found = null;
+		List<Entry> toRemove = null;
+		for(Entry e : bucket) {
+			MessageFilter f = e.filter;
+			if(f.matched()) {
+				Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
+				if(toRemove == null) toRemove = new ArrayList<Entry>();
+				toRemove.add(e);
+				continue;
+			}
+			MATCHED status = f.match(m, false, now);
+			if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
+				if(toRemove == null) toRemove = new ArrayList<Entry>();
+				toRemove.add(e);
+				timedOut.add(f);
+			} else if(status == MATCHED.MATCHED) {
+				found = e;
+				break; // Only one match permitted per message
+			}
+		}
+		if(toRemove != null) {
+			for(Entry e : toRemove)
+				remove(e.filter);
+		}
+		return found;
+	}
+
+	private static Entry first(Entry a, Entry b) {
+		if(a == null) return b;
+		if(b == null) return a;
+		return a.compareTo(b) <= 0 ? a : b;
+	}
+
+	/**
+	 * Remove the filters which have timed out.
+	 * @param checkCallbacks If true, also check the filters whose callbacks may want them to time
+	 * out early. This is a scan of all such filters, so should not be done too often.
+	 * @param timedOut Filters which have timed out are added to this list.
+	 */
+	void removeTimedOut(long now, boolean checkCallbacks, List<MessageFilter> timedOut) {
+		List<Entry> toRemove = new ArrayList<Entry>();
+		List<Entry> moved = null;
+		for(Entry e : byTimeout) {
+			if(e.timeout >= now) break;
+			if(e.filter.timedOut(now)) {
+				toRemove.add(e);
+			} else {
+				// The timeout has been extended without updateTimeout().
+				if(moved == null) moved = new ArrayList<Entry>();
+				moved.add(e);
+			}
+		}
+		if(checkCallbacks) {
+			for(Entry e : withCallback) {
+				if(e.timeout >= now && e.filter.timedOut(now)) toRemove.add(e);
+			}
+		}
+		for(Entry e : toRemove) {
+			remove(e.filter);
+			timedOut.add(e.filter);
+		}
+		if(moved != null) {
+			for(Entry e : moved)
+				updateTimeout(e.filter);
+		}
+	}
+
+	/** @return The earliest timeout of any filter, or Long.MAX_VALUE. */
+	long getNextTimeout() {
+		return byTimeout.isEmpty() ? Long.MAX_VALUE : byTimeout.first().timeout;
+	}
+
+	/** @return True if any filters have callbacks, which need checking periodically. */
+	boolean hasCallbacks() {
+		return !withCallback.isEmpty();
+	}
+
+	/** Remove and return the filters which are waiting for a message from the given peer.
+	 * @param restarted True if the peer has restarted, false if it has disconnected.
+	 * @return The filters removed, or null. */
+	List<MessageFilter> removeForConnection(PeerContext ctx, boolean restarted) {
+		List<MessageFilter> dropped = null;
+		for(MessageFilter f : entries.keySet()) {
+			if(restarted ? f.matchesRestartedConnection(ctx) : f.matchesDroppedConnection(ctx)) {
+				if(dropped == null) dropped = new ArrayList<MessageFilter>();
+				dropped.add(f);
+			}
+		}
+		if(dropped != null) {
+			for(MessageFilter f : dropped)
+				remove(f);
+		}
+		return dropped;
+	}
+
+}
@@ -22,6 +22,15 @@ public interface PacketSocketHandler extends SocketHandler {
      */
     void sendPacket(byte[] blockToSend, Peer destination, boolean allowLocalAddresses) throws LocalAddressException;
 
+    /**
+     * Send part of a buffer as a packet. The buffer may be reused as soon as this returns.
+     * @param buf The buffer containing the packet.
+     * @param offset The start of the packet in buf.
+     * @param length The length of the packet.
+     * @param destination The peer to send it to.
+     */
+    void sendPacket(byte[] buf, int offset, int length, Peer destination, boolean allowLocalAddresses) throws LocalAddressException;
+
     /**
      * Get the size of the transport layer headers, for byte accounting purposes.
      */
@@ -0,0 +1,311 @@
+package network.crypta.io.comm;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+import network.crypta.node.FastRunnable;
+import network.crypta.node.Node;
+import network.crypta.support.Logger;
+import network.crypta.support.Ticker;
+import network.crypta.support.VirtualTicker;
+
+/**
+ * An in-memory network of UDP ports, for simulations with many nodes in one JVM. Each port is
+ * an endpoint known only by its port number, so the nodes must use different ports as they would
+ * on one host. Packets are delivered by a Ticker after a configurable latency, after waiting for
+ * the sender's uplink if its bandwidth is limited, and may be lost at random. A sender sees the
+ * address it sent to as the source address, as with real sockets on one host.
+ *
+ * With a VirtualTicker the network runs on virtual time, as fast as the packets can be handled.
+ * That is only useful for testing the network model itself: Node reads the wall clock and has its
+ * own real Ticker, so a Node refuses a network on virtual time. Simulations of real nodes run in
+ * real time, and each node still has its own threads, so how many fit depends on the machine.
+ */
+public class SimulatedNetwork {
+
+	private final Ticker ticker;
+	private final LongSupplier clock;
+	/** For packet loss. */
+	private final Random random;
+	private final HashMap<Integer, Endpoint> endpoints = new HashMap<Integer, Endpoint>();
+	private final long startTime;
+
+	/** One way latency in milliseconds. */
+	private volatile long latency;
+	/** Probability of losing each packet. */
+	private volatile double loss;
+	/** Default uplink bandwidth of new endpoints in bytes per second, 0 for unlimited. */
+	private volatile int bandwidth;
+	/** Drop a packet rather than queue it for longer than this on a congested uplink. */
+	private volatile long maxQueueTime = 1000;
+	/** Like SO_RCVBUF: drop incoming packets while more than this is waiting to be read. */
+	private static final int RECEIVE_BUFFER = 65536;
+
+	private long packetsSent;
+	private long packetsDelivered;
+	private long packetsLost;
+	private long packetsDropped;
+	private long bytesDelivered;
+
+	public SimulatedNetwork(Ticker ticker, LongSupplier clock, Random random) {
+		this.ticker = ticker;
+		this.clock = clock;
+		this.random = random;
+		startTime = clock.getAsLong();
+	}
+
+	public SimulatedNetwork(VirtualTicker ticker, Random random) {
+		this(ticker, ticker::currentTimeMillis, random);
+	}
+
+	/** @return True if packets are delivered on virtual time, which Node doesn't support. */
+	public boolean isVirtualTime() {
+		return ticker instanceof VirtualTicker;
+	}
+
+	public void setLatency(long latency) {
+		this.latency = latency;
+	}
+
+	public void setLoss(double loss) {
+		this.loss = loss;
+	}
+
+	/** Set the uplink bandwidth of endpoints created after this call, 0 for unlimited. */
+	public void setBandwidth(int bytesPerSecond) {
+		bandwidth = bytesPerSecond;
+	}
+
+	public void setMaxQueueTime(long maxQueueTime) {
+		this.maxQueueTime = maxQueueTime;
+	}
+
+	/**
+	 * Create a UdpSocketHandler on this network, as if it was bound to the given port.
+	 * @throws IOException If the port is already in use.
+	 */
+	public UdpSocketHandler createSocketHandler(int port, InetAddress bindToAddress, Node node, long startupTime, String title, IOStatisticCollector ioStatistics) throws IOException {
+		Endpoint endpoint = open(port);
+		return new UdpSocketHandler(endpoint, new InetSocketAddress(bindToAddress, port), node, startupTime, title, ioStatistics);
+	}
+
+	/** Create an endpoint to send and receive raw packets on. */
+	Endpoint open(int port) throws IOException {
+		synchronized(this) {
+			if(endpoints.containsKey(port)) throw new IOException("Address already in use: port "+port);
+			Endpoint endpoint = new Endpoint(port, bandwidth);
+			endpoints.put(port, endpoint);
+			return endpoint;
+		}
+	}
+
+	private void send(Endpoint from, ByteBuffer packet, InetSocketAddress destination) {
+		int length = packet.remaining();
+		byte[] data = new byte[length];
+		packet.get(data);
+		long now = clock.getAsLong();
+		final Endpoint to;
+		synchronized(this) {
+			packetsSent++;
+			to = endpoints.get(destination.getPort());
+			if(to == null) {
+				// Nobody listening.
+				packetsDropped++;
+				return;
+			}
+			if(loss > 0 && random.nextDouble() < loss) {
+				packetsLost++;
+				return;
+			}
+		}
+		long sent = from.reserveUplink(now, length);
+		if(sent < 0) {
+			synchronized(this) {
+				packetsDropped++;
+			}
+			return;
+		}
+		final InetSocketAddress source = new InetSocketAddress(destination.getAddress(), from.port);
+		ticker.queueTimedJob(new Delivery(to, data, source), "Simulated packet to "+destination, sent + latency - now, true, false);
+	}
+
+	private class Delivery implements FastRunnable {
+
+		private final Endpoint to;
+		private final byte[] data;
+		private final InetSocketAddress source;
+
+		Delivery(Endpoint to, byte[] data, InetSocketAddress source) {
+			this.to = to;
+			this.data = data;
+			this.source = source;
+		}
+
+		@Override
+		public void run() {
+			boolean delivered = to.deliver(data, source);
+			synchronized(SimulatedNetwork.this) {
+				if(delivered) {
+					packetsDelivered++;
+					bytesDelivered += data.length;
+				} else {
+					packetsDropped++;
+				}
+			}
+		}
+
+	}
+
+	public synchronized long getPacketsSent() {
+		return packetsSent;
+	}
+
+	public synchronized long getPacketsDelivered() {
+		return packetsDelivered;
+	}
+
+	/** @return Packets lost at random. */
+	public synchronized long getPacketsLost() {
+		return packetsLost;
+	}
+
+	/** @return Packets dropped because nobody was listening, or the sender's uplink or the
+	 * receiver's buffer was full. */
+	public synchronized long getPacketsDropped() {
+		return packetsDropped;
+	}
+
+	public synchronized long getBytesDelivered() {
+		return bytesDelivered;
+	}
+
+	/** @return Bytes delivered per second of (possibly virtual) time since the network was
+	 * created. */
+	public double getThroughput() {
+		long elapsed = clock.getAsLong() - startTime;
+		if(elapsed <= 0) return 0.0;
+		return getBytesDelivered() * 1000.0 / elapsed;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "Simulated network: "+endpoints.size()+" ports, "+packetsSent+" packets sent, "+packetsDelivered+" delivered, "+
+			packetsLost+" lost, "+packetsDropped+" dropped, "+bytesDelivered+" bytes delivered";
+	}
+
+	/** A port on the network. */
+	class Endpoint implements DatagramTransport {
+
+		final int port;
+		/** Uplink bandwidth in bytes per second, 0 for unlimited. */
+		private final int uplink;
+		/** When the uplink will have sent everything queued, in milliseconds. */
+		private double uplinkBusyUntil;
+		private final ArrayDeque<Datagram> received = new ArrayDeque<Datagram>();
+		private int receivedBytes;
+		private boolean woken;
+		private boolean closed;
+
+		Endpoint(int port, int uplink) {
+			this.port = port;
+			this.uplink = uplink;
+		}
+
+		/** @return When the packet will have left the uplink, or -1 to drop it. */
+		private synchronized long reserveUplink(long now, int length) {
+			if(uplink <= 0) return now;
+			double start = Math.max(now, uplinkBusyUntil);
+			if(start - now > maxQueueTime) return -1;
+			uplinkBusyUntil = start + length * 1000.0 / uplink;
+			return (long) Math.ceil(uplinkBusyUntil);
+		}
+
+		private synchronized boolean deliver(byte[] data, InetSocketAddress source) {
+			if(closed) return false;
+			if(receivedBytes + data.length > RECEIVE_BUFFER) return false;
+			received.add(new Datagram(data, source));
+			receivedBytes += data.length;
+			notifyAll();
+			return true;
+		}
+
+		@Override
+		public synchronized void await() throws IOException {
+			while(received.isEmpty() && !woken && !closed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			woken = false;
+			if(closed) throw new ClosedChannelException();
+		}
+
+		@Override
+		public synchronized InetSocketAddress receive(ByteBuffer buffer) throws IOException {
+			if(closed) throw new ClosedChannelException();
+			Datagram d = received.poll();
+			if(d == null) return null;
+			receivedBytes -= d.data.length;
+			// Like a real socket, silently truncate if the buffer is too small.
+			buffer.put(d.data, 0, Math.min(d.data.length, buffer.remaining()));
+			return d.source;
+		}
+
+		@Override
+		public boolean send(ByteBuffer packet, InetSocketAddress destination) throws IOException {
+			synchronized(this) {
+				if(closed) throw new ClosedChannelException();
+			}
+			// Packets dropped by a full uplink are lost on the wire, as far as the sender knows.
+			SimulatedNetwork.this.send(this, packet, destination);
+			return true;
+		}
+
+		@Override
+		public synchronized void wakeup() {
+			woken = true;
+			notifyAll();
+		}
+
+		@Override
+		public void close() {
+			synchronized(this) {
+				if(closed) return;
+				closed = true;
+				received.clear();
+				receivedBytes = 0;
+				notifyAll();
+			}
+			synchronized(SimulatedNetwork.this) {
+				endpoints.remove(port);
+			}
+			Logger.normal(this, "Closed simulated port "+port);
+		}
+
+		@Override
+		public String toString() {
+			return "Simulated port "+port;
+		}
+
+	}
+
+	private static class Datagram {
+		final byte[] data;
+		final InetSocketAddress source;
+
+		Datagram(byte[] data, InetSocketAddress source) {
+			this.data = data;
+			this.source = source;
+		}
+	}
+
+}
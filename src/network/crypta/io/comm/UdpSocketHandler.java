@@ -8,7 +8,11 @@ import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.UnsupportedAddressTypeException;
 import java.util.Random;
 
@@ -28,7 +32,7 @@ import sun.misc.Unsafe;
 public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, PortForwardSensitiveSocketHandler {
 
 	private final ByteBuffer receiveBuffer = ByteBuffer.allocate(MAX_RECEIVE_SIZE);
-	private final DatagramChannel datagramChannel;
+	private final DatagramTransport transport;
 	private final InetSocketAddress localAddress;
 	private final AddressTracker tracker;
 	private IncomingPacketFilter lowLevelFilter;
@@ -48,6 +52,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	private boolean _started;
 	private long startTime;
 	private final IOStatisticCollector ioStatistics;
+	/** Number of threads decoding packets. 0 means decode on the receive thread. */
+	private int receiveThreads;
+	/** Decodes packets off the receive thread, if receiveThreads &gt; 0. Created by start(). */
+	private IncomingPacketDispatcher dispatcher;
 
         static {
             Logger.registerClass(UdpSocketHandler.class);
@@ -124,29 +132,19 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	public UdpSocketHandler(int listenPort, InetAddress bindToAddress, Node node, long startupTime, String title, IOStatisticCollector ioStatistics) throws IOException {
+		this(new ChannelTransport(new InetSocketAddress(bindToAddress, listenPort), node), new InetSocketAddress(bindToAddress, listenPort), node, startupTime, title, ioStatistics);
+	}
+
+	/** Send and receive through the given transport rather than binding a UDP socket. */
+	UdpSocketHandler(DatagramTransport transport, InetSocketAddress localAddress, Node node, long startupTime, String title, IOStatisticCollector ioStatistics) {
 		this.node = node;
 		this.ioStatistics = ioStatistics;
 		this.title = title;
-		localAddress = new InetSocketAddress(bindToAddress, listenPort);
-		datagramChannel = DatagramChannel.open()
-				.bind(localAddress)
-				.setOption(StandardSocketOptions.SO_RCVBUF, 65536)
-				.setOption(StandardSocketOptions.SO_REUSEADDR, true);
-
-		try {
-			datagramChannel.setOption(StandardSocketOptions.IP_TOS, node.getTrafficClass().value);
-		} catch (UnsupportedOperationException e) {
-			Logger.error(this, "Failed to set IP_TOS socket option", e);
-		}
-
-		boolean r = socketOptions.setAddressPreference(datagramChannel, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
-		if(logMINOR) {
-			Logger.minor(this, "Setting IPV6_PREFER_SRC_PUBLIC for port " + listenPort + " is a " + (r ? "success" : "failure"));
-		}
-
+		this.localAddress = localAddress;
+		this.transport = transport;
 		// Only used for debugging, no need to seed from Yarrow
 		dropRandom = node.getFastWeakRandom();
-		tracker = AddressTracker.create(node.getLastBootId(), node.runDir(), listenPort);
+		tracker = AddressTracker.create(node.getLastBootId(), node.runDir(), localAddress.getPort());
 		tracker.startSend(startupTime);
 	}
 
@@ -219,56 +217,96 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	}
 
 	private void realRun() {
-		InetSocketAddress remote = receive();
+		try {
+			transport.await();
+		} catch (IOException | ClosedSelectorException e) {
+			if(!_active) return;
+			throw new RuntimeException(e);
+		}
+		IncomingPacketDispatcher d = dispatcher;
+		int received = 0;
+		while(_active && received < RECEIVE_BATCH_SIZE) {
+			if(d == null) {
+				InetSocketAddress remote = receive(receiveBuffer);
+				if(remote == null) break;
+				received++;
+				process(remote);
+			} else {
+				ByteBuffer buf = d.acquireBuffer();
+				InetSocketAddress remote = receive(buf);
+				if(remote == null) {
+					d.release(buf);
+					break;
+				}
+				received++;
+				Peer peer = new Peer(remote.getAddress(), remote.getPort());
+				tracker.receivedPacketFrom(peer);
+				if(logMINOR) {
+					Logger.minor(this, "Queueing packet of length " + buf.limit() + " from " + peer);
+				}
+				d.dispatch(buf, peer, System.currentTimeMillis());
+			}
+		}
+		if(d != null) {
+			if(received > 0) d.onBatchReceived();
+		} else if(received == 0) {
+			if(logDEBUG) Logger.debug(this, "No packet received");
+		}
+	}
+
+	/** Process the packet in receiveBuffer on this thread. Used when there are no decoding threads. */
+	private void process(InetSocketAddress remote) {
 		long now = System.currentTimeMillis();
-		if (remote != null) {
-			long startTime = System.currentTimeMillis();
-			Peer peer = new Peer(remote.getAddress(), remote.getPort());
-			tracker.receivedPacketFrom(peer);
-			long endTime = System.currentTimeMillis();
+		long startTime = System.currentTimeMillis();
+		Peer peer = new Peer(remote.getAddress(), remote.getPort());
+		tracker.receivedPacketFrom(peer);
+		long endTime = System.currentTimeMillis();
+		if(endTime - startTime > 50) {
+			if(endTime-startTime > 3000) {
+				Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
+			} else {
+				if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
+			}
+		}
+
+		try {
+			if(logMINOR) {
+				Logger.minor(this, "Processing packet of length " + receiveBuffer.limit() + " from " + peer);
+			}
+			startTime = System.currentTimeMillis();
+			lowLevelFilter.process(receiveBuffer.array(), 0, receiveBuffer.limit(), peer, now);
+			endTime = System.currentTimeMillis();
 			if(endTime - startTime > 50) {
 				if(endTime-startTime > 3000) {
-					Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
 				} else {
-					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
 				}
 			}
-
-			try {
-				if(logMINOR) {
-					Logger.minor(this, "Processing packet of length " + receiveBuffer.limit() + " from " + peer);
-				}
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(receiveBuffer.array(), 0, receiveBuffer.limit(), peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
-					}
-				}
-				if(logMINOR) {
-					Logger.minor(this, "Successfully handled packet length " + receiveBuffer.limit());
-				}
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
+			if(logMINOR) {
+				Logger.minor(this, "Successfully handled packet length " + receiveBuffer.limit());
 			}
-		} else {
-			if(logDEBUG) Logger.debug(this, "No packet received");
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ lowLevelFilter, t);
 		}
 	}
 
 	private static final int MAX_RECEIVE_SIZE = 1500;
 
-	private InetSocketAddress receive() {
+	/** Maximum number of packets to drain from the socket before going back to the selector. */
+	private static final int RECEIVE_BATCH_SIZE = 64;
+
+	/** Read one packet from the socket without blocking.
+	 * @return The sender, or null if there are no more packets waiting. */
+	private InetSocketAddress receive(ByteBuffer buffer) {
 		try {
-			receiveBuffer.clear();
-			InetSocketAddress remote = (InetSocketAddress) datagramChannel.receive(receiveBuffer);
-			receiveBuffer.flip();
+			buffer.clear();
+			InetSocketAddress remote = transport.receive(buffer);
+			if(remote == null) return null;
+			buffer.flip();
 			InetAddress address = remote.getAddress();
-            ioStatistics.reportReceivedBytes(address, getHeadersLength(address) + receiveBuffer.limit());
+            ioStatistics.reportReceivedBytes(address, getHeadersLength(address) + buffer.limit());
 			return remote;
 		} catch (SocketTimeoutException e1) {
 			return null;
@@ -289,6 +327,11 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	 */
 	@Override
 	public void sendPacket(byte[] blockToSend, Peer destination, boolean allowLocalAddresses) throws LocalAddressException {
+		sendPacket(blockToSend, 0, blockToSend.length, destination, allowLocalAddresses);
+	}
+
+	@Override
+	public void sendPacket(byte[] buf, int offset, int length, Peer destination, boolean allowLocalAddresses) throws LocalAddressException {
 		if(!_active) {
 			Logger.error(this, "Trying to send packet but no longer active");
 			// It is essential that for recording accurate AddressTracker data that we don't send any more
@@ -296,7 +339,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 			return;
 		}
 
-		ByteBuffer packet = ByteBuffer.wrap(blockToSend);
+		ByteBuffer packet = ByteBuffer.wrap(buf, offset, length);
 		int port = destination.getPort();
 		InetAddress address;
 		// there should be no DNS needed here, but go ahead if we can, but complain doing it
@@ -315,11 +358,14 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 
 		try {
-			datagramChannel.send(packet, new InetSocketAddress(address, port));
+			if(!transport.send(packet, new InetSocketAddress(address, port))) {
+				Logger.normal(this, "Send buffer full, dropped packet length " + length + " to " + address + ':' + port);
+				return;
+			}
 			tracker.sentPacketTo(destination);
-            ioStatistics.reportSentBytes(address, getHeadersLength(address) + blockToSend.length);
+            ioStatistics.reportSentBytes(address, getHeadersLength(address) + length);
 			if (logMINOR) {
-				Logger.minor(this, "Sent packet length " + blockToSend.length + " to " + address + ':' + port);
+				Logger.minor(this, "Sent packet length " + length + " to " + address + ':' + port);
 			}
 		} catch (IOException | UnsupportedAddressTypeException e) {
 			if (address instanceof Inet6Address) {
@@ -382,6 +428,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		synchronized(this) {
 			_started = true;
 			startTime = System.currentTimeMillis();
+			if(receiveThreads > 0) {
+				dispatcher = new IncomingPacketDispatcher(lowLevelFilter, receiveThreads, MAX_RECEIVE_SIZE, "port " + localAddress.getPort());
+				dispatcher.start(node.getExecutor());
+			}
 		}
 		node.getExecutor().execute(this, "UdpSocketHandler for port " + localAddress.getPort());
 	}
@@ -390,11 +440,13 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		Logger.normal(this, "Closing.", new Exception("error"));
 		synchronized (this) {
 			_active = false;
+			transport.wakeup();
 			try {
-				datagramChannel.close();
+				transport.close();
 			} catch (IOException e) {
-				Logger.error(this, "Error closing DatagramChannel", e);
+				Logger.error(this, "Error closing "+transport, e);
 			}
+			if(dispatcher != null) dispatcher.stop();
 
 			if(!_started) return;
 			while (!_isDone) {
@@ -416,6 +468,18 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		_dropProbability = dropProbability;
 	}
 
+	/** Set the number of threads decoding incoming packets. Only takes effect if called before
+	 * start(). 0 means decode on the thread which reads the socket. */
+	public synchronized void setReceiveThreads(int threads) {
+		receiveThreads = threads;
+	}
+
+	/** @return The dispatcher decoding incoming packets, or null if they are decoded on the
+	 * receive thread. */
+	public synchronized IncomingPacketDispatcher getDispatcher() {
+		return dispatcher;
+	}
+
 	public int getPortNumber() {
 		return localAddress.getPort();
 	}
@@ -462,4 +526,95 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		return startTime;
 	}
 
+	/** A real UDP socket. */
+	private static class ChannelTransport implements DatagramTransport {
+
+		/** How long to wait for room in the send buffer before dropping a packet. */
+		private static final long SEND_TIMEOUT = 1000;
+
+		private final DatagramChannel datagramChannel;
+		/** Wakes the receive thread when packets arrive, so we can drain them in batches. */
+		private final Selector selector;
+		/** The channel is non-blocking for the receive side, so senders wait for room on this. */
+		private final Selector writeSelector;
+
+		ChannelTransport(InetSocketAddress localAddress, Node node) throws IOException {
+			datagramChannel = DatagramChannel.open()
+					.bind(localAddress)
+					.setOption(StandardSocketOptions.SO_RCVBUF, 65536)
+					.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			datagramChannel.configureBlocking(false);
+			selector = Selector.open();
+			datagramChannel.register(selector, SelectionKey.OP_READ);
+			writeSelector = Selector.open();
+			datagramChannel.register(writeSelector, SelectionKey.OP_WRITE);
+
+			try {
+				datagramChannel.setOption(StandardSocketOptions.IP_TOS, node.getTrafficClass().value);
+			} catch (UnsupportedOperationException e) {
+				Logger.error(this, "Failed to set IP_TOS socket option", e);
+			}
+
+			boolean r = socketOptions.setAddressPreference(datagramChannel, socketOptions.SOCKET_ADDR_PREFERENCE.IPV6_PREFER_SRC_PUBLIC);
+			if(logMINOR) {
+				Logger.minor(this, "Setting IPV6_PREFER_SRC_PUBLIC for port " + localAddress.getPort() + " is a " + (r ? "success" : "failure"));
+			}
+		}
+
+		@Override
+		public void await() throws IOException {
+			selector.select();
+			selector.selectedKeys().clear();
+		}
+
+		@Override
+		public InetSocketAddress receive(ByteBuffer buffer) throws IOException {
+			return (InetSocketAddress) datagramChannel.receive(buffer);
+		}
+
+		@Override
+		public boolean send(ByteBuffer packet, InetSocketAddress destination) throws IOException {
+			// Non-blocking send() returns 0 and discards the packet if the send buffer is full.
+			if(datagramChannel.send(packet, destination) > 0 || !packet.hasRemaining()) return true;
+			long deadline = System.currentTimeMillis() + SEND_TIMEOUT;
+			synchronized(writeSelector) {
+				while(true) {
+					long wait = deadline - System.currentTimeMillis();
+					if(wait <= 0) return false;
+					try {
+						writeSelector.select(wait);
+					} catch (ClosedSelectorException e) {
+						throw new ClosedChannelException();
+					}
+					writeSelector.selectedKeys().clear();
+					if(datagramChannel.send(packet, destination) > 0) return true;
+				}
+			}
+		}
+
+		@Override
+		public void wakeup() {
+			selector.wakeup();
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				datagramChannel.close();
+			} finally {
+				try {
+					selector.close();
+				} finally {
+					writeSelector.close();
+				}
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "DatagramChannel";
+		}
+
+	}
+
 }
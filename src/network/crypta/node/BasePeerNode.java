@@ -1,5 +1,6 @@
 package network.crypta.node;
 
+import java.util.Arrays;
 import java.util.Random;
 
 import network.crypta.io.comm.Message;
@@ -46,6 +47,12 @@ public interface BasePeerNode extends PeerContext {
 
 	void sendEncryptedPacket(byte[] data) throws LocalAddressException;
 
+	/** Send part of a buffer as an encrypted packet. The buffer may be reused once this returns,
+	 * so by default it is copied. */
+	default void sendEncryptedPacket(byte[] buf, int offset, int length) throws LocalAddressException {
+		sendEncryptedPacket(Arrays.copyOfRange(buf, offset, offset + length));
+	}
+
 	void sentPacket();
 
 	boolean shouldThrottle();
@@ -68,4 +75,16 @@ public interface BasePeerNode extends PeerContext {
 
 	/** Report when a packet was acked. */
 	void receivedAck(long currentTimeMillis);
+
+	/** @return Where to account for traffic to this peer by message type, or null if traffic
+	 * accounting is disabled. */
+	default TrafficStats getTrafficStats() {
+		return null;
+	}
+
+	/** @return Where to account for traffic to this peer. Only used if getTrafficStats() is not
+	 * null. */
+	default TrafficStats.Counters getTrafficCounters() {
+		return null;
+	}
 }
@@ -15,6 +15,7 @@ import java.security.interfaces.ECPublicKey;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import network.crypta.crypt.BlockCipher;
 import network.crypta.crypt.ECDH;
@@ -164,20 +165,24 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		if(node.isStopping()) return DECODED.SHUTTING_DOWN;
 		// Disconnected node connecting on a new IP address?
 		if(length > Node.SYMMETRIC_KEY_LENGTH /* iv */ + HASH_LENGTH + 2) {
-			for(PeerNode pn: peers) {
-				if(pn == opn) continue;
-				if(logDEBUG)
-					Logger.debug(this, "Trying auth with "+pn);
-				if(tryProcessAuth(buf, offset, length, pn, peer,false, now)) {
+			// Auth packets carry nothing we can look up, so we have to try each peer's setup key.
+			// Try peers we last saw on the same IP first: usually only the port has changed.
+			InetAddress addr = peer.getAddress(false);
+			boolean[] sameAddress = new boolean[peers.length];
+			for(int i=0;i<peers.length;i++) {
+				PeerNode pn = peers[i];
+				if(pn == opn || addr == null) continue;
+				Peer p = pn.getPeer();
+				if(p == null || !addr.equals(p.getAddress(false))) continue;
+				sameAddress[i] = true;
+				if(tryProcessAuthFrom(buf, offset, length, pn, peer, now))
+					return DECODED.DECODED;
+			}
+			for(int i=0;i<peers.length;i++) {
+				PeerNode pn = peers[i];
+				if(pn == opn || sameAddress[i]) continue;
+				if(tryProcessAuthFrom(buf, offset, length, pn, peer, now))
 					return DECODED.DECODED;
-				}
-				if(pn.handshakeUnknownInitiator()) {
-					// Might be a reply to us sending an anon auth packet.
-					// I.e. we are not the seednode, they are.
-					if(tryProcessAuthAnonReply(buf, offset, length, pn, peer, now)) {
-						return DECODED.DECODED;
-					}
-				}
 			}
 		}
 		
@@ -241,6 +246,30 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 		return false;
 	}
 
+	/** Try an auth packet from a peer which isn't at the address we know it by. */
+	private boolean tryProcessAuthFrom(byte[] buf, int offset, int length, PeerNode pn, Peer peer, long now) {
+		if(logDEBUG)
+			Logger.debug(this, "Trying auth with "+pn);
+		if(tryProcessAuth(buf, offset, length, pn, peer,false, now)) {
+			return true;
+		}
+		if(pn.handshakeUnknownInitiator()) {
+			// Might be a reply to us sending an anon auth packet.
+			// I.e. we are not the seednode, they are.
+			if(tryProcessAuthAnonReply(buf, offset, length, pn, peer, now)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static final AtomicLong authTrialDecrypts = new AtomicLong();
+
+	/** @return The number of times we have tried to decrypt a packet with a setup key. */
+	public static long getAuthTrialDecrypts() {
+		return authTrialDecrypts.get();
+	}
+
 	/**
 	 * Is this a negotiation packet? If so, process it.
 	 * @param buf The buffer to read bytes from
@@ -268,6 +297,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			return false;
 		}
 		// IV at the beginning
+		authTrialDecrypts.incrementAndGet();
 		PCFBMode pcfb = PCFBMode.create(authKey, buf, offset);
 		// Then the hash, then the data
 		// => Data starts at ivLength + digestLength
@@ -326,6 +356,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			return false;
 		}
 		// IV at the beginning
+		authTrialDecrypts.incrementAndGet();
 		PCFBMode pcfb = PCFBMode.create(authKey, buf, offset);
 		// Then the hash, then the data
 		// => Data starts at ivLength + digestLength
@@ -385,6 +416,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler {
 			return false;
 		}
 		// IV at the beginning
+		authTrialDecrypts.incrementAndGet();
 		PCFBMode pcfb = PCFBMode.create(authKey, buf, offset);
 		// Then the hash, then the data
 		// => Data starts at ivLength + digestLength
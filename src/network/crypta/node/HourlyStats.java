@@ -53,6 +53,12 @@ public class HourlyStats {
 		totalRecord.remoteRequest(ssk, success, local, htl, location);
 	}
 
+	/** @return The number of remote requests since startup at the given HTL with the given
+	  * outcome, see HourlyStatsRecord.countRemoteRequests(). */
+	public long countRemoteRequests(boolean ssk, int htl, boolean success, boolean local) {
+		return totalRecord.countRemoteRequests(ssk, htl, success, local);
+	}
+
 	public void fillRemoteRequestHTLsBox(HTMLNode html) {
 		totalRecord.fillRemoteRequestHTLsBox(html);
 	}
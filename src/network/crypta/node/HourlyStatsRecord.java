@@ -104,6 +104,20 @@ public class HourlyStatsRecord {
 		}
 	}
 
+	/** @return The number of remote requests reported at the given HTL with the given outcome.
+	  * @param local Only meaningful if success is true. */
+	public synchronized long countRemoteRequests(boolean ssk, int htl, boolean success, boolean local) {
+		StatsLine line = byHTL[Math.min(htl, byHTL.length - 1)];
+		TrivialRunningAverage average;
+		if (success) {
+			if (ssk) average = local ? line.sskLocalSuccess : line.sskRemoteSuccess;
+			else average = local ? line.chkLocalSuccess : line.chkRemoteSuccess;
+		} else {
+			average = ssk ? line.sskFailure : line.chkFailure;
+		}
+		return average.countReports();
+	}
+
 	public void log() {
 		Logger.normal(this, toString());
 	}
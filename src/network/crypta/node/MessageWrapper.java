@@ -3,7 +3,6 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package network.crypta.node;
 
-import java.util.Arrays;
 
 import network.crypta.io.comm.AsyncMessageCallback;
 import network.crypta.support.LogThresholdCallback;
@@ -18,6 +17,8 @@ public class MessageWrapper {
 	private boolean reportedSent;
 	private final long created;
 	private int resends;
+	private final TrafficStats.Counters byType;
+	private final TrafficStats.Counters byPeer;
 
 	//Sorted lists of non-overlapping ranges. If you need to lock both, lock sent first
 	private final SparseBitmap acks = new SparseBitmap();
@@ -37,10 +38,24 @@ public class MessageWrapper {
 	}
 
 	public MessageWrapper(MessageItem item, int messageID) {
+		this(item, messageID, null, null);
+	}
+
+	/**
+	 * @param byType If not null, account for the message's traffic to these counters, and to
+	 * byPeer, which must then not be null either.
+	 */
+	MessageWrapper(MessageItem item, int messageID, TrafficStats.Counters byType, TrafficStats.Counters byPeer) {
 		this.item = item;
 		isShortMessage = item.buf.length <= 255;
 		this.messageID = messageID;
 		created = System.currentTimeMillis();
+		this.byType = byType;
+		this.byPeer = byPeer;
+		if(byType != null) {
+			byType.queued(created - item.submitted);
+			byPeer.queued(created - item.submitted);
+		}
 	}
 
 	private boolean alreadyAcked = false;
@@ -165,7 +180,6 @@ public class MessageWrapper {
 		int end = item.buf.length - 1;
 
 		int dataLength;
-		byte[] fragmentData;
 		synchronized(sent) {
 			for(int[] range : sent) {
 				if(range[0] == start) {
@@ -190,7 +204,6 @@ public class MessageWrapper {
 			dataLength = Math.min(end - start + 1, dataLength);
 			if(dataLength <= 0) return null;
 
-			fragmentData = Arrays.copyOfRange(item.buf, start, start+dataLength);
 
 			sent.add(start, start + dataLength - 1);
 			if(logDEBUG) Logger.debug(this, "Using range "+start+" to "+(start+dataLength-1)+" gives "+sent+" on "+messageID);
@@ -198,7 +211,7 @@ public class MessageWrapper {
 
 		boolean isFragmented = !((start == 0) && (dataLength == item.buf.length));
 		return new MessageFragment(isShortMessage, isFragmented, start == 0, messageID, dataLength,
-		                item.buf.length, start, fragmentData, this);
+		                item.buf.length, start, item.buf, start, this);
 	}
 
 	public void onDisconnect() {
@@ -256,6 +269,10 @@ public class MessageWrapper {
 				}
 			}
 		}
+		if(byType != null) {
+			byType.sent(report + resent, completed);
+			byPeer.sent(report + resent, completed);
+		}
 		if(report != 0)
 			item.onSent(report);
 		if(resent != 0 && pn != null)
@@ -43,11 +43,18 @@ class NPFPacket {
 	private int ackBlockByteSize = 0;
 	
 	public static NPFPacket create(byte[] plaintext, BasePeerNode pn) {
+		return create(plaintext, 0, plaintext.length, pn);
+	}
+
+	/** Parse a decrypted packet from part of a buffer. The buffer may be reused once this
+	 * returns: the fragments and lossy messages are copied out of it. */
+	public static NPFPacket create(byte[] plaintext, int start, int length, BasePeerNode pn) {
 		NPFPacket packet = new NPFPacket();
 		if (pn == null) throw new IllegalArgumentException("Can't estimate an ack type of received packet");
-		int offset = 0;
+		int offset = start;
+		int end = start + length;
 
-		if(plaintext.length < (offset + 5)) { //Sequence number + the number of acks
+		if(end < (offset + 5)) { //Sequence number + the number of acks
 			packet.error = true;
 			return packet;
 		}
@@ -93,6 +100,11 @@ class NPFPacket {
 						
 						prevAck = ack-1;
 					}
+					if(offset > end) {
+						// Ran past the end of the packet but not of the buffer.
+						packet.error = true;
+						return packet;
+					}
 				} catch (ArrayIndexOutOfBoundsException e) {
 					// The packet's length is not big enough
 					packet.error = true;
@@ -102,20 +114,20 @@ class NPFPacket {
 
 		//Handle received message fragments
 		int prevFragmentID = -1;
-		while(offset < plaintext.length) {
+		while(offset < end) {
 			boolean shortMessage = (plaintext[offset] & 0x80) != 0;
 			boolean isFragmented = (plaintext[offset] & 0x40) != 0;
 			boolean firstFragment = (plaintext[offset] & 0x20) != 0;
 
 			if(!isFragmented && !firstFragment) {
 				// Padding or lossy messages.
-				offset = tryParseLossyMessages(packet, plaintext, offset);
+				offset = tryParseLossyMessages(packet, plaintext, offset, end);
 				break;
 			}
 
 			int messageID = -1;
 			if((plaintext[offset] & 0x10) != 0) {
-				if(plaintext.length < (offset + 4)) {
+				if(end < (offset + 4)) {
 					packet.error = true;
 					return packet;
 				}
@@ -126,7 +138,7 @@ class NPFPacket {
 				                | (plaintext[offset + 3] & 0xFF);
 				offset += 4;
 			} else {
-				if(plaintext.length < (offset + 2)) {
+				if(end < (offset + 2)) {
 					packet.error = true;
 					return packet;
 				}
@@ -145,7 +157,7 @@ class NPFPacket {
 			int requiredLength = offset
 			                + (shortMessage ? 1 : 2)
 			                + (isFragmented ? (shortMessage ? 1 : 3) : 0);
-			if(plaintext.length < requiredLength) {
+			if(end < requiredLength) {
 				packet.error = true;
 				return packet;
 			}
@@ -182,8 +194,8 @@ class NPFPacket {
 			} else {
 				messageLength = fragmentLength;
 			}
-			if((offset + fragmentLength) > plaintext.length) {
-				Logger.error(NPFPacket.class, "Fragment doesn't fit in the received packet: offset is "+offset+" fragment length is "+fragmentLength+" plaintext length is "+plaintext.length+" message length "+messageLength+" message ID "+messageID+(pn == null ? "" : (" from "+pn.shortToString())));
+			if((offset + fragmentLength) > end) {
+				Logger.error(NPFPacket.class, "Fragment doesn't fit in the received packet: offset is "+offset+" fragment length is "+fragmentLength+" plaintext length is "+length+" message length "+messageLength+" message ID "+messageID+(pn == null ? "" : (" from "+pn.shortToString())));
 				packet.error = true;
 				break;
 			}
@@ -194,37 +206,44 @@ class NPFPacket {
 			                messageID, fragmentLength, messageLength, fragmentOffset, fragmentData, null));
 		}
 		
-		packet.length = offset;
+		packet.length = offset - start;
 
 		return packet;
 	}
 
 	private static int tryParseLossyMessages(NPFPacket packet,
-			byte[] plaintext, int offset) {
+			byte[] plaintext, int offset, int end) {
 		int origOffset = offset;
 		while(true) {
 			if(plaintext[offset] != 0x1F)
 				return offset; // Padding
 			// Else it might be some per-packet lossy messages
 			offset++;
-			if(offset >= plaintext.length) {
+			if(offset >= end) {
 				packet.lossyMessages.clear();
 				return origOffset;
 			}
 			int len = plaintext[offset] & 0xFF;
 			offset++;
-			if(len > plaintext.length - offset) {
+			if(len > end - offset) {
 				packet.lossyMessages.clear();
 				return origOffset;
 			}
 			byte[] fragment = Arrays.copyOfRange(plaintext, offset, offset + len);
 			packet.lossyMessages.add(fragment);
 			offset += len;
-			if(offset == plaintext.length) return offset;
+			if(offset == end) return offset;
 		}
 	}
 
 	public int toBytes(byte[] buf, int offset, Random paddingGen) {
+		return toBytes(buf, offset, buf.length, paddingGen);
+	}
+
+	/** Write the packet to buf starting at offset, and fill the rest of the buffer up to end
+	 * with padding. The buffer does not need to be zeroed first.
+	 * @return The offset after the end of the packet, i.e. the start of the padding. */
+	public int toBytes(byte[] buf, int offset, int end, Random paddingGen) {
 	    int origOffset = offset;
 		buf[offset] = (byte) (sequenceNumber >>> 24);
 		buf[offset + 1] = (byte) (sequenceNumber >>> 16);
@@ -287,6 +306,7 @@ class NPFPacket {
 		//Add fragments
 		int prevFragmentID = -1;
 		for(MessageFragment fragment : fragments) {
+			buf[offset] = 0;
 			if(fragment.shortMessage) buf[offset] = (byte) ((buf[offset] & 0xFF) | 0x80);
 			if(fragment.isFragmented) buf[offset] = (byte) ((buf[offset] & 0xFF) | 0x40);
 			if(fragment.firstFragment) buf[offset] = (byte) ((buf[offset] & 0xFF) | 0x20);
@@ -327,7 +347,7 @@ class NPFPacket {
 				}
 			}
 
-			System.arraycopy(fragment.fragmentData, 0, buf, offset, fragment.fragmentLength);
+			System.arraycopy(fragment.fragmentData, fragment.fragmentDataOffset, buf, offset, fragment.fragmentLength);
 			offset += fragment.fragmentLength;
 		}
 		
@@ -343,9 +363,9 @@ class NPFPacket {
 
         assert(offset - origOffset == length);
 
-		if(offset < buf.length) {
+		if(offset < end) {
 			//More room, so add padding
-			Util.randomBytes(paddingGen, buf, offset, buf.length - offset);
+			Util.randomBytes(paddingGen, buf, offset, end - offset);
 
 			byte b = (byte) (buf[offset] & 0x9F); //Make sure firstFragment and isFragmented isn't set
 			if(b == 0x1F)
@@ -5,7 +5,6 @@ package network.crypta.node;
 
 import static java.util.concurrent.TimeUnit.MINUTES;
 
-import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -13,10 +12,8 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
-import network.crypta.crypt.BlockCipher;
-import network.crypta.crypt.HMAC;
-import network.crypta.crypt.PCFBMode;
 import network.crypta.io.comm.DMT;
 import network.crypta.io.comm.Message;
 import network.crypta.io.comm.Peer;
@@ -31,7 +28,7 @@ import network.crypta.support.SparseBitmap;
 
 public class NewPacketFormat implements PacketFormat {
 
-	private static final int HMAC_LENGTH = 10;
+	static final int HMAC_LENGTH = 10;
 	// FIXME Use a more efficient structure - int[] or maybe just a big byte[].
 	// FIXME increase this significantly to let it ride over network interruptions.
 	private static final int NUM_SEQNUMS_TO_WATCH_FOR = 1024;
@@ -97,6 +94,10 @@ public class NewPacketFormat implements PacketFormat {
 	private final Object sendBufferLock = new Object();
 	/** Lock protecting the size of the receive buffer. */
 	private final Object receiveBufferSizeLock = new Object();
+	/** Held while decoding a received packet. Packets from one peer are normally decoded on one
+	 * thread, but one from an unknown address is tried against every peer on another, and the
+	 * watch lists and receive buffers are not thread-safe. */
+	private final Object receiveLock = new Object();
 	
 	private long timeLastSentPacket;
 	private long timeLastSentPayload;
@@ -120,43 +121,45 @@ public class NewPacketFormat implements PacketFormat {
 
 	@Override
 	public boolean handleReceivedPacket(byte[] buf, int offset, int length, long now, Peer replyTo) {
-		NPFPacket packet = null;
-		SessionKey s = null;
-		for(int i = 0; i < 3; i++) {
-			if(i == 0) {
-				s = pn.getCurrentKeyTracker();
-			} else if (i == 1) {
-				s = pn.getPreviousKeyTracker();
-			} else {
-				s = pn.getUnverifiedKeyTracker();
+		synchronized(receiveLock) {
+			NPFPacket packet = null;
+			SessionKey s = null;
+			for(int i = 0; i < 3; i++) {
+				if(i == 0) {
+					s = pn.getCurrentKeyTracker();
+				} else if (i == 1) {
+					s = pn.getPreviousKeyTracker();
+				} else {
+					s = pn.getUnverifiedKeyTracker();
+				}
+				if(s == null) continue;
+				packet = tryDecipherPacket(buf, offset, length, s);
+				if(packet != null) {
+					if(logDEBUG) Logger.debug(this, "Decrypted packet with tracker " + i);
+					break;
+				}
 			}
-			if(s == null) continue;
-			packet = tryDecipherPacket(buf, offset, length, s);
-			if(packet != null) {
-				if(logDEBUG) Logger.debug(this, "Decrypted packet with tracker " + i);
-				break;
+			if(packet == null) {
+				if(logMINOR) Logger.minor(this, "Could not decrypt received packet");
+				return false;
 			}
-		}
-		if(packet == null) {
-			if(logMINOR) Logger.minor(this, "Could not decrypt received packet");
-			return false;
-		}
 
-		pn.receivedPacket(false, true);
-		pn.verified(s);
-		pn.maybeRekey();
-		pn.reportIncomingBytes(length);
-
-		List<byte[]> finished = handleDecryptedPacket(packet, s);
-		if(logMINOR && !finished.isEmpty()) 
-			Logger.minor(this, "Decoded messages: "+finished.size());
-		DecodingMessageGroup group = pn.startProcessingDecryptedMessages(finished.size());
-		for(byte[] buffer : finished) {
-			group.processDecryptedMessage(buffer, 0, buffer.length, 0);
-		}
-		group.complete();
+			pn.receivedPacket(false, true);
+			pn.verified(s);
+			pn.maybeRekey();
+			pn.reportIncomingBytes(length);
+
+			List<byte[]> finished = handleDecryptedPacket(packet, s);
+			if(logMINOR && !finished.isEmpty())
+				Logger.minor(this, "Decoded messages: "+finished.size());
+			DecodingMessageGroup group = pn.startProcessingDecryptedMessages(finished.size());
+			for(byte[] buffer : finished) {
+				group.processDecryptedMessage(buffer, 0, buffer.length, 0);
+			}
+			group.complete();
 
-		return true;
+			return true;
+		}
 	}
 
 	List<byte[]> handleDecryptedPacket(NPFPacket packet, SessionKey sessionKey) {
@@ -315,15 +318,43 @@ public class NewPacketFormat implements PacketFormat {
 
 	private NPFPacket tryDecipherPacket(byte[] buf, int offset, int length, SessionKey sessionKey) {
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
+		updateWatchList(keyContext, sessionKey);
+
+		for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
+			int index = (keyContext.watchListPointer + i) % keyContext.seqNumWatchList.length;
+			if (!Fields.byteArrayEqual(
+						buf, keyContext.seqNumWatchList[index],
+						offset + HMAC_LENGTH, 0,
+						keyContext.seqNumWatchList[index].length))
+				continue;
+			
+			int sequenceNumber = (int) (((long) keyContext.watchListOffset + i) % NUM_SEQNUMS);
+			if(logDEBUG) Logger.debug(this, "Received packet matches sequence number " + sequenceNumber);
+			NPFPacket p = decipherFromSeqnum(buf, offset, length, sessionKey, sequenceNumber);
+			if(p != null) {
+				if(logMINOR) Logger.minor(this, "Received packet " + p.getSequenceNumber()+" on "+sessionKey);
+				// Move the watchlist now, so the tag index is up to date if the next packet
+				// arrives from a different address.
+				updateWatchList(keyContext, sessionKey);
+				return p;
+			}
+		}
+
+		return null;
+	}
+
+	/** Create the watchlist if the key has changed, and move it if we have received packets
+	 * beyond the middle of it. */
+	private void updateWatchList(NewPacketFormatKeyContext keyContext, SessionKey sessionKey) {
 		// Create the watchlist if the key has changed
 		if(keyContext.seqNumWatchList == null) {
 			if(logMINOR) Logger.minor(this, "Creating watchlist starting at " + keyContext.watchListOffset);
 			
-			keyContext.seqNumWatchList = new byte[NUM_SEQNUMS_TO_WATCH_FOR][4];
+			keyContext.seqNumWatchList = new byte[NUM_SEQNUMS_TO_WATCH_FOR][];
 
 			int seqNum = keyContext.watchListOffset;
 			for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
-				keyContext.seqNumWatchList[i] = NewPacketFormat.encryptSequenceNumber(seqNum++, sessionKey);
+				keyContext.setWatchListEntry(i, NewPacketFormat.encryptSequenceNumber(seqNum++, sessionKey), sessionKey);
 				if(seqNum < 0) seqNum = 0;
 			}
 		}
@@ -354,62 +385,36 @@ public class NewPacketFormat implements PacketFormat {
 
 			int seqNum = (int) (((long) keyContext.watchListOffset + keyContext.seqNumWatchList.length) % NUM_SEQNUMS);
 			for(int i = keyContext.watchListPointer; i < (keyContext.watchListPointer + moveBy); i++) {
-				keyContext.seqNumWatchList[i % keyContext.seqNumWatchList.length] = encryptSequenceNumber(seqNum++, sessionKey);
+				keyContext.setWatchListEntry(i % keyContext.seqNumWatchList.length, encryptSequenceNumber(seqNum++, sessionKey), sessionKey);
 				if(seqNum < 0) seqNum = 0;
 			}
 
 			keyContext.watchListPointer = (keyContext.watchListPointer + moveBy) % keyContext.seqNumWatchList.length;
 			keyContext.watchListOffset = (int) (((long) keyContext.watchListOffset + moveBy) % NUM_SEQNUMS);
 		}
-
-		for(int i = 0; i < keyContext.seqNumWatchList.length; i++) {
-			int index = (keyContext.watchListPointer + i) % keyContext.seqNumWatchList.length;
-			if (!Fields.byteArrayEqual(
-						buf, keyContext.seqNumWatchList[index],
-						offset + HMAC_LENGTH, 0,
-						keyContext.seqNumWatchList[index].length))
-				continue;
-			
-			int sequenceNumber = (int) (((long) keyContext.watchListOffset + i) % NUM_SEQNUMS);
-			if(logDEBUG) Logger.debug(this, "Received packet matches sequence number " + sequenceNumber);
-			NPFPacket p = decipherFromSeqnum(buf, offset, length, sessionKey, sequenceNumber);
-			if(p != null) {
-				if(logMINOR) Logger.minor(this, "Received packet " + p.getSequenceNumber()+" on "+sessionKey);
-				return p;
-			}
-		}
-
-		return null;
 	}
 
 	/** Must NOT modify buf contents. */
 	private NPFPacket decipherFromSeqnum(byte[] buf, int offset, int length, SessionKey sessionKey, int sequenceNumber) {
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		IV[IV.length - 4] = (byte) (sequenceNumber >>> 24);
-		IV[IV.length - 3] = (byte) (sequenceNumber >>> 16);
-		IV[IV.length - 2] = (byte) (sequenceNumber >>> 8);
-		IV[IV.length - 1] = (byte) (sequenceNumber);
-
-		ivCipher.encipher(IV, IV);
-
-		byte[] payload = Arrays.copyOfRange(buf, offset + HMAC_LENGTH, offset + length);
-		byte[] hash = Arrays.copyOfRange(buf, offset, offset + HMAC_LENGTH);
-		byte[] localHash = Arrays.copyOf(HMAC.macWithSHA256(sessionKey.hmacKey, payload), HMAC_LENGTH);
-		if (!MessageDigest.isEqual(hash, localHash)) {
-			if (logMINOR) {
-				Logger.minor(this, "Failed to validate the HMAC using TrackerID="+sessionKey.trackerID);
-			}
+		int payloadLength = length - HMAC_LENGTH;
+		PacketCipherState state = sessionKey.getIncomingState();
+		NPFPacket p;
+		synchronized(state) {
+			if (!state.verifyMac(buf, offset, HMAC_LENGTH, offset + HMAC_LENGTH, payloadLength)) {
+				if (logMINOR) {
+					Logger.minor(this, "Failed to validate the HMAC using TrackerID="+sessionKey.trackerID);
+				}
 
-			return null;
-		}
+				return null;
+			}
 
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.incommingCipher, IV);
-		payloadCipher.blockDecipher(payload, 0, payload.length);
+			// Decrypt into the reusable buffer; NPFPacket copies out what it needs.
+			byte[] payload = state.getBuffer(payloadLength);
+			System.arraycopy(buf, offset + HMAC_LENGTH, payload, 0, payloadLength);
+			state.getCipher(sequenceNumber).blockDecipher(payload, 0, payloadLength);
 
-		NPFPacket p = NPFPacket.create(payload, pn);
+			p = NPFPacket.create(payload, 0, payloadLength, pn);
+		}
 
 		NewPacketFormatKeyContext keyContext = sessionKey.packetContext;
 		synchronized(this) {
@@ -429,6 +434,17 @@ public class NewPacketFormat implements PacketFormat {
 		return (((i1 < i2) && ((i2 - i1) > halfValue)) || ((i1 > i2) && (i1 - i2 < halfValue)));
 	}
 
+	/** @return True if the packet is long enough to contain a sequence number, i.e. it could be
+	 * a data packet, in which case the tag to look up in a {@link SessionTagIndex} starts at
+	 * {@link #getSequenceNumberTagOffset(int)}. */
+	static boolean mightBeDataPacket(int length) {
+		return length >= HMAC_LENGTH + 4;
+	}
+
+	static int getSequenceNumberTagOffset(int offset) {
+		return offset + HMAC_LENGTH;
+	}
+
 	static byte[] encryptSequenceNumber(int seqNum, SessionKey sessionKey) {
 		byte[] seqNumBytes = new byte[4];
 		seqNumBytes[0] = (byte) (seqNum >>> 24);
@@ -436,15 +452,10 @@ public class NewPacketFormat implements PacketFormat {
 		seqNumBytes[2] = (byte) (seqNum >>> 8);
 		seqNumBytes[3] = (byte) (seqNum);
 
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		System.arraycopy(seqNumBytes, 0, IV, IV.length - seqNumBytes.length, seqNumBytes.length);
-		ivCipher.encipher(IV, IV);
-
-		PCFBMode cipher = PCFBMode.create(sessionKey.incommingCipher, IV);
-		cipher.blockEncipher(seqNumBytes, 0, seqNumBytes.length);
+		PacketCipherState state = sessionKey.getIncomingState();
+		synchronized(state) {
+			state.getCipher(seqNum).blockEncipher(seqNumBytes, 0, seqNumBytes.length);
+		}
 
 		return seqNumBytes;
 	}
@@ -495,48 +506,14 @@ public class NewPacketFormat implements PacketFormat {
 			}
 		}
 
-		byte[] data = new byte[paddedLen];
-		packet.toBytes(data, HMAC_LENGTH, pn.paddingGen());
-
-		BlockCipher ivCipher = sessionKey.ivCipher;
-
-		byte[] IV = new byte[ivCipher.getBlockSize() / 8];
-		System.arraycopy(sessionKey.ivNonce, 0, IV, 0, IV.length);
-		System.arraycopy(data, HMAC_LENGTH, IV, IV.length - 4, 4);
-
-		ivCipher.encipher(IV, IV);
-
-		PCFBMode payloadCipher = PCFBMode.create(sessionKey.outgoingCipher, IV);
-		payloadCipher.blockEncipher(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH);
-
-		//Add hash
-		byte[] text = new byte[paddedLen - HMAC_LENGTH];
-		System.arraycopy(data, HMAC_LENGTH, text, 0, text.length);
-
-		byte[] hash = HMAC.macWithSHA256(sessionKey.hmacKey, text);
-
-		System.arraycopy(hash, 0, data, 0, HMAC_LENGTH);
-
 		try {
-			if(logMINOR) {
-				String fragments = null;
-				for(MessageFragment frag : packet.getFragments()) {
-					if(fragments == null) fragments = String.valueOf(frag.messageID);
-					else fragments = fragments + ", " + frag.messageID;
-					fragments += " ("+frag.fragmentOffset+"->"+(frag.fragmentOffset+frag.fragmentLength-1)+")";
-				}
-
-				Logger.minor(this, "Sending packet " + packet.getSequenceNumber() + " ("
-				                + data.length + " bytes) with fragments " + fragments + " and "
-				                + packet.getAcks().size() + " acks on "+this);
-			}
-			pn.sendEncryptedPacket(data);
+			encryptAndSend(packet, paddedLen, sessionKey);
 		} catch (LocalAddressException e) {
 			Logger.error(this, "Caught exception while sending packet", e);
 			return false;
 		}
 		
-		packet.onSent(data.length, pn);
+		packet.onSent(paddedLen, pn);
 
 		if(!packet.getFragments().isEmpty()) {
 			keyContext.sent(packet.getSequenceNumber(), packet.getLength());
@@ -544,12 +521,12 @@ public class NewPacketFormat implements PacketFormat {
 
 		long now = System.currentTimeMillis();
 		pn.sentPacket();
-		pn.reportOutgoingBytes(data.length);
+		pn.reportOutgoingBytes(paddedLen);
 		if(pn.shouldThrottle()) {
-			pn.sentThrottledBytes(data.length);
+			pn.sentThrottledBytes(paddedLen);
 		}
 		if(packet.getFragments().isEmpty()) {
-			pn.onNotificationOnlyPacketSent(data.length);
+			pn.onNotificationOnlyPacketSent(paddedLen);
 		}
 		
 		synchronized(this) {
@@ -562,6 +539,48 @@ public class NewPacketFormat implements PacketFormat {
 		return true;
 	}
 
+	/** Bytes of message data copied into packets to be sent, including resends. Fragments refer
+	 * to the encoded message, so this is the only copy after encoding. */
+	private static final AtomicLong fragmentBytesSent = new AtomicLong();
+
+	/** @return The number of bytes of message data copied into packets to be sent. */
+	public static long getFragmentBytesSent() {
+		return fragmentBytesSent.get();
+	}
+
+	/** Write the packet, padded to paddedLen, to the key's reusable buffer, encrypt it, add the
+	 * HMAC and send it. */
+	void encryptAndSend(NPFPacket packet, int paddedLen, SessionKey sessionKey) throws LocalAddressException {
+		PacketCipherState state = sessionKey.getOutgoingState();
+		synchronized(state) {
+			byte[] data = state.getBuffer(paddedLen);
+			packet.toBytes(data, HMAC_LENGTH, paddedLen, pn.paddingGen());
+			int fragmentBytes = 0;
+			for(MessageFragment frag : packet.getFragments())
+				fragmentBytes += frag.fragmentLength;
+			fragmentBytesSent.addAndGet(fragmentBytes);
+
+			state.getCipher(packet.getSequenceNumber()).blockEncipher(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH);
+
+			//Add hash
+			state.mac(data, HMAC_LENGTH, paddedLen - HMAC_LENGTH, data, 0, HMAC_LENGTH);
+
+			if(logMINOR) {
+				String fragments = null;
+				for(MessageFragment frag : packet.getFragments()) {
+					if(fragments == null) fragments = String.valueOf(frag.messageID);
+					else fragments = fragments + ", " + frag.messageID;
+					fragments += " ("+frag.fragmentOffset+"->"+(frag.fragmentOffset+frag.fragmentLength-1)+")";
+				}
+
+				Logger.minor(this, "Sending packet " + packet.getSequenceNumber() + " ("
+				                + paddedLen + " bytes) with fragments " + fragments + " and "
+				                + packet.getAcks().size() + " acks on "+this);
+			}
+			pn.sendEncryptedPacket(data, 0, paddedLen);
+		}
+	}
+
 	NPFPacket createPacket(int maxPacketSize, PeerMessageQueue messageQueue, SessionKey sessionKey, boolean ackOnly) throws BlockedTooLongException {
 		
 		checkForLostPackets();
@@ -730,7 +749,12 @@ public class NewPacketFormat implements PacketFormat {
 						if (logDEBUG)
 							Logger.debug(this, "Allocated " + messageID + " for " + item + " for " + this);
 
-						MessageWrapper wrapper = new MessageWrapper(item, messageID);
+						MessageWrapper wrapper;
+						TrafficStats traffic = pn.getTrafficStats();
+						if(traffic != null)
+							wrapper = new MessageWrapper(item, messageID, traffic.getCounters(item), pn.getTrafficCounters());
+						else
+							wrapper = new MessageWrapper(item, messageID);
 						MessageFragment frag = wrapper.getMessageFragment(maxPacketSize - packet.getLength());
 						if (frag == null) {
 							messageQueue.pushfrontPrioritizedMessageItem(item);
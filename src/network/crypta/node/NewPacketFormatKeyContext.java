@@ -28,6 +28,10 @@ public class NewPacketFormatKeyContext {
 	/** Index of the packet with the lowest sequence number */
 	public int watchListPointer = 0;
 	public int watchListOffset = 0;
+	/** Node-wide index of the watch lists, or null. Kept in sync by setWatchListEntry(). */
+	private final SessionTagIndex tagIndex;
+	/** Set by discard(), after which the watch list is no longer indexed. */
+	private boolean discarded;
 	
 	private final TreeMap<Integer, Long> acks = new TreeMap<Integer, Long>();
 	private final HashMap<Integer, SentPacket> sentPackets = new HashMap<Integer, SentPacket>();
@@ -61,6 +65,11 @@ public class NewPacketFormatKeyContext {
 	}
 
 	NewPacketFormatKeyContext(int ourFirstSeqNum, int theirFirstSeqNum) {
+		this(ourFirstSeqNum, theirFirstSeqNum, null);
+	}
+
+	NewPacketFormatKeyContext(int ourFirstSeqNum, int theirFirstSeqNum, SessionTagIndex tagIndex) {
+		this.tagIndex = tagIndex;
 		ourFirstSeqNum &= 0x7FFFFFFF;
 		theirFirstSeqNum &= 0x7FFFFFFF;
 		
@@ -71,6 +80,40 @@ public class NewPacketFormatKeyContext {
 		if(this.highestReceivedSeqNum == -1) this.highestReceivedSeqNum = Integer.MAX_VALUE;
 	}
 	
+	/** Set an entry in the sequence number watch list, updating the tag index if there is one. */
+	void setWatchListEntry(int index, byte[] encryptedSeqNum, SessionKey key) {
+		byte[] old;
+		synchronized(this) {
+			old = seqNumWatchList[index];
+			seqNumWatchList[index] = encryptedSeqNum;
+		}
+		if(tagIndex != null) {
+			if(old != null) tagIndex.remove(old, key);
+			tagIndex.add(encryptedSeqNum, key);
+			// Raced with discard().
+			if(isDiscarded()) tagIndex.remove(encryptedSeqNum, key);
+		}
+	}
+
+	private synchronized boolean isDiscarded() {
+		return discarded;
+	}
+
+	/** Remove the watch list from the tag index, because the PeerNode no longer uses the key.
+	 * The index isn't locked while we call it, as adding to it may call PeerNode's. */
+	void discard(SessionKey key) {
+		if(tagIndex == null) return;
+		byte[][] watchList;
+		synchronized(this) {
+			discarded = true;
+			if(seqNumWatchList == null) return;
+			watchList = seqNumWatchList.clone();
+		}
+		for(byte[] encryptedSeqNum : watchList) {
+			if(encryptedSeqNum != null) tagIndex.remove(encryptedSeqNum, key);
+		}
+	}
+
 	boolean canAllocateSeqNum() {
 		synchronized(sequenceNumberLock) {
 			return nextSeqNum != firstSeqNumUsed;
@@ -55,6 +55,8 @@ import java.net.UnknownHostException;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
 import static java.util.concurrent.TimeUnit.*;
 import static network.crypta.node.stats.DataStoreKeyType.*;
@@ -279,6 +281,58 @@ public class Node implements TimeSkewDetectorCallback {
         }
     }
 
+    private class TickerTypeCallback extends StringCallback implements EnumerableOptionCallback {
+
+        @Override
+        public String get() {
+            synchronized (Node.this) {
+                return tickerType;
+            }
+        }
+
+        @Override
+        public void set(String val) throws InvalidConfigValueException, NodeNeedRestartException {
+            if (!Arrays.asList(getPossibleValues()).contains(val))
+                throw new InvalidConfigValueException("Invalid ticker type");
+            synchronized (Node.this) {
+                if (val.equals(tickerType)) return;
+                tickerType = val;
+            }
+            throw new NodeNeedRestartException("Ticker type cannot be changed on the fly");
+        }
+
+        @Override
+        public String[] getPossibleValues() {
+            return new String[]{"prioritized", "wheel"};
+        }
+    }
+
+    private class ExecutorTypeCallback extends StringCallback implements EnumerableOptionCallback {
+
+        @Override
+        public String get() {
+            synchronized (Node.this) {
+                return executorType;
+            }
+        }
+
+        @Override
+        public void set(String val) throws InvalidConfigValueException, NodeNeedRestartException {
+            if (!Arrays.asList(getPossibleValues()).contains(val))
+                throw new InvalidConfigValueException("Invalid executor type");
+            synchronized (Node.this) {
+                if (val.equals(executorType)) return;
+                executorType = val;
+            }
+            throw new NodeNeedRestartException("Executor type cannot be changed on the fly");
+        }
+
+        @Override
+        public String[] getPossibleValues() {
+            return new String[]{"pooled", "virtual"};
+        }
+    }
+
     private class ClientCacheTypeCallback extends StringCallback implements EnumerableOptionCallback {
 
         @Override
@@ -454,6 +508,7 @@ public class Node implements TimeSkewDetectorCallback {
     private String storeType;
     private boolean storeUseSlotFilters;
     private boolean storeSaltHashResizeOnStart;
+    private boolean storeSaltHashMmapMetadata;
     private int storeSaltHashSlotFilterPersistenceTime;
 
     /**
@@ -768,6 +823,9 @@ public class Node implements TimeSkewDetectorCallback {
     /* It’s not the field that is deprecated but accessing it directly is. */
     public final Executor executor;
 
+    /** If non-null, our UDP ports are simulated in memory on this network. */
+    final SimulatedNetwork simulatedNetwork;
+
     /**
      * @deprecated Use {@link #getPacketSender()} instead of accessing this directly.
      */
@@ -780,7 +838,11 @@ public class Node implements TimeSkewDetectorCallback {
      */
     @Deprecated
     /* It’s not the field that is deprecated but accessing it directly is. */
-    public final PrioritizedTicker ticker;
+    public final Ticker ticker;
+    /** The Ticker implementation: "prioritized" or "wheel". */
+    private String tickerType;
+    /** How the executor runs jobs: "pooled" or "virtual". */
+    private String executorType;
 
     /**
      * @deprecated Use {@link #getDNSRequester()} instead of accessing this directly.
@@ -893,6 +955,8 @@ public class Node implements TimeSkewDetectorCallback {
     @Deprecated
     /* It’s not the field that is deprecated but accessing it directly is. */
     public final IOStatisticCollector collector;
+    /** Numbers the node publishes for monitoring, see MetricsToadlet. */
+    private final MetricsRegistry metrics = new MetricsRegistry();
     /**
      * Type identifier for fproxy node to node messages, as sent on DMT.nodeToNodeMessage's
      */
@@ -1245,6 +1309,20 @@ public class Node implements TimeSkewDetectorCallback {
      * @throws NodeInitException If the node initialization fails.
      */
     Node(PersistentConfig config, RandomSource r, RandomSource weakRandom, LoggingConfigHandler lc, NodeStarter ns, Executor executor) throws NodeInitException {
+        this(config, r, weakRandom, lc, ns, executor, null);
+    }
+
+    /**
+     * Create a Node from a Config object.
+     *
+     * @param network If non-null, bind our UDP ports on this simulated network rather than to
+     *                real sockets. It must run on real time, since the node reads the wall clock.
+     * @see #Node(PersistentConfig, RandomSource, RandomSource, LoggingConfigHandler, NodeStarter, Executor)
+     */
+    Node(PersistentConfig config, RandomSource r, RandomSource weakRandom, LoggingConfigHandler lc, NodeStarter ns, Executor executor, SimulatedNetwork network) throws NodeInitException {
+        if (network != null && network.isVirtualTime())
+            throw new IllegalArgumentException("Nodes can't run on a network with virtual time");
+        this.simulatedNetwork = network;
         this.shutdownHook = SemiOrderedShutdownHook.get();
         // Easy stuff
         String tmp = "Initializing Node using Freenet Build #" + Version.buildNumber() + " r" + Version.cvsRevision() + " and freenet-ext Build #" + NodeStarter.extBuildNumber + " r" + NodeStarter.extRevisionNumber + " with " + System.getProperty("java.vendor") + " JVM version " + System.getProperty("java.version") + " running on " + System.getProperty("os.arch") + ' ' + System.getProperty("os.name") + ' ' + System.getProperty("os.version");
@@ -1776,10 +1854,20 @@ public class Node implements TimeSkewDetectorCallback {
         // Must be created after darknetCrypto
         dnsr = new DNSRequester(this);
         ps = new PacketSender(this);
-        ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
+        nodeConfig.register("tickerType", "prioritized", sortOrder++, true, true, "Node.tickerType", "Node.tickerTypeLong", new TickerTypeCallback());
+        tickerType = nodeConfig.getString("tickerType");
+        if ("wheel".equals(tickerType))
+            ticker = new HashedWheelTicker(executor, getDarknetPortNumber());
+        else
+            ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
         if (executor instanceof PooledExecutor)
             ((PooledExecutor) executor).setTicker(ticker);
 
+        nodeConfig.register("executorType", "pooled", sortOrder++, true, false, "Node.executorType", "Node.executorTypeLong", new ExecutorTypeCallback());
+        executorType = nodeConfig.getString("executorType");
+        if (executor instanceof PooledExecutor)
+            ((PooledExecutor) executor).setUseVirtualThreads(executorType.equals("virtual"));
+
         Logger.normal(Node.class, "Creating node...");
 
         shutdownHook.addEarlyJob(new Thread() {
@@ -2367,6 +2455,38 @@ public class Node implements TimeSkewDetectorCallback {
                 });
         storeSaltHashResizeOnStart = nodeConfig.getBoolean("storeSaltHashResizeOnStart");
 
+        nodeConfig.register("storeSaltHashCleanerThreads", SaltedHashFreenetStore.getCleanerThreads(), sortOrder++, true, false,
+                "Node.storeSaltHashCleanerThreads", "Node.storeSaltHashCleanerThreadsLong", new IntCallback() {
+                    @Override
+                    public Integer get() {
+                        return SaltedHashFreenetStore.getCleanerThreads();
+                    }
+
+                    @Override
+                    public void set(Integer val) throws InvalidConfigValueException {
+                        if (val < 1)
+                            throw new InvalidConfigValueException(l10n("storeSaltHashCleanerThreadsError"));
+                        SaltedHashFreenetStore.setCleanerThreads(val);
+                    }
+                }, false);
+        SaltedHashFreenetStore.setCleanerThreads(nodeConfig.getInt("storeSaltHashCleanerThreads"));
+
+        nodeConfig.register("storeSaltHashMmapMetadata", false, sortOrder++, true, false,
+                "Node.storeSaltHashMmapMetadata", "Node.storeSaltHashMmapMetadataLong", new BooleanCallback() {
+                    @Override
+                    public Boolean get() {
+                        return storeSaltHashMmapMetadata;
+                    }
+
+                    @Override
+                    public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+                        storeSaltHashMmapMetadata = val;
+                        for (SaltedHashFreenetStore<?> store : getSaltedHashStores().values())
+                            store.setUseMappedMetadata(val);
+                    }
+                });
+        storeSaltHashMmapMetadata = nodeConfig.getBoolean("storeSaltHashMmapMetadata");
+
         this.storeDir = setupProgramDir(installConfig, "storeDir", userDir().file("datastore").getPath(), "Node.storeDirectory", "Node.storeDirectoryLong", nodeConfig);
         installConfig.finishedInitialization();
 
@@ -2541,8 +2661,63 @@ public class Node implements TimeSkewDetectorCallback {
 
         cachingFreenetStorePeriod = nodeConfig.getLong("cachingFreenetStorePeriod");
 
+        nodeConfig.register("cachingFreenetStoreBatchSize", CachingFreenetStoreTracker.DEFAULT_BATCH_SIZE, sortOrder++, true, false,
+                "Node.cachingCryptaStoreBatchSize", "Node.cachingCryptaStoreBatchSizeLong", new IntCallback() {
+                    @Override
+                    public Integer get() {
+                        synchronized (Node.this) {
+                            return cachingFreenetStoreBatchSize;
+                        }
+                    }
+
+                    @Override
+                    public void set(Integer val) throws InvalidConfigValueException {
+                        if (val < 1)
+                            throw new InvalidConfigValueException(l10n("cachingCryptaStoreBatchSizeError"));
+                        synchronized (Node.this) {
+                            cachingFreenetStoreBatchSize = val;
+                        }
+                        CachingFreenetStoreTracker tracker = cachingFreenetStoreTracker;
+                        if (tracker != null)
+                            tracker.setBatchSize(val);
+                    }
+                }, false);
+
+        cachingFreenetStoreBatchSize = nodeConfig.getInt("cachingFreenetStoreBatchSize");
+        if (cachingFreenetStoreBatchSize < 1)
+            throw new NodeInitException(NodeInitException.EXIT_BAD_CONFIG, l10n("cachingCryptaStoreBatchSizeError"));
+
+        nodeConfig.register("cachingFreenetStoreIdleFlush", "10k", sortOrder++, true, false,
+                "Node.cachingCryptaStoreIdleFlush", "Node.cachingCryptaStoreIdleFlushLong", new LongCallback() {
+                    @Override
+                    public Long get() {
+                        synchronized (Node.this) {
+                            return cachingFreenetStoreIdleFlush;
+                        }
+                    }
+
+                    @Override
+                    public void set(Long val) throws InvalidConfigValueException {
+                        if (val < 0)
+                            throw new InvalidConfigValueException(l10n("cachingCryptaStoreIdleFlushError"));
+                        synchronized (Node.this) {
+                            cachingFreenetStoreIdleFlush = val;
+                        }
+                        CachingFreenetStoreTracker tracker = cachingFreenetStoreTracker;
+                        if (tracker != null)
+                            tracker.setIdleFlushDelay(val);
+                    }
+                }, true);
+
+        cachingFreenetStoreIdleFlush = nodeConfig.getLong("cachingFreenetStoreIdleFlush");
+        if (cachingFreenetStoreIdleFlush < 0)
+            throw new NodeInitException(NodeInitException.EXIT_BAD_CONFIG, l10n("cachingCryptaStoreIdleFlushError"));
+
         if (cachingFreenetStoreMaxSize > 0 && cachingFreenetStorePeriod > 0) {
-            cachingFreenetStoreTracker = new CachingFreenetStoreTracker(cachingFreenetStoreMaxSize, cachingFreenetStorePeriod, ticker);
+            CachingFreenetStoreTracker tracker = new CachingFreenetStoreTracker(cachingFreenetStoreMaxSize, cachingFreenetStorePeriod, ticker);
+            tracker.setBatchSize(cachingFreenetStoreBatchSize);
+            tracker.setIdleFlushDelay(cachingFreenetStoreIdleFlush);
+            cachingFreenetStoreTracker = tracker;
         }
 
         boolean shouldWriteConfig = false;
@@ -2923,6 +3098,8 @@ public class Node implements TimeSkewDetectorCallback {
         registerNodeToNodeMessageListener(N2N_MESSAGE_TYPE_FPROXY, fproxyN2NMListener);
         registerNodeToNodeMessageListener(Node.N2N_MESSAGE_TYPE_DIFFNODEREF, diffNoderefListener);
 
+        registerMetrics();
+
         // FIXME this is a hack
         // toadlet server should start after all initialized
         // see NodeClientCore line 437
@@ -3203,7 +3380,9 @@ public class Node implements TimeSkewDetectorCallback {
 
     private long cachingFreenetStoreMaxSize;
     private long cachingFreenetStorePeriod;
-    private CachingFreenetStoreTracker cachingFreenetStoreTracker;
+    private int cachingFreenetStoreBatchSize;
+    private long cachingFreenetStoreIdleFlush;
+    private volatile CachingFreenetStoreTracker cachingFreenetStoreTracker;
 
     private void initSaltHashFS(final String suffix, boolean dontResizeOnStart, byte[] masterKey) throws NodeInitException {
         try {
@@ -3388,6 +3567,8 @@ public class Node implements TimeSkewDetectorCallback {
         SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.construct(getStoreDir(), type + "-" + store, cb,
                 random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
         cb.setStore(fs);
+        if (storeSaltHashMmapMetadata)
+            fs.setUseMappedMetadata(true);
         if (cachingFreenetStoreMaxSize > 0)
             return new CachingFreenetStore<T>(cb, fs, cachingFreenetStoreTracker);
         else
@@ -3412,7 +3593,10 @@ public class Node implements TimeSkewDetectorCallback {
         if (opennet != null)
             opennet.start();
         ps.start(nodeStats);
-        ticker.start();
+        if (ticker instanceof HashedWheelTicker wheel)
+            wheel.start();
+        else
+            ((PrioritizedTicker) ticker).start();
         scheduleVersionTransition();
         usm.start(ticker);
 
@@ -3710,6 +3894,21 @@ public class Node implements TimeSkewDetectorCallback {
         else throw new IllegalArgumentException();
     }
 
+    /**
+     * @return Where the key would be in the main datastore, for ordering a batch of lookups, see
+     * FreenetStore.getSlotHint(). Only comparable between keys of the same type.
+     */
+    public long getStoreSlotHint(Key key) {
+        StoreCallback<?> store;
+        if (key instanceof NodeSSK)
+            store = sskDatastore;
+        else if (key instanceof NodeCHK)
+            store = chkDatastore;
+        else throw new IllegalArgumentException();
+        if (store == null) return 0;
+        return store.getStore().getSlotHint(key.getRoutingKey());
+    }
+
     public SSKBlock fetch(NodeSSK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR, BlockMetadata meta) {
         double loc = key.toNormalizedDouble();
         double dist = Location.distance(lm.getLocation(), loc);
@@ -3901,6 +4100,84 @@ public class Node implements TimeSkewDetectorCallback {
         return map;
     }
 
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    private void registerMetrics() {
+        registerStoreMetrics("chk", "store", () -> chkDatastore);
+        registerStoreMetrics("chk", "cache", () -> chkDatacache);
+        registerStoreMetrics("chk", "slashdot", () -> chkSlashdotcache);
+        registerStoreMetrics("chk", "client", () -> chkClientcache);
+        registerStoreMetrics("ssk", "store", () -> sskDatastore);
+        registerStoreMetrics("ssk", "cache", () -> sskDatacache);
+        registerStoreMetrics("ssk", "slashdot", () -> sskSlashdotcache);
+        registerStoreMetrics("ssk", "client", () -> sskClientcache);
+        registerStoreMetrics("pubkey", "store", () -> pubKeyDatastore);
+        registerStoreMetrics("pubkey", "cache", () -> pubKeyDatacache);
+        registerStoreMetrics("pubkey", "slashdot", () -> pubKeySlashdotcache);
+        registerStoreMetrics("pubkey", "client", () -> pubKeyClientcache);
+        nodeStats.registerMetrics(metrics);
+        peers.registerMetrics(metrics);
+        tracker.registerMetrics(metrics);
+    }
+
+    /** The stores can be replaced while the node is running, e.g. when the client cache is
+     * unlocked, so look them up on each scrape. */
+    private void registerStoreMetrics(String key, String type, Supplier<StoreCallback<?>> store) {
+        String[] labels = { "key", key, "store", type };
+        metrics.counter("crypta_store_hits_total", "Successful datastore lookups since startup.",
+                () -> readStore(store, StoreCallback::hits), labels);
+        metrics.counter("crypta_store_misses_total", "Failed datastore lookups since startup.",
+                () -> readStore(store, StoreCallback::misses), labels);
+        metrics.counter("crypta_store_writes_total", "Datastore writes since startup.",
+                () -> readStore(store, StoreCallback::writes), labels);
+        metrics.gauge("crypta_store_keys", "Keys in the datastore.",
+                () -> readStore(store, StoreCallback::keyCount), labels);
+        metrics.gauge("crypta_store_max_keys", "Capacity of the datastore in keys.",
+                () -> readStore(store, StoreCallback::getMaxKeys), labels);
+    }
+
+    private static long readStore(Supplier<StoreCallback<?>> store, ToLongFunction<StoreCallback<?>> value) {
+        StoreCallback<?> cb = store.get();
+        return cb == null ? 0 : value.applyAsLong(cb);
+    }
+
+    /**
+     * @return The salted hash stores in use, for diagnostics. Stores of other types, e.g. in RAM,
+     * are not included.
+     */
+    public Map<DataStoreInstanceType, SaltedHashFreenetStore<?>> getSaltedHashStores() {
+        Map<DataStoreInstanceType, SaltedHashFreenetStore<?>> map = new LinkedHashMap<DataStoreInstanceType, SaltedHashFreenetStore<?>>();
+        addSaltedHashStore(map, new DataStoreInstanceType(CHK, STORE), chkDatastore);
+        addSaltedHashStore(map, new DataStoreInstanceType(CHK, CACHE), chkDatacache);
+        addSaltedHashStore(map, new DataStoreInstanceType(CHK, CLIENT), chkClientcache);
+        addSaltedHashStore(map, new DataStoreInstanceType(SSK, STORE), sskDatastore);
+        addSaltedHashStore(map, new DataStoreInstanceType(SSK, CACHE), sskDatacache);
+        addSaltedHashStore(map, new DataStoreInstanceType(SSK, CLIENT), sskClientcache);
+        addSaltedHashStore(map, new DataStoreInstanceType(PUB_KEY, STORE), pubKeyDatastore);
+        addSaltedHashStore(map, new DataStoreInstanceType(PUB_KEY, CACHE), pubKeyDatacache);
+        addSaltedHashStore(map, new DataStoreInstanceType(PUB_KEY, CLIENT), pubKeyClientcache);
+        return map;
+    }
+
+    private static void addSaltedHashStore(Map<DataStoreInstanceType, SaltedHashFreenetStore<?>> map, DataStoreInstanceType type, StoreCallback<?> cb) {
+        if (cb == null) return;
+        FreenetStore<?> store = cb.getStore();
+        if (store instanceof ProxyFreenetStore)
+            store = ((ProxyFreenetStore<?>) store).getBackDatastore();
+        if (store instanceof SaltedHashFreenetStore)
+            map.put(type, (SaltedHashFreenetStore<?>) store);
+    }
+
+    /**
+     * @return The tracker for the in-memory write caches in front of the stores, or null if they
+     * are disabled.
+     */
+    public CachingFreenetStoreTracker getCachingFreenetStoreTracker() {
+        return cachingFreenetStoreTracker;
+    }
+
     public long getMaxTotalKeys() {
         return maxTotalKeys;
     }
@@ -12,6 +12,7 @@ import network.crypta.client.FetchContext;
 import network.crypta.client.HighLevelSimpleClient;
 import network.crypta.client.HighLevelSimpleClientImpl;
 import network.crypta.client.InsertContext;
+import network.crypta.client.ReedSolomonFECCodec;
 import network.crypta.client.async.ClientContext;
 import network.crypta.client.async.ClientLayerPersister;
 import network.crypta.client.async.ClientRequestScheduler;
@@ -517,6 +518,26 @@ public class NodeClientCore implements Persistable {
 					}
 				});
 
+		nodeConfig.register("RAMBucketPoolOffHeap", false, sortOrder++, true, false,
+				    "NodeClientCore.ramBucketPoolOffHeap",
+				    "NodeClientCore.ramBucketPoolOffHeapLong", new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return (tempBucketFactory != null && tempBucketFactory
+                                .isUsingDirectSlabs());
+					}
+
+					@Override
+					public void set(Boolean val)
+							throws InvalidConfigValueException {
+						if (get().equals(val) || (tempBucketFactory
+									  == null))
+							return;
+						tempBucketFactory.setUseDirectSlabs(val);
+					}
+				});
+
 		initDiskSpaceLimits(nodeConfig, sortOrder);
 
 		cryptoSecretTransient = new MasterSecret();
@@ -527,6 +548,7 @@ public class NodeClientCore implements Persistable {
 						      node.getFastWeakRandom(),
 						      nodeConfig.getBoolean("encryptTempBuckets"),
 						      minDiskFreeShortTerm, cryptoSecretTransient);
+		tempBucketFactory.setUseDirectSlabs(nodeConfig.getBoolean("RAMBucketPoolOffHeap"));
 
 		bandwidthStatsPutter = new PersistentStatsPutter();
 
@@ -638,6 +660,28 @@ public class NodeClientCore implements Persistable {
 					    }
 
 				    }, false);
+		nodeConfig.register("fecMaxParallelism", Runtime.getRuntime().availableProcessors(),
+				    sortOrder++, true, false,
+				    "NodeClientCore.fecMaxParallelism",
+				    "NodeClientCore.fecMaxParallelismLong",
+				    new IntCallback() {
+
+					    @Override
+					    public Integer get() {
+						    return ReedSolomonFECCodec.getMaxParallelism();
+					    }
+
+					    @Override
+					    public void set(Integer val)
+							    throws InvalidConfigValueException {
+						    if (val < 1)
+							    throw new InvalidConfigValueException(
+									    l10n("fecMaxParallelismMustBe1Plus"));
+						    ReedSolomonFECCodec.setMaxParallelism(val);
+					    }
+
+				    }, false);
+		ReedSolomonFECCodec.setMaxParallelism(nodeConfig.getInt("fecMaxParallelism"));
 		long defaultMemoryLimitedJobMemoryLimit = FECCodec.MIN_MEMORY_ALLOCATION;
 		long overallMemoryLimit = NodeStarter.getMemoryLimitBytes();
 		if (overallMemoryLimit > 512 * 1024 * 1024) {
@@ -1140,6 +1184,7 @@ public class NodeClientCore implements Persistable {
 		requestStarters.start();
 
 		storeChecker.start();
+		tempBucketFactory.start(node.getTicker());
 		if(fcpServer != null)
 			fcpServer.maybeStart();
         node.getPluginManager().start();
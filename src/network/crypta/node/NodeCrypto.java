@@ -9,6 +9,7 @@ import java.net.MalformedURLException;
 import java.nio.charset.StandardCharsets;
 import java.security.interfaces.ECPublicKey;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.zip.DeflaterOutputStream;
 
 import network.crypta.crypt.BlockCipher;
@@ -59,6 +60,9 @@ public class NodeCrypto {
 	/* It’s not the field that is deprecated but accessing it directly is. */
 	final UdpSocketHandler socket;
 
+	/** Encrypted sequence numbers expected by each session on this port. */
+	private final SessionTagIndex sessionTagIndex = new SessionTagIndex();
+
 	/**
 	 * @deprecated Use {@link #getPacketMangler()} instead of accessing this directly.
 	 */
@@ -153,6 +157,12 @@ public class NodeCrypto {
 	/** A synchronization object used while signing the reference fieldset */
 	private final Object referenceSync = new Object();
 
+	private UdpSocketHandler createSocket(int port, FreenetInetAddress bindto, long startupTime) throws IOException {
+		if(node.simulatedNetwork != null)
+			return node.simulatedNetwork.createSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.getCollector());
+		return new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.getCollector());
+	}
+
 	/**
 	 * Get port number from a config, create socket and packet mangler
 	 * @throws NodeInitException
@@ -181,7 +191,7 @@ public class NodeCrypto {
 			for(int i=0;i<200000;i++) {
 				int portNo = 1024 + random.nextInt(65535-1024);
 				try {
-					u = new UdpSocketHandler(portNo, bindto.getAddress(), node, startupTime, getTitle(portNo), node.getCollector());
+					u = createSocket(portNo, bindto, startupTime);
 					port = u.getPortNumber();
 					break;
 				} catch (Exception e) {
@@ -195,7 +205,7 @@ public class NodeCrypto {
 				throw new NodeInitException(NodeInitException.EXIT_NO_AVAILABLE_UDP_PORTS, "Could not find an available UDP port number for FNP (none specified)");
 		} else {
 			try {
-				u = new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.getCollector());
+				u = createSocket(port, bindto, startupTime);
 			} catch (Exception e) {
 				Logger.error(this, "Caught "+e, e);
 				System.err.println(e);
@@ -211,6 +221,7 @@ public class NodeCrypto {
 		config.setPort(port);
 
 		socket.setDropProbability(config.getDropProbability());
+		socket.setReceiveThreads(config.getReceiveThreads());
 
 		packetMangler = new FNPPacketMangler(node, this, socket);
 
@@ -532,6 +543,30 @@ public class NodeCrypto {
 		socket.close();
 	}
 
+	/**
+	 * Find the peers which might be able to decrypt a data packet, by looking up its encrypted
+	 * sequence number in the index of the sequence numbers our sessions are expecting. Peers whose
+	 * keys have not been used yet are not in the index, see
+	 * {@link PeerNode#hasUnindexedSessionKey()}.
+	 * @return The candidate peers, usually none or one.
+	 */
+	public List<PeerNode> getPeersExpectingPacket(byte[] buf, int offset, int length) {
+		if(!NewPacketFormat.mightBeDataPacket(length)) return List.of();
+		List<SessionKey> keys = sessionTagIndex.get(buf, NewPacketFormat.getSequenceNumberTagOffset(offset));
+		if(keys.isEmpty()) return List.of();
+		List<PeerNode> peers = new ArrayList<PeerNode>(keys.size());
+		for(SessionKey key : keys) {
+			if(key.pn != null && !peers.contains(key.pn))
+				peers.add(key.pn);
+		}
+		return peers;
+	}
+
+	/** The index of the sequence numbers expected by the sessions on this port. */
+	SessionTagIndex getSessionTagIndex() {
+		return sessionTagIndex;
+	}
+
 	public PeerNode[] getPeerNodes() {
 		if(node.getPeers() == null) return null;
 		if(isOpennet)
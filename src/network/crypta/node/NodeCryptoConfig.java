@@ -54,6 +54,9 @@ public class NodeCryptoConfig {
 	/** If false we won't make any effort do disguise the length of packets */
 	private boolean paddDataPackets;
 	
+	/** Number of threads decoding incoming packets. 0 = decode on the thread reading the socket. */
+	private int receiveThreads;
+	
 	NodeCryptoConfig(SubConfig config, int sortOrder, boolean isOpennet, SecurityLevels securityLevels) throws NodeInitException {
 		config.register("listenPort", -1 /* means random */, sortOrder++, true, true,
 				isOpennet ? "Node.opennetPort" : "Node.port", 
@@ -240,6 +243,29 @@ public class NodeCryptoConfig {
 		});
 		
 		paddDataPackets = config.getBoolean("paddDataPackets");
+		
+		config.register("receiveThreads", 0, sortOrder++, true, true, "Node.receiveThreads", "Node.receiveThreadsLong", new IntCallback() {
+
+			@Override
+			public Integer get() {
+				synchronized(NodeCryptoConfig.this) {
+					return receiveThreads;
+				}
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 0) throw new InvalidConfigValueException("receiveThreads must not be negative");
+				synchronized(NodeCryptoConfig.this) {
+					if(val == receiveThreads) return;
+					receiveThreads = val;
+				}
+				throw new NodeNeedRestartException("Need to restart to change receiveThreads");
+			}
+		}, false);
+		
+		receiveThreads = config.getInt("receiveThreads");
+		if(receiveThreads < 0) receiveThreads = 0;
 	}
 
 	/** The number of config options i.e. the amount to increment sortOrder by */
@@ -316,4 +342,8 @@ public class NodeCryptoConfig {
 	public boolean paddDataPackets() {
 		return paddDataPackets;
 	}
+
+	public synchronized int getReceiveThreads() {
+		return receiveThreads;
+	}
 }
@@ -12,6 +12,7 @@ import network.crypta.crypt.JceLoader;
 import network.crypta.crypt.RandomSource;
 import network.crypta.crypt.SSL;
 import network.crypta.crypt.Yarrow;
+import network.crypta.io.comm.SimulatedNetwork;
 import network.crypta.support.*;
 import network.crypta.support.Logger.LogLevel;
 import network.crypta.support.LoggerHook.InvalidThresholdException;
@@ -303,6 +304,8 @@ public class NodeStarter implements WrapperListener {
         configFS.putSingle("node.install.cfgDir", portDir.toString());
         configFS.put("node.maxHTL", params.maxHTL);
         configFS.put("node.testingDropPacketsEvery", params.dropProb);
+        configFS.put("node.receiveThreads", params.receiveThreads);
+        configFS.put("node.opennet.receiveThreads", params.receiveThreads);
         configFS.put("node.alwaysAllowLocalAddresses", true);
         configFS.put("node.includeLocalAddressesInNoderefs", true);
         configFS.put("node.enableARKs", false);
@@ -346,7 +349,7 @@ public class NodeStarter implements WrapperListener {
 
         PersistentConfig config = new PersistentConfig(configFS);
 
-        Node node = new Node(config, params.random, params.random, null, null, params.executor);
+        Node node = new Node(config, params.random, params.random, null, null, params.executor, params.network);
 
         //All testing environments connect the nodes as they want, even if the old setup is restored,
         // it is not desired.
@@ -647,6 +650,16 @@ public class NodeStarter implements WrapperListener {
         public String ipAddressOverride;
         public boolean enableFCP;
         public boolean enablePlugins;
+        /**
+         * Number of threads decoding incoming packets on each port. 0 means decode on the thread
+         * reading the socket.
+         */
+        public int receiveThreads;
+        /**
+         * If non-null, the node's UDP ports are simulated in memory on this network rather than
+         * bound to real sockets.
+         */
+        public SimulatedNetwork network;
     }
 
     static SemiOrderedShutdownHook shutdownHook;
@@ -15,6 +15,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.ConcurrentHashMap;
+import network.crypta.client.async.DatastoreChecker;
 import network.crypta.config.InvalidConfigValueException;
 import network.crypta.config.NodeNeedRestartException;
 import network.crypta.config.SubConfig;
@@ -28,20 +29,27 @@ import network.crypta.l10n.NodeL10n;
 import network.crypta.node.RequestTracker.CountedRequests;
 import network.crypta.node.RequestTracker.WaitingForSlots;
 import network.crypta.node.SecurityLevels.NETWORK_THREAT_LEVEL;
+import network.crypta.node.stats.DataStoreInstanceType;
 import network.crypta.node.stats.StatsNotAvailableException;
 import network.crypta.node.stats.StoreLocationStats;
 import network.crypta.store.StoreCallback;
+import network.crypta.store.caching.CachingFreenetStoreTracker;
+import network.crypta.store.saltedhash.SaltedHashFreenetStore;
 import network.crypta.support.HTMLNode;
 import network.crypta.support.Histogram2;
 import network.crypta.support.LogThresholdCallback;
 import network.crypta.support.Logger;
 import network.crypta.support.Logger.LogLevel;
+import network.crypta.support.MetricsRegistry;
+import network.crypta.support.PooledExecutor;
 import network.crypta.support.SimpleFieldSet;
 import network.crypta.support.StringCounter;
 import network.crypta.support.TimeUtil;
 import network.crypta.support.api.BooleanCallback;
 import network.crypta.support.api.IntCallback;
 import network.crypta.support.api.LongCallback;
+import network.crypta.support.compress.RealCompressor;
+import network.crypta.support.io.TempBucketFactory;
 import network.crypta.support.math.BootstrappingDecayingRunningAverage;
 import network.crypta.support.math.DecayingKeyspaceAverage;
 import network.crypta.support.math.RunningAverage;
@@ -159,6 +167,8 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	public final BootstrappingDecayingRunningAverage pInstantRejectIncomingCHKInsertBulk;
 	public final BootstrappingDecayingRunningAverage pInstantRejectIncomingSSKInsertBulk;
 	private boolean ignoreLocalVsRemoteBandwidthLiability;
+	/** Outgoing traffic by message type. Per peer counters are on each PeerNode. */
+	private final TrafficStats trafficStats = new TrafficStats();
 
 	/** Average delay caused by throttling for sending a packet */
 	private final RunningAverage throttledPacketSendAverage;
@@ -465,6 +475,20 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 
 		});
 		
+		statsConfig.register("trafficStats", false, sortOrder++, true, false, "NodeStat.trafficStats", "NodeStat.trafficStatsLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				return trafficStats.isEnabled();
+			}
+
+			@Override
+			public void set(Boolean val) {
+				trafficStats.setEnabled(val);
+			}
+		});
+		trafficStats.setEnabled(statsConfig.getBoolean("trafficStats"));
+
 		statsConfig.registerIgnoredOption("enableNewLoadManagementRT");
 		statsConfig.registerIgnoredOption("enableNewLoadManagementBulk");
 
@@ -1658,7 +1682,11 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	}
 
 	public int getActiveThreadCount() {
-		return rootThreadGroup.activeCount() - node.getExecutor().getWaitingThreadsCount();
+		int count = rootThreadGroup.activeCount() - node.getExecutor().getWaitingThreadsCount();
+		// Virtual threads are not in any thread group.
+		if(node.getExecutor() instanceof PooledExecutor)
+			count += ((PooledExecutor) node.getExecutor()).getVirtualThreadCount();
+		return count;
 	}
 
 	public int[] getActiveThreadsByPriority() {
@@ -1690,6 +1718,11 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return threads;
 	}
 
+	/** @return Outgoing traffic by message type, whether or not it is enabled. */
+	public TrafficStats getTrafficStats() {
+		return trafficStats;
+	}
+
 	public SimpleFieldSet exportVolatileFieldSet() {
 		SimpleFieldSet fs = new SimpleFieldSet(true);
 		long now = System.currentTimeMillis();
@@ -1726,6 +1759,8 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("pInstantReject", pRejectIncomingInstantly());
 		fs.put("unclaimedFIFOSize", node.getUSM().getUnclaimedFIFOSize());
 		fs.put("RAMBucketPoolSize", node.getClientCore().getTempBucketFactory().getRamUsed());
+		if(trafficStats.isEnabled())
+			fs.put("traffic", trafficStats.exportFieldSet());
 
 		/* gather connection statistics */
 		PeerNodeStatus[] peerNodeStatuses = peers.getPeerNodeStatuses(true);
@@ -1951,6 +1986,61 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("overallAccesses", overallAccesses);
 		fs.put("avgStoreAccessRate", avgStoreAccessRate);
 
+		// Progress of any datastore resize or slot filter rebuild
+		for(Map.Entry<DataStoreInstanceType, SaltedHashFreenetStore<?>> entry : node.getSaltedHashStores().entrySet()) {
+			SaltedHashFreenetStore.CleanerStatus status = entry.getValue().getCleanerStatus();
+			if(status == null) continue;
+			String prefix = "storeCleaner." + entry.getKey().key.name() + "." + entry.getKey().store.name() + ".";
+			fs.putSingle(prefix + "type", status.resizing ? "resize" : "rebuild");
+			fs.put(prefix + "processed", status.processed);
+			fs.put(prefix + "total", status.total);
+			fs.put(prefix + "eta", status.eta);
+		}
+
+		// In-memory write cache in front of the stores
+		CachingFreenetStoreTracker cacheTracker = node.getCachingFreenetStoreTracker();
+		if(cacheTracker != null) {
+			fs.put("storeWriteCache.queuedBytes", cacheTracker.getSizeOfCache());
+			fs.put("storeWriteCache.queuedBlocks", cacheTracker.getQueuedBlocks());
+			fs.put("storeWriteCache.blocksCached", cacheTracker.getBlocksCached());
+			fs.put("storeWriteCache.blocksRejected", cacheTracker.getBlocksRejected());
+			fs.put("storeWriteCache.blocksFlushed", cacheTracker.getBlocksFlushed());
+			fs.put("storeWriteCache.batchesFlushed", cacheTracker.getBatchesFlushed());
+			fs.put("storeWriteCache.writeCalls", cacheTracker.getWriteCalls());
+			fs.put("storeWriteCache.writeAmplification", cacheTracker.getWriteAmplification());
+		}
+
+		// Codec trials when compressing inserts
+		RealCompressor compressor = node.getClientCore().compressor;
+		fs.put("compression.inserts", compressor.getInsertsCompressed());
+		fs.put("compression.insertsSkippedBySampling", compressor.getInsertsSkippedBySampling());
+		fs.put("compression.trials", compressor.getTrialsFinished());
+		fs.put("compression.trialsAborted", compressor.getTrialsAborted());
+		fs.put("compression.bytesNotCompressed", compressor.getBytesNotCompressed());
+		fs.put("compression.cpuTimeUsed", compressor.getCPUTimeUsed());
+		fs.put("compression.cpuTimeSaved", compressor.getCPUTimeSaved());
+		fs.put("compression.cpuTimeSavedPerInsert", compressor.getCPUTimeSavedPerInsert());
+
+		// In-RAM temporary buckets
+		TempBucketFactory tbf = node.getClientCore().getTempBucketFactory();
+		fs.put("tempBuckets.ramUsed", tbf.getRamUsed());
+		fs.put("tempBuckets.ramLimit", tbf.getMaxRamUsed());
+		fs.put("tempBuckets.ramPooled", tbf.getRamPooled());
+		fs.put("tempBuckets.migrations", tbf.getMigrations());
+		fs.put("tempBuckets.migrationsPerSecond", tbf.getMigrationsPerSecond());
+		fs.put("tempBuckets.bytesSpilled", tbf.getBytesSpilled());
+		fs.put("tempBuckets.slabsAllocated", tbf.getSlabPool().getSlabsAllocated());
+		fs.put("tempBuckets.slabsReused", tbf.getSlabPool().getSlabsReused());
+
+		// Checking the datastore for the keys of new requests
+		DatastoreChecker storeChecker = node.getClientCore().getStoreChecker();
+		fs.put("storeChecker.keysChecked", storeChecker.getKeysChecked());
+		fs.put("storeChecker.keysFound", storeChecker.getKeysFound());
+		fs.put("storeChecker.batches", storeChecker.getBatches());
+		fs.put("storeChecker.checkTime", storeChecker.getCheckTime());
+		fs.put("storeChecker.keysPerSecond", storeChecker.getKeysPerSecond());
+		fs.put("storeChecker.queuedKeys", storeChecker.getQueuedKeys());
+
 		Runtime rt = Runtime.getRuntime();
 		float freeMemory = rt.freeMemory();
 		float totalMemory = rt.totalMemory();
@@ -2805,6 +2895,53 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 			hourlyStatsBulk.fillRemoteRequestHTLsBox(html);
 	}
 
+	/** Publish thread counts, bandwidth, ping time, reject rates and remote requests by HTL. */
+	void registerMetrics(MetricsRegistry metrics) {
+		metrics.gauge("crypta_threads_running", "Threads running.", () -> getActiveThreadCount());
+		metrics.gauge("crypta_threads_limit", "Maximum number of threads.", () -> getThreadLimit());
+		metrics.gauge("crypta_ping_time_milliseconds", "Average round trip time to our peers.",
+				() -> getNodeAveragePingTime());
+		String delay = "crypta_bwlimit_delay_time_milliseconds";
+		String delayHelp = "Average time packets wait for the bandwidth limiter.";
+		metrics.gauge(delay, delayHelp, () -> getBwlimitDelayTimeRT(), "realtime", "true");
+		metrics.gauge(delay, delayHelp, () -> getBwlimitDelayTimeBulk(), "realtime", "false");
+		metrics.counter("crypta_bytes_sent_total", "Bytes sent, excluding to local addresses.",
+				() -> node.getCollector().getTotalBytesOut());
+		metrics.counter("crypta_bytes_received_total", "Bytes received, excluding from local addresses.",
+				() -> node.getCollector().getTotalBytesIn());
+		metrics.gauge("crypta_backed_off_ratio", "Fraction of the time our peers are backed off.",
+				() -> backedOffPercent.currentValue());
+		String reject = "crypta_reject_incoming_instantly_ratio";
+		String rejectHelp = "Fraction of incoming requests rejected before being accepted.";
+		metrics.gauge(reject, rejectHelp, () -> pRejectIncomingInstantlyCHKRequestRT(), "key", "chk", "kind", "request", "realtime", "true");
+		metrics.gauge(reject, rejectHelp, () -> pRejectIncomingInstantlyCHKInsertRT(), "key", "chk", "kind", "insert", "realtime", "true");
+		metrics.gauge(reject, rejectHelp, () -> pRejectIncomingInstantlySSKRequestRT(), "key", "ssk", "kind", "request", "realtime", "true");
+		metrics.gauge(reject, rejectHelp, () -> pRejectIncomingInstantlySSKInsertRT(), "key", "ssk", "kind", "insert", "realtime", "true");
+		metrics.gauge(reject, rejectHelp, () -> pRejectIncomingInstantlyCHKRequestBulk(), "key", "chk", "kind", "request", "realtime", "false");
+		metrics.gauge(reject, rejectHelp, () -> pRejectIncomingInstantlyCHKInsertBulk(), "key", "chk", "kind", "insert", "realtime", "false");
+		metrics.gauge(reject, rejectHelp, () -> pRejectIncomingInstantlySSKRequestBulk(), "key", "ssk", "kind", "request", "realtime", "false");
+		metrics.gauge(reject, rejectHelp, () -> pRejectIncomingInstantlySSKInsertBulk(), "key", "ssk", "kind", "insert", "realtime", "false");
+		String requests = "crypta_remote_requests_total";
+		String requestsHelp = "Remote requests accepted since startup, by HTL and outcome.";
+		for(final boolean realTime : new boolean[] { true, false }) {
+			final HourlyStats stats = realTime ? hourlyStatsRT : hourlyStatsBulk;
+			String rt = Boolean.toString(realTime);
+			for(final boolean ssk : new boolean[] { false, true }) {
+				String key = ssk ? "ssk" : "chk";
+				for(int i = node.maxHTL(); i >= 0; i--) {
+					final int htl = i;
+					String h = Integer.toString(htl);
+					metrics.counter(requests, requestsHelp, () -> stats.countRemoteRequests(ssk, htl, true, true),
+							"key", key, "htl", h, "realtime", rt, "result", "local_success");
+					metrics.counter(requests, requestsHelp, () -> stats.countRemoteRequests(ssk, htl, true, false),
+							"key", key, "htl", h, "realtime", rt, "result", "remote_success");
+					metrics.counter(requests, requestsHelp, () -> stats.countRemoteRequests(ssk, htl, false, false),
+							"key", key, "htl", h, "realtime", rt, "result", "failure");
+				}
+			}
+		}
+	}
+
 	private String sanitizeDBJobType(String jobType) {
 		int typeBeginIndex = jobType.lastIndexOf('.'); // Only use the actual class name, exclude the packages
 		int typeEndIndex = jobType.indexOf('@');
@@ -0,0 +1,87 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package network.crypta.node;
+
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+
+import network.crypta.crypt.BlockCipher;
+import network.crypta.crypt.HMAC;
+import network.crypta.crypt.PCFBMode;
+
+/**
+ * Cipher, MAC and buffer state for one direction of a {@link SessionKey}, reused for every packet
+ * so that {@link NewPacketFormat} does not allocate for each one. Not thread-safe: callers must
+ * synchronize on the object for as long as they use it, including any buffer they got from it.
+ */
+final class PacketCipherState {
+
+	private final BlockCipher ivCipher;
+	private final byte[] ivNonce;
+	private final byte[] iv;
+	private final PCFBMode cipher;
+	private final byte[] hmacKey;
+	/** Created on first use, as only the cipher is needed to encrypt sequence numbers. */
+	private Mac mac;
+	private byte[] macResult;
+	private byte[] buffer;
+
+	PacketCipherState(BlockCipher cipher, BlockCipher ivCipher, byte[] ivNonce, byte[] hmacKey) {
+		this.ivCipher = ivCipher;
+		this.ivNonce = ivNonce;
+		iv = new byte[ivCipher.getBlockSize() / 8];
+		this.cipher = PCFBMode.create(cipher, iv);
+		this.hmacKey = hmacKey;
+	}
+
+	/** Reset the payload cipher to the IV for the given sequence number.
+	 * @return The cipher, valid until the next call. */
+	PCFBMode getCipher(int sequenceNumber) {
+		System.arraycopy(ivNonce, 0, iv, 0, iv.length);
+		iv[iv.length - 4] = (byte) (sequenceNumber >>> 24);
+		iv[iv.length - 3] = (byte) (sequenceNumber >>> 16);
+		iv[iv.length - 2] = (byte) (sequenceNumber >>> 8);
+		iv[iv.length - 1] = (byte) (sequenceNumber);
+		ivCipher.encipher(iv, iv);
+		cipher.reset(iv);
+		return cipher;
+	}
+
+	/** Write the first macLength bytes of the HMAC of buf[offset...offset+length-1] to out. */
+	void mac(byte[] buf, int offset, int length, byte[] out, int outOffset, int macLength) {
+		computeMac(buf, offset, length);
+		System.arraycopy(macResult, 0, out, outOffset, macLength);
+	}
+
+	/** Check, in constant time, that the first macLength bytes of the HMAC of
+	 * buf[offset...offset+length-1] are equal to those at buf[macOffset]. */
+	boolean verifyMac(byte[] buf, int macOffset, int macLength, int offset, int length) {
+		computeMac(buf, offset, length);
+		int diff = 0;
+		for(int i=0;i<macLength;i++)
+			diff |= macResult[i] ^ buf[macOffset + i];
+		return diff == 0;
+	}
+
+	private void computeMac(byte[] buf, int offset, int length) {
+		if(mac == null) {
+			mac = HMAC.createMac(HMAC.SHA2_256, hmacKey);
+			macResult = new byte[mac.getMacLength()];
+		}
+		mac.update(buf, offset, length);
+		try {
+			mac.doFinal(macResult, 0);
+		} catch (ShortBufferException e) {
+			throw new Error(e); // Impossible
+		}
+	}
+
+	/** @return A buffer of at least the given length. Its contents are undefined. */
+	byte[] getBuffer(int length) {
+		if(buffer == null || buffer.length < length)
+			buffer = new byte[length];
+		return buffer;
+	}
+
+}
@@ -2,11 +2,16 @@ package network.crypta.node;
 
 import java.util.Arrays;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import network.crypta.support.Logger;
 
 public class PeerLocation {
 	
+	/** Shared by the peers of one node, and incremented whenever any of their locations change, so
+	 * a RoutingIndex can tell it is out of date. */
+	private final AtomicLong generation;
+
 	/** Current location in the keyspace, or -1 if it is unknown */
 	private double currentLocation;
 	/** Current sorted array of locations of our peer's peers. Must not be modified,
@@ -15,7 +20,8 @@ public class PeerLocation {
 	/** Time the location was set */
 	private long locSetTime;
 
-	PeerLocation(String locationString) {
+	PeerLocation(String locationString, AtomicLong generation) {
+		this.generation = generation;
 		currentLocation = Location.getLocation(locationString);
 		locSetTime = System.currentTimeMillis();
 	}
@@ -98,6 +104,7 @@ public class PeerLocation {
 			currentLocation = newLoc;
 			currentPeersLocation = newPeersLocation;
 			locSetTime = System.currentTimeMillis();
+			if(anythingChanged) generation.incrementAndGet();
 		}
 		return anythingChanged;
 	}
@@ -107,6 +114,7 @@ public class PeerLocation {
 		if(!Location.equals(newLoc, currentLocation)) {
 			currentLocation = newLoc;
 			locSetTime = System.currentTimeMillis();
+			generation.incrementAndGet();
 		}
 		return oldLoc;
 	}
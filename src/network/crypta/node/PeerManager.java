@@ -19,6 +19,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import network.crypta.io.comm.AsyncMessageCallback;
 import network.crypta.io.comm.ByteCounter;
@@ -36,6 +37,7 @@ import network.crypta.node.useralerts.DroppedOldPeersUserAlert;
 import network.crypta.node.useralerts.PeerManagerUserAlert;
 import network.crypta.support.ByteArrayWrapper;
 import network.crypta.support.Logger;
+import network.crypta.support.MetricsRegistry;
 import network.crypta.support.ShortBuffer;
 import network.crypta.support.SimpleFieldSet;
 import network.crypta.support.TimeUtil;
@@ -66,6 +68,13 @@ public class PeerManager {
 	private PeerNode[] myPeers;
 	/** All the peers we are actually connected to */
 	private PeerNode[] connectedPeers;
+	/** Locations of connectedPeers and their peers, for closerPeer(). Rebuilt when connectedPeers is
+	 * replaced or any location changes. */
+	private RoutingIndex routingIndex;
+	private PeerNode[] routingIndexPeers;
+	private final Object routingIndexSync = new Object();
+	/** Incremented by our peers' PeerLocation's when they change. */
+	final AtomicLong locationGeneration = new AtomicLong();
 	private String darkFilename;
         private String openFilename;
         private String oldOpennetPeersFilename;
@@ -963,14 +972,6 @@ public class PeerManager {
 		if(key != null)
 			entry = node.getFailureTable().getTimedOutNodesList(key);
 		
-		double[] selectionRates = new double[peers.length];
-		double totalSelectionRate = 0.0;
-		for(int i=0;i<peers.length;i++) {
-			selectionRates[i] = peers[i].selectionRate();
-			totalSelectionRate += selectionRates[i];
-		}
-		boolean enableFOAFMitigationHack = (peers.length >= PeerNode.SELECTION_MIN_PEERS) && (totalSelectionRate > 0.0);
-
 		// Locations not to consider for routing: our own location, and locations already routed to
 		Set<Double> excludeLocations = new HashSet<Double>();
 		excludeLocations.add(myLoc);
@@ -979,50 +980,30 @@ public class PeerManager {
 			excludeLocations.add(routedToNode.getLocation());
 		}
 
+		if((entry == null || ignoreTimeout) && addUnpickedLocsTo == null) {
+			// Nothing is timed out, so we only need the closest peers.
+			RoutingIndex index = getRoutingIndex(peers);
+			if(index.usable) {
+				PeerNode best = closerPeerIndexed(index, peers, pn, routedTo, target, ignoreSelf ? maxDistance : Math.min(maxDistance, maxDiff),
+				        minVersion, outgoingHTL, ignoreBackoffUnder, realTime, excludeLocations, now, newLoadManagement);
+				if(best != null && calculateMisrouting)
+					reportBackedOffPercent();
+				return best;
+			}
+		}
+
+		double[] selectionRates = new double[peers.length];
+		double totalSelectionRate = 0.0;
+		for(int i=0;i<peers.length;i++) {
+			selectionRates[i] = peers[i].selectionRate();
+			totalSelectionRate += selectionRates[i];
+		}
+		boolean enableFOAFMitigationHack = (peers.length >= PeerNode.SELECTION_MIN_PEERS) && (totalSelectionRate > 0.0);
+
 		for(int i = 0; i < peers.length; i++) {
 			PeerNode p = peers[i];
-			if(routedTo.contains(p)) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (already routed to): " + p.getPeer());
-				continue;
-			}
-			if(p == pn) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (req came from): " + p.getPeer());
+			if(!canRouteTo(p, pn, routedTo, minVersion, realTime, enableFOAFMitigationHack, selectionRates[i], totalSelectionRate, now, newLoadManagement))
 				continue;
-			}
-			if(!p.isRoutable()) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (not connected): " + p.getPeer());
-				continue;
-			}
-			if(p.isDisconnecting()) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (disconnecting): "+p.getPeer());
-				continue;
-			}
-			if(newLoadManagement && p.outputLoadTracker(realTime).getLastIncomingLoadStats() == null) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (no load stats): "+p.getPeer());
-				continue;
-			}
-			if(minVersion > 0 && Version.getArbitraryBuildNumber(p.getVersion(), -1) < minVersion) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping old version: " + p.getPeer());
-				continue;
-			}
-			if(enableFOAFMitigationHack) {
-				double selectionPercentage = 100.0 * selectionRates[i] / totalSelectionRate;
-				if(selectionPercentage > PeerNode.SELECTION_PERCENTAGE_WARNING) {
-					if(logMINOR)
-						Logger.minor(this, "Skipping over-selected peer(" + selectionPercentage + "%): " + p.getPeer());
-					continue;
-				}
-			}
-			if(newLoadManagement && p.isInMandatoryBackoff(now, realTime)) {
-				if(logMINOR) Logger.minor(this, "Skipping (mandatory backoff): "+p.getPeer());
-				continue;
-			}
 			
 			/** For RecentlyFailed i.e. request quenching */
 			long timeoutRF = -1;
@@ -1228,12 +1209,8 @@ public class PeerManager {
 		// DO NOT PUT A ELSE HERE: we need to re-check the value!
 		if(best != null) {
 			//racy... getLocation() could have changed
-			if(calculateMisrouting) {
-				int numberOfConnected = getPeerNodeStatusSize(PEER_NODE_STATUS_CONNECTED, false);
-				int numberOfRoutingBackedOff = getPeerNodeStatusSize(PEER_NODE_STATUS_ROUTING_BACKED_OFF, false);
-				if(numberOfRoutingBackedOff + numberOfConnected > 0)
-					node.getNodeStats().backedOffPercent.report((double) numberOfRoutingBackedOff / (double) (numberOfRoutingBackedOff + numberOfConnected));
-			}
+			if(calculateMisrouting)
+				reportBackedOffPercent();
 			//racy... getLocation() could have changed
 			if(addUnpickedLocsTo != null)
 				//Add the location which we did not pick, if it exists.
@@ -1245,6 +1222,116 @@ public class PeerManager {
 		return best;
 	}
 
+	/** Checks on a peer before considering its location in closerPeer(). */
+	private boolean canRouteTo(PeerNode p, PeerNode pn, Set<PeerNode> routedTo, int minVersion, boolean realTime,
+	        boolean enableFOAFMitigationHack, double selectionRate, double totalSelectionRate, long now, boolean newLoadManagement) {
+		if(routedTo.contains(p)) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (already routed to): " + p.getPeer());
+			return false;
+		}
+		if(p == pn) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (req came from): " + p.getPeer());
+			return false;
+		}
+		if(!p.isRoutable()) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (not connected): " + p.getPeer());
+			return false;
+		}
+		if(p.isDisconnecting()) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (disconnecting): "+p.getPeer());
+			return false;
+		}
+		if(newLoadManagement && p.outputLoadTracker(realTime).getLastIncomingLoadStats() == null) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (no load stats): "+p.getPeer());
+			return false;
+		}
+		if(minVersion > 0 && Version.getArbitraryBuildNumber(p.getVersion(), -1) < minVersion) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping old version: " + p.getPeer());
+			return false;
+		}
+		if(enableFOAFMitigationHack) {
+			double selectionPercentage = 100.0 * selectionRate / totalSelectionRate;
+			if(selectionPercentage > PeerNode.SELECTION_PERCENTAGE_WARNING) {
+				if(logMINOR)
+					Logger.minor(this, "Skipping over-selected peer(" + selectionPercentage + "%): " + p.getPeer());
+				return false;
+			}
+		}
+		if(newLoadManagement && p.isInMandatoryBackoff(now, realTime)) {
+			if(logMINOR) Logger.minor(this, "Skipping (mandatory backoff): "+p.getPeer());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * closerPeer() when no peer is timed out for the key: Only visits the peers, direct or via
+	 * FOAF, closest to the target, and chooses the same peer as the full scan would.
+	 * @param maxDistance Ignore peers further than this from the target, including our own
+	 * distance if we don't ignore ourselves.
+	 */
+	private PeerNode closerPeerIndexed(RoutingIndex index, final PeerNode[] peers, final PeerNode pn, final Set<PeerNode> routedTo,
+	        double target, double maxDistance, final int minVersion, final short outgoingHTL, final long ignoreBackoffUnder,
+	        final boolean realTime, Set<Double> excludeLocations, final long now, final boolean newLoadManagement) {
+		double total = 0.0;
+		for(PeerNode p : peers)
+			total += p.selectionRate();
+		final double totalSelectionRate = total;
+		final boolean enableFOAFMitigationHack = (peers.length >= PeerNode.SELECTION_MIN_PEERS) && (totalSelectionRate > 0.0);
+		int chosen = index.closest(target, maxDistance, excludeLocations, new RoutingIndex.Filter() {
+
+			@Override
+			public boolean canRouteTo(int i) {
+				PeerNode p = peers[i];
+				return PeerManager.this.canRouteTo(p, pn, routedTo, minVersion, realTime, enableFOAFMitigationHack,
+				        enableFOAFMitigationHack ? p.selectionRate() : 0.0, totalSelectionRate, now, newLoadManagement);
+			}
+
+			@Override
+			public boolean useFOAF(int i) {
+				return peers[i].shallWeRouteAccordingToOurPeersLocation(outgoingHTL);
+			}
+
+			@Override
+			public boolean isBackedOff(int i) {
+				return peers[i].isRoutingBackedOff(ignoreBackoffUnder, realTime);
+			}
+
+		});
+		if(chosen == -1) return null;
+		if(logMINOR)
+			Logger.minor(this, "Chose "+peers[chosen].shortToString()+" for "+target+" from index");
+		return peers[chosen];
+	}
+
+	private RoutingIndex getRoutingIndex(PeerNode[] peers) {
+		// Read the generation first so that a concurrent change causes another rebuild.
+		long generation = locationGeneration.get();
+		synchronized(routingIndexSync) {
+			if(routingIndex == null || routingIndexPeers != peers || routingIndex.generation != generation) {
+				PeerLocation[] locations = new PeerLocation[peers.length];
+				for(int i=0;i<peers.length;i++)
+					locations[i] = peers[i].location;
+				routingIndex = new RoutingIndex(locations, generation);
+				routingIndexPeers = peers;
+			}
+			return routingIndex;
+		}
+	}
+
+	private void reportBackedOffPercent() {
+		int numberOfConnected = getPeerNodeStatusSize(PEER_NODE_STATUS_CONNECTED, false);
+		int numberOfRoutingBackedOff = getPeerNodeStatusSize(PEER_NODE_STATUS_ROUTING_BACKED_OFF, false);
+		if(numberOfRoutingBackedOff + numberOfConnected > 0)
+			node.getNodeStats().backedOffPercent.report((double) numberOfRoutingBackedOff / (double) (numberOfRoutingBackedOff + numberOfConnected));
+	}
+
 	/**
 	 * @param peers 
 	 * @return The minimum number of peers which are waiting for timeouts due to RecentlyFailed or 
@@ -2292,6 +2379,18 @@ public class PeerManager {
 		return count;
 	}
 
+	/** Publish the number of peers with each status. The names are in the order of the
+	 * PEER_NODE_STATUS_* constants. */
+	void registerMetrics(MetricsRegistry metrics) {
+		String[] names = { "connected", "backed_off", "too_new", "too_old", "disconnected",
+				"never_connected", "disabled", "bursting", "listening", "listen_only", "clock_problem",
+				"conn_error", "disconnecting", "routing_disabled", "no_load_stats" };
+		for(int i = 0; i < names.length; i++) {
+			final int status = i + 1;
+			metrics.gauge("crypta_peers", "Peers by status.", () -> countByStatus(status), "status", names[i]);
+		}
+	}
+
 	// We can't trust our strangers, so need a consensus.
 	public static final int OUTDATED_MIN_TOO_NEW_TOTAL = 5;
 	// We can trust our friends, so only 1 is needed.
@@ -231,6 +231,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	/** MessageItem's to send ASAP.
 	 * LOCKING: Lock on self, always take that lock last. Sometimes used inside PeerNode.this lock. */
 	private final PeerMessageQueue messageQueue;
+	/** Outgoing traffic to this peer, if the node's TrafficStats is enabled. */
+	private final TrafficStats.Counters trafficCounters = new TrafficStats.Counters();
 	/** When did we last receive a SwapRequest? */
 	private long timeLastReceivedSwapRequest;
 	/** Average interval between SwapRequest's */
@@ -435,7 +437,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		}
 		String locationString = fs.get("location");
 
-		location = new PeerLocation(locationString);
+		location = new PeerLocation(locationString, peers.locationGeneration);
 		
 		disableRouting = disableRoutingHasBeenSetLocally = false;
 		disableRoutingHasBeenSetRemotely = false; // Assume so
@@ -1276,6 +1278,11 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		if(cur != null) cur.disconnected();
 		if(prev != null) prev.disconnected();
 		if(unv != null) unv.disconnected();
+		if(dumpTrackers) {
+			if(cur != null) cur.discarded();
+			if(prev != null) prev.discarded();
+			if(unv != null) unv.discarded();
+		}
 		if(_lastThrottle != null)
 			_lastThrottle.maybeDisconnected();
 		node.getLocationManager().lostOrRestartedNode(this);
@@ -1839,6 +1846,24 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		return unverifiedTracker;
 	}
 
+	/**
+	 * @return True if we have a SessionKey which has never been used to try to decrypt a packet,
+	 * so its expected sequence numbers are not yet in the NodeCrypto's SessionTagIndex.
+	 */
+	public boolean hasUnindexedSessionKey() {
+		SessionKey cur, prev, unv;
+		synchronized(this) {
+			cur = currentTracker;
+			prev = previousTracker;
+			unv = unverifiedTracker;
+		}
+		return isUnindexed(cur) || isUnindexed(prev) || isUnindexed(unv);
+	}
+
+	private static boolean isUnindexed(SessionKey key) {
+		return key != null && key.packetContext.seqNumWatchList == null;
+	}
+
 	private String shortToString;
 	private void updateShortToString() {
 		shortToString = super.toString() + '@' + detectedPeer + '@' + HexUtil.bytesToHex(peerECDSAPubKeyHash);
@@ -1898,6 +1923,17 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			timeLastReceivedAck = now;
 	}
 
+	@Override
+	public TrafficStats getTrafficStats() {
+		TrafficStats traffic = node.getNodeStats().getTrafficStats();
+		return traffic.isEnabled() ? traffic : null;
+	}
+
+	@Override
+	public TrafficStats.Counters getTrafficCounters() {
+		return trafficCounters;
+	}
+
 	/**
 	* Update timeLastSentPacket
 	*/
@@ -2003,6 +2039,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		boolean wasARekey = false;
 		SessionKey oldPrev = null;
 		SessionKey oldCur = null;
+		SessionKey oldUnverified = null;
 		SessionKey newTracker;
 		MessageItem[] messagesTellDisconnected = null;
 		PacketFormat oldPacketFormat = null;
@@ -2078,17 +2115,20 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			} else {
 				// else it's a rekey
 			}
-			newTracker = new SessionKey(this, outgoingCipher, outgoingKey, incommingCipher, incommingKey, ivCipher, ivNonce, hmacKey, new NewPacketFormatKeyContext(ourInitialSeqNum, theirInitialSeqNum), trackerID);
+			newTracker = new SessionKey(this, outgoingCipher, outgoingKey, incommingCipher, incommingKey, ivCipher, ivNonce, hmacKey, new NewPacketFormatKeyContext(ourInitialSeqNum, theirInitialSeqNum, crypto.getSessionTagIndex()), trackerID);
 			if(logMINOR) Logger.minor(this, "New key tracker in completedHandshake: "+newTracker+" for "+shortToString()+" neg type "+negType);
 			if(unverified) {
 				if(unverifiedTracker != null) {
 					// Keep the old unverified tracker if possible.
 					if(previousTracker == null)
 						previousTracker = unverifiedTracker;
+					else
+						oldUnverified = unverifiedTracker;
 				}
 				unverifiedTracker = newTracker;
 			} else {
-				oldPrev = previousTracker;
+				// If the boot ID changed, oldPrev is already set and previousTracker is null.
+				if(previousTracker != null) oldPrev = previousTracker;
 				previousTracker = currentTracker;
 				currentTracker = newTracker;
 				// Keep the old unverified tracker.
@@ -2131,8 +2171,15 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			node.getUSM().onRestart(this);
 			node.getTracker().onRestartOrDisconnect(this);
 		}
-		if(oldPrev != null) oldPrev.disconnected();
-		if(oldCur != null) oldCur.disconnected();
+		if(oldPrev != null) {
+			oldPrev.disconnected();
+			oldPrev.discarded();
+		}
+		if(oldCur != null) {
+			oldCur.disconnected();
+			oldCur.discarded();
+		}
+		if(oldUnverified != null) oldUnverified.discarded();
 		if(oldPacketFormat != null) {
 			List<MessageItem> tellDisconnect = oldPacketFormat.onDisconnect();
 			if(tellDisconnect != null)
@@ -2301,6 +2348,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		maybeOnConnect();
 		if(completelyDeprecatedTracker != null) {
 			completelyDeprecatedTracker.disconnected();
+			completelyDeprecatedTracker.discarded();
 		}
 	}
 
@@ -2735,6 +2783,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			fs.put("percentTimeRoutableConnection", getPercentTimeRoutableConnection() * 100);
 		}
 		fs.putSingle("status", getPeerNodeStatusString());
+		if(getTrafficStats() != null)
+			fs.put("traffic", trafficCounters.exportFieldSet());
 		return fs;
 	}
 
@@ -5243,6 +5293,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			else if(unverifiedTracker == brokenKey)
 				unverifiedTracker = null;
 		}
+		brokenKey.discarded();
 		// Update connected vs not connected status.
 		isConnected();
 		setPeerNodeStatus(System.currentTimeMillis());
@@ -5257,6 +5308,11 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 	public void sendEncryptedPacket(byte[] data) throws LocalAddressException {
 		crypto.getSocket().sendPacket(data, getPeer(), allowLocalAddresses());
 	}
+
+	@Override
+	public void sendEncryptedPacket(byte[] buf, int offset, int length) throws LocalAddressException {
+		crypto.getSocket().sendPacket(buf, offset, length, getPeer(), allowLocalAddresses());
+	}
 	
 	@Override
 	public int getMaxPacketSize() {
@@ -11,6 +11,7 @@ import java.util.Map;
 
 import network.crypta.keys.NodeCHK;
 import network.crypta.support.Logger;
+import network.crypta.support.MetricsRegistry;
 import network.crypta.support.Ticker;
 
 public class RequestTracker {
@@ -870,5 +871,22 @@ public class RequestTracker {
 		}
 	}
 
+	/** Publish the number of requests and inserts running, and transfers in progress. */
+	void registerMetrics(MetricsRegistry metrics) {
+		String running = "crypta_requests_running";
+		String help = "Requests and inserts running, started locally or by a peer.";
+		metrics.gauge(running, help, () -> getNumLocalCHKRequests(), "key", "chk", "kind", "request", "origin", "local");
+		metrics.gauge(running, help, () -> getNumRemoteCHKRequests(), "key", "chk", "kind", "request", "origin", "remote");
+		metrics.gauge(running, help, () -> getNumLocalSSKRequests(), "key", "ssk", "kind", "request", "origin", "local");
+		metrics.gauge(running, help, () -> getNumRemoteSSKRequests(), "key", "ssk", "kind", "request", "origin", "remote");
+		metrics.gauge(running, help, () -> getNumLocalCHKInserts(), "key", "chk", "kind", "insert", "origin", "local");
+		metrics.gauge(running, help, () -> getNumRemoteCHKInserts(), "key", "chk", "kind", "insert", "origin", "remote");
+		metrics.gauge(running, help, () -> getNumLocalSSKInserts(), "key", "ssk", "kind", "insert", "origin", "local");
+		metrics.gauge(running, help, () -> getNumRemoteSSKInserts(), "key", "ssk", "kind", "insert", "origin", "remote");
+		metrics.gauge("crypta_transfers_running", "Requests transferring data.",
+				() -> getNumTransferringRequestSenders(), "side", "sender");
+		metrics.gauge("crypta_transfers_running", "Requests transferring data.",
+				() -> getNumTransferringRequestHandlers(), "side", "handler");
+	}
 
 }
@@ -0,0 +1,227 @@
+package network.crypta.node;
+
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * The locations of our connected peers and of their peers (FOAF), sorted, so that
+ * PeerManager.closerPeer() can visit peers in order of distance from the target and stop once
+ * nothing further away can be chosen, rather than looking at every peer.
+ *
+ * Only the locations are indexed. Whether a peer can be routed to, is backed off etc is checked
+ * when it is visited, and its distance is recomputed from its PeerLocation exactly as the full
+ * scan does, so the result is the same. The index is immutable, and must be rebuilt when the
+ * peers change or PeerManager.locationGeneration changes.
+ */
+final class RoutingIndex {
+
+	/** Checks on a peer at the time of the request, by index in the array the index was built from. */
+	interface Filter {
+		/** @return False to ignore the peer whatever its location. */
+		boolean canRouteTo(int peer);
+		/** @return True if we may route according to the peer's peers' locations. */
+		boolean useFOAF(int peer);
+		boolean isBackedOff(int peer);
+	}
+
+	/** Distances are visited in order, but allow for rounding at the wraparound and the far side
+	 * of the keyspace. Visiting a little further than needed is harmless. */
+	private static final double SLACK = 1e-9;
+
+	final long generation;
+	private final PeerLocation[] locations;
+	/** False if a peer had no valid location, in which case the index can't be used. */
+	final boolean usable;
+	/** All the locations, sorted. */
+	private final double[] sorted;
+	/** The peer each location in sorted belongs to. */
+	private final int[] owner;
+
+	RoutingIndex(PeerLocation[] locations, long generation) {
+		this.locations = locations;
+		this.generation = generation;
+		boolean usable = true;
+		int count = 0;
+		double[] myLocs = new double[locations.length];
+		double[][] peersLocs = new double[locations.length][];
+		for(int i=0;i<locations.length;i++) {
+			myLocs[i] = locations[i].getLocation();
+			if(!Location.isValid(myLocs[i])) usable = false;
+			peersLocs[i] = locations[i].getPeersLocationArray();
+			count += 1 + (peersLocs[i] == null ? 0 : peersLocs[i].length);
+		}
+		this.usable = usable;
+		double[] locs = new double[count];
+		int[] owners = new int[count];
+		int x = 0;
+		for(int i=0;i<locations.length;i++) {
+			locs[x] = myLocs[i];
+			owners[x++] = i;
+			if(peersLocs[i] == null) continue;
+			for(double l : peersLocs[i]) {
+				locs[x] = l;
+				owners[x++] = i;
+			}
+		}
+		int[] order = new int[count];
+		for(int i=0;i<count;i++) order[i] = i;
+		sortByLocation(order, new int[count], locs, 0, count);
+		sorted = new double[count];
+		owner = new int[count];
+		for(int i=0;i<count;i++) {
+			sorted[i] = locs[order[i]];
+			owner[i] = owners[order[i]];
+		}
+	}
+
+	/** Stable merge sort of order[from, to) by locs, on primitives as it runs whenever a location
+	 * changes. Equal locations keep their order, so the owners are in array order. */
+	private static void sortByLocation(int[] order, int[] tmp, double[] locs, int from, int to) {
+		if(to - from < 2) return;
+		int mid = (from + to) >>> 1;
+		sortByLocation(order, tmp, locs, from, mid);
+		sortByLocation(order, tmp, locs, mid, to);
+		if(Double.compare(locs[order[mid-1]], locs[order[mid]]) <= 0) return;
+		System.arraycopy(order, from, tmp, from, to - from);
+		int i = from, j = mid;
+		for(int k=from;k<to;k++) {
+			if(j >= to || (i < mid && Double.compare(locs[tmp[i]], locs[tmp[j]]) <= 0))
+				order[k] = tmp[i++];
+			else
+				order[k] = tmp[j++];
+		}
+	}
+
+	/**
+	 * Find the peer to route to, with the same rules as the full scan in PeerManager.closerPeer()
+	 * when no peer is timed out: The closest peer which is not backed off, or if there are none, the
+	 * closest peer which is backed off. If several are equally close, they are compared in array
+	 * order as in the full scan.
+	 * @param maxDistance Ignore peers further than this from the target, after taking FOAF into
+	 * account.
+	 * @param exclude Peers' peers' locations not to route by.
+	 * @return The index of the chosen peer, or -1.
+	 */
+	int closest(double target, double maxDistance, Set<Double> exclude, Filter filter) {
+		int n = sorted.length;
+		if(n == 0) return -1;
+		// First location >= target. The unvisited locations are from right round to left.
+		int low = 0;
+		int high = n;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(sorted[mid] < target) low = mid + 1;
+			else high = mid;
+		}
+		int right = low == n ? 0 : low;
+		int left = right == 0 ? n - 1 : right - 1;
+		double rightDist = Location.distance(sorted[right], target);
+		double leftDist = Location.distance(sorted[left], target);
+		long[] seen = new long[(locations.length + 63) >>> 6];
+		Candidates candidates = new Candidates();
+		double bound = maxDistance;
+		for(int remaining = n; remaining > 0; remaining--) {
+			int e;
+			double dist;
+			if(leftDist <= rightDist || remaining == 1) {
+				e = left;
+				dist = leftDist;
+				left = left == 0 ? n - 1 : left - 1;
+				leftDist = Location.distance(sorted[left], target);
+			} else {
+				e = right;
+				dist = rightDist;
+				right = right == n - 1 ? 0 : right + 1;
+				rightDist = Location.distance(sorted[right], target);
+			}
+			// Every peer not yet visited is at least this far away.
+			if(dist > bound + SLACK) break;
+			int peer = owner[e];
+			if((seen[peer >>> 6] & (1L << peer)) != 0) continue;
+			seen[peer >>> 6] |= 1L << peer;
+			if(!filter.canRouteTo(peer)) continue;
+			PeerLocation pl = locations[peer];
+			double realDiff = Location.distance(pl.getLocation(), target);
+			double diff = realDiff;
+			boolean direct = true;
+			if(filter.useFOAF(peer)) {
+				double l = pl.getClosestPeerLocation(target, exclude);
+				if(!Double.isNaN(l)) {
+					double newDiff = Location.distance(l, target);
+					if(newDiff < diff) {
+						diff = newDiff;
+						direct = false;
+					}
+				}
+			}
+			if(diff > maxDistance) continue;
+			boolean backedOff = filter.isBackedOff(peer);
+			candidates.add(peer, diff, realDiff, direct, backedOff);
+			// The closest not backed off peer wins, so we can stop after it and any ties.
+			if(!backedOff && diff < bound) bound = diff;
+		}
+		return candidates.choose();
+	}
+
+	/** The peers which could be chosen, in array order. Usually only a few. */
+	private static class Candidates {
+		private int count;
+		private int[] peers = new int[8];
+		private double[] diffs = new double[8];
+		private double[] realDiffs = new double[8];
+		private boolean[] direct = new boolean[8];
+		private boolean[] backedOff = new boolean[8];
+
+		void add(int peer, double diff, double realDiff, boolean isDirect, boolean isBackedOff) {
+			if(count == peers.length) {
+				int size = count * 2;
+				peers = Arrays.copyOf(peers, size);
+				diffs = Arrays.copyOf(diffs, size);
+				realDiffs = Arrays.copyOf(realDiffs, size);
+				direct = Arrays.copyOf(direct, size);
+				backedOff = Arrays.copyOf(backedOff, size);
+			}
+			int i = count++;
+			for(; i > 0 && peers[i-1] > peer; i--) {
+				peers[i] = peers[i-1];
+				diffs[i] = diffs[i-1];
+				realDiffs[i] = realDiffs[i-1];
+				direct[i] = direct[i-1];
+				backedOff[i] = backedOff[i-1];
+			}
+			peers[i] = peer;
+			diffs[i] = diff;
+			realDiffs[i] = realDiff;
+			direct[i] = isDirect;
+			backedOff[i] = isBackedOff;
+		}
+
+		/** Same comparisons as PeerManager.closerPeer(). */
+		int choose() {
+			int closestBackedOff = -1;
+			double closestBackedOffDistance = Double.MAX_VALUE;
+			double closestRealBackedOffDistance = Double.MAX_VALUE;
+			int closestNotBackedOff = -1;
+			double closestNotBackedOffDistance = Double.MAX_VALUE;
+			double closestRealNotBackedOffDistance = Double.MAX_VALUE;
+			for(int i=0;i<count;i++) {
+				double diff = diffs[i];
+				if(backedOff[i]) {
+					if(diff < closestBackedOffDistance || (Math.abs(diff - closestBackedOffDistance) < Double.MIN_VALUE*2 && (direct[i] || realDiffs[i] < closestRealBackedOffDistance))) {
+						closestBackedOffDistance = diff;
+						closestBackedOff = peers[i];
+						closestRealBackedOffDistance = realDiffs[i];
+					}
+				} else {
+					if(diff < closestNotBackedOffDistance || (Math.abs(diff - closestNotBackedOffDistance) < Double.MIN_VALUE*2 && (direct[i] || realDiffs[i] < closestRealNotBackedOffDistance))) {
+						closestNotBackedOffDistance = diff;
+						closestNotBackedOff = peers[i];
+						closestRealNotBackedOffDistance = realDiffs[i];
+					}
+				}
+			}
+			return closestNotBackedOff != -1 ? closestNotBackedOff : closestBackedOff;
+		}
+	}
+
+}
@@ -133,9 +133,7 @@ public abstract class SendableRequest implements RandomGrabArrayItem, Serializab
 	public void unregister(ClientContext context, short oldPrio) {
 		RandomGrabArray arr = grabParentGrabArray();
 		if(arr != null) {
-			synchronized(getScheduler(context)) {
-				arr.remove(this, context);
-			}
+			arr.remove(this, context);
 		} else {
 			// Should this be a higher priority?
 			if(logMINOR)
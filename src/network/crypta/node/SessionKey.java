@@ -31,6 +31,11 @@ public class SessionKey {
 	
 	public final NewPacketFormatKeyContext packetContext;
 
+	/** Reusable state for decrypting packets, created on first use. */
+	private PacketCipherState incomingState;
+	/** Reusable state for encrypting packets, created on first use. */
+	private PacketCipherState outgoingState;
+
 	SessionKey(PeerNode parent, BlockCipher outgoingCipher, byte[] outgoingKey,
 	                BlockCipher incommingCipher, byte[] incommingKey, BlockCipher ivCipher,
 			byte[] ivNonce, byte[] hmacKey, NewPacketFormatKeyContext context, long trackerID) {
@@ -46,7 +51,27 @@ public class SessionKey {
 		this.trackerID = trackerID;
 	}
 	
+	/** @return The state for decrypting incoming packets. Synchronize on it while using it. */
+	synchronized PacketCipherState getIncomingState() {
+		if(incomingState == null)
+			incomingState = new PacketCipherState(incommingCipher, ivCipher, ivNonce, hmacKey);
+		return incomingState;
+	}
+
+	/** @return The state for encrypting outgoing packets. Synchronize on it while using it. */
+	synchronized PacketCipherState getOutgoingState() {
+		if(outgoingState == null)
+			outgoingState = new PacketCipherState(outgoingCipher, ivCipher, ivNonce, hmacKey);
+		return outgoingState;
+	}
+
 	public void disconnected() {
 		packetContext.disconnected();
 	}
+
+	/** The PeerNode has dropped this key, so packets from unknown addresses must no longer be
+	 * matched to it. Must not be called with the PeerNode locked. */
+	void discarded() {
+		packetContext.discard(this);
+	}
 }
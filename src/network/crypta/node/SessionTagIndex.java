@@ -0,0 +1,189 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package network.crypta.node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Index of the encrypted sequence numbers every session on a port is watching for (see
+ * {@link NewPacketFormatKeyContext#seqNumWatchList}), so that a packet from an unknown address can
+ * be matched to the few sessions which might be able to decrypt it, rather than trying every
+ * peer.
+ *
+ * Entries are added and removed as the watch lists move, and a key's entries are removed when its
+ * PeerNode drops it (SessionKey.discarded()). Any which are missed are purged lazily, when the table
+ * would otherwise have to grow. The index is only a hint: the caller still has to decrypt and
+ * verify the packet.
+ *
+ * Open addressing with linear probing; a tag may appear several times, for different keys.
+ */
+public class SessionTagIndex {
+
+	private static final int INITIAL_CAPACITY = 4096;
+
+	private int[] tags;
+	private SessionKey[] keys;
+	private int size;
+
+	public SessionTagIndex() {
+		tags = new int[INITIAL_CAPACITY];
+		keys = new SessionKey[INITIAL_CAPACITY];
+	}
+
+	/** Convert the 4 byte encrypted sequence number to the tag we index by. */
+	static int toTag(byte[] buf, int offset) {
+		return ((buf[offset] & 0xff) << 24) | ((buf[offset+1] & 0xff) << 16) |
+			((buf[offset+2] & 0xff) << 8) | (buf[offset+3] & 0xff);
+	}
+
+	void add(byte[] encryptedSeqNum, SessionKey key) {
+		int tag = toTag(encryptedSeqNum, 0);
+		boolean purge;
+		synchronized(this) {
+			purge = (size + 1) * 2 > keys.length;
+		}
+		if(purge) purgeDeadKeys();
+		synchronized(this) {
+			// If purging didn't free much, grow anyway, so we don't purge on every add.
+			if((size + 1) * 2 > keys.length || (purge && size * 8 > keys.length * 3))
+				resize(keys.length * 2);
+			int mask = keys.length - 1;
+			int i = mix(tag) & mask;
+			while(keys[i] != null) {
+				if(tags[i] == tag && keys[i] == key) return;
+				i = (i + 1) & mask;
+			}
+			tags[i] = tag;
+			keys[i] = key;
+			size++;
+		}
+	}
+
+	synchronized void remove(byte[] encryptedSeqNum, SessionKey key) {
+		int tag = toTag(encryptedSeqNum, 0);
+		int mask = keys.length - 1;
+		int i = mix(tag) & mask;
+		while(keys[i] != null) {
+			if(tags[i] == tag && keys[i] == key) {
+				deleteSlot(i);
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	/** Remove every entry for the given keys. */
+	private void removeAll(Set<SessionKey> remove) {
+		for(int i=0;i<keys.length;) {
+			if(keys[i] != null && remove.contains(keys[i])) {
+				deleteSlot(i);
+				// Re-check the same slot, something may have been shifted into it.
+			} else {
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * Find the sessions which are watching for the sequence number tag at the given position.
+	 * @return The matching keys, which may be empty. The keys may no longer be in use.
+	 */
+	public synchronized List<SessionKey> get(byte[] buf, int offset) {
+		int tag = toTag(buf, offset);
+		int mask = keys.length - 1;
+		int i = mix(tag) & mask;
+		List<SessionKey> ret = null;
+		while(keys[i] != null) {
+			if(tags[i] == tag) {
+				if(ret == null) ret = new ArrayList<SessionKey>(1);
+				ret.add(keys[i]);
+			}
+			i = (i + 1) & mask;
+		}
+		if(ret == null) return List.of();
+		return ret;
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	/** Remove entries for keys which their PeerNode no longer uses. We must not call the
+	 * PeerNode with the index locked, as PeerNode's may call us while holding their own lock. */
+	void purgeDeadKeys() {
+		IdentityHashMap<SessionKey, Boolean> live = new IdentityHashMap<SessionKey, Boolean>();
+		synchronized(this) {
+			for(SessionKey key : keys) {
+				if(key != null) live.put(key, Boolean.FALSE);
+			}
+		}
+		Set<SessionKey> dead = Collections.newSetFromMap(new IdentityHashMap<SessionKey, Boolean>());
+		for(SessionKey key : live.keySet()) {
+			if(!isInUse(key)) dead.add(key);
+		}
+		if(dead.isEmpty()) return;
+		synchronized(this) {
+			removeAll(dead);
+		}
+	}
+
+	private static boolean isInUse(SessionKey key) {
+		PeerNode pn = key.pn;
+		if(pn == null) return true;
+		return pn.getCurrentKeyTracker() == key || pn.getPreviousKeyTracker() == key ||
+			pn.getUnverifiedKeyTracker() == key;
+	}
+
+	private void resize(int capacity) {
+		int[] oldTags = tags;
+		SessionKey[] oldKeys = keys;
+		tags = new int[capacity];
+		keys = new SessionKey[capacity];
+		int mask = capacity - 1;
+		for(int j=0;j<oldKeys.length;j++) {
+			if(oldKeys[j] == null) continue;
+			int i = mix(oldTags[j]) & mask;
+			while(keys[i] != null)
+				i = (i + 1) & mask;
+			tags[i] = oldTags[j];
+			keys[i] = oldKeys[j];
+		}
+	}
+
+	/** Delete a slot, shifting back any later entries in the same probe sequence so that lookups
+	 * do not stop early. */
+	private void deleteSlot(int i) {
+		int mask = keys.length - 1;
+		keys[i] = null;
+		size--;
+		int j = i;
+		while(true) {
+			j = (j + 1) & mask;
+			if(keys[j] == null) return;
+			int home = mix(tags[j]) & mask;
+			// Move j back to i unless its home slot lies cyclically in (i, j].
+			boolean inRange = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+			if(!inRange) {
+				tags[i] = tags[j];
+				keys[i] = keys[j];
+				keys[j] = null;
+				i = j;
+			}
+		}
+	}
+
+	/** The tags are ciphertext so they are already well distributed, but a cheap mix does no harm
+	 * if a peer is sending us something odd. */
+	private static int mix(int h) {
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return h;
+	}
+
+}
@@ -0,0 +1,119 @@
+package network.crypta.node;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import network.crypta.support.LatencyHistogram;
+import network.crypta.support.SimpleFieldSet;
+
+/**
+ * Accounts for outgoing traffic by message type, and (with a Counters on each PeerNode) by peer:
+ * bytes sent including resends and our share of packet overheads, messages completely sent, and
+ * how long messages waited in the PeerMessageQueue before we started to send them. Disabled by
+ * default; while disabled the send path only checks isEnabled() once per message.
+ */
+public class TrafficStats {
+
+	private volatile boolean enabled;
+	private final ConcurrentHashMap<String, Counters> byType = new ConcurrentHashMap<String, Counters>();
+
+	/** Counters for one message type or one peer. Cheap to update from many threads at once. */
+	public static class Counters {
+
+		private final LongAdder messages = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LatencyHistogram queueTime = new LatencyHistogram();
+
+		void queued(long millis) {
+			queueTime.report(MILLISECONDS.toNanos(millis));
+		}
+
+		void sent(int length, boolean completed) {
+			bytes.add(length);
+			if(completed) messages.increment();
+		}
+
+		public long getMessages() {
+			return messages.sum();
+		}
+
+		public long getBytes() {
+			return bytes.sum();
+		}
+
+		/** @return How long messages waited to be sent, in microseconds. */
+		public LatencyHistogram getQueueTime() {
+			return queueTime;
+		}
+
+		public SimpleFieldSet exportFieldSet() {
+			SimpleFieldSet fs = new SimpleFieldSet(true);
+			fs.put("messages", getMessages());
+			fs.put("bytes", getBytes());
+			fs.put("queueTimeCount", queueTime.count());
+			fs.put("queueTimeP50", queueTime.percentile(0.5));
+			fs.put("queueTimeP99", queueTime.percentile(0.99));
+			// Power of two buckets in microseconds, see LatencyHistogram.
+			fs.put("queueTimeBuckets", queueTime.getCounts());
+			return fs;
+		}
+
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/** @return The counters for the type of message the item contains. */
+	Counters getCounters(MessageItem item) {
+		String name = item.msg == null ? "unknown" : item.msg.getSpec().getName();
+		Counters counters = byType.get(name);
+		if(counters == null)
+			counters = byType.computeIfAbsent(name, k -> new Counters());
+		return counters;
+	}
+
+	/** @return The counters for each message type, most bytes sent first. */
+	public List<Map.Entry<String, Counters>> getCountersByType() {
+		return sortByBytes(new ArrayList<Map.Entry<String, Counters>>(byType.entrySet()));
+	}
+
+	/** @return The counters for each connected peer, keyed by the peer's name or address, most
+	 * bytes sent first. */
+	public List<Map.Entry<String, Counters>> getCountersByPeer(PeerManager peers) {
+		List<Map.Entry<String, Counters>> list = new ArrayList<Map.Entry<String, Counters>>();
+		for(PeerNode pn : peers.connectedPeers())
+			list.add(new AbstractMap.SimpleImmutableEntry<String, Counters>(pn.userToString(), pn.getTrafficCounters()));
+		return sortByBytes(list);
+	}
+
+	private static List<Map.Entry<String, Counters>> sortByBytes(List<Map.Entry<String, Counters>> list) {
+		// The counters may change while sorting, so sort by a snapshot.
+		final IdentityHashMap<Counters, Long> bytes = new IdentityHashMap<Counters, Long>();
+		for(Map.Entry<String, Counters> entry : list)
+			bytes.put(entry.getValue(), entry.getValue().getBytes());
+		Collections.sort(list, (a, b) -> Long.compare(bytes.get(b.getValue()), bytes.get(a.getValue())));
+		return list;
+	}
+
+	/** @return A snapshot of the counters for each message type, keyed by the type's name. */
+	public SimpleFieldSet exportFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		for(Map.Entry<String, Counters> entry : byType.entrySet())
+			fs.put(entry.getKey(), entry.getValue().exportFieldSet());
+		return fs;
+	}
+
+}
@@ -68,7 +68,8 @@ public class DefaultThreadDiagnostics implements Runnable, ThreadDiagnostics {
                                              thread.getThreadGroup().getName(),
                                              thread.getState().toString())).collect(Collectors.toList());
 
-        nodeThreadSnapshot.set(new NodeThreadSnapshot(threads, monitorInterval));
+        nodeThreadSnapshot.set(new NodeThreadSnapshot(threads, monitorInterval,
+                                                      ExecutorStatistics.of(ticker.getExecutor())));
 
         purgeInactiveThreads(threads);
         scheduleNext();
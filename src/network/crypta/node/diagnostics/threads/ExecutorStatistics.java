@@ -0,0 +1,82 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package network.crypta.node.diagnostics.threads;
+
+import network.crypta.support.Executor;
+import network.crypta.support.PooledExecutor;
+
+/**
+ * Class to wrap the node executor's thread counts and job start latencies.
+ */
+public class ExecutorStatistics {
+    private final boolean usingVirtualThreads;
+    private final int virtualThreads;
+    private final long virtualThreadsStarted;
+    private final long[] jobsStarted;
+    private final double[] averageStartDelay;
+    private final double[] maxStartDelay;
+
+    private ExecutorStatistics(PooledExecutor executor) {
+        usingVirtualThreads = executor.isUsingVirtualThreads();
+        virtualThreads = executor.getVirtualThreadCount();
+        virtualThreadsStarted = executor.getVirtualThreadsStarted();
+        jobsStarted = executor.getJobsStarted();
+        averageStartDelay = executor.getAverageStartDelay();
+        maxStartDelay = executor.getMaxStartDelay();
+    }
+
+    /**
+     * @param executor The node's executor.
+     *
+     * @return Current statistics, or null if the executor doesn't keep them.
+     */
+    public static ExecutorStatistics of(Executor executor) {
+        if (!(executor instanceof PooledExecutor)) {
+            return null;
+        }
+        return new ExecutorStatistics((PooledExecutor) executor);
+    }
+
+    /**
+     * @return Whether new jobs are being run on virtual threads.
+     */
+    public boolean isUsingVirtualThreads() {
+        return usingVirtualThreads;
+    }
+
+    /**
+     * @return Number of jobs currently running on virtual threads.
+     */
+    public int getVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @return Number of virtual threads started since startup.
+     */
+    public long getVirtualThreadsStarted() {
+        return virtualThreadsStarted;
+    }
+
+    /**
+     * @return Jobs started since startup, indexed by priority - 1.
+     */
+    public long[] getJobsStarted() {
+        return jobsStarted.clone();
+    }
+
+    /**
+     * @return Average milliseconds between submitting a job and it starting, indexed by priority - 1.
+     */
+    public double[] getAverageStartDelay() {
+        return averageStartDelay.clone();
+    }
+
+    /**
+     * @return Maximum milliseconds between submitting a job and it starting, indexed by priority - 1.
+     */
+    public double[] getMaxStartDelay() {
+        return maxStartDelay.clone();
+    }
+}
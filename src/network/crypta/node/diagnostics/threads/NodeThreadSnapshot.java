@@ -12,13 +12,24 @@ import java.util.List;
 public class NodeThreadSnapshot {
     private final List<NodeThreadInfo> threads;
     private final int interval;
+    private final ExecutorStatistics executorStatistics;
 
     /**
      * @param threads List of threads for this snapshot.
      */
     public NodeThreadSnapshot(List<NodeThreadInfo> threads, int interval) {
+        this(threads, interval, null);
+    }
+
+    /**
+     * @param threads            List of threads for this snapshot.
+     * @param executorStatistics Executor statistics, or null if not available.
+     */
+    public NodeThreadSnapshot(List<NodeThreadInfo> threads, int interval,
+                              ExecutorStatistics executorStatistics) {
         this.threads = new ArrayList<>(threads);
         this.interval = interval;
+        this.executorStatistics = executorStatistics;
     }
 
     /**
@@ -34,4 +45,11 @@ public class NodeThreadSnapshot {
     public int getInterval() {
         return interval;
     }
+
+    /**
+     * @return Executor statistics, or null if not available.
+     */
+    public ExecutorStatistics getExecutorStatistics() {
+        return executorStatistics;
+    }
 }
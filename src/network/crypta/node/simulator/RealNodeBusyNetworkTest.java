@@ -43,6 +43,8 @@ public class RealNodeBusyNetworkTest extends RealNodeRoutingTest {
     static final boolean ENABLE_FOAF = true;
     static final boolean FORK_ON_CACHEABLE = false;
     static final boolean REAL_TIME_FLAG = false;
+    /** Decode incoming packets on a pool of threads rather than on the socket's thread. */
+    static final int RECEIVE_THREADS = 2;
 
     //static final int NUMBER_OF_NODES = 50;
     //static final short MAX_HTL = 10;
@@ -71,8 +73,26 @@ public class RealNodeBusyNetworkTest extends RealNodeRoutingTest {
         Logger.normal(RealNodeRoutingTest.class, "Creating nodes...");
         Executor executor = new PooledExecutor();
         for(int i=0;i<NUMBER_OF_NODES;i++) {
-            nodes[i] =
-            	NodeStarter.createTestNode(DARKNET_PORT_BASE+i, 0, name, false, MAX_HTL, 20 /* 5% */, random, executor, 500*NUMBER_OF_NODES, (CHKBlock.DATA_LENGTH+CHKBlock.TOTAL_HEADERS_LENGTH)*100, true, ENABLE_SWAPPING, false, ENABLE_ULPRS, ENABLE_PER_NODE_FAILURE_TABLES, ENABLE_SWAP_QUEUEING, ENABLE_PACKET_COALESCING, 8000, ENABLE_FOAF, false, true, false, null);
+            NodeStarter.TestNodeParameters params = new NodeStarter.TestNodeParameters();
+            params.port = DARKNET_PORT_BASE+i;
+            params.baseDirectory = new File(name);
+            params.maxHTL = MAX_HTL;
+            params.dropProb = 20; /* 5% */
+            params.random = random;
+            params.executor = executor;
+            params.threadLimit = 500*NUMBER_OF_NODES;
+            params.storeSize = (CHKBlock.DATA_LENGTH+CHKBlock.TOTAL_HEADERS_LENGTH)*100;
+            params.ramStore = true;
+            params.enableSwapping = ENABLE_SWAPPING;
+            params.enableULPRs = ENABLE_ULPRS;
+            params.enablePerNodeFailureTables = ENABLE_PER_NODE_FAILURE_TABLES;
+            params.enableSwapQueueing = ENABLE_SWAP_QUEUEING;
+            params.enablePacketCoalescing = ENABLE_PACKET_COALESCING;
+            params.outputBandwidthLimit = 8000;
+            params.enableFOAF = ENABLE_FOAF;
+            params.longPingTimes = true;
+            params.receiveThreads = RECEIVE_THREADS;
+            nodes[i] = NodeStarter.createTestNode(params);
             Logger.normal(RealNodeRoutingTest.class, "Created node "+i);
         }
 
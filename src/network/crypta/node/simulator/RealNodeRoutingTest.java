@@ -4,15 +4,19 @@
 package network.crypta.node.simulator;
 
 import java.io.File;
+import java.util.Random;
 
 import network.crypta.crypt.DummyRandomSource;
 import network.crypta.crypt.RandomSource;
+import network.crypta.io.comm.SimulatedNetwork;
 import network.crypta.node.LocationManager;
 import network.crypta.node.Node;
 import network.crypta.node.NodeStarter;
+import network.crypta.node.NodeStarter.TestNodeParameters;
 import network.crypta.support.Executor;
 import network.crypta.support.Logger;
 import network.crypta.support.PooledExecutor;
+import network.crypta.support.PrioritizedTicker;
 import network.crypta.support.Logger.LogLevel;
 import network.crypta.support.io.FileUtil;
 import network.crypta.support.math.BootstrappingDecayingRunningAverage;
@@ -38,11 +42,29 @@ public class RealNodeRoutingTest extends RealNodeTest {
 	static final boolean ENABLE_SWAP_QUEUEING = false;
 	static final boolean ENABLE_FOAF = true;
 	
+	/** One way latency between simulated nodes. */
+	static final long SIMULATED_LATENCY = 50;
+	/** Uplink of each simulated node. */
+	static final int SIMULATED_BANDWIDTH = 64 * 1024;
+	static final double SIMULATED_LOSS = 0.001;
+	/** Simulated ports don't clash with real ones, so there is room for many more nodes. */
+	static final int SIMULATED_PORT_BASE = 10000;
+
 	public static int DARKNET_PORT_BASE = RealNodeRequestInsertTest.DARKNET_PORT_END;
 	public static final int DARKNET_PORT_END = DARKNET_PORT_BASE + NUMBER_OF_NODES;
 
+	/**
+	 * Usage: RealNodeRoutingTest [--simulated [nodes]]
+	 * With --simulated the nodes talk over an in-memory SimulatedNetwork rather than UDP on
+	 * localhost, with latency, bandwidth and loss. It still runs in real time, and each node has
+	 * its own threads, so the number of nodes is limited by memory and CPU.
+	 */
 	public static void main(String[] args) throws Exception {
-		System.out.println("Routing test using real nodes:");
+		boolean simulated = args.length > 0 && args[0].equals("--simulated");
+		int numberOfNodes = NUMBER_OF_NODES;
+		if(simulated && args.length > 1)
+			numberOfNodes = Integer.parseInt(args[1]);
+		System.out.println("Routing test using real nodes"+(simulated ? " on a simulated network" : "")+":");
 		System.out.println();
 		String dir = "realNodeRequestInsertTest";
 		File wd = new File(dir);
@@ -56,15 +78,44 @@ public class RealNodeRoutingTest extends RealNodeTest {
 		// Make the network reproducible so we can easily compare different routing options by specifying a seed.
 		DummyRandomSource random = new DummyRandomSource(3142);
 		//DiffieHellman.init(random);
-		Node[] nodes = new Node[NUMBER_OF_NODES];
+		Node[] nodes = new Node[numberOfNodes];
 		Logger.normal(RealNodeRoutingTest.class, "Creating nodes...");
 		Executor executor = new PooledExecutor();
-		for(int i = 0; i < NUMBER_OF_NODES; i++) {
+		SimulatedNetwork network = null;
+		if(simulated) {
+			PrioritizedTicker ticker = new PrioritizedTicker(executor, 0);
+			ticker.start();
+			network = new SimulatedNetwork(ticker, System::currentTimeMillis, new Random(3144));
+			network.setLatency(SIMULATED_LATENCY);
+			network.setBandwidth(SIMULATED_BANDWIDTH);
+			network.setLoss(SIMULATED_LOSS);
+		}
+		for(int i = 0; i < numberOfNodes; i++) {
 			System.err.println("Creating node " + i);
-			nodes[i] = NodeStarter.createTestNode(DARKNET_PORT_BASE + i, 0, dir, true, MAX_HTL, 0 /* no dropped packets */, random, executor, 500 * NUMBER_OF_NODES, 65536, true, ENABLE_SWAPPING, false, false, false, ENABLE_SWAP_QUEUEING, true, 0, ENABLE_FOAF, false, true, false, null);
+			if(network == null) {
+				nodes[i] = NodeStarter.createTestNode(DARKNET_PORT_BASE + i, 0, dir, true, MAX_HTL, 0 /* no dropped packets */, random, executor, 500 * NUMBER_OF_NODES, 65536, true, ENABLE_SWAPPING, false, false, false, ENABLE_SWAP_QUEUEING, true, 0, ENABLE_FOAF, false, true, false, null);
+			} else {
+				TestNodeParameters params = new TestNodeParameters();
+				params.port = SIMULATED_PORT_BASE + i;
+				params.baseDirectory = wd;
+				params.disableProbabilisticHTLs = true;
+				params.maxHTL = MAX_HTL;
+				params.random = random;
+				params.executor = executor;
+				params.threadLimit = 500 * numberOfNodes;
+				params.storeSize = 65536;
+				params.ramStore = true;
+				params.enableSwapping = ENABLE_SWAPPING;
+				params.enableSwapQueueing = ENABLE_SWAP_QUEUEING;
+				params.enablePacketCoalescing = true;
+				params.enableFOAF = ENABLE_FOAF;
+				params.longPingTimes = true;
+				params.network = network;
+				nodes[i] = NodeStarter.createTestNode(params);
+			}
 			Logger.normal(RealNodeRoutingTest.class, "Created node " + i);
 		}
-		Logger.normal(RealNodeRoutingTest.class, "Created " + NUMBER_OF_NODES + " nodes");
+		Logger.normal(RealNodeRoutingTest.class, "Created " + numberOfNodes + " nodes");
 		// Now link them up
 		makeKleinbergNetwork(nodes, START_WITH_IDEAL_LOCATIONS, DEGREE, FORCE_NEIGHBOUR_CONNECTIONS, random);
 
@@ -81,11 +132,16 @@ public class RealNodeRoutingTest extends RealNodeTest {
 		// There is timing noise because of all the nodes, but the network
 		// and the choice of nodes to start and finish are deterministic, so
 		// the overall result should be more or less deterministic.
-		waitForPingAverage(0.98, nodes, new DummyRandomSource(3143), MAX_PINGS, 5000);
+		waitForPingAverage(0.98, nodes, new DummyRandomSource(3143), MAX_PINGS, 5000, network);
 		System.exit(0);
 	}
 
 	static void waitForPingAverage(double accuracy, Node[] nodes, RandomSource random, int maxTests, int sleepTime) throws InterruptedException {
+		waitForPingAverage(accuracy, nodes, random, maxTests, sleepTime, null);
+	}
+
+	/** @param network If non-null, also report the simulated network's statistics. */
+	static void waitForPingAverage(double accuracy, Node[] nodes, RandomSource random, int maxTests, int sleepTime, SimulatedNetwork network) throws InterruptedException {
 		int totalHopsTaken = 0;
 		int cycleNumber = 0;
 		int lastSwaps = 0;
@@ -168,6 +224,8 @@ public class RealNodeRoutingTest extends RealNodeTest {
 				}
 			}
 			System.err.println("Average path length for successful requests: "+((double)totalHopsTaken)/successes);
+			if(network != null)
+				printNetworkStats(network);
 			if(pings > 10 && avg.currentValue() > accuracy && ((double) successes / ((double) (failures + successes)) > accuracy)) {
 				System.err.println();
 				System.err.println("Reached " + (accuracy * 100) + "% accuracy.");
@@ -182,6 +240,9 @@ public class RealNodeRoutingTest extends RealNodeTest {
 				System.err.println("Total swaps rejected (recognized ID):" + LocationManager.swapsRejectedRecognizedID);
 				System.err.println("Total swaps failed:" + LocationManager.noSwaps);
 				System.err.println("Total swaps succeeded:" + LocationManager.swaps);
+				System.err.println("Routed pings: " + pings + ", succeeded: " + successes + " (" + ((double) successes / pings) + ")");
+				if(network != null)
+					printNetworkStats(network);
 				return;
 			}
 		}
@@ -5,6 +5,7 @@ package network.crypta.node.simulator;
 
 import network.crypta.crypt.RandomSource;
 import network.crypta.io.comm.PeerParseException;
+import network.crypta.io.comm.SimulatedNetwork;
 import network.crypta.node.FSParseException;
 import network.crypta.node.Location;
 import network.crypta.node.Node;
@@ -132,6 +133,11 @@ public class RealNodeTest {
 		return Integer.toString(n.getDarknetPortNumber());
 	}
 	
+	static void printNetworkStats(SimulatedNetwork network) {
+		System.err.println(network);
+		System.err.println("Network throughput: " + (long) network.getThroughput() + " bytes/sec");
+	}
+
 	static void waitForAllConnected(Node[] nodes) throws InterruptedException {
 		long tStart = System.currentTimeMillis();
 		while(true) {
@@ -245,6 +245,7 @@ public class UpdateDeployContext {
         /** Allow accessing internal modules in Java 16+ */
         boolean writtenIllegalAccessPermit = false;
         boolean writtenPrivateModulesOpens = false;
+        boolean writtenVectorModule = false;
 
         String newMain = mainJarAbsolute ? newMainJar.getAbsolutePath() : newMainJar.getPath();
 
@@ -321,6 +322,9 @@ public class UpdateDeployContext {
                     if (rhs.startsWith("--add-opens=")) {
                         writtenPrivateModulesOpens = true;
                     }
+                    if (rhs.startsWith("--add-modules=jdk.incubator.vector")) {
+                        writtenVectorModule = true;
+                    }
                 }
             } else if (lowcaseLine.equals("wrapper.restart.reload_configuration=true")) {
                 writtenReload = true;
@@ -393,6 +397,12 @@ public class UpdateDeployContext {
                      '\n');
             count++;
         }
+        // SIMD lanes for FEC encoding and decoding, see GF256Kernel
+        if (!writtenVectorModule && JVMVersion.supportsModules()) {
+            bw.write("wrapper.java.additional." + count + "=--add-modules=jdk.incubator.vector" +
+                     '\n');
+            count++;
+        }
 
         for (String s : otherLines) {
             bw.write(s + '\n');
@@ -76,6 +76,16 @@ public interface FreenetStore<T extends StorableBlock> extends Closeable {
 	 */
     boolean probablyInStore(byte[] routingKey);
 
+	/**
+	 * Where a key would be looked for, so that callers with many keys to look up can do them in
+	 * roughly file order. Only comparable between keys in the same store.
+	 * @param routingKey
+	 * @return The first slot the key may be in, or 0 if the store has no such ordering.
+	 */
+	default long getSlotHint(byte[] routingKey) {
+		return 0;
+	}
+
 	StoreAccessStats getSessionAccessStats();
 
 	StoreAccessStats getTotalAccessStats();
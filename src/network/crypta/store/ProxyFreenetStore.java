@@ -13,6 +13,10 @@ public class ProxyFreenetStore<T extends StorableBlock> implements FreenetStore<
 	public ProxyFreenetStore(FreenetStore<T> backDatastore) {
 		this.backDatastore = backDatastore;
 	}
+
+	public FreenetStore<T> getBackDatastore() {
+		return backDatastore;
+	}
 	
 	@Override
 	public long getBloomFalsePositive() {
@@ -88,6 +92,11 @@ public class ProxyFreenetStore<T extends StorableBlock> implements FreenetStore<
 		return backDatastore.probablyInStore(routingKey);
 	}
 
+	@Override
+	public long getSlotHint(byte[] routingKey) {
+		return backDatastore.getSlotHint(routingKey);
+	}
+
 	@Override
 	public boolean start(Ticker ticker, boolean longStart) throws IOException {
 		return backDatastore.start(ticker, longStart);
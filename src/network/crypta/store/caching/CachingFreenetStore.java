@@ -1,6 +1,9 @@
 package network.crypta.store.caching;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -13,6 +16,7 @@ import network.crypta.store.KeyCollisionException;
 import network.crypta.store.ProxyFreenetStore;
 import network.crypta.store.StorableBlock;
 import network.crypta.store.StoreCallback;
+import network.crypta.store.saltedhash.SaltedHashFreenetStore;
 import network.crypta.support.ByteArrayWrapper;
 import network.crypta.support.LRUMap;
 import network.crypta.support.Logger;
@@ -180,40 +184,74 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 	 * were no blocks to write because the cache is empty.
 	 */
 	long pushLeastRecentlyBlock() {
-		Block<T> block = null;
-		ByteArrayWrapper key = null;
+		return pushLeastRecentlyBlocks(1);
+	}
+	
+	/** Try to write the least recently used blocks to disk. If the underlying store is a salted 
+	 * hash store they are written as a single batch, which it can sort and coalesce.
+	 * @param max The maximum number of blocks to write.
+	 * @return The number of bytes written to disk for blocks which we could remove from the cache,
+	 * i.e. which didn't change while we were writing them, and -1 if there were no blocks to write 
+	 * because the cache is empty.
+	 */
+	long pushLeastRecentlyBlocks(int max) {
+		List<ByteArrayWrapper> keys = new ArrayList<ByteArrayWrapper>(max);
+		List<Block<T>> blocks = new ArrayList<Block<T>>(max);
 		
 		configLock.writeLock().lock();
 		try {
-			block = blocksByRoutingKey.peekValue();
-			if(block == null) return -1;
-			key = blocksByRoutingKey.peekKey();
+			Enumeration<ByteArrayWrapper> e = blocksByRoutingKey.keys();
+			while(keys.size() < max && e.hasMoreElements()) {
+				ByteArrayWrapper key = e.nextElement();
+				keys.add(key);
+				blocks.add(blocksByRoutingKey.get(key));
+			}
+			if(blocks.isEmpty()) return -1;
 		} finally {
 			configLock.writeLock().unlock();
 		}
-			
-		try {
-			backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
-		} catch (IOException e) {
-			Logger.error(this, "Error in pushAll for CachingFreenetStore: "+e, e);
-		} catch (KeyCollisionException e) {
-			if(logMINOR) Logger.minor(this, "KeyCollisionException in pushAll for CachingFreenetStore: "+e, e);
+		
+		long calls = -1;
+		if(blocks.size() > 1 && backDatastore instanceof SaltedHashFreenetStore) {
+			List<SaltedHashFreenetStore.BatchedPut<T>> puts = new ArrayList<SaltedHashFreenetStore.BatchedPut<T>>(blocks.size());
+			for(Block<T> block : blocks)
+				puts.add(new SaltedHashFreenetStore.BatchedPut<T>(block.block, block.data, block.header, block.overwrite, block.isOldBlock));
+			try {
+				calls = ((SaltedHashFreenetStore<T>) backDatastore).putAll(puts);
+			} catch (IOException e) {
+				Logger.error(this, "Error in pushAll for CachingFreenetStore: "+e, e);
+			}
+		} else {
+			for(Block<T> block : blocks) {
+				try {
+					backDatastore.put(block.block, block.data, block.header, block.overwrite, block.isOldBlock);
+				} catch (IOException e) {
+					Logger.error(this, "Error in pushAll for CachingFreenetStore: "+e, e);
+				} catch (KeyCollisionException e) {
+					if(logMINOR) Logger.minor(this, "KeyCollisionException in pushAll for CachingFreenetStore: "+e, e);
+				}
+			}
 		}
+		tracker.onBatchWritten(blocks.size(), calls);
 		
+		long written = 0;
 		configLock.writeLock().lock();
 		try {
-			Block<T> currentVersionOfBlock = blocksByRoutingKey.get(key);
-			
-			/** it might have changed if there was a put() with overwrite=true. 
-			 *  If it has changed, return 0 , i.e. don't remove it*/
-			if(currentVersionOfBlock != null && currentVersionOfBlock.block.equals(block.block)) {
-				if(blocksByRoutingKey.removeKey(key))
-					return sizeBlock;
+			for(int i=0;i<keys.size();i++) {
+				ByteArrayWrapper key = keys.get(i);
+				Block<T> currentVersionOfBlock = blocksByRoutingKey.get(key);
+				
+				/** it might have changed if there was a put() with overwrite=true. 
+				 *  If it has changed, don't remove it*/
+				if(currentVersionOfBlock != null && currentVersionOfBlock.block.equals(blocks.get(i).block)) {
+					if(blocksByRoutingKey.removeKey(key))
+						written += sizeBlock;
+				}
 			}
 		} finally {
 			configLock.writeLock().unlock();
 		}
-		return 0;
+		return written;
 	}
 
 	@Override
@@ -241,6 +279,11 @@ public class CachingFreenetStore<T extends StorableBlock> extends ProxyFreenetSt
 		}
 	}
 	
+	/** @return The number of blocks waiting to be written. */
+	int cachedBlocks() {
+		return blocksByRoutingKey.size();
+	}
+	
 	/** Only for unit tests */
 	boolean isEmpty() {
 		boolean isEmpty;
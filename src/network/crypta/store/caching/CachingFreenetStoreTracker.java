@@ -1,14 +1,17 @@
 package network.crypta.store.caching;
 
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import network.crypta.support.Logger;
 import network.crypta.support.Ticker;
 
 /**
- * Tracks the memory used by a bunch of CachingFreenetStore's, and writes blocks to disk when full or 
- * after 5 minutes. One major objective here is we should not do disk I/O inside a lock, all methods 
- * should be non-blocking, even if it means the caller needs to do a blocking disk write.
+ * Tracks the memory used by a bunch of CachingFreenetStore's, and writes blocks to disk when full, 
+ * after 5 minutes, or when no blocks have been added for a while (the idle flush). Blocks are 
+ * written in batches, so that the underlying store can sort and coalesce the writes. One major 
+ * objective here is we should not do disk I/O inside a lock, all methods should be non-blocking, 
+ * even if it means the caller needs to do a blocking disk write.
  * 
  * @author Simon Vocella <voxsim@gmail.com>
  * 
@@ -16,9 +19,8 @@ import network.crypta.support.Ticker;
 public class CachingFreenetStoreTracker {
     private static volatile boolean logMINOR;
     
-    /** Number of keys that it's pushed to the *underlying* store in the add function.
-     * FIXME make this configurable??? */
-    private static final int numberOfKeysToWrite = 20;
+    /** Default number of keys that are pushed to the *underlying* store at once. */
+    public static final int DEFAULT_BATCH_SIZE = 32;
     
     /** Lower threshold, when it will start a write job, but still accept the data. */
     private static final double lowerThreshold = 0.9;
@@ -37,6 +39,20 @@ public class CachingFreenetStoreTracker {
 	private boolean runningJob;
 	private long size;
 	
+	/** Number of keys that are pushed to the *underlying* store at once, per store. */
+	private volatile int batchSize = DEFAULT_BATCH_SIZE;
+	/** Flush everything if nothing has been added for this long. 0 to disable. */
+	private volatile long idleFlushDelay;
+	private long lastAddTime;
+	/** Is an idle flush check queued? */
+	private boolean queuedIdleJob;
+	
+	private final AtomicLong blocksCached = new AtomicLong();
+	private final AtomicLong blocksRejected = new AtomicLong();
+	private final AtomicLong blocksFlushed = new AtomicLong();
+	private final AtomicLong batchesFlushed = new AtomicLong();
+	private final AtomicLong writeCalls = new AtomicLong();
+	
     static { Logger.registerClass(CachingFreenetStore.class); }
     
 	public CachingFreenetStoreTracker(long maxSize, long period, Ticker ticker) {
@@ -60,7 +76,7 @@ public class CachingFreenetStoreTracker {
 	public void unregisterCachingFS(CachingFreenetStore<?> fs) {
 		long sizeBlock = 0;
 		while(true) {
-			sizeBlock = fs.pushLeastRecentlyBlock();
+			sizeBlock = fs.pushLeastRecentlyBlocks(batchSize);
 			synchronized(this) {
 				if(sizeBlock == -1)
 					break;
@@ -90,13 +106,16 @@ public class CachingFreenetStoreTracker {
 			// Over the limit, caller must write directly.
 			// A delayed write is probably scheduled already. This is not a problem.
 			// FIXME maybe we should remove it?
+			blocksRejected.incrementAndGet();
 			return false;
 		} else {
 			this.size += sizeBlock;
+			blocksCached.incrementAndGet();
 			if(!justStartedPush) {
 			    // Write everything to disk after the maximum delay (period), unless there is already
 			    // a job scheduled to write to disk before that.
 			    pushOffThreadDelayed();
+			    pushOffThreadWhenIdle();
 			} // Else will be written anyway.
 			return true;
 		}
@@ -123,14 +142,17 @@ public class CachingFreenetStoreTracker {
 	    this.ticker.queueTimedJob(new Runnable() {
 	        @Override
 	        public void run() {
-	            synchronized(this) {
-	                if(runningJob) return;
+	            synchronized(CachingFreenetStoreTracker.this) {
+	                if(runningJob) {
+	                    queuedJob = false;
+	                    return;
+	                }
 	                runningJob = true;
 	            }
 	            try {
 	                pushAllCachingStores();
 	            } finally {
-	                synchronized(this) {
+	                synchronized(CachingFreenetStoreTracker.this) {
 	                    queuedJob = false;
 	                    runningJob = false;
 	                }
@@ -139,6 +161,35 @@ public class CachingFreenetStoreTracker {
 	    }, period);
     }
 
+	/** Write everything to disk once nothing has been added for idleFlushDelay, when the disk is
+	 * likely to be quiet, rather than waiting for the period or for the cache to fill up. Caller 
+	 * must hold the lock. */
+	private void pushOffThreadWhenIdle() {
+	    lastAddTime = System.currentTimeMillis();
+	    long delay = idleFlushDelay;
+	    if(delay <= 0 || queuedIdleJob) return;
+	    queuedIdleJob = true;
+	    this.ticker.queueTimedJob(new Runnable() {
+	        @Override
+	        public void run() {
+	            synchronized(CachingFreenetStoreTracker.this) {
+	                queuedIdleJob = false;
+	                if(size == 0) return;
+	                long delay = idleFlushDelay;
+	                if(delay <= 0) return;
+	                long idle = System.currentTimeMillis() - lastAddTime;
+	                if(idle < delay) {
+	                    // Still busy, check again later.
+	                    queuedIdleJob = true;
+	                    ticker.queueTimedJob(this, delay - idle);
+	                    return;
+	                }
+	            }
+	            pushOffThreadNow();
+	        }
+	    }, delay);
+	}
+
 	void pushAllCachingStores() {
 		CachingFreenetStore<?>[] cachingStoresSnapshot = null;
 		
@@ -147,24 +198,96 @@ public class CachingFreenetStoreTracker {
 	        synchronized (cachingStores) {
 	            cachingStoresSnapshot = this.cachingStores.toArray(new CachingFreenetStore<?>[cachingStores.size()]);
 	        }
+			boolean empty = true;
 			for(CachingFreenetStore<?> cfs : cachingStoresSnapshot) {
-				int k=0;
-				while(k < numberOfKeysToWrite) {
-					long sizeBlock = cfs.pushLeastRecentlyBlock();
-					if(sizeBlock == -1) break;
-					synchronized(this) {
-						size -= sizeBlock;
-						assert(size >= 0); // Break immediately if in unit testing.
-						if(size < 0) {
-							Logger.error(this, "Cache broken: Size = "+size);
-							size = 0;
-						}
-						if(size == 0) return;
+				long sizeBlocks = cfs.pushLeastRecentlyBlocks(batchSize);
+				if(sizeBlocks == -1) continue;
+				empty = false;
+				synchronized(this) {
+					size -= sizeBlocks;
+					assert(size >= 0); // Break immediately if in unit testing.
+					if(size < 0) {
+						Logger.error(this, "Cache broken: Size = "+size);
+						size = 0;
 					}
-					k++;
+					if(size == 0) return;
 				}
 			}
+			// E.g. a store which is not registered yet. Don't spin.
+			if(empty) return;
+		}
+	}
+	
+	/** Called by the stores after writing a batch to the underlying store.
+	 * @param blocks The number of blocks written.
+	 * @param calls The number of write calls, or -1 if not known. */
+	void onBatchWritten(int blocks, long calls) {
+		if(blocks == 0) return;
+		blocksFlushed.addAndGet(blocks);
+		batchesFlushed.incrementAndGet();
+		// Unbatched, each block is a metadata write and a header+data write.
+		writeCalls.addAndGet(calls < 0 ? 2L * blocks : calls);
+	}
+	
+	public void setBatchSize(int batchSize) {
+		if(batchSize < 1) throw new IllegalArgumentException();
+		this.batchSize = batchSize;
+	}
+	
+	public int getBatchSize() {
+		return batchSize;
+	}
+	
+	/** @param delay Flush everything once nothing has been added for this many milliseconds, or 
+	 * 0 to only flush on size and age. */
+	public void setIdleFlushDelay(long delay) {
+		if(delay < 0) throw new IllegalArgumentException();
+		this.idleFlushDelay = delay;
+	}
+	
+	public long getIdleFlushDelay() {
+		return idleFlushDelay;
+	}
+	
+	/** @return The number of blocks waiting to be written, across all the stores. */
+	public int getQueuedBlocks() {
+		int blocks = 0;
+		synchronized (cachingStores) {
+			for(CachingFreenetStore<?> cfs : cachingStores)
+				blocks += cfs.cachedBlocks();
 		}
+		return blocks;
+	}
+	
+	/** @return The number of blocks accepted into the cache. */
+	public long getBlocksCached() {
+		return blocksCached.get();
+	}
+	
+	/** @return The number of blocks written directly because the cache was full. */
+	public long getBlocksRejected() {
+		return blocksRejected.get();
+	}
+	
+	/** @return The number of blocks written from the cache to the underlying stores. */
+	public long getBlocksFlushed() {
+		return blocksFlushed.get();
+	}
+	
+	public long getBatchesFlushed() {
+		return batchesFlushed.get();
+	}
+	
+	public long getWriteCalls() {
+		return writeCalls.get();
+	}
+	
+	/** @return Write calls per block cached: 2 if every block is written individually, less if 
+	 * writes are coalesced or blocks are replaced while still in the cache. */
+	public double getWriteAmplification() {
+		long cached = blocksCached.get();
+		if(cached == 0) return 0.0;
+		return (double) writeCalls.get() / cached;
 	}
 	
 	public long getSizeOfCache() {
@@ -0,0 +1,78 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package network.crypta.store.saltedhash;
+
+import java.util.BitSet;
+
+/**
+ * Tracks which chunks of a cleaner pass are done, when several workers take chunks in order but
+ * may finish them out of order. The interesting figure is how many entries are left before the
+ * point up to which every chunk is done: it is safe to truncate the store file there when
+ * shrinking, and to resume from there after a restart.
+ */
+final class ChunkProgress {
+
+	private final long chunks;
+	private final int chunkSize;
+	private final long storeSize;
+	private final boolean reverse;
+	private final BitSet done = new BitSet();
+	/** All chunks before this (in processing order) are done. */
+	private long contiguous;
+
+	/**
+	 * @param chunkSize  Entries per chunk. The last chunk may be partial.
+	 * @param firstChunk Chunks before this, in processing order, are already done.
+	 * @param reverse    Chunks are processed from the end of the store.
+	 */
+	ChunkProgress(long storeSize, int chunkSize, long firstChunk, boolean reverse) {
+		this.chunks = (storeSize + chunkSize - 1) / chunkSize;
+		this.chunkSize = chunkSize;
+		this.storeSize = storeSize;
+		this.reverse = reverse;
+		this.contiguous = firstChunk;
+	}
+
+	/**
+	 * Mark a chunk as done.
+	 *
+	 * @param chunk Index in processing order.
+	 * @return Entries left, see {@link #entriesLeft()}.
+	 */
+	synchronized long completed(long chunk) {
+		done.set((int) (chunk - contiguous));
+		int skip = done.nextClearBit(0);
+		if (skip > 0) {
+			contiguous += skip;
+			BitSet shifted = done.get(skip, Math.max(skip, done.length()));
+			done.clear();
+			done.or(shifted);
+		}
+		return entriesLeft();
+	}
+
+	/** @return The number of entries which are not before the point every chunk is done up to. */
+	synchronized long entriesLeft() {
+		if (reverse)
+			return Math.min(storeSize, (chunks - contiguous) * chunkSize);
+		else
+			return Math.max(0, storeSize - contiguous * chunkSize);
+	}
+
+	/**
+	 * @param entriesLeft As returned by {@link #entriesLeft()} when a pass was interrupted.
+	 * @return The number of chunks known to be done, in processing order. A partly done chunk
+	 * is not counted, so it will be done again.
+	 */
+	static long chunksDone(long storeSize, int chunkSize, long entriesLeft, boolean reverse) {
+		long chunks = (storeSize + chunkSize - 1) / chunkSize;
+		if (entriesLeft <= 0 || entriesLeft >= storeSize)
+			return 0;
+		if (reverse)
+			return chunks - (entriesLeft + chunkSize - 1) / chunkSize;
+		else
+			return (storeSize - entriesLeft) / chunkSize;
+	}
+
+}
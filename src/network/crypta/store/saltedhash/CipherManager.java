@@ -52,15 +52,27 @@ public class CipherManager {
 	}
 
 	/**
-	 * Cache for digested keys
+	 * Cache for digested keys. Split into stripes by key so that concurrent lookups for different
+	 * keys do not all contend on one lock.
 	 */
-	@SuppressWarnings("serial")
-	private final Map<ByteArrayWrapper, byte[]> digestRoutingKeyCache = new LinkedHashMap<ByteArrayWrapper, byte[]>() {
+	private static final int DIGEST_CACHE_STRIPES = 16;
+	private static final int DIGEST_CACHE_STRIPE_SIZE = 8;
+
+	/** One stripe of the cache, dropping the least recently added key when full. */
+	private static class DigestCacheStripe extends LinkedHashMap<ByteArrayWrapper, byte[]> {
+		private static final long serialVersionUID = 1L;
+
 		@Override
 		protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, byte[]> eldest) {
-			return size() > 128;
+			return size() > DIGEST_CACHE_STRIPE_SIZE;
 		}
-	};
+	}
+
+	private final DigestCacheStripe[] digestRoutingKeyCache = new DigestCacheStripe[DIGEST_CACHE_STRIPES];
+	{
+		for (int i = 0; i < DIGEST_CACHE_STRIPES; i++)
+			digestRoutingKeyCache[i] = new DigestCacheStripe();
+	}
 
 	/**
 	 * Get digested routing key
@@ -70,8 +82,9 @@ public class CipherManager {
 	 */
 	byte[] getDigestedKey(byte[] plainKey) {
 		ByteArrayWrapper key = new ByteArrayWrapper(plainKey);
-		synchronized (digestRoutingKeyCache) {
-			byte[] dk = digestRoutingKeyCache.get(key);
+		DigestCacheStripe cache = digestRoutingKeyCache[(key.hashCode() & 0x7fffffff) % DIGEST_CACHE_STRIPES];
+		synchronized (cache) {
+			byte[] dk = cache.get(key);
 			if (dk != null)
 				return dk;
 		}
@@ -83,8 +96,8 @@ public class CipherManager {
 		byte[] hashedRoutingKey = digest.digest();
 		assert hashedRoutingKey.length == 0x20;
 
-		synchronized (digestRoutingKeyCache) {
-			digestRoutingKeyCache.put(key, hashedRoutingKey);
+		synchronized (cache) {
+			cache.put(key, hashedRoutingKey);
 		}
 
 		return hashedRoutingKey;
@@ -0,0 +1,47 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package network.crypta.store.saltedhash;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A small pool of direct buffers of a fixed size, for reading slots from the store files. Reading
+ * into a direct buffer avoids the JDK copying through a temporary direct buffer of its own, and
+ * pooling avoids allocating a new buffer for every probe. Buffers beyond the limit are simply
+ * dropped on release.
+ */
+final class DirectBufferPool {
+
+	private final int bufferSize;
+	private final int maxPooled;
+	private final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger();
+
+	DirectBufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/** @return A cleared buffer of bufferSize bytes. Must be passed to release() when done. */
+	ByteBuffer acquire() {
+		ByteBuffer buf = pool.poll();
+		if (buf == null)
+			return ByteBuffer.allocateDirect(bufferSize);
+		pooled.decrementAndGet();
+		buf.clear();
+		return buf;
+	}
+
+	void release(ByteBuffer buf) {
+		assert buf.isDirect() && buf.capacity() == bufferSize;
+		if (pooled.incrementAndGet() > maxPooled) {
+			pooled.decrementAndGet();
+			return;
+		}
+		pool.offer(buf);
+	}
+
+}
@@ -15,49 +15,114 @@ import network.crypta.support.Logger.LogLevel;
 
 /**
  * Lock Manager
- * 
- * Handle locking/unlocking of individual offsets.
- * 
+ *
+ * Handle locking/unlocking of individual offsets. Offsets are spread over a number of stripes,
+ * each with its own lock, so that threads working on different slots do not contend. A slot may
+ * be locked exclusively (for writing) or shared (for reading); readers of the same slot run in
+ * parallel. A waiting writer blocks new readers so it is not starved.
+ *
  * @author sdiz
  */
 public class LockManager {
 	private static boolean logDEBUG;
+	private static final int STRIPES = 64;
 	private volatile boolean shutdown;
-	private final Lock entryLock = new ReentrantLock();
-	private final Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+	private final Stripe[] stripes;
+
+	/** The lock state of a single slot. Only exists while the slot is locked. */
+	private static class Slot {
+		final Condition condition;
+		/** Number of shared holders, or -1 if held exclusively. */
+		int holders;
+		int waitingWriters;
+
+		Slot(Condition condition) {
+			this.condition = condition;
+		}
+	}
+
+	private static class Stripe {
+		final Lock lock = new ReentrantLock();
+		final Map<Long, Slot> slots = new HashMap<Long, Slot>();
+	}
 
 	LockManager() {
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+		stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe();
+	}
+
+	private Stripe stripe(long offset) {
+		long h = offset * 0x9E3779B97F4A7C15L;
+		return stripes[(int) (h >>> 58)];
 	}
 
 	/**
-	 * Lock the entry
-	 * 
+	 * Lock the entry exclusively
+	 *
 	 * This lock is <strong>not</strong> re-entrance. No threads except Cleaner should hold more
-	 * then one lock at a time (or deadlock may occur).
+	 * then one lock at a time, except in increasing order of offset (or deadlock may occur).
+	 *
+	 * @return The handle to pass to {@link #unlockEntry(long, Condition)}, or null if shutting
+	 *         down or interrupted.
 	 */
 	Condition lockEntry(long offset) {
+		return lockEntry(offset, false);
+	}
+
+	/**
+	 * Lock the entry for reading. Other readers may hold it at the same time, writers may not.
+	 *
+	 * @see #lockEntry(long)
+	 */
+	Condition lockEntryShared(long offset) {
+		return lockEntry(offset, true);
+	}
+
+	private Condition lockEntry(long offset, boolean shared) {
 		if (logDEBUG)
-			Logger.debug(this, "try locking " + offset, new Exception());
+			Logger.debug(this, "try locking " + offset + (shared ? " (shared)" : ""), new Exception());
 
+		Stripe stripe = stripe(offset);
 		Condition condition;
 		try {
-			entryLock.lock();
+			stripe.lock.lock();
 			try {
-				do {
-					if (shutdown)
-						return null;
-
-					Condition lockCond = lockMap.get(offset);
-					if (lockCond != null)
-						lockCond.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
-					else
-						break;
-				} while (true);
-				condition = entryLock.newCondition();
-				lockMap.put(offset, condition);
+				Slot slot = null;
+				boolean waiting = false;
+				try {
+					do {
+						if (shutdown)
+							return null;
+
+						slot = stripe.slots.get(offset);
+						if (slot == null)
+							break;
+						if (shared && slot.holders >= 0 && slot.waitingWriters == 0)
+							break;
+						if (!shared && !waiting) {
+							slot.waitingWriters++;
+							waiting = true;
+						}
+						slot.condition.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
+						if (waiting && stripe.slots.get(offset) != slot) {
+							// The slot was released and another thread locked it again.
+							waiting = false;
+						}
+					} while (true);
+				} finally {
+					if (waiting && slot != null && stripe.slots.get(offset) == slot)
+						slot.waitingWriters--;
+				}
+				if (slot == null) {
+					slot = new Slot(stripe.lock.newCondition());
+					stripe.slots.put(offset, slot);
+				}
+				slot.holders = shared ? slot.holders + 1 : -1;
+				condition = slot.condition;
 			} finally {
-				entryLock.unlock();
+				stripe.lock.unlock();
 			}
 		} catch (InterruptedException e) {
 			Logger.error(this, "lock interrupted", e);
@@ -76,13 +141,21 @@ public class LockManager {
 		if (logDEBUG)
 			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
 
-		entryLock.lock();
+		Stripe stripe = stripe(offset);
+		stripe.lock.lock();
 		try {
-			Condition cond = lockMap.remove(offset);
-			assert cond == condition;
-			cond.signal();
+			Slot slot = stripe.slots.get(offset);
+			assert slot != null && slot.condition == condition;
+			if (slot.holders > 0)
+				slot.holders--;
+			else
+				slot.holders = 0;
+			if (slot.holders == 0) {
+				stripe.slots.remove(offset);
+				slot.condition.signalAll();
+			}
 		} finally {
-			entryLock.unlock();
+			stripe.lock.unlock();
 		}
 	}
 
@@ -91,14 +164,16 @@ public class LockManager {
 	 */
 	void shutdown() {
 		shutdown = true;
-		entryLock.lock();
-		try {
-			while (!lockMap.isEmpty()) {
-				Condition cond = lockMap.values().iterator().next();
-				cond.awaitUninterruptibly();
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				while (!stripe.slots.isEmpty()) {
+					Slot slot = stripe.slots.values().iterator().next();
+					slot.condition.awaitUninterruptibly();
+				}
+			} finally {
+				stripe.lock.unlock();
 			}
-		} finally {
-			entryLock.unlock();
 		}
 	}
 }
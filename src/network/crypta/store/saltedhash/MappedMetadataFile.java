@@ -0,0 +1,106 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package network.crypta.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * A read-only memory mapping of the metadata file, so that probes and the Cleaner read slots from
+ * memory rather than with a system call each. A MappedByteBuffer can't be larger than 2GB, so the
+ * file is mapped in chunks.
+ *
+ * Writes still go through the FileChannel, so durability is the same as without the mapping: the
+ * mapping is shared, so the page cache makes them visible to reads through it immediately.
+ *
+ * The mapping must be refreshed with {@link #remap()} when the file grows, and
+ * {@link #limit(long)} must be called before it shrinks, as touching a mapped page beyond the end
+ * of the file is fatal. A read which started before limit() may still use the old length, so the
+ * caller must also make sure no such read is in progress before truncating the file; the store
+ * does this with its config lock. Reads beyond the mapped length return false so the caller can
+ * fall back to the channel.
+ */
+final class MappedMetadataFile {
+
+	/** 1GB, a multiple of the metadata length so that slots never straddle chunks. */
+	static final int DEFAULT_CHUNK_SIZE = 1 << 30;
+
+	private final FileChannel channel;
+	private final int chunkSize;
+	private volatile Mapping mapping;
+
+	private static final class Mapping {
+		final MappedByteBuffer[] chunks;
+		final long length;
+
+		Mapping(MappedByteBuffer[] chunks, long length) {
+			this.chunks = chunks;
+			this.length = length;
+		}
+	}
+
+	MappedMetadataFile(FileChannel channel) throws IOException {
+		this(channel, DEFAULT_CHUNK_SIZE);
+	}
+
+	MappedMetadataFile(FileChannel channel, int chunkSize) throws IOException {
+		this.channel = channel;
+		this.chunkSize = chunkSize;
+		remap();
+	}
+
+	/** Map the whole of the file as it is now. Chunks which haven't changed size are reused. */
+	synchronized void remap() throws IOException {
+		long length = channel.size();
+		Mapping old = mapping;
+		int count = (int) ((length + chunkSize - 1) / chunkSize);
+		MappedByteBuffer[] chunks = new MappedByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			long start = (long) i * chunkSize;
+			int size = (int) Math.min(chunkSize, length - start);
+			if (old != null && i < old.chunks.length && old.chunks[i].capacity() == size)
+				chunks[i] = old.chunks[i];
+			else
+				chunks[i] = channel.map(MapMode.READ_ONLY, start, size);
+		}
+		mapping = new Mapping(chunks, length);
+	}
+
+	/** Stop reading beyond the given length, because the file is about to be truncated. Reads
+	 * already in progress are not affected. */
+	synchronized void limit(long length) {
+		Mapping old = mapping;
+		if (old != null && length < old.length)
+			mapping = new Mapping(old.chunks, length);
+	}
+
+	long length() {
+		return mapping.length;
+	}
+
+	/**
+	 * Read dst.remaining() bytes from the given position into dst.
+	 *
+	 * @return False if the range is not mapped; nothing is read in that case.
+	 */
+	boolean read(ByteBuffer dst, long position) {
+		Mapping m = mapping;
+		int len = dst.remaining();
+		if (position < 0 || position + len > m.length)
+			return false;
+		while (dst.hasRemaining()) {
+			MappedByteBuffer chunk = m.chunks[(int) (position / chunkSize)];
+			int offset = (int) (position % chunkSize);
+			int n = Math.min(dst.remaining(), chunk.capacity() - offset);
+			dst.put(dst.position(), chunk, offset, n);
+			dst.position(dst.position() + n);
+			position += n;
+		}
+		return true;
+	}
+
+}
@@ -35,6 +35,7 @@ import java.nio.channels.OverlappingFileLockException;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.*;
 
@@ -166,6 +167,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
         this.preallocate = preallocate;
 
         lockManager = new LockManager();
+        metaBufferPool = new DirectBufferPool(Entry.METADATA_LENGTH, BUFFER_POOL_SIZE);
+        hdBufferPool = new DirectBufferPool(headerBlockLength + dataBlockLength + hdPadding, BUFFER_POOL_SIZE);
 
         // Create a directory it not exist
         this.baseDir.mkdirs();
@@ -319,7 +322,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
         }
         byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
         try {
-            Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, true);
+            Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, true, true);
             if (lockMap == null) {
                 if (logDEBUG)
                     Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
@@ -411,7 +414,6 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
     public boolean put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock, boolean wrongStore) throws IOException, KeyCollisionException {
         byte[] routingKey = block.getRoutingKey();
-        byte[] fullKey = block.getFullKey();
 
         if (logMINOR)
             Logger.minor(this, "Putting " + HexUtil.bytesToHex(routingKey) + " (" + name + ")");
@@ -429,131 +431,336 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
         }
         byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
         try {
-            Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, false);
+            Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, false, false);
             if (lockMap == null) {
                 if (logDEBUG)
                     Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
                 return false;
             }
             try {
-                /*
-                 * Use lazy loading here. This may lost data if digestedRoutingKey collide but
-                 * collisionPossible is false. Should be very rare as digestedRoutingKey is a
-                 * SHA-256 hash.
-                 */
-                Entry oldEntry = probeEntry(digestedKey, routingKey, false);
-                if (oldEntry != null && !oldEntry.isFree()) {
-                    long oldOffset = oldEntry.curOffset;
-                    try {
-                        if (!collisionPossible) {
-                            if ((oldEntry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && !isOldBlock) {
-                                oldEntry = readEntry(oldEntry.curOffset, digestedKey, routingKey, true);
-                                // Currently flagged as an old block
-                                oldEntry.flag |= Entry.ENTRY_NEW_BLOCK;
-                                if (logMINOR) Logger.minor(this, "Setting old block to new block");
-                                oldEntry.storeSize = storeSize;
-                                writeEntry(oldEntry, digestedKey, oldOffset);
-                            }
-                            return true;
-                        }
-                        oldEntry.setHD(readHD(oldOffset)); // read from disk
-                        T oldBlock = oldEntry.getStorableBlock(routingKey, fullKey, false, false, null, (block instanceof SSKBlock) ? ((SSKBlock) block).getPubKey() : null);
-                        if (block.equals(oldBlock)) {
-                            if (logDEBUG) Logger.debug(this, "Block already stored");
-                            if ((oldEntry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && !isOldBlock) {
-                                // Currently flagged as an old block
-                                oldEntry.flag |= Entry.ENTRY_NEW_BLOCK;
-                                if (logMINOR) Logger.minor(this, "Setting old block to new block");
-                                oldEntry.storeSize = storeSize;
-                                writeEntry(oldEntry, digestedKey, oldOffset);
-                            }
-                            return false; // already in store
-                        } else if (!overwrite) {
-                            throw new KeyCollisionException();
-                        }
-                    } catch (KeyVerifyException e) {
-                        // ignore
+                return putLocked(block, data, header, overwrite, isOldBlock, wrongStore, digestedKey, null);
+            } finally {
+                unlockDigestedKey(digestedKey, false, lockMap);
+            }
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The body of {@link #put(StorableBlock, byte[], byte[], boolean, boolean, boolean)}. The
+     * caller holds the config read lock and the locks on the key's slots.
+     *
+     * @param batch If not null, queue the writes here rather than writing them now.
+     */
+    private boolean putLocked(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock, boolean wrongStore,
+                              byte[] digestedKey, WriteBatch batch) throws IOException, KeyCollisionException {
+        byte[] routingKey = block.getRoutingKey();
+        byte[] fullKey = block.getFullKey();
+
+        /*
+         * Use lazy loading here. This may lost data if digestedRoutingKey collide but
+         * collisionPossible is false. Should be very rare as digestedRoutingKey is a
+         * SHA-256 hash.
+         */
+        Entry oldEntry = probeEntry(digestedKey, routingKey, false);
+        if (oldEntry != null && !oldEntry.isFree()) {
+            long oldOffset = oldEntry.curOffset;
+            try {
+                if (!collisionPossible) {
+                    if ((oldEntry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && !isOldBlock) {
+                        oldEntry = readEntry(oldEntry.curOffset, digestedKey, routingKey, true);
+                        // Currently flagged as an old block
+                        oldEntry.flag |= Entry.ENTRY_NEW_BLOCK;
+                        if (logMINOR) Logger.minor(this, "Setting old block to new block");
+                        oldEntry.storeSize = storeSize;
+                        writeEntry(oldEntry, digestedKey, oldOffset, batch);
                     }
+                    return true;
+                }
+                readHD(oldEntry, oldOffset); // read from disk
+                T oldBlock = oldEntry.getStorableBlock(routingKey, fullKey, false, false, null, (block instanceof SSKBlock) ? ((SSKBlock) block).getPubKey() : null);
+                if (block.equals(oldBlock)) {
+                    if (logDEBUG) Logger.debug(this, "Block already stored");
+                    if ((oldEntry.flag & Entry.ENTRY_NEW_BLOCK) == 0 && !isOldBlock) {
+                        // Currently flagged as an old block
+                        oldEntry.flag |= Entry.ENTRY_NEW_BLOCK;
+                        if (logMINOR) Logger.minor(this, "Setting old block to new block");
+                        oldEntry.storeSize = storeSize;
+                        writeEntry(oldEntry, digestedKey, oldOffset, batch);
+                    }
+                    return false; // already in store
+                } else if (!overwrite) {
+                    throw new KeyCollisionException();
+                }
+            } catch (KeyVerifyException e) {
+                // ignore
+            }
 
-                    // Overwrite old offset with same key
-                    Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
-                    writeEntry(entry, digestedKey, oldOffset);
-                    if (oldEntry.generation != generation)
-                        keyCount.incrementAndGet();
+            // Overwrite old offset with same key
+            Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
+            writeEntry(entry, digestedKey, oldOffset, batch);
+            if (oldEntry.generation != generation)
+                keyCount.incrementAndGet();
+            return true;
+        }
+
+        Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
+        long[] offset = entry.getOffset();
+
+        int firstWrongStoreIndex = -1;
+        int wrongStoreCount = 0;
+
+        for (int i = 0; i < offset.length; i++) {
+            if (offset[i] < storeFileOffsetReady) {
+                long flag = getFlag(offset[i], false);
+                if ((flag & Entry.ENTRY_FLAG_OCCUPIED) == 0) {
+                    // write to free block
+                    if (logDEBUG)
+                        Logger.debug(this, "probing, write to i=" + i + ", offset=" + offset[i]);
+                    writeEntry(entry, digestedKey, offset[i], batch);
+                    keyCount.incrementAndGet();
+                    onWrite();
                     return true;
+                } else if (((flag & Entry.ENTRY_WRONG_STORE) == Entry.ENTRY_WRONG_STORE)) {
+                    if (wrongStoreCount == 0)
+                        firstWrongStoreIndex = i;
+                    wrongStoreCount++;
                 }
+            }
+        }
 
-                Entry entry = new Entry(routingKey, header, data, !isOldBlock, wrongStore);
-                long[] offset = entry.getOffset();
+        if ((!wrongStore) && altStore != null) {
+            if (altStore.put(block, data, header, overwrite, isOldBlock, true)) {
+                if (logMINOR)
+                    Logger.minor(this, "Successfully wrote block to wrong store " + altStore + " on " + this);
+                return true;
+            } else {
+                if (logMINOR)
+                    Logger.minor(this, "Writing to wrong store " + altStore + " on " + this + " failed");
+            }
+        }
 
-                int firstWrongStoreIndex = -1;
-                int wrongStoreCount = 0;
+        // There are no free slots for this Entry, so some slot will have to get overwritten.
+        int indexToOverwrite = -1;
 
-                for (int i = 0; i < offset.length; i++) {
-                    if (offset[i] < storeFileOffsetReady) {
-                        long flag = getFlag(offset[i], false);
-                        if ((flag & Entry.ENTRY_FLAG_OCCUPIED) == 0) {
-                            // write to free block
-                            if (logDEBUG)
-                                Logger.debug(this, "probing, write to i=" + i + ", offset=" + offset[i]);
-                            writeEntry(entry, digestedKey, offset[i]);
-                            keyCount.incrementAndGet();
-                            onWrite();
-                            return true;
-                        } else if (((flag & Entry.ENTRY_WRONG_STORE) == Entry.ENTRY_WRONG_STORE)) {
-                            if (wrongStoreCount == 0)
-                                firstWrongStoreIndex = i;
-                            wrongStoreCount++;
-                        }
-                    }
+        if (wrongStore) {
+            // Distribute overwrites evenly between the right store and the wrong store.
+            int a = OPTION_MAX_PROBE;
+            int b = wrongStoreCount;
+            if (random.nextInt(a + b) < b)
+                // Allow the overwrite to happen in the wrong store.
+                indexToOverwrite = firstWrongStoreIndex;
+            else
+                // Force the overwrite to happen in the right store.
+                return false;
+        } else {
+            // By default, overwrite offset[0] when not writing to wrong store.
+            indexToOverwrite = 0;
+        }
+
+        // Do the overwriting.
+        if (logDEBUG)
+            Logger.debug(this, "collision, write to i=" + indexToOverwrite + ", offset=" + offset[indexToOverwrite]);
+        oldEntry = readEntry(offset[indexToOverwrite], null, null, false);
+        writeEntry(entry, digestedKey, offset[indexToOverwrite], batch);
+        if (oldEntry.generation != generation)
+            keyCount.incrementAndGet();
+        onWrite();
+        return true;
+    }
+
+    /** A block to be written by {@link #putAll(List)}. */
+    public static final class BatchedPut<T extends StorableBlock> {
+        final T block;
+        final byte[] data;
+        final byte[] header;
+        final boolean overwrite;
+        final boolean isOldBlock;
+
+        public BatchedPut(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) {
+            this.block = block;
+            this.data = data;
+            this.header = header;
+            this.overwrite = overwrite;
+            this.isOldBlock = isOldBlock;
+        }
+    }
+
+    /**
+     * Write several blocks at once, e.g. when flushing a write cache. The blocks are handled in
+     * slot order with all their slots locked, and the resulting writes are issued in file order,
+     * with runs of adjacent slots written by a single gathering write to each file. This turns many
+     * random writes into fewer, mostly ascending ones.
+     * <p>
+     * A block which collides with a different block already in the store is not written, as with
+     * {@link #put(StorableBlock, byte[], byte[], boolean, boolean)}.
+     *
+     * @return The number of write calls made.
+     */
+    public int putAll(List<BatchedPut<T>> puts) throws IOException {
+        if (puts.isEmpty())
+            return 0;
+        try {
+            int retry = 0;
+            while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
+                if (shutdown)
+                    return 0;
+                if (retry++ > 10)
+                    throw new IOException("lock timeout (20s)");
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted: " + e);
+        }
+        try {
+            final int count = puts.size();
+            final byte[][] digestedKeys = new byte[count][];
+            final long[] firstOffsets = new long[count];
+            // a sorted set to prevent deadlocks, see lockDigestedKey()
+            SortedSet<Long> offsets = new TreeSet<Long>();
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                digestedKeys[i] = cipherManager.getDigestedKey(puts.get(i).block.getRoutingKey());
+                long[] keyOffsets = getOffsetFromDigestedKey(digestedKeys[i], storeSize);
+                firstOffsets[i] = keyOffsets[0];
+                for (long offset : keyOffsets)
+                    offsets.add(offset);
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(firstOffsets[a], firstOffsets[b]);
                 }
+            });
 
-                if ((!wrongStore) && altStore != null) {
-                    if (altStore.put(block, data, header, overwrite, isOldBlock, true)) {
-                        if (logMINOR)
-                            Logger.minor(this, "Successfully wrote block to wrong store " + altStore + " on " + this);
-                        return true;
-                    } else {
-                        if (logMINOR)
-                            Logger.minor(this, "Writing to wrong store " + altStore + " on " + this + " failed");
+            Map<Long, Condition> locked = new TreeMap<Long, Condition>();
+            try {
+                for (long offset : offsets) {
+                    Condition condition = lockManager.lockEntry(offset);
+                    if (condition == null) {
+                        if (logDEBUG)
+                            Logger.debug(this, "cannot lock batch, shutting down?");
+                        return 0;
                     }
+                    locked.put(offset, condition);
                 }
 
-                // There are no free slots for this Entry, so some slot will have to get overwritten.
-                int indexToOverwrite = -1;
-
-                if (wrongStore) {
-                    // Distribute overwrites evenly between the right store and the wrong store.
-                    int a = OPTION_MAX_PROBE;
-                    int b = wrongStoreCount;
-                    if (random.nextInt(a + b) < b)
-                        // Allow the overwrite to happen in the wrong store.
-                        indexToOverwrite = firstWrongStoreIndex;
-                    else
-                        // Force the overwrite to happen in the right store.
-                        return false;
-                } else {
-                    // By default, overwrite offset[0] when not writing to wrong store.
-                    indexToOverwrite = 0;
+                WriteBatch batch = new WriteBatch();
+                for (int i : order) {
+                    BatchedPut<T> put = puts.get(i);
+                    // Reads don't see queued writes, so write them first if this key may read them.
+                    if (batch.overlaps(digestedKeys[i]))
+                        batch.flush();
+                    try {
+                        putLocked(put.block, put.data, put.header, put.overwrite, put.isOldBlock, false, digestedKeys[i], batch);
+                    } catch (KeyCollisionException e) {
+                        if (logMINOR)
+                            Logger.minor(this, "Key collision writing batch to " + name);
+                    } catch (IOException e) {
+                        if (shutdown)
+                            return batch.writeCalls;
+                        Logger.error(this, "Unable to write block in batch to " + name + ": " + e, e);
+                    }
                 }
-
-                // Do the overwriting.
-                if (logDEBUG)
-                    Logger.debug(this, "collision, write to i=" + indexToOverwrite + ", offset=" + offset[indexToOverwrite]);
-                oldEntry = readEntry(offset[indexToOverwrite], null, null, false);
-                writeEntry(entry, digestedKey, offset[indexToOverwrite]);
-                if (oldEntry.generation != generation)
-                    keyCount.incrementAndGet();
-                onWrite();
-                return true;
+                batch.flush();
+                return batch.writeCalls;
             } finally {
-                unlockDigestedKey(digestedKey, false, lockMap);
+                for (Map.Entry<Long, Condition> e : locked.entrySet())
+                    lockManager.unlockEntry(e.getKey(), e.getValue());
             }
         } finally {
             configLock.readLock().unlock();
         }
     }
 
+    /** Maximum number of slots written by a single gathering write. */
+    private static final int MAX_GATHER = 64;
+
+    /** Writes queued by {@link #putAll(List)}. The caller holds the locks on all the slots. */
+    private final class WriteBatch {
+        /** Offset to metadata buffer and header+data buffer, which is null if unchanged. */
+        private final TreeMap<Long, ByteBuffer[]> pending = new TreeMap<Long, ByteBuffer[]>();
+        private int writeCalls;
+
+        void add(long offset, ByteBuffer meta, ByteBuffer hd) {
+            pending.put(offset, new ByteBuffer[]{meta, hd});
+        }
+
+        /** @return True if a put of this key might read a slot with a queued write. */
+        boolean overlaps(byte[] digestedKey) {
+            if (pending.isEmpty())
+                return false;
+            for (long offset : getOffsetFromDigestedKey(digestedKey, storeSize))
+                if (pending.containsKey(offset))
+                    return true;
+            if (prevStoreSize != 0) {
+                for (long offset : getOffsetFromDigestedKey(digestedKey, prevStoreSize))
+                    if (pending.containsKey(offset))
+                        return true;
+            }
+            return false;
+        }
+
+        void flush() throws IOException {
+            long hdLength = headerBlockLength + dataBlockLength + hdPadding;
+            List<ByteBuffer> metaRun = new ArrayList<ByteBuffer>();
+            List<ByteBuffer> hdRun = new ArrayList<ByteBuffer>();
+            long metaStart = -1;
+            long hdStart = -1;
+            for (Map.Entry<Long, ByteBuffer[]> e : pending.entrySet()) {
+                long offset = e.getKey();
+                if (metaStart + metaRun.size() != offset || metaRun.size() == MAX_GATHER) {
+                    gatherWrite(metaFC, metaStart * Entry.METADATA_LENGTH, metaRun);
+                    metaStart = offset;
+                }
+                metaRun.add(e.getValue()[0]);
+                ByteBuffer hd = e.getValue()[1];
+                if (hd == null)
+                    continue;
+                if (hdStart + hdRun.size() != offset || hdRun.size() == MAX_GATHER) {
+                    gatherWrite(hdFC, hdStart * hdLength, hdRun);
+                    hdStart = offset;
+                }
+                hdRun.add(hd);
+            }
+            gatherWrite(metaFC, metaStart * Entry.METADATA_LENGTH, metaRun);
+            gatherWrite(hdFC, hdStart * hdLength, hdRun);
+            pending.clear();
+        }
+
+        /** Write and clear the buffers, which are for consecutive slots starting at the position. */
+        private void gatherWrite(FileChannel fc, long position, List<ByteBuffer> run) throws IOException {
+            if (run.isEmpty())
+                return;
+            if (run.size() == 1) {
+                ByteBuffer bf = run.get(0);
+                do {
+                    int status = fc.write(bf, position + bf.position());
+                    if (status == -1)
+                        throw new EOFException();
+                } while (bf.hasRemaining());
+            } else {
+                ByteBuffer[] bufs = run.toArray(new ByteBuffer[run.size()]);
+                long remaining = 0;
+                for (ByteBuffer bf : bufs)
+                    remaining += bf.remaining();
+                // Gathering writes use the channel position, which nothing else relies on.
+                synchronized (fc) {
+                    fc.position(position);
+                    while (remaining > 0) {
+                        long written = fc.write(bufs);
+                        if (written < 0)
+                            throw new EOFException();
+                        remaining -= written;
+                    }
+                }
+            }
+            writeCalls++;
+            run.clear();
+        }
+    }
+
     private boolean onWrite() {
         return (writes.incrementAndGet() % (storeSize * 2) == 0);
     }
@@ -563,6 +770,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
     private File metaFile;
     private RandomAccessFile metaRAF;
     private FileChannel metaFC;
+    /** Null unless reading metadata through a memory mapping. */
+    private volatile MappedMetadataFile mappedMeta;
+    private final LatencyHistogram metaReadLatency = new LatencyHistogram();
+    private final LatencyHistogram hdReadLatency = new LatencyHistogram();
     // header+data file
     private File hdFile;
     private RandomAccessFile hdRAF;
@@ -883,18 +1094,27 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
             else
                 Logger.minor(this, "Unlikely match");
         }
-        ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
-
-        do {
-            int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-            if (status == -1) {
-                Logger.error(this, "Failed to access offset " + offset, new Exception("error"));
-                throw new EOFException();
+        ByteBuffer mbf = metaBufferPool.acquire();
+        Entry entry;
+        try {
+            long startTime = System.nanoTime();
+            MappedMetadataFile mapped = mappedMeta;
+            if (mapped == null || !mapped.read(mbf, Entry.METADATA_LENGTH * offset)) {
+                do {
+                    int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+                    if (status == -1) {
+                        Logger.error(this, "Failed to access offset " + offset, new Exception("error"));
+                        throw new EOFException();
+                    }
+                } while (mbf.hasRemaining());
             }
-        } while (mbf.hasRemaining());
-        mbf.flip();
+            mbf.flip();
+            metaReadLatency.report(System.nanoTime() - startTime);
 
-        Entry entry = new Entry(mbf, null);
+            entry = new Entry(mbf, null);
+        } finally {
+            metaBufferPool.release(mbf);
+        }
         entry.curOffset = offset;
 
         byte[] slotDigestedRoutingKey = entry.digestedRoutingKey;
@@ -929,8 +1149,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
             }
 
             if (withData) {
-                ByteBuffer hdBuf = readHD(offset);
-                entry.setHD(hdBuf);
+                readHD(entry, offset);
                 boolean decrypted = cipherManager.decrypt(entry, routingKey);
                 if (!decrypted) {
                     if (logMINOR && validCache && likelyMatch)
@@ -947,23 +1166,28 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
     }
 
     /**
-     * Read header + data from disk
+     * Read header + data from disk into the entry
      *
      * @param offset
      * @throws IOException
      */
-    private ByteBuffer readHD(long offset) throws IOException {
-        ByteBuffer buf = ByteBuffer.allocate(headerBlockLength + dataBlockLength + hdPadding);
-
-        long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
-        do {
-            int status = hdFC.read(buf, pos + buf.position());
-            if (status == -1)
-                throw new EOFException();
-        } while (buf.hasRemaining());
-        buf.flip();
+    private void readHD(Entry entry, long offset) throws IOException {
+        ByteBuffer buf = hdBufferPool.acquire();
+        try {
+            long startTime = System.nanoTime();
+            long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
+            do {
+                int status = hdFC.read(buf, pos + buf.position());
+                if (status == -1)
+                    throw new EOFException();
+            } while (buf.hasRemaining());
+            buf.flip();
+            hdReadLatency.report(System.nanoTime() - startTime);
 
-        return buf;
+            entry.setHD(buf);
+        } finally {
+            hdBufferPool.release(buf);
+        }
     }
 
     /**
@@ -1013,6 +1237,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
      * </ul>
      */
     private void writeEntry(Entry entry, byte[] digestedRoutingKey, long offset) throws IOException {
+        writeEntry(entry, digestedRoutingKey, offset, null);
+    }
+
+    /**
+     * @param batch If not null, queue the write in the batch instead. The slot filter is updated
+     *              immediately, so the caller must hold the slot's lock until the batch is flushed.
+     */
+    private void writeEntry(Entry entry, byte[] digestedRoutingKey, long offset, WriteBatch batch) throws IOException {
         if (offset >= Integer.MAX_VALUE) throw new IllegalArgumentException();
 
         if (!slotFilterDisabled)
@@ -1020,6 +1252,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
         cipherManager.encrypt(entry, random);
 
+        if (batch != null) {
+            batch.add(offset, entry.toMetaDataBuffer(), entry.toHDBuffer());
+            entry.curOffset = offset;
+            return;
+        }
+
         ByteBuffer bf = entry.toMetaDataBuffer();
         do {
             int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
@@ -1042,6 +1280,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
     private void flushAndClose(boolean abort) {
         Logger.normal(this, "Flush and closing this store: " + name);
+        mappedMeta = null;
         try {
             metaFC.force(true);
             metaFC.close();
@@ -1062,6 +1301,43 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
         }
     }
 
+    /**
+     * Read the metadata file through a memory mapping rather than with a system call per slot.
+     * Writes are not affected.
+     */
+    public void setUseMappedMetadata(boolean useMapped) {
+        configLock.writeLock().lock();
+        try {
+            if (shutdown)
+                return;
+            if (!useMapped) {
+                mappedMeta = null;
+            } else if (mappedMeta == null) {
+                try {
+                    mappedMeta = new MappedMetadataFile(metaFC);
+                } catch (IOException e) {
+                    Logger.error(this, "Unable to map metadata file for " + name + ": " + e, e);
+                }
+            }
+        } finally {
+            configLock.writeLock().unlock();
+        }
+    }
+
+    public boolean isUsingMappedMetadata() {
+        return mappedMeta != null;
+    }
+
+    /** @return Latencies of reading a slot's metadata, from the file or the mapping. */
+    public LatencyHistogram getMetadataReadLatency() {
+        return metaReadLatency;
+    }
+
+    /** @return Latencies of reading a slot's header and data. */
+    public LatencyHistogram getHeaderDataReadLatency() {
+        return hdReadLatency;
+    }
+
     /**
      * Set preallocate storage space
      *
@@ -1098,8 +1374,20 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
             }
             storeFileOffsetReady = 1 + storeMaxEntries;
 
-            metaRAF.setLength(newMetaLen);
-            hdRAF.setLength(newHdLen);
+            // Readers hold the read lock while they use the mapping, so once we have the write
+            // lock nobody can be reading the pages we are about to truncate.
+            configLock.writeLock().lock();
+            try {
+                MappedMetadataFile mapped = mappedMeta;
+                if (mapped != null)
+                    mapped.limit(newMetaLen);
+                metaRAF.setLength(newMetaLen);
+                hdRAF.setLength(newHdLen);
+                if (mapped != null)
+                    mapped.remap();
+            } finally {
+                configLock.writeLock().unlock();
+            }
         } catch (IOException e) {
             Logger.error(this, "error resizing store file", e);
         }
@@ -1119,7 +1407,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
      *  +----+---------------+-------+-------+
      *  |0020| Est Key Count |  Gen  | Flags |
      *  +----+-------+-------+-------+-------+
-     *  |0030|   K   |      (reserved)       |
+     *  |0030|   K   |  CkT  |  Checkpoint   |
      *  +----+-------+-------+---------------+
      *  |0040|    writes     |     hits      |
      *  +----+---------------+---------------+
@@ -1128,6 +1416,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
      *
      *  Gen = Generation
      *    K = K for bloom filter
+     *  CkT = Type of the cleaner pass the checkpoint is for, see CHECKPOINT_*
+     *  Checkpoint = Entries left when the cleaner pass was interrupted
      * </pre>
      */
     private final File configFile;
@@ -1205,8 +1495,15 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
                     try {
                         raf.readInt(); // bloomFilterK
-                        raf.readInt(); // reserved
-                        raf.readLong(); // reserved
+                        cleanerCheckpointType = raf.readInt();
+                        cleanerCheckpoint = raf.readLong();
+                        if ((cleanerCheckpointType == CHECKPOINT_REBUILD && (flags & FLAG_DIRTY) != 0) ||
+                                (cleanerCheckpointType == CHECKPOINT_RESIZE && prevStoreSize == 0) ||
+                                cleanerCheckpoint < 0) {
+                            // The slot filter may have changed since, or the checkpoint is no use.
+                            cleanerCheckpointType = CHECKPOINT_NONE;
+                            cleanerCheckpoint = 0;
+                        }
                         long w = raf.readLong();
                         writes.set(w);
                         initialWrites = w;
@@ -1261,8 +1558,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
                 raf.writeInt(generation);
                 raf.writeInt(flags);
                 raf.writeInt(0); // bloomFilterK
-                raf.writeInt(0);
-                raf.writeLong(0);
+                raf.writeInt(cleanerCheckpointType);
+                raf.writeLong(cleanerCheckpoint);
                 raf.writeLong(writes.get());
                 raf.writeLong(hits.get());
                 raf.writeLong(misses.get());
@@ -1284,17 +1581,75 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
     private long prevStoreSize = 0;
     private final Lock cleanerLock = new ReentrantLock(); // local to this datastore
     private final Condition cleanerCondition = cleanerLock.newCondition();
+    /** Set when there is new work for the Cleaner, in case it was busy when we signalled it. */
+    private volatile boolean cleanerWakeup;
     private static final Lock cleanerGlobalLock = new ReentrantLock(); // global across all datastore
     private final Cleaner cleanerThread;
     private final CleanerStatusUserAlert cleanerStatusUserAlert;
 
     private final Entry NOT_MODIFIED = new Entry();
 
+    private static final int CHECKPOINT_NONE = 0;
+    private static final int CHECKPOINT_RESIZE = 1;
+    private static final int CHECKPOINT_REBUILD = 2;
+    /** The cleaner pass which can be resumed, if any, and how far it had got. Saved in the config file. */
+    private int cleanerCheckpointType = CHECKPOINT_NONE;
+    private long cleanerCheckpoint;
+
+    private void setCleanerCheckpoint(int type, long entriesLeft) {
+        configLock.writeLock().lock();
+        try {
+            cleanerCheckpointType = type;
+            cleanerCheckpoint = entriesLeft;
+        } finally {
+            configLock.writeLock().unlock();
+        }
+    }
+
+    private static volatile int cleanerThreads = 2;
+
+    /** Set the number of threads each store uses to resize or rebuild the slot filter. */
+    public static void setCleanerThreads(int threads) {
+        if (threads < 1) throw new IllegalArgumentException();
+        cleanerThreads = threads;
+    }
+
+    public static int getCleanerThreads() {
+        return cleanerThreads;
+    }
+
+    /** Progress of a resize or slot filter rebuild. */
+    public static final class CleanerStatus {
+        /** True if resizing, false if rebuilding the slot filter. */
+        public final boolean resizing;
+        public final long processed;
+        public final long total;
+        /** Estimated time to completion in milliseconds, or -1 if not known yet. */
+        public final long eta;
+
+        CleanerStatus(boolean resizing, long processed, long total, long eta) {
+            this.resizing = resizing;
+            this.processed = processed;
+            this.total = total;
+            this.eta = eta;
+        }
+    }
+
+    /** @return The progress of the cleaner, or null if it is not resizing or rebuilding. */
+    public CleanerStatus getCleanerStatus() {
+        Cleaner cleaner = cleanerThread;
+        if (cleaner == null || !(cleaner.isResizing || cleaner.isRebuilding))
+            return null;
+        return new CleanerStatus(cleaner.isResizing, cleaner.entriesDone.get(), cleaner.entriesTotal, cleaner.eta());
+    }
+
     private interface BatchProcessor<T extends StorableBlock> {
         // initialize
-        void init();
+        // resuming is true if continuing a pass which was interrupted, e.g. by a restart
+        void init(boolean resuming);
 
-        // call this after reading RESIZE_MEMORY_ENTRIES entries
+        // call this after processing each chunk, from any of the cleaner's worker threads
+        // entriesLeft is the number of entries left before the point up to which every chunk is done
         // return false to abort
         boolean batch(long entriesLeft);
 
@@ -1382,7 +1737,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
                     writeConfigFile();
 
                     try {
-                        cleanerCondition.await(CLEANER_PERIOD, TimeUnit.MILLISECONDS);
+                        // The signal is lost if we were busy, so check the flag every second.
+                        long deadline = System.currentTimeMillis() + CLEANER_PERIOD;
+                        long left;
+                        while (!cleanerWakeup && !shutdown && (left = deadline - System.currentTimeMillis()) > 0)
+                            cleanerCondition.await(Math.min(left, 1000), TimeUnit.MILLISECONDS);
+                        cleanerWakeup = false;
                     } catch (InterruptedException e) {
                         Logger.debug(this, "interrupted", e);
                     }
@@ -1393,6 +1753,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
         }
 
         private static final int RESIZE_MEMORY_ENTRIES = 128; // temporary memory store size (in # of entries)
+        private static final int CLEANER_CHUNK_ENTRIES = 1024; // entries read and written at once
 
         /**
          * Move old entries to new location and resize store
@@ -1402,19 +1763,27 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
             System.out.println("Resizing datastore " + name);
 
             BatchProcessor<T> resizeProcesser = new BatchProcessor<T>() {
-                final Deque<Entry> oldEntryList = new LinkedList<Entry>();
+                // Entries waiting to be relocated, per worker thread
+                final ThreadLocal<Deque<Entry>> oldEntryLists = new ThreadLocal<Deque<Entry>>() {
+                    @Override
+                    protected Deque<Entry> initialValue() {
+                        return new LinkedList<Entry>();
+                    }
+                };
 
                 @Override
-                public void init() {
+                public void init(boolean resuming) {
                     if (storeSize > _prevStoreSize)
                         setStoreFileSize(storeSize);
 
-                    configLock.writeLock().lock();
-                    try {
-                        generation++;
-                        keyCount.set(0);
-                    } finally {
-                        configLock.writeLock().unlock();
+                    if (!resuming) {
+                        configLock.writeLock().lock();
+                        try {
+                            generation++;
+                            keyCount.set(0);
+                        } finally {
+                            configLock.writeLock().unlock();
+                        }
                     }
 
                     WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
@@ -1446,7 +1815,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
                                         + ", Offset=" + entry.curOffset);
                     }
                     try {
-                        entry.setHD(readHD(entry.curOffset));
+                        readHD(entry, entry.curOffset);
+                        Deque<Entry> oldEntryList = oldEntryLists.get();
                         oldEntryList.add(entry);
                         if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES)
                             oldEntryList.poll();
@@ -1456,21 +1826,31 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
                     return null;
                 }
 
-                int i = 0;
+                final AtomicInteger i = new AtomicInteger();
+                long shrunkTo = _prevStoreSize;
 
                 @Override
                 public boolean batch(long entriesLeft) {
                     WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(30) + SECONDS.toMillis(1)));
 
-                    if (i++ % 16 == 0)
+                    if (i.getAndIncrement() % 16 == 0) {
+                        setCleanerCheckpoint(CHECKPOINT_RESIZE, entriesLeft);
                         writeConfigFile();
+                    }
 
                     // shrink data file to current size
-                    if (storeSize < _prevStoreSize)
-                        setStoreFileSize(Math.max(storeSize, entriesLeft));
+                    if (storeSize < _prevStoreSize) {
+                        synchronized (this) {
+                            long newSize = Math.max(storeSize, entriesLeft);
+                            if (newSize < shrunkTo) {
+                                setStoreFileSize(newSize);
+                                shrunkTo = newSize;
+                            }
+                        }
+                    }
 
                     // try to resolve the list
-                    Iterator<Entry> it = oldEntryList.iterator();
+                    Iterator<Entry> it = oldEntryLists.get().iterator();
                     while (it.hasNext())
                         if (resolveOldEntry(it.next()))
                             it.remove();
@@ -1490,6 +1870,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
                         if (_prevStoreSize != prevStoreSize)
                             return;
                         prevStoreSize = 0;
+                        setCleanerCheckpoint(CHECKPOINT_NONE, 0);
                         if (!slotFilterDisabled) {
                             if (slotFilter.size() != (int) storeSize)
                                 slotFilter.resize((int) storeSize);
@@ -1511,7 +1892,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
                 }
             };
 
-            batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep);
+            batchProcessEntries(resizeProcesser, _prevStoreSize, true, sleep,
+                    cleanerCheckpointType == CHECKPOINT_RESIZE ? cleanerCheckpoint : 0);
         }
 
         /**
@@ -1523,12 +1905,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
             BatchProcessor<T> rebuildBloomProcessor = new BatchProcessor<T>() {
                 @Override
-                public void init() {
-                    configLock.writeLock().lock();
-                    try {
-                        keyCount.set(0);
-                    } finally {
-                        configLock.writeLock().unlock();
+                public void init(boolean resuming) {
+                    if (!resuming) {
+                        configLock.writeLock().lock();
+                        try {
+                            keyCount.set(0);
+                        } finally {
+                            configLock.writeLock().unlock();
+                        }
                     }
 
                     WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
@@ -1555,17 +1939,21 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
                     return NOT_MODIFIED;
                 }
 
-                int i = 0;
+                final AtomicInteger i = new AtomicInteger();
 
                 @Override
                 public boolean batch(long entriesLeft) {
                     WrapperManager.signalStarting((int) (RESIZE_MEMORY_ENTRIES * SECONDS.toMillis(5) + SECONDS.toMillis(1)));
 
-                    if (i++ % 16 == 0)
-                        writeConfigFile();
-                    if (i++ % 1024 == 0) {
+                    int batch = i.getAndIncrement();
+                    if (batch % 128 == 0) {
+                        // Only resume from a point the slot filter on disk has reached.
                         if (!slotFilterDisabled)
                             slotFilter.forceWrite();
+                        setCleanerCheckpoint(CHECKPOINT_REBUILD, entriesLeft);
+                        writeConfigFile();
+                    } else if (batch % 16 == 0) {
+                        writeConfigFile();
                     }
 
                     return prevStoreSize == 0;
@@ -1582,6 +1970,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
                     configLock.writeLock().lock();
                     try {
                         flags &= ~FLAG_REBUILD_BLOOM;
+                        setCleanerCheckpoint(CHECKPOINT_NONE, 0);
                         writeConfigFile();
                     } finally {
                         configLock.writeLock().unlock();
@@ -1595,58 +1984,118 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
                 }
             };
 
-            batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep);
+            batchProcessEntries(rebuildBloomProcessor, storeSize, false, sleep,
+                    cleanerCheckpointType == CHECKPOINT_REBUILD ? cleanerCheckpoint : 0);
         }
 
 
-        private volatile long entriesLeft;
         private volatile long entriesTotal;
+        private final AtomicLong entriesDone = new AtomicLong();
+        /** When the current pass started, and how far it had got then (if resuming), for the ETA */
+        private volatile long passStartTime;
+        private volatile long passStartDone;
 
-        private void batchProcessEntries(BatchProcessor<T> processor, long storeSize, boolean reverse, boolean sleep) {
-
-            entriesLeft = entriesTotal = storeSize;
-
-            long startOffset, step;
-            if (!reverse) {
-                startOffset = 0;
-                step = RESIZE_MEMORY_ENTRIES;
-            } else {
-                startOffset = ((storeSize - 1) / RESIZE_MEMORY_ENTRIES) * RESIZE_MEMORY_ENTRIES;
-                step = -RESIZE_MEMORY_ENTRIES;
-            }
-
-            int i = 0;
-            processor.init();
-            try {
-                for (long curOffset = startOffset; curOffset >= 0 && curOffset < storeSize; curOffset += step) {
-                    if (shutdown) {
-                        processor.abort();
-                        return;
-                    }
-
-                    if (i++ % 64 == 0)
-                        System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
-                                + entriesTotal);
-
-                    batchProcessEntries(curOffset, RESIZE_MEMORY_ENTRIES, processor);
-                    entriesLeft = reverse ? curOffset : Math.max(storeSize - curOffset - RESIZE_MEMORY_ENTRIES, 0);
-                    if (!processor.batch(entriesLeft)) {
-                        processor.abort();
-                        return;
-                    }
+        /** @return Estimated milliseconds until the current pass finishes, or -1 if not known yet. */
+        private long eta() {
+            long done = entriesDone.get() - passStartDone;
+            long elapsed = System.currentTimeMillis() - passStartTime;
+            if (done <= 0 || elapsed < SECONDS.toMillis(10))
+                return -1;
+            return (long) ((double) elapsed / done * Math.max(0, entriesTotal - entriesDone.get()));
+        }
 
+        /**
+         * Run the processor over the whole store. The store is split into chunks of
+         * CLEANER_CHUNK_ENTRIES, which are handed out in order to {@link #cleanerThreads} workers
+         * (this thread and some helpers). Each chunk is read and written in one go. Chunks may
+         * complete out of order, so the processor is told how many entries are left before the
+         * point up to which every chunk is done. That is also the point a pass can be resumed from.
+         *
+         * @param reverse    Process from the end of the store towards the start.
+         * @param sleep      Throttle, so that the node is not too slow while this runs: each worker
+         *                   sleeps for as long as its last chunk took.
+         * @param resumeLeft Entries left when a previous pass was interrupted, or 0 to start from
+         *                   the beginning.
+         */
+        private void batchProcessEntries(final BatchProcessor<T> processor, final long storeSize, final boolean reverse, final boolean sleep, long resumeLeft) {
+            final long chunks = (storeSize + CLEANER_CHUNK_ENTRIES - 1) / CLEANER_CHUNK_ENTRIES;
+            long firstChunk = ChunkProgress.chunksDone(storeSize, CLEANER_CHUNK_ENTRIES, resumeLeft, reverse);
+            if (firstChunk > 0)
+                Logger.normal(this, "Resuming " + name + " cleaner at chunk " + firstChunk + " of " + chunks);
+            final ChunkProgress progress = new ChunkProgress(storeSize, CLEANER_CHUNK_ENTRIES, firstChunk, reverse);
+
+            entriesTotal = storeSize;
+            entriesDone.set(storeSize - progress.entriesLeft());
+            passStartDone = entriesDone.get();
+            passStartTime = System.currentTimeMillis();
+
+            final AtomicLong cursor = new AtomicLong(firstChunk);
+            final AtomicBoolean failed = new AtomicBoolean();
+
+            Runnable worker = new Runnable() {
+                @Override
+                public void run() {
                     try {
-                        if (sleep)
-                            Thread.sleep(100);
+                        while (!shutdown && !failed.get()) {
+                            long chunk = cursor.getAndIncrement();
+                            if (chunk >= chunks)
+                                return;
+                            long offset = (reverse ? chunks - 1 - chunk : chunk) * CLEANER_CHUNK_ENTRIES;
+
+                            if (chunk % 8 == 0)
+                                System.err.println(name + " cleaner in progress: " + entriesDone.get() + "/"
+                                        + entriesTotal);
+
+                            long startTime = System.currentTimeMillis();
+                            if (!batchProcessEntries(offset, CLEANER_CHUNK_ENTRIES, processor)) {
+                                failed.set(true);
+                                return;
+                            }
+                            entriesDone.addAndGet(Math.min(CLEANER_CHUNK_ENTRIES, storeSize - offset));
+                            if (!processor.batch(progress.completed(chunk))) {
+                                failed.set(true);
+                                return;
+                            }
+
+                            if (sleep)
+                                Thread.sleep(Math.max(10, Math.min(1000, System.currentTimeMillis() - startTime)));
+                        }
                     } catch (InterruptedException e) {
-                        processor.abort();
-                        return;
+                        failed.set(true);
+                    } catch (Exception e) {
+                        Logger.error(this, "Caught: " + e + " in " + name + " cleaner", e);
+                        failed.set(true);
                     }
                 }
+            };
+
+            processor.init(firstChunk > 0);
+            int threads = (int) Math.max(1, Math.min(cleanerThreads, chunks - firstChunk));
+            Thread[] helpers = new Thread[threads - 1];
+            for (int i = 0; i < helpers.length; i++) {
+                helpers[i] = new NativeThread(worker, "Store-" + name + "-Cleaner-" + (i + 1), NativeThread.PriorityLevel.LOW_PRIORITY.value, false);
+                helpers[i].setDaemon(true);
+                helpers[i].start();
+            }
+            worker.run();
+            for (Thread helper : helpers) {
+                try {
+                    helper.join();
+                } catch (InterruptedException e) {
+                    failed.set(true);
+                    for (Thread t : helpers)
+                        t.interrupt();
+                }
+            }
+
+            if (shutdown || failed.get()) {
+                processor.abort();
+                return;
+            }
+            try {
                 processor.finish();
             } catch (Exception e) {
-                Logger.error(this, "Caught: " + e + " while shrinking", e);
-                processor.abort();
+                Logger.error(this, "Caught: " + e + " while finishing " + name + " cleaner", e);
             }
         }
 
@@ -1678,10 +2127,13 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
                 ByteBuffer buf = ByteBuffer.allocate((int) bufLen);
                 boolean dirty = false;
                 try {
-                    while (buf.hasRemaining()) {
-                        int status = metaFC.read(buf, startFileOffset + buf.position());
-                        if (status == -1)
-                            break;
+                    MappedMetadataFile mapped = mappedMeta;
+                    if (mapped == null || !mapped.read(buf, startFileOffset)) {
+                        while (buf.hasRemaining()) {
+                            int status = metaFC.read(buf, startFileOffset + buf.position());
+                            if (status == -1)
+                                break;
+                        }
                     }
                 } catch (IOException ioe) {
                     if (shutdown)
@@ -1772,7 +2224,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
          * @return <code>true</code> if the entry have put back successfully.
          */
         private boolean resolveOldEntry(Entry entry) {
-            Map<Long, Condition> lockMap = lockDigestedKey(entry.getDigestedRoutingKey(), false);
+            Map<Long, Condition> lockMap = lockDigestedKey(entry.getDigestedRoutingKey(), false, false);
             if (lockMap == null)
                 return false;
             try {
@@ -1841,30 +2293,29 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
         @Override
         public String getShortText() {
+            String[] values = new String[]{name, String.valueOf(cleaner.entriesDone.get()), String.valueOf(cleaner.entriesTotal)};
             if (cleaner.isResizing)
                 return NodeL10n.getBase().getString("SaltedHashCryptaStore.shortResizeProgress", //
-                        new String[]{"name", "processed", "total"},//
-                        new String[]{name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft),
-                                String.valueOf(cleaner.entriesTotal)});
+                        new String[]{"name", "processed", "total"}, values);
             else
                 return NodeL10n.getBase().getString("SaltedHashCryptaStore.shortRebuildProgress" + (slotFilter.isNew() ? "New" : ""),
-                        new String[]{"name", "processed", "total"},//
-                        new String[]{name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft),
-                                String.valueOf(cleaner.entriesTotal)});
+                        new String[]{"name", "processed", "total"}, values);
         }
 
         @Override
         public String getText() {
+            String[] values = new String[]{name, String.valueOf(cleaner.entriesDone.get()), String.valueOf(cleaner.entriesTotal)};
+            String text;
             if (cleaner.isResizing)
-                return NodeL10n.getBase().getString("SaltedHashCryptaStore.longResizeProgress", //
-                        new String[]{"name", "processed", "total"},//
-                        new String[]{name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft),
-                                String.valueOf(cleaner.entriesTotal)});
+                text = NodeL10n.getBase().getString("SaltedHashCryptaStore.longResizeProgress", //
+                        new String[]{"name", "processed", "total"}, values);
             else
-                return NodeL10n.getBase().getString("SaltedHashCryptaStore.longRebuildProgress" + (slotFilter.isNew() ? "New" : ""),
-                        new String[]{"name", "processed", "total"},
-                        new String[]{name, String.valueOf(cleaner.entriesTotal - cleaner.entriesLeft),
-                                String.valueOf(cleaner.entriesTotal)});
+                text = NodeL10n.getBase().getString("SaltedHashCryptaStore.longRebuildProgress" + (slotFilter.isNew() ? "New" : ""),
+                        new String[]{"name", "processed", "total"}, values);
+            long eta = cleaner.eta();
+            if (eta >= 0)
+                text += " " + NodeL10n.getBase().getString("SaltedHashCryptaStore.cleanerEta", "eta", TimeUtil.formatTime(eta, 2));
+            return text;
         }
 
         @Override
@@ -1938,6 +2389,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
             configLock.writeLock().unlock();
         }
 
+        cleanerWakeup = true;
         if (cleanerLock.tryLock()) {
             cleanerCondition.signal();
             cleanerLock.unlock();
@@ -1960,6 +2412,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
     // ------------- Locking
     volatile boolean shutdown = false;
     private final LockManager lockManager;
+    /** Buffers for reading metadata and header/data, so concurrent probes don't allocate. */
+    private final DirectBufferPool metaBufferPool;
+    private final DirectBufferPool hdBufferPool;
+    private static final int BUFFER_POOL_SIZE = 16;
     private final ReadWriteLock configLock = new ReentrantReadWriteLock();
     private final Condition resizeCompleteCondition = configLock.writeLock().newCondition();
 
@@ -1968,9 +2424,10 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
      * operation failed.
      *
      * @param digestedKey
+     * @param shared Lock for reading only, so that other readers of the same slots are not blocked.
      * @return <code>true</code> if all the offsets are locked.
      */
-    private Map<Long, Condition> lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
+    private Map<Long, Condition> lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize, boolean shared) {
         // use a set to prevent duplicated offsets,
         // a sorted set to prevent deadlocks
         SortedSet<Long> offsets = new TreeSet<Long>();
@@ -1985,7 +2442,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
         Map<Long, Condition> locked = new TreeMap<Long, Condition>();
         for (long offset : offsets) {
-            Condition condition = lockManager.lockEntry(offset);
+            Condition condition = shared ? lockManager.lockEntryShared(offset) : lockManager.lockEntry(offset);
             if (condition == null)
                 break;
             locked.put(offset, condition);
@@ -2148,6 +2605,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
         return bloomFalsePos.get();
     }
 
+    @Override
+    public long getSlotHint(byte[] routingKey) {
+        configLock.readLock().lock();
+        try {
+            return getOffsetFromDigestedKey(cipherManager.getDigestedKey(routingKey), storeSize)[0];
+        } finally {
+            configLock.readLock().unlock();
+        }
+    }
+
     @Override
     public boolean probablyInStore(byte[] routingKey) {
         configLock.readLock().lock();
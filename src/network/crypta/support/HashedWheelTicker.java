@@ -0,0 +1,401 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package network.crypta.support;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import network.crypta.node.FastRunnable;
+import network.crypta.support.Logger.LogLevel;
+import network.crypta.support.io.NativeThread;
+
+/**
+ * A Ticker based on a hierarchical hashed timer wheel (Varghese and Lauck), as used by the Linux
+ * kernel's timers. Queueing and removing a job are O(1), whereas {@link PrioritizedTicker} is
+ * O(log n) and copies arrays when several jobs share a millisecond. This matters because we queue
+ * and cancel a very large number of short timeouts.
+ *
+ * The finest wheel has a slot for each millisecond over the next 256ms. Each of the coarser
+ * wheels covers 64 times the range of the one below it, and when the finer wheel wraps around,
+ * the jobs in the next slot of the coarser wheel are redistributed ("cascaded") into it. Jobs more
+ * than about 49 days ahead are parked in the coarsest wheel and re-queued when they come up.
+ *
+ * Behaves the same as PrioritizedTicker otherwise: FastRunnable's are run on the ticker thread,
+ * everything else is passed to the Executor.
+ */
+public class HashedWheelTicker implements Ticker, Runnable {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	private static final int ROOT_BITS = 8;
+	private static final int ROOT_SIZE = 1 << ROOT_BITS;
+	private static final int ROOT_MASK = ROOT_SIZE - 1;
+	private static final int LEVEL_BITS = 6;
+	private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+	private static final int LEVEL_MASK = LEVEL_SIZE - 1;
+	/** Number of wheels above the root wheel. */
+	private static final int LEVELS = 4;
+	private static final long MAX_DELTA = 1L << (ROOT_BITS + LEVELS * LEVEL_BITS);
+	/** If the clock jumps by more than this, rebuild the wheel rather than ticking through. */
+	private static final long MAX_CATCH_UP = 1L << (ROOT_BITS + 2 * LEVEL_BITS);
+	static final int MAX_SLEEP_TIME = 200;
+
+	private static final class Job {
+		final String name;
+		final Runnable job;
+		final long time;
+		/** The slot's list. The slot heads are dummy jobs. */
+		Job prev, next;
+		/** Other queued jobs with the same Runnable. */
+		Job nextSame;
+
+		Job(String name, Runnable job, long time) {
+			this.name = name;
+			this.job = job;
+			this.time = time;
+			prev = next = this;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private final Job[] root;
+	private final Job[][] levels;
+	/** The most recently queued job for each Runnable, chained through nextSame. */
+	private final IdentityHashMap<Runnable, Job> queuedByRunnable;
+	/** The next millisecond whose jobs have not been run yet. */
+	private long nextTick;
+	private int size;
+	/** When the ticker thread will next wake up. */
+	private long wakeAt = Long.MAX_VALUE;
+	private boolean wakeUpPending;
+	/** The thread is created by start(), so we aren't passed to it before we are constructed. */
+	private final String threadName;
+	final Executor executor;
+
+	public HashedWheelTicker(Executor executor, int portNumber) {
+		this.executor = executor;
+		root = newWheel(ROOT_SIZE);
+		levels = new Job[LEVELS][];
+		for(int i=0;i<LEVELS;i++)
+			levels[i] = newWheel(LEVEL_SIZE);
+		queuedByRunnable = new IdentityHashMap<Runnable, Job>();
+		nextTick = System.currentTimeMillis();
+		threadName = "Ticker thread for " + portNumber;
+	}
+
+	private static Job[] newWheel(int size) {
+		Job[] wheel = new Job[size];
+		for(int i=0;i<size;i++)
+			wheel[i] = new Job(null, null, 0);
+		return wheel;
+	}
+
+	public void start() {
+		Logger.normal(this, "Starting Ticker");
+		System.out.println("Starting Ticker");
+		NativeThread myThread = new NativeThread(this, threadName, NativeThread.PriorityLevel.MAX_PRIORITY.value, false);
+		myThread.setDaemon(true);
+		myThread.start();
+	}
+
+	@Override
+	public void run() {
+		if(logMINOR) Logger.minor(this, "In Ticker.run()");
+		while(true) {
+			try {
+				realRun();
+			} catch(Throwable t) {
+				Logger.error(this, "Caught in Ticker: " + t, t);
+				System.err.println("Caught in Ticker: " + t);
+				t.printStackTrace();
+			}
+		}
+	}
+
+	private void realRun() {
+		long now = System.currentTimeMillis();
+
+		List<Job> jobsToRun = null;
+
+		long sleepTime;
+
+		synchronized(this) {
+			if(now - nextTick > MAX_CATCH_UP || nextTick - now > MAX_CATCH_UP) {
+				Logger.normal(this, "Clock changed by "+(now - nextTick)+"ms, rebuilding timer wheel");
+				rebuild(now);
+			}
+			while(nextTick <= now) {
+				int index = (int) (nextTick & ROOT_MASK);
+				if(index == 0) cascade();
+				Job head = root[index];
+				while(head.next != head) {
+					Job j = head.next;
+					unlink(j);
+					if(j.time > nextTick) {
+						// Was too far ahead to be queued at its real time.
+						insert(j);
+						continue;
+					}
+					removeFromQueued(j);
+					size--;
+					if(jobsToRun == null)
+						jobsToRun = new ArrayList<Job>();
+					jobsToRun.add(j);
+				}
+				nextTick++;
+			}
+			sleepTime = getSleepTime(now);
+			wakeAt = now + sleepTime;
+		}
+
+		if(jobsToRun != null)
+			for(Job r : jobsToRun) {
+				if(logMINOR)
+					Logger.minor(this, "Running " + r);
+				if(r.job instanceof FastRunnable)
+					// Run in-line
+					try {
+						r.job.run();
+					} catch(Throwable t) {
+						Logger.error(this, "Caught " + t + " running " + r, t);
+					}
+				else
+					try {
+						executor.execute(r.job, r.name, true);
+					} catch(Throwable t) {
+						Logger.error(this, "Caught in Ticker: " + t, t);
+						System.err.println("Caught in Ticker: " + t);
+						t.printStackTrace();
+						System.err.println("Will retry above failed operation...");
+						queueTimedJob(r.job, r.name, 200, true, false);
+					}
+			}
+
+		if(sleepTime > 0) {
+			try {
+				sleep(sleepTime);
+			} catch(InterruptedException e) {
+				// Ignore, just wake up.
+			}
+		}
+	}
+
+	/** How long we can sleep for: until the next occupied slot in the root wheel, or the next
+	 * time it wraps around and we need to cascade. */
+	private long getSleepTime(long now) {
+		if(size == 0) return MAX_SLEEP_TIME;
+		for(int i=0;i<MAX_SLEEP_TIME;i++) {
+			long tick = nextTick + i;
+			int index = (int) (tick & ROOT_MASK);
+			if(index == 0 || root[index].next != root[index])
+				return Math.max(0, tick - now);
+		}
+		return MAX_SLEEP_TIME;
+	}
+
+	protected void sleep(long sleepTime) throws InterruptedException {
+		if(logMINOR)
+			Logger.minor(this, "Sleeping for " + sleepTime);
+		synchronized(this) {
+			if(!wakeUpPending)
+				wait(sleepTime);
+			wakeUpPending = false;
+		}
+	}
+
+	/** Move the jobs in the next slot of each coarser wheel down, as far as necessary. Called
+	 * when the root wheel wraps around. */
+	private void cascade() {
+		for(int level=0;level<LEVELS;level++) {
+			int index = (int) ((nextTick >>> (ROOT_BITS + level * LEVEL_BITS)) & LEVEL_MASK);
+			Job head = levels[level][index];
+			Job j = head.next;
+			head.prev = head.next = head;
+			while(j != head) {
+				Job next = j.next;
+				insert(j);
+				j = next;
+			}
+			if(index != 0) break;
+		}
+	}
+
+	/** Put a job in the right slot for its time. */
+	private void insert(Job j) {
+		long time = j.time;
+		long delta = time - nextTick;
+		Job head;
+		if(delta < 0) {
+			// Overdue, run on the next tick.
+			head = root[(int) (nextTick & ROOT_MASK)];
+		} else if(delta < ROOT_SIZE) {
+			head = root[(int) (time & ROOT_MASK)];
+		} else {
+			if(delta >= MAX_DELTA) {
+				delta = MAX_DELTA - 1;
+				time = nextTick + delta;
+			}
+			int level = 0;
+			while(delta >= 1L << (ROOT_BITS + (level + 1) * LEVEL_BITS))
+				level++;
+			head = levels[level][(int) ((time >>> (ROOT_BITS + level * LEVEL_BITS)) & LEVEL_MASK)];
+		}
+		// Add at the end, so jobs for the same millisecond run in the order they were queued.
+		j.prev = head.prev;
+		j.next = head;
+		head.prev.next = j;
+		head.prev = j;
+	}
+
+	private static void unlink(Job j) {
+		j.prev.next = j.next;
+		j.next.prev = j.prev;
+		j.prev = j.next = j;
+	}
+
+	/** Re-queue everything relative to the current time, after the clock has jumped. */
+	private void rebuild(long now) {
+		List<Job> all = new ArrayList<Job>(size);
+		collect(root, all);
+		for(Job[] wheel : levels)
+			collect(wheel, all);
+		nextTick = now;
+		for(Job j : all)
+			insert(j);
+	}
+
+	private static void collect(Job[] wheel, List<Job> all) {
+		for(Job head : wheel) {
+			for(Job j = head.next; j != head; j = j.next)
+				all.add(j);
+			head.prev = head.next = head;
+		}
+	}
+
+	private void removeFromQueued(Job job) {
+		Job j = queuedByRunnable.get(job.job);
+		if(j == job) {
+			if(job.nextSame == null)
+				queuedByRunnable.remove(job.job);
+			else
+				queuedByRunnable.put(job.job, job.nextSame);
+		} else {
+			while(j != null && j.nextSame != job)
+				j = j.nextSame;
+			if(j != null)
+				j.nextSame = job.nextSame;
+		}
+		job.nextSame = null;
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, "Scheduled job: "+job, offset, false, false);
+	}
+
+	@Override
+	public void queueTimedJob(Runnable runner, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		long now = System.currentTimeMillis();
+		if(offset < 0) offset = 0;
+		queueTimedJobInner(runner, name, now+offset, offset, runOnTickerAnyway, noDupes);
+	}
+
+	@Override
+	public void queueTimedJobAbsolute(Runnable runner, String name, long time,
+			boolean runOnTickerAnyway, boolean noDupes) {
+		long now = System.currentTimeMillis();
+		queueTimedJobInner(runner, name, time, time-now, runOnTickerAnyway, noDupes);
+	}
+
+	private void queueTimedJobInner(Runnable runner, String name, long runJobAt, long offset,
+			boolean runOnTickerAnyway, boolean noDupes) {
+		if(noDupes) runOnTickerAnyway = true;
+		if(offset <= 0 && !runOnTickerAnyway) {
+			if(logMINOR) Logger.minor(this, "Running directly: "+runner);
+			executor.execute(runner, name);
+			return;
+		}
+		Job job = new Job(name, runner, runJobAt);
+		synchronized(this) {
+			Job queued = queuedByRunnable.get(runner);
+			if(noDupes && queued != null) {
+				long alreadyQueuedAt = Long.MAX_VALUE;
+				for(Job j = queued; j != null; j = j.nextSame)
+					alreadyQueuedAt = Math.min(alreadyQueuedAt, j.time);
+				if(alreadyQueuedAt <= runJobAt) {
+					Logger.normal(this, "Not re-running as already queued: "+runner+" for "+name);
+					return;
+				}
+				// Delete the existing job because the new job will run first.
+				removeAll(queued);
+				queued = null;
+			}
+			job.nextSame = queued;
+			queuedByRunnable.put(runner, job);
+			insert(job);
+			size++;
+			if(runJobAt < wakeAt) {
+				wakeUpPending = true;
+				notifyAll();
+			}
+		}
+	}
+
+	private void removeAll(Job j) {
+		queuedByRunnable.remove(j.job);
+		while(j != null) {
+			Job next = j.nextSame;
+			unlink(j);
+			j.nextSame = null;
+			size--;
+			j = next;
+		}
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	synchronized int queuedJobs() {
+		return size;
+	}
+
+	/** Slow, for tests only. */
+	synchronized int queuedJobsUniqueTimes() {
+		HashSet<Long> times = new HashSet<Long>();
+		for(Job j : queuedByRunnable.values()) {
+			for(; j != null; j = j.nextSame)
+				times.add(j.time);
+		}
+		return times.size();
+	}
+
+	/** Remove a queued job. If the same job is queued more than once, all of them are removed.
+	 * Does nothing if the job is not queued. */
+	@Override
+	public void removeQueuedJob(Runnable runnable) {
+		synchronized(this) {
+			Job j = queuedByRunnable.get(runnable);
+			if(j != null)
+				removeAll(j);
+		}
+	}
+
+}
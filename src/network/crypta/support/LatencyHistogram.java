@@ -0,0 +1,86 @@
+package network.crypta.support;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies with power-of-two buckets in microseconds: bucket 0 counts latencies
+ * under 1us, bucket n counts latencies from 2^(n-1) to 2^n us, and the last bucket counts
+ * everything longer. Cheap and lock-free to report to, so it can be used on hot paths.
+ */
+public class LatencyHistogram {
+
+	/** Up to 2^26us, about a minute, which is enough for queueing delays as well as disk reads. */
+	public static final int BUCKETS = 28;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/** Report a latency measured with System.nanoTime(). */
+	public void report(long nanos) {
+		counts.incrementAndGet(bucket(nanos / 1000));
+	}
+
+	static int bucket(long micros) {
+		if(micros <= 0) return 0;
+		return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	/** @return The upper bound of the bucket in microseconds, or Long.MAX_VALUE for the last one. */
+	public static long bucketLimit(int bucket) {
+		if(bucket >= BUCKETS - 1) return Long.MAX_VALUE;
+		return 1L << bucket;
+	}
+
+	public long[] getCounts() {
+		long[] ret = new long[BUCKETS];
+		for(int i=0;i<BUCKETS;i++)
+			ret[i] = counts.get(i);
+		return ret;
+	}
+
+	public long count() {
+		long total = 0;
+		for(int i=0;i<BUCKETS;i++)
+			total += counts.get(i);
+		return total;
+	}
+
+	/**
+	 * @param fraction E.g. 0.99 for the 99th percentile.
+	 * @return An upper bound in microseconds on the given percentile, i.e. the limit of the bucket
+	 * it falls in, or -1 if nothing has been reported.
+	 */
+	public long percentile(double fraction) {
+		long[] c = getCounts();
+		long total = 0;
+		for(long v : c) total += v;
+		if(total == 0) return -1;
+		long target = (long) Math.ceil(total * fraction);
+		long seen = 0;
+		for(int i=0;i<BUCKETS;i++) {
+			seen += c[i];
+			if(seen >= target && seen > 0) return bucketLimit(i);
+		}
+		return Long.MAX_VALUE;
+	}
+
+	/** @return The count and percentiles, e.g. "12345 p50<=4us p90<=16us p99<=1024us p99.9<=2048us" */
+	@Override
+	public String toString() {
+		long total = count();
+		if(total == 0) return "0";
+		StringBuilder sb = new StringBuilder();
+		sb.append(total);
+		double[] percentiles = new double[] { 0.5, 0.9, 0.99, 0.999 };
+		String[] names = new String[] { "p50", "p90", "p99", "p99.9" };
+		for(int i=0;i<percentiles.length;i++) {
+			long limit = percentile(percentiles[i]);
+			sb.append(' ').append(names[i]);
+			if(limit == Long.MAX_VALUE)
+				sb.append(">").append(bucketLimit(BUCKETS - 2)).append("us");
+			else
+				sb.append("<=").append(limit).append("us");
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,168 @@
+package network.crypta.support;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Numbers the node's subsystems publish for monitoring, which scrape() writes in the Prometheus
+ * text format. Each metric is registered once, with a callback which reads its current value, so
+ * publishing costs nothing until something scrapes, and a scrape only calls the callbacks and
+ * appends to a buffer which is reused from one scrape to the next. The output is in the order
+ * the metrics were registered.
+ */
+public class MetricsRegistry {
+
+	/** The MIME type of the output of scrape(). */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final ArrayList<Family> families = new ArrayList<Family>();
+	private final HashMap<String, Family> familiesByName = new HashMap<String, Family>();
+	private final StringBuilder text = new StringBuilder(4096);
+	private byte[] buffer = new byte[4096];
+
+	/** Metrics with the same name and different labels. */
+	private static class Family {
+		final String type;
+		/** The HELP and TYPE lines. */
+		final String header;
+		final ArrayList<Sample> samples = new ArrayList<Sample>();
+
+		Family(String name, String type, String help) {
+			this.type = type;
+			header = "# HELP " + name + ' ' + escape(help, false) + "\n# TYPE " + name + ' ' + type + '\n';
+		}
+	}
+
+	private static class Sample {
+		/** The name and labels, followed by a space. */
+		final String prefix;
+		/** One of these is null. */
+		final LongSupplier longValue;
+		final DoubleSupplier doubleValue;
+
+		Sample(String prefix, LongSupplier longValue, DoubleSupplier doubleValue) {
+			this.prefix = prefix;
+			this.longValue = longValue;
+			this.doubleValue = doubleValue;
+		}
+	}
+
+	/**
+	 * Register a counter, i.e. a number which only goes up, such as the number of bytes sent.
+	 * @param name The name, e.g. crypta_bytes_sent_total.
+	 * @param help A description of the metric. All metrics of the same name share the help text
+	 * of the first one registered.
+	 * @param labels Names and values of labels, alternately, if there are several metrics of the
+	 * same name.
+	 * @throws IllegalArgumentException If the name or labels are invalid, or a gauge has the same
+	 * name.
+	 */
+	public void counter(String name, String help, LongSupplier value, String... labels) {
+		add(name, "counter", help, new Sample(prefix(name, labels), value, null));
+	}
+
+	/** Register a gauge, i.e. a number which can go up and down, such as the number of peers.
+	 * Parameters are as for counter(). */
+	public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+		add(name, "gauge", help, new Sample(prefix(name, labels), null, value));
+	}
+
+	private synchronized void add(String name, String type, String help, Sample sample) {
+		Family family = familiesByName.get(name);
+		if(family == null) {
+			family = new Family(name, type, help);
+			families.add(family);
+			familiesByName.put(name, family);
+		} else if(!family.type.equals(type)) {
+			throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+		}
+		family.samples.add(sample);
+	}
+
+	private static String prefix(String name, String[] labels) {
+		checkName(name, true);
+		if(labels.length % 2 != 0)
+			throw new IllegalArgumentException("Labels must be pairs of names and values");
+		StringBuilder sb = new StringBuilder(name);
+		for(int i = 0; i < labels.length; i += 2) {
+			checkName(labels[i], false);
+			sb.append(i == 0 ? '{' : ',');
+			sb.append(labels[i]).append("=\"").append(escape(labels[i + 1], true)).append('"');
+		}
+		if(labels.length > 0) sb.append('}');
+		return sb.append(' ').toString();
+	}
+
+	private static void checkName(String name, boolean metric) {
+		boolean ok = !name.isEmpty();
+		for(int i = 0; i < name.length() && ok; i++) {
+			char c = name.charAt(i);
+			ok = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || (metric && c == ':') ||
+				(i > 0 && c >= '0' && c <= '9');
+		}
+		if(!ok) throw new IllegalArgumentException("Invalid name: " + name);
+	}
+
+	/** Escape help text or a label value. Non-ASCII characters are replaced with '?', so that
+	 * scrape() can write one byte per character. */
+	private static String escape(String s, boolean quotes) {
+		StringBuilder sb = new StringBuilder(s.length());
+		for(int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if(c == '\\') sb.append("\\\\");
+			else if(c == '\n') sb.append("\\n");
+			else if(c == '"' && quotes) sb.append("\\\"");
+			else if(c < 32 || c > 126) sb.append('?');
+			else sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Write the current values of all the metrics to getBuffer(). The caller must hold the lock
+	 * on the registry until it has finished with the buffer.
+	 * @return The number of bytes written.
+	 */
+	public synchronized int scrape() {
+		text.setLength(0);
+		for(int i = 0; i < families.size(); i++) {
+			Family family = families.get(i);
+			text.append(family.header);
+			for(int j = 0; j < family.samples.size(); j++) {
+				Sample sample = family.samples.get(j);
+				text.append(sample.prefix);
+				if(sample.longValue != null)
+					text.append(sample.longValue.getAsLong());
+				else
+					appendDouble(sample.doubleValue.getAsDouble());
+				text.append('\n');
+			}
+		}
+		int length = text.length();
+		if(buffer.length < length)
+			buffer = new byte[Math.max(length, buffer.length * 2)];
+		// Everything is ASCII, see escape().
+		for(int i = 0; i < length; i++)
+			buffer[i] = (byte) text.charAt(i);
+		return length;
+	}
+
+	private void appendDouble(double d) {
+		if(Double.isNaN(d))
+			text.append("NaN");
+		else if(Double.isInfinite(d))
+			text.append(d > 0 ? "+Inf" : "-Inf");
+		else if(d == Math.rint(d) && Math.abs(d) < 1e15)
+			text.append((long) d);
+		else
+			text.append(d);
+	}
+
+	/** @return The buffer scrape() writes to. */
+	public synchronized byte[] getBuffer() {
+		return buffer;
+	}
+
+}
@@ -7,6 +7,7 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 
 import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import network.crypta.node.PrioRunnable;
@@ -16,6 +17,13 @@ import network.crypta.support.io.NativeThread;
 /**
  * Pooled Executor implementation. Create a thread when we need one, let them die
  * after 5 minutes of inactivity.
+ *
+ * Optionally, jobs below MAX_PRIORITY can instead each be run on a new virtual thread, so that the
+ * many jobs which spend most of their time blocked (waiting for messages, transfers, clients) do
+ * not each need a native thread. Virtual threads do not have priorities, so MAX_PRIORITY jobs,
+ * which are mostly the latency-critical packet handling loops, stay on pooled native threads.
+ * Note that on Java 21 a virtual thread which waits inside a synchronized block pins its carrier
+ * thread, and the number of carriers is limited (jdk.virtualThreadScheduler.maxPoolSize).
  * @author toad
  */
 public class PooledExecutor implements Executor {
@@ -33,6 +41,14 @@ public class PooledExecutor implements Executor {
 	private static boolean logMINOR;
 	// Ticker thread that runs at maximum priority.
 	private Ticker ticker;
+	private volatile boolean useVirtualThreads;
+	/** Virtual threads started and not yet finished, by priority */
+	private final AtomicInteger[] runningVirtualThreads = new AtomicInteger[runningThreads.length];
+	private final AtomicLong virtualThreadsStarted = new AtomicLong();
+	/** Time between execute() and the job starting, by priority */
+	private final AtomicLong[] jobsStarted = new AtomicLong[runningThreads.length];
+	private final AtomicLong[] totalStartDelay = new AtomicLong[runningThreads.length];
+	private final AtomicLong[] maxStartDelay = new AtomicLong[runningThreads.length];
 
 	public synchronized void setTicker(Ticker ticker) {
 		this.ticker = ticker;
@@ -43,6 +59,10 @@ public class PooledExecutor implements Executor {
 			/* runningThreads[i] = 0; */
 			waitingThreads[i] = new ArrayList<MyThread>();
 			threadCounter[i] = new AtomicLong();
+			runningVirtualThreads[i] = new AtomicInteger();
+			jobsStarted[i] = new AtomicLong();
+			totalStartDelay[i] = new AtomicLong();
+			maxStartDelay[i] = new AtomicLong();
 		}
 		waitingThreadsCount = 0;
 	}
@@ -53,6 +73,16 @@ public class PooledExecutor implements Executor {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 	}
 
+	/** If true, run new jobs below MAX_PRIORITY on virtual threads. Jobs already running are not
+	 * affected, and idle pooled threads will time out as usual. */
+	public void setUseVirtualThreads(boolean useVirtualThreads) {
+		this.useVirtualThreads = useVirtualThreads;
+	}
+
+	public boolean isUsingVirtualThreads() {
+		return useVirtualThreads;
+	}
+
 	@Override
 	public void execute(Runnable job) {
 		execute(job, "<noname>");
@@ -65,16 +95,20 @@ public class PooledExecutor implements Executor {
 
 	@Override
 	public void execute(Runnable runnable, String jobName, boolean fromTicker) {
-		int prio = NativeThread.NORM_PRIORITY;
+		int prio = NativeThread.PriorityLevel.NORM_PRIORITY.value;
 		if(runnable instanceof PrioRunnable)
 			prio = ((PrioRunnable) runnable).getPriority();
 
 		if(logMINOR)
 			Logger.minor(this, "Executing " + runnable + " as " + jobName + " at prio " + prio);
-		if(prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
+		if(prio < NativeThread.PriorityLevel.MIN_PRIORITY.value || prio > NativeThread.PriorityLevel.MAX_PRIORITY.value)
 			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
 
 		Job job = new Job(runnable, jobName);
+		if(useVirtualThreads && prio < NativeThread.PriorityLevel.MAX_PRIORITY.value) {
+			startVirtual(job, prio);
+			return;
+		}
 		while(true) {
 			MyThread t = null;
 			boolean miss = false;
@@ -138,11 +172,100 @@ public class PooledExecutor implements Executor {
 		}
 	}
 
+	private void startVirtual(Job job, int prio) {
+		AtomicInteger running = runningVirtualThreads[prio - 1];
+		running.incrementAndGet();
+		synchronized(this) {
+			jobCount++;
+		}
+		try {
+			Thread.ofVirtual().name(job.name).start(new VirtualJob(job, prio));
+		} catch (Throwable t) {
+			running.decrementAndGet();
+			throw t;
+		}
+		virtualThreadsStarted.incrementAndGet();
+	}
+
+	private class VirtualJob implements Runnable {
+		private final Job job;
+		private final int prio;
+
+		VirtualJob(Job job, int prio) {
+			this.job = job;
+			this.prio = prio;
+		}
+
+		@Override
+		public void run() {
+			try {
+				onJobStarted(job, prio);
+				job.runnable.run();
+			} catch(Throwable t) {
+				Logger.error(this, "Caught " + t + " running job " + job.name, t);
+			} finally {
+				runningVirtualThreads[prio - 1].decrementAndGet();
+			}
+		}
+	}
+
+	private void onJobStarted(Job job, int prio) {
+		long delay = System.nanoTime() - job.created;
+		jobsStarted[prio - 1].incrementAndGet();
+		totalStartDelay[prio - 1].addAndGet(delay);
+		AtomicLong max = maxStartDelay[prio - 1];
+		long m;
+		while(delay > (m = max.get())) {
+			if(max.compareAndSet(m, delay)) break;
+		}
+	}
+
+	/** Includes jobs running on virtual threads. */
 	@Override
 	public synchronized int[] runningThreads() {
 		int[] result = new int[runningThreads.length];
 		for(int i = 0; i < result.length; i++)
-			result[i] = runningThreads[i] - waitingThreads[i].size();
+			result[i] = runningThreads[i] - waitingThreads[i].size() + runningVirtualThreads[i].get();
+		return result;
+	}
+
+	/** @return The number of jobs currently running on virtual threads. */
+	public int getVirtualThreadCount() {
+		int total = 0;
+		for(AtomicInteger count : runningVirtualThreads)
+			total += count.get();
+		return total;
+	}
+
+	public long getVirtualThreadsStarted() {
+		return virtualThreadsStarted.get();
+	}
+
+	/** @return The number of jobs started since startup, by priority. */
+	public long[] getJobsStarted() {
+		long[] result = new long[jobsStarted.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = jobsStarted[i].get();
+		return result;
+	}
+
+	/** @return The average time in milliseconds between a job being submitted and it starting,
+	 * by priority. */
+	public double[] getAverageStartDelay() {
+		double[] result = new double[jobsStarted.length];
+		for(int i = 0; i < result.length; i++) {
+			long count = jobsStarted[i].get();
+			result[i] = count == 0 ? 0.0 : totalStartDelay[i].get() / (count * 1000000.0);
+		}
+		return result;
+	}
+
+	/** @return The longest time in milliseconds between a job being submitted and it starting,
+	 * by priority. */
+	public double[] getMaxStartDelay() {
+		double[] result = new double[maxStartDelay.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = maxStartDelay[i].get() / 1000000.0;
 		return result;
 	}
 
@@ -163,11 +286,13 @@ public class PooledExecutor implements Executor {
 		private final Runnable runnable;
 		private final String name;
 		private final int id;
+		private final long created;
 
 		Job(Runnable runnable, String name) {
 			this.runnable = runnable;
 			this.name = name;
 			this.id = new Random().nextInt();
+			this.created = System.nanoTime();
 		}
 
 		public int getId() {
@@ -254,6 +379,7 @@ public class PooledExecutor implements Executor {
 				}
 
 				// Run the job
+				onJobStarted(job, nativePriority);
 				try {
 					setName(job.name + "(" + threadNo + ")");
 					job.runnable.run();
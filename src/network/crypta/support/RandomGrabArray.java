@@ -1,394 +1,205 @@
 package network.crypta.support;
 
-import static java.util.concurrent.TimeUnit.MINUTES;
-
 import java.util.Arrays;
 
-import org.tanukisoftware.wrapper.WrapperManager;
-
 import network.crypta.client.async.ClientContext;
 import network.crypta.client.async.ClientRequestSelector;
 import network.crypta.client.async.RequestSelectionTreeNode;
 
 /**
  * An array which supports very fast remove-and-return-a-random-element.
- * 
- * This is *NOT* persistent. The request selection structures are reconstructed on restart. However
- * it used to be, and probably has a lot of cruft and inefficiency as a result. 
- * 
- * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
- * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
- * 
- * FIXME Simplify and improve performance. A lot of this is O(n), and this should probably be fixed. 
- * Memory usage was an issue but probably isn't now given that the individual items are now quite 
- * large (entire splitfiles or at least entire segments).
+ *
+ * This is *NOT* persistent. The request selection structures are reconstructed on restart.
+ *
+ * LOCKING: The array is copy-on-write, so removeRandom() works on a snapshot and does not take
+ * any locks, and requests can be added and removed while a RequestStarter is choosing one. Changes
+ * lock only this node, and never call another node while holding the lock. See the javadocs on
+ * ClientRequestSelector for deeper explanation.
+ *
+ * Adding and removing are O(n), but there is only one item queued per splitfile segment or
+ * single block request, so n is small, and choosing a request is much more frequent.
  */
 public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	private static volatile boolean logMINOR;
-	
+
 	static {
 		Logger.registerClass(RandomGrabArray.class);
 	}
-	
-	private static class Block {
-		RandomGrabArrayItem[] reqs;
-	}
-	
-	/** Array of items. Non-null's followed by null's. 
-	 * We used to have a Set so we could check whether something is in the set quickly.
-	 * We got rid of this because for persistent requests it is vastly faster to just loop the
-	 * loop and check ==, and for non-persistent requests it doesn't matter much. */
-	private Block[] blocks;
-	/** Index of first null item. */
-	private int index;
-	private final static int MIN_SIZE = 32;
-	private final static int BLOCK_SIZE = 1024;
+
+	private static final RandomGrabArrayItem[] EMPTY = new RandomGrabArrayItem[0];
+
+	/** Array of items, never containing nulls. Replaced rather than modified, with this locked. */
+	private volatile RandomGrabArrayItem[] items = EMPTY;
 	private final int hashCode;
-	private RemoveRandomParent parent;
+	private volatile RemoveRandomParent parent;
 	protected ClientRequestSelector root;
-	private long wakeupTime;
+	private volatile long wakeupTime;
+	/** Incremented whenever the wakeup time is cleared, so removeRandom() doesn't put us into
+	 * cooldown after something has become fetchable while it was looking. */
+	private int clears;
+	/** Set when we have been removed from the parent because we were empty. */
+	private boolean removed;
 
 	public RandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
-		this.blocks = new Block[] { new Block() };
-		blocks[0].reqs = new RandomGrabArrayItem[MIN_SIZE];
-		index = 0;
 		this.hashCode = super.hashCode();
 		this.parent = parent;
 		this.root = root;
 	}
-	
+
 	@Override
 	public int hashCode() {
 		return hashCode;
 	}
-	
-	public void add(RandomGrabArrayItem req, ClientContext context) {
-		if(context != null && req.getWakeupTime(context, System.currentTimeMillis()) < 0) { 
+
+	/** Add an item.
+	 * @return False if we have been removed from the tree, in which case the caller must add the
+	 * item to a new RandomGrabArray. */
+	public boolean add(RandomGrabArrayItem req, ClientContext context) {
+		if(context != null && req.getWakeupTime(context, System.currentTimeMillis()) < 0) {
 			if(logMINOR) Logger.minor(this, "Is finished already: "+req);
-			return;
+			return true;
 		}
 		req.setParentGrabArray(this); // will store() self
-		synchronized(root) {
-			if(context != null) {
-			    clearWakeupTime(context);
+		synchronized(this) {
+			if(removed) {
+				if(logMINOR) Logger.minor(this, "Not adding "+req+" to removed "+this);
+				return false;
 			}
-			int x = 0;
-			if(blocks.length == 1 && index < BLOCK_SIZE) {
-				for(int i=0;i<index;i++) {
-					if(blocks[0].reqs[i] == req) {
-						return;
-					}
+			RandomGrabArrayItem[] reqs = items;
+			boolean present = false;
+			for(RandomGrabArrayItem item : reqs) {
+				if(item == req) {
+					present = true;
+					break;
 				}
-				if(index >= blocks[0].reqs.length) {
-					blocks[0].reqs = Arrays.copyOf(blocks[0].reqs, Math.min(BLOCK_SIZE, blocks[0].reqs.length*2));
-				}
-				blocks[0].reqs[index++] = req;
-				if(logMINOR) Logger.minor(this, "Added "+req+" before index "+index);
-				return;
 			}
-			int targetBlock = index / BLOCK_SIZE;
-			for(int i=0;i<blocks.length;i++) {
-				Block block = blocks[i];
-				if(i != (blocks.length - 1) && block.reqs.length != BLOCK_SIZE) {
-					Logger.error(this, "Block "+i+" of "+blocks.length+" is wrong size: "+block.reqs.length+" should be "+BLOCK_SIZE);
-				}
-				for(int j=0;j<block.reqs.length;j++) {
-					if(x >= index) break;
-					if(block.reqs[j] == req) {
-						if(logMINOR) Logger.minor(this, "Already contains "+req+" : "+this+" size now "+index);
-						return;
-					}
-					if(block.reqs[j] == null) {
-						Logger.error(this, "reqs["+i+"."+j+"] = null on "+this);
-					}
-					x++;
-				}
-			}
-			if(blocks.length <= targetBlock) {
-				if(logMINOR)
-					Logger.minor(this, "Adding blocks on "+this);
-				Block[] newBlocks = Arrays.copyOf(blocks, targetBlock+1);
-				for(int i=blocks.length;i<newBlocks.length;i++) {
-					newBlocks[i] = new Block();
-					newBlocks[i].reqs = new RandomGrabArrayItem[BLOCK_SIZE];
-				}
-				blocks = newBlocks;
+			if(present) {
+				if(logMINOR) Logger.minor(this, "Already contains "+req+" : "+this+" size now "+reqs.length);
+			} else {
+				reqs = Arrays.copyOf(reqs, reqs.length+1);
+				reqs[reqs.length-1] = req;
+				items = reqs;
+				if(logMINOR) Logger.minor(this, "Added: "+req+" to "+this+" size now "+reqs.length);
 			}
-			Block target = blocks[targetBlock];
-			target.reqs[index++ % BLOCK_SIZE] = req;
-			if(logMINOR) Logger.minor(this, "Added: "+req+" to "+this+" size now "+index);
 		}
+		// After adding, so a concurrent removeRandom() either sees the item or doesn't cool down.
+		if(context != null) {
+			clearWakeupTime(context);
+		}
+		return true;
 	}
-	
-	/** Must be less than BLOCK_SIZE */
+
+	/** Below this size we always check every item */
 	static final int MAX_EXCLUDED = 10;
-	
+
 	@Override
 	public RemoveRandomReturn removeRandom(RandomGrabArrayItemExclusionList excluding, ClientContext context, long now) {
-		if(logMINOR) Logger.minor(this, "removeRandom() on "+this+" index="+index);
-		synchronized(root) {
-			if(index == 0) {
-				if(logMINOR) Logger.minor(this, "All null on "+this);
-				return null;
-			}
-			if(index < MAX_EXCLUDED) {
-				return removeRandomExhaustiveSearch(excluding, context, now);
-			}
-			RandomGrabArrayItem ret = removeRandomLimited(excluding, context, now);
+		RandomGrabArrayItem[] reqs = items;
+		if(logMINOR) Logger.minor(this, "removeRandom() on "+this+" size="+reqs.length);
+		if(reqs.length == 0) {
+			if(logMINOR) Logger.minor(this, "All null on "+this);
+			return null;
+		}
+		if(reqs.length >= MAX_EXCLUDED) {
+			RandomGrabArrayItem ret = removeRandomLimited(reqs, excluding, context, now);
 			if(ret != null)
 				return new RemoveRandomReturn(ret);
-			if(index == 0) {
-				if(logMINOR) Logger.minor(this, "All null on "+this);
-				return null;
-			}
-			return removeRandomExhaustiveSearch(excluding, context, now);
 		}
+		return removeRandomExhaustiveSearch(excluding, context, now);
 	}
-	
-	private RandomGrabArrayItem removeRandomLimited(
+
+	private RandomGrabArrayItem removeRandomLimited(RandomGrabArrayItem[] reqs,
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
 		int excluded = 0;
-		while(true) {
-			int i = context.fastWeakRandom.nextInt(index);
-			int blockNo = i / BLOCK_SIZE;
-			RandomGrabArrayItem ret, oret;
-			ret = blocks[blockNo].reqs[i % BLOCK_SIZE];
-			if(ret == null) {
-				Logger.error(this, "reqs["+i+"] = null");
-				remove(blockNo, i);
-				continue;
-			}
-			if(ret.getWakeupTime(context, now) > 0) {
-				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					return null;
-				}
-				continue;
-			}
-			oret = ret;
+		while(excluded <= MAX_EXCLUDED) {
+			RandomGrabArrayItem ret = reqs[context.fastWeakRandom.nextInt(reqs.length)];
 			long itemWakeTime = ret.getWakeupTime(context, now);
 			if(itemWakeTime == -1) {
 				if(logMINOR) Logger.minor(this, "Not returning because cancelled: "+ret);
-				ret = null;
-				// Will be removed in the do{} loop
-				// Tell it that it's been removed first.
-				oret.setParentGrabArray(null);
+				remove(ret, context);
+				// Still in our snapshot, so count it.
+				excluded++;
+				continue;
 			}
 			if(itemWakeTime == 0)
 				itemWakeTime = excluding.exclude(ret, context, now);
-			if(ret != null && itemWakeTime > 0) {
+			if(itemWakeTime > 0) {
 				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					return null;
-				}
 				continue;
 			}
-			if(ret != null) {
-				if(logMINOR) Logger.minor(this, "Returning (cannot remove): "+ret+" of "+index);
-				return ret;
-			}
-			// Remove an element.
-			do {
-				remove(blockNo, i);
-				oret = blocks[blockNo].reqs[i % BLOCK_SIZE];
-				// Check for nulls, but don't check for cancelled, since we'd have to activate.
-			} while (index > i && oret == null);
-			int newBlockCount;
-			// Shrink array
-			if(blocks.length == 1 && index < blocks[0].reqs.length / 4 && blocks[0].reqs.length > MIN_SIZE) {
-				// Shrink array
-				blocks[0].reqs = Arrays.copyOf(blocks[0].reqs, Math.max(index * 2, MIN_SIZE));
-			} else if(blocks.length > 1 &&
-					(newBlockCount = (((index + (BLOCK_SIZE/2)) / BLOCK_SIZE) + 1)) < 
-					blocks.length) {
-				if(logMINOR)
-					Logger.minor(this, "Shrinking blocks on "+this);
-				blocks = Arrays.copyOf(blocks, newBlockCount);
-			}
+			if(logMINOR) Logger.minor(this, "Returning (cannot remove): "+ret+" of "+reqs.length);
 			return ret;
 		}
+		return null;
 	}
 
 	private RemoveRandomReturn removeRandomExhaustiveSearch(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
 		if(logMINOR)
-			Logger.minor(this, "Doing exhaustive search and compaction on "+this);
+			Logger.minor(this, "Doing exhaustive search on "+this);
+		int clearsBefore;
+		synchronized(this) {
+			clearsBefore = clears;
+		}
+		RandomGrabArrayItem[] reqs = items;
 		long wakeupTime = Long.MAX_VALUE;
-		RandomGrabArrayItem ret = null;
-		int random = -1;
-		while(true) {
-			RandomGrabArrayItem[] reqsReading = blocks[0].reqs;
-			RandomGrabArrayItem[] reqsWriting = blocks[0].reqs;
-			int blockNumReading = 0;
-			int blockNumWriting = 0;
-			int offset = -1;
-			int writeOffset = -1;
-			int exclude = 0;
-			int valid = 0;
-			int validIndex = -1;
-			int target = 0;
-			RandomGrabArrayItem chosenItem = null;
-			RandomGrabArrayItem validItem = null;
-			for(int i=0;i<index;i++) {
-				offset++;
-				// Compact the array.
-				RandomGrabArrayItem item;
-				if(offset == BLOCK_SIZE) {
-					offset = 0;
-					blockNumReading++;
-					reqsReading = blocks[blockNumReading].reqs;
-				}
-				item = reqsReading[offset];
-				if(item == null) {
-					if(logMINOR) Logger.minor(this, "Found null item at offset "+offset+" i="+i+" block = "+blockNumReading+" on "+this);
-					continue;
-				}
-				boolean excludeItem = false;
-				long itemWakeTime = item.getWakeupTime(context, now);
-				if (itemWakeTime > 0) {
-					// The item is in cooldown, will be wanted later.
-					excludeItem = true;
-					if (itemWakeTime < wakeupTime) {
-						wakeupTime = itemWakeTime;
-					}
-				} else if (itemWakeTime == -1) {
-					// The item is no longer needed and should be removed.
-					if(logMINOR) {
-						Logger.minor(this, "Removing "+item+" on "+this);
-					}
-					// We are doing compaction here. We don't need to swap with the end; we write valid ones to the target location.
-					reqsReading[offset] = null;
-					item.setParentGrabArray(null);
-					continue;
-				} else {
-					long excludeTime = excluding.exclude(item, context, now);
-					if (excludeTime > 0) {
-						excludeItem = true;
-						if(excludeTime < wakeupTime) {
-							wakeupTime = excludeTime;
-						}
-					}
-				}
-				writeOffset++;
-				if(writeOffset == BLOCK_SIZE) {
-					writeOffset = 0;
-					blockNumWriting++;
-					reqsWriting = blocks[blockNumWriting].reqs;
-				}
-				if(i != target) {
-					reqsReading[offset] = null;
-					reqsWriting[writeOffset] = item;
-				} // else the request can happily stay where it is
-				target++;
-				if(excludeItem) {
-					exclude++;
-				} else {
-					if(valid == random) { // Picked on previous round
-						chosenItem = item;
-					}
-					if(validIndex == -1) {
-						// Take the first valid item
-						validIndex = target-1;
-						validItem = item;
-					}
-					valid++;
-				}
-			}
-			if(index != target) {
-				index = target;
-			}
-			// We reach this point if 1) the random number we picked last round is invalid because an item became cancelled or excluded
-			// or 2) we are on the first round anyway.
-			if(chosenItem != null) {
-				ret = chosenItem;
-				if(logMINOR) Logger.minor(this, "Chosen random item "+ret+" out of "+valid+" total "+index);
-				return new RemoveRandomReturn(ret);
+		RandomGrabArrayItem[] valid = null;
+		int validCount = 0;
+		int exclude = 0;
+		for(RandomGrabArrayItem item : reqs) {
+			long itemWakeTime = item.getWakeupTime(context, now);
+			if(itemWakeTime == -1) {
+				// The item is no longer needed and should be removed.
+				if(logMINOR) Logger.minor(this, "Removing "+item+" on "+this);
+				remove(item, context);
+				continue;
 			}
-			if(valid == 0 && exclude == 0) {
-				if(logMINOR) Logger.minor(this, "No valid or excluded items total "+index);
-				return null; // Caller should remove the whole RGA
-			} else if(valid == 0) {
-				if(logMINOR) Logger.minor(this, "No valid items, "+exclude+" excluded items total "+index);
-				setWakeupTime(wakeupTime, context);
-				return new RemoveRandomReturn(wakeupTime);
-			} else if(valid == 1) {
-				ret = validItem;
-				if(logMINOR) Logger.minor(this, "No valid or excluded items apart from "+ret+" total "+index);
-				return new RemoveRandomReturn(ret);
+			if(itemWakeTime == 0)
+				itemWakeTime = excluding.exclude(item, context, now);
+			if(itemWakeTime > 0) {
+				// The item is in cooldown, will be wanted later.
+				exclude++;
+				if(itemWakeTime < wakeupTime)
+					wakeupTime = itemWakeTime;
 			} else {
-				random = context.fastWeakRandom.nextInt(valid);
-				if(logMINOR) Logger.minor(this, "Looping to choose valid item "+random+" of "+valid+" (excluded "+exclude+")");
-				// Loop
+				if(valid == null) valid = new RandomGrabArrayItem[reqs.length];
+				valid[validCount++] = item;
 			}
 		}
-	}
-
-	/**
-	 * blockNo is assumed to be already active. The last block is assumed not 
-	 * to be.
-	 */
-	private void remove(int blockNo, int i) {
-		index--;
-		int endBlock = index / BLOCK_SIZE;
-		if(blocks.length == 1 || blockNo == endBlock) {
-			RandomGrabArrayItem[] items = blocks[blockNo].reqs;
-			int idx = index % BLOCK_SIZE;
-			items[i % BLOCK_SIZE] = items[idx];
-			items[idx] = null;
-		} else {
-			RandomGrabArrayItem[] toItems = blocks[blockNo].reqs;
-			RandomGrabArrayItem[] endItems = blocks[endBlock].reqs;
-			toItems[i % BLOCK_SIZE] = endItems[index % BLOCK_SIZE];
-			endItems[index % BLOCK_SIZE] = null;
+		if(validCount > 0) {
+			RandomGrabArrayItem ret = valid[validCount == 1 ? 0 : context.fastWeakRandom.nextInt(validCount)];
+			if(logMINOR) Logger.minor(this, "Chosen random item "+ret+" out of "+validCount+" total "+reqs.length);
+			return new RemoveRandomReturn(ret);
 		}
+		if(exclude == 0) {
+			if(logMINOR) Logger.minor(this, "No valid or excluded items total "+reqs.length);
+			return null; // Caller should remove the whole RGA if it is empty
+		}
+		if(logMINOR) Logger.minor(this, "No valid items, "+exclude+" excluded items total "+reqs.length);
+		setWakeupTime(wakeupTime, clearsBefore, context);
+		return new RemoveRandomReturn(wakeupTime);
 	}
 
 	public void remove(RandomGrabArrayItem it, ClientContext context) {
 		if(logMINOR)
 			Logger.minor(this, "Removing "+it+" from "+this);
-		
+
 		boolean matched = false;
-		boolean empty = false;
-		synchronized(root) {
-			if(blocks.length == 1) {
-				Block block = blocks[0];
-				for(int i=0;i<index;i++) {
-					if(block.reqs[i] == it) {
-						block.reqs[i] = block.reqs[--index];
-						block.reqs[index] = null;
-						matched = true;
-						break;
-					}
+		boolean empty;
+		synchronized(this) {
+			RandomGrabArrayItem[] reqs = items;
+			for(int i=0;i<reqs.length;i++) {
+				if(reqs[i] == it) {
+					RandomGrabArrayItem[] newReqs = Arrays.copyOf(reqs, reqs.length-1);
+					if(i < newReqs.length) newReqs[i] = reqs[reqs.length-1];
+					items = newReqs.length == 0 ? EMPTY : newReqs;
+					matched = true;
+					break;
 				}
-				if(index == 0) empty = true;
-			} else {
-				int x = 0;
-				for(int i=0;i<blocks.length;i++) {
-					Block block = blocks[i];
-					for(int j=0;j<block.reqs.length;j++) {
-						if(x >= index) break;
-						x++;
-						if(block.reqs[j] == it) {
-							int pullFrom = --index;
-							int idx = pullFrom % BLOCK_SIZE;
-							int endBlock = pullFrom / BLOCK_SIZE;
-							if(i == endBlock) {
-								block.reqs[j] = block.reqs[idx];
-								block.reqs[idx] = null;
-							} else {
-								Block fromBlock = blocks[endBlock];
-								block.reqs[j] = fromBlock.reqs[idx];
-								fromBlock.reqs[idx] = null;
-							}
-							matched = true;
-							break;
-						}
-					}
-				}
-				if(index == 0) empty = true;
 			}
+			empty = items.length == 0;
 		}
 		// Caller will typically clear it before calling for synchronization reasons.
 		RandomGrabArray oldArray = it.getParentGrabArray();
@@ -400,135 +211,124 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 			if(logMINOR) Logger.minor(this, "Not found: "+it+" on "+this);
 			return;
 		}
-		if(empty && parent != null) {
-			parent.maybeRemove(this, context);
+		RemoveRandomParent p = parent;
+		if(empty && p != null) {
+			p.maybeRemove(this, context);
 		}
 	}
 
 	public boolean isEmpty() {
-	    synchronized(root) {
-	        return index == 0;
-	    }
+		return items.length == 0;
 	}
-	
+
 	public boolean contains(RandomGrabArrayItem item) {
-		synchronized(root) {
-			if(blocks.length == 1) {
-				Block block = blocks[0];
-				for(int i=0;i<index;i++) {
-					if(block.reqs[i] == item) {
-						return true;
-					}
-				}
-			} else {
-				int x = 0;
-				for(int i=0;i<blocks.length;i++) {
-					Block block = blocks[i];
-					for(int j=0;j<block.reqs.length;j++) {
-						if(x >= index) break;
-						x++;
-						if(block.reqs[i] == item) {
-							return true;
-						}
-					}
-				}
-			}
+		for(RandomGrabArrayItem req : items) {
+			if(req == item) return true;
 		}
 		return false;
 	}
-	
+
 	public int size() {
-	    synchronized(root) {
-	        return index;
-	    }
+		return items.length;
 	}
 
+	/** @return The item at the index, or null if the array has shrunk since calling size(). */
 	public RandomGrabArrayItem get(int idx) {
-	    synchronized(root) {
-	        int blockNo = idx / BLOCK_SIZE;
-	        RandomGrabArrayItem item = blocks[blockNo].reqs[idx % BLOCK_SIZE];
-	        return item;
-	    }
+		RandomGrabArrayItem[] reqs = items;
+		return idx < reqs.length ? reqs[idx] : null;
 	}
-	
-	// REDFLAG this method does not move cooldown items.
-	// At present it is only called on startup so this is okay.
-	public void moveElementsTo(RandomGrabArray existingGrabber,
-			boolean canCommit) {
-		WrapperManager.signalStarting((int) MINUTES.toMillis(5));
-		for(Block block: blocks) {
-			for(int j=0;j<block.reqs.length;j++) {
-				RandomGrabArrayItem item = block.reqs[j];
-				if(item == null) continue;
-				item.setParentGrabArray(null);
-				existingGrabber.add(item, null);
-				block.reqs[j] = null;
-			}
-			System.out.println("Moved block in RGA "+this);
+
+	/** Move all our items to another RandomGrabArray, e.g. because we have been moved to a
+	 * priority where there already is one for the same request. We are marked as removed, so a
+	 * concurrent add() to us fails and is retried from the top of the tree.
+	 * @return The items that could not be moved because existingGrabber has been removed too.
+	 * The caller must add them from the top of the tree. */
+	public RandomGrabArrayItem[] moveElementsTo(RandomGrabArray existingGrabber, ClientContext context) {
+		RandomGrabArrayItem[] reqs;
+		synchronized(this) {
+			reqs = items;
+			items = EMPTY;
+			removed = true;
 		}
+		int failed = 0;
+		for(RandomGrabArrayItem item : reqs) {
+			item.setParentGrabArray(null);
+			if(!existingGrabber.add(item, context))
+				reqs[failed++] = item;
+		}
+		return failed == 0 ? EMPTY : Arrays.copyOf(reqs, failed);
 	}
 
 	@Override
 	public void setParent(RemoveRandomParent newParent) {
-	    synchronized(root) {
-	        this.parent = newParent;
-	    }
+		this.parent = newParent;
+	}
+
+	@Override
+	public synchronized boolean markRemovedIfEmpty() {
+		if(removed || items.length != 0) return false;
+		removed = true;
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isRemoved() {
+		return removed;
 	}
 
     @Override
     public RequestSelectionTreeNode getParentGrabArray() {
-        synchronized(root) {
-            return parent;
-        }
+        return parent;
     }
 
     @Override
     public long getWakeupTime(ClientContext context, long now) {
-        synchronized(root) {
-            if(wakeupTime < now) wakeupTime = 0;
-            return wakeupTime;
-        }
+        long w = wakeupTime;
+        return w < now ? 0 : w;
     }
-    
+
     /** Set the wakeup time, and update parents recursively if it is reduced. If it is increased
      * we don't need to bother parents as they will recompute the next time they need to. Only
-     * called by removeRandomExhaustive() i.e. after checking <b>all</b> our 
-     * RandomGrabArrayItem's and finding that none of them are ready to send.
+     * called by removeRandomExhaustive() i.e. after checking <b>all</b> our
+     * RandomGrabArrayItem's and finding that none of them are ready to send. Does nothing if the
+     * wakeup time has been cleared since we started checking.
      * @param wakeupTime
+     * @param clearsBefore The value of clears before we started checking.
      * @param context
      */
-    private void setWakeupTime(long wakeupTime, ClientContext context) {
+    private void setWakeupTime(long wakeupTime, int clearsBefore, ClientContext context) {
         if(logMINOR) Logger.minor(this, "setCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
-        synchronized(root) {
-            if(this.wakeupTime > wakeupTime) {
-                this.wakeupTime = wakeupTime; // Set before calling parent.
-                if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
-            } else {
-                this.wakeupTime = wakeupTime;
-            }
+        boolean reduced;
+        synchronized(this) {
+            if(clears != clearsBefore) return;
+            reduced = this.wakeupTime > wakeupTime;
+            this.wakeupTime = wakeupTime; // Set before calling parent.
         }
+        RemoveRandomParent p = parent;
+        if(reduced && p != null) p.reduceWakeupTime(wakeupTime, context);
     }
 
     @Override
     public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "reduceCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
-        synchronized(root) {
-            if(this.wakeupTime > wakeupTime) {
-                this.wakeupTime = wakeupTime;
-                if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
-                return true;
-            }
-            return false;
+        synchronized(this) {
+            if(this.wakeupTime <= wakeupTime) return false;
+            this.wakeupTime = wakeupTime;
         }
+        RemoveRandomParent p = parent;
+        if(p != null) p.reduceWakeupTime(wakeupTime, context);
+        return true;
     }
 
     @Override
     public void clearWakeupTime(ClientContext context) {
         if(logMINOR) Logger.minor(this, "clearCooldownTime() on "+this);
-        synchronized(root) {
+        synchronized(this) {
+            clears++;
             wakeupTime = 0;
-            if(parent != null) parent.clearWakeupTime(context);
         }
+        RemoveRandomParent p = parent;
+        if(p != null) p.clearWakeupTime(context);
     }
-	
+
 }
@@ -4,7 +4,7 @@ import network.crypta.client.async.ClientRequestSelector;
 
 public class RandomGrabArrayWithObject<T> extends RandomGrabArray implements RemoveRandomWithObject<T> {
 
-	private T client;
+	private volatile T client;
 	
 	public RandomGrabArrayWithObject(T client, RemoveRandomParent parent, ClientRequestSelector root) {
 		super(parent, root);
@@ -13,16 +13,12 @@ public class RandomGrabArrayWithObject<T> extends RandomGrabArray implements Rem
 
 	@Override
 	public final T getObject() {
-	    synchronized(root) {
-	        return client;
-	    }
+	    return client;
 	}
 
 	@Override
 	public void setObject(T client) {
-	    synchronized(root) {
-	        this.client = client;
-	    }
+	    this.client = client;
 	}
 	
 }
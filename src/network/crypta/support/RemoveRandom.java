@@ -26,4 +26,13 @@ public interface RemoveRandom extends RequestSelectionTreeNode {
 
 	void setParent(RemoveRandomParent newTopLevel);
 
+	/** Mark this node as removed if it is empty. Called by the parent before it unlinks us, so
+	 * that a concurrent add() fails instead of adding to a node that is no longer in the tree.
+	 * @return True if we are now removed and the parent should unlink us. */
+	boolean markRemovedIfEmpty();
+
+	/** Has this node been removed from the tree because it was empty? If so adding to it will
+	 * fail and the caller should replace it. */
+	boolean isRemoved();
+
 }
@@ -5,7 +5,8 @@ import network.crypta.client.async.RequestSelectionTreeNode;
 
 public interface RemoveRandomParent extends RequestSelectionTreeNode {
 
-	/** Remove the specified RemoveRandom, and propagate upwards if the parent is now empty.
+	/** Remove the specified RemoveRandom if it is empty, and propagate upwards if the parent is
+	 * now empty.
 	 * @param context 
 	 */
     void maybeRemove(RemoveRandom r, ClientContext context);
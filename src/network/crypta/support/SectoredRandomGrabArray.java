@@ -9,27 +9,29 @@ import network.crypta.client.async.RequestSelectionTreeNode;
 /**
  * Like RandomGrabArray, but there is an equal chance of any given client's requests being
  * returned. Again, not persistent; this is reconstructed on restart.
- * 
- * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
- * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
- * 
- * A lot of this is over-complicated and over-expensive because of db4o. A lot of it is O(n).
- * This is all kept in RAM now so we can change it at will, plus there is only one object 
- * queued per splitfile now, so memory pressure is much less of an issue. 
- * FIXME Simplify and improve performance!
+ *
+ * LOCKING: Like RandomGrabArray, the arrays are copy-on-write so removeRandom() doesn't lock,
+ * changes lock only this node, and we never call another node while holding our lock. A child is
+ * only unlinked once it has marked itself removed, which it does only when it is empty, so a
+ * concurrent add either keeps it in the tree or fails and starts again with a new child. See the
+ * javadocs on ClientRequestSelector for deeper explanation.
  */
 public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> implements RemoveRandom, RemoveRandomParent, RequestSelectionTreeNode {
 	private static volatile boolean logMINOR;
-	
+
 	static {
 		Logger.registerClass(SectoredRandomGrabArray.class);
 	}
 
-	private RemoveRandomWithObject<T>[] grabArrays;
+	/** Replaced rather than modified, with this locked. The two arrays are always replaced
+	 * together, but only grabArrays is read without the lock. */
+	private volatile RemoveRandomWithObject<T>[] grabArrays;
 	private T[] grabClients;
-	private RemoveRandomParent parent;
+	private volatile RemoveRandomParent parent;
 	protected final ClientRequestSelector root;
-	private long wakeupTime;
+	private volatile long wakeupTime;
+	/** Set when we have been removed from the parent because we were empty. */
+	private boolean removed;
 
 	public SectoredRandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
 		grabClients = newClientArray(0);
@@ -38,100 +40,102 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 		this.root = root;
 	}
 
-	protected void addElement(T client, C rga) {
-	    synchronized(root) {
+	/** LOCKING: Caller must hold the lock on this. */
+	private void addElement(T client, C rga) {
 		final int len = grabArrays.length;
 
-		grabArrays = Arrays.copyOf(grabArrays, len+1);
-		grabArrays[len] = rga;
-		
-		grabClients = Arrays.copyOf(grabClients, len+1);
-		grabClients[len] = client;
-	    }
+		T[] newClients = Arrays.copyOf(grabClients, len+1);
+		newClients[len] = client;
+		grabClients = newClients;
+
+		RemoveRandomWithObject<T>[] newArrays = Arrays.copyOf(grabArrays, len+1);
+		newArrays[len] = rga;
+		grabArrays = newArrays;
 	}
 
-	protected int haveClient(T client) {
-	    synchronized(root) {
+	/** LOCKING: Caller must hold the lock on this. */
+	private int haveClient(T client) {
 		for(int i=0;i<grabClients.length;i++) {
 			if(grabClients[i] == client) return i;
 		}
 		return -1;
-	    }
 	}
 
 	/**
-	 * Get a grabber.
+	 * Get a grabber. It may have been removed, see isRemoved().
 	 */
 	@SuppressWarnings("unchecked")
-	public C getGrabber(T client) {
-	    synchronized(root) {
+	public synchronized C getGrabber(T client) {
 		int idx = haveClient(client);
 		if(idx == -1) return null;
 		else return (C)grabArrays[idx];
-	    }
 	}
-	
-	public T getClient(int x) {
-	    synchronized(root) {
-		return grabClients[x];
-	    }
+
+	/** @return The client, or null if we have shrunk since calling size(). */
+	public synchronized T getClient(int x) {
+		return x < grabClients.length ? grabClients[x] : null;
 	}
 
 	/**
-	 * Put a grabber.
+	 * Put a grabber, unless there already is one for the client that hasn't been removed. A
+	 * removed one is replaced.
+	 * @return The grabber now in the tree for the client, which may not be the one passed in, or
+	 * null if we have been removed from the tree ourselves, in which case the caller must start
+	 * again from the top.
 	 */
-	public void addGrabber(T client, C requestGrabber, ClientContext context) {
-	    synchronized(root) {
+	@SuppressWarnings("unchecked")
+	public C addGrabber(T client, C requestGrabber, ClientContext context) {
 		if(requestGrabber.getObject() != client)
 			throw new IllegalArgumentException("Client not equal to RemoveRandomWithObject's client: client="+client+" rr="+requestGrabber+" his object="+requestGrabber.getObject());
-		addElement(client, requestGrabber);
+		synchronized(this) {
+			if(removed) return null;
+			int idx = haveClient(client);
+			if(idx == -1) {
+				addElement(client, requestGrabber);
+			} else if(grabArrays[idx].isRemoved()) {
+				RemoveRandomWithObject<T>[] newArrays = grabArrays.clone();
+				newArrays[idx] = requestGrabber;
+				grabArrays = newArrays;
+			} else {
+				return (C)grabArrays[idx];
+			}
+		}
 		if(context != null) {
-		    clearWakeupTime(context);
+			clearWakeupTime(context);
 		}
-	    }
+		return requestGrabber;
 	}
 
 	@Override
 	public RemoveRandomReturn removeRandom(RandomGrabArrayItemExclusionList excluding, ClientContext context, long now) {
-	    synchronized(root) {
-		while(true) {
-			if(grabArrays.length == 0) return null;
-			if(grabArrays.length == 1) {
-				return removeRandomOneOnly(excluding, context, now);
-			}
-			if(grabArrays.length == 2) {
-				RemoveRandomReturn ret = removeRandomTwoOnly(excluding, context, now);
-				if(ret == null) continue; // Go around loop again, it has reduced to 1 or 0.
-				return ret;
-			}
-			RandomGrabArrayItem item = removeRandomLimited(excluding, context, now);
+		RemoveRandomWithObject<T>[] arrays = grabArrays;
+		if(arrays.length == 0) return null;
+		if(arrays.length > 2) {
+			RandomGrabArrayItem item = removeRandomLimited(arrays, excluding, context, now);
 			if(item != null)
 				return new RemoveRandomReturn(item);
-			else
-				return removeRandomExhaustive(excluding, context, now);
 		}
-	    }
+		// With one or two this is the same as choosing at random, then trying the other one.
+		return removeRandomExhaustive(arrays, excluding, context, now);
 	}
 
-	private RemoveRandomReturn removeRandomExhaustive(
+	private RemoveRandomReturn removeRandomExhaustive(RemoveRandomWithObject<T>[] arrays,
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
-	    synchronized(root) {
 		long wakeupTime = Long.MAX_VALUE;
-		if(grabArrays.length == 0) return null;
-		int x = context.fastWeakRandom.nextInt(grabArrays.length);
-		for(int i=0;i<grabArrays.length;i++) {
+		int x = context.fastWeakRandom.nextInt(arrays.length);
+		for(int i=0;i<arrays.length;i++) {
 			x++;
-			if(x >= grabArrays.length) x = 0;
-			RemoveRandomWithObject<T> rga = grabArrays[x];
+			if(x >= arrays.length) x = 0;
+			RemoveRandomWithObject<T> rga = arrays[x];
 			long excludeTime = rga.getWakeupTime(context, now);
 			if(excludeTime > 0) {
 				if(wakeupTime > excludeTime) wakeupTime = excludeTime;
 				continue;
 			}
 			if(logMINOR)
-				Logger.minor(this, "Picked "+x+" of "+grabArrays.length+" : "+rga+" on "+this);
-			
+				Logger.minor(this, "Picked "+x+" of "+arrays.length+" : "+rga+" on "+this);
+
 			RandomGrabArrayItem item = null;
 			RemoveRandomReturn val = rga.removeRandom(excluding, context, now);
 			if(val != null) {
@@ -142,258 +146,91 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 				}
 			}
 			if(logMINOR)
-				Logger.minor(this, "RGA has picked "+x+"/"+grabArrays.length+": "+item+
+				Logger.minor(this, "RGA has picked "+x+"/"+arrays.length+": "+item+
 						" rga.isEmpty="+rga.isEmpty());
 			if(item != null) {
 				return new RemoveRandomReturn(item);
 			} else if(rga.isEmpty()) {
 				if(logMINOR)
 					Logger.minor(this, "Removing grab array "+x+" : "+rga+" (is empty)");
-				removeElement(x);
+				maybeRemove(rga, context);
 			}
 		}
+		if(grabArrays.length == 0) {
+			if(logMINOR) Logger.minor(this, "Arrays are empty on "+this);
+			return null; // Remove this as well
+		}
 		reduceWakeupTime(wakeupTime, context);
 		return new RemoveRandomReturn(wakeupTime);
-	    }
 	}
 
-	private RandomGrabArrayItem removeRandomLimited(
+	private RandomGrabArrayItem removeRandomLimited(RemoveRandomWithObject<T>[] arrays,
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
-	    synchronized(root) {
 		/** Count of arrays that have items but didn't return anything because of exclusions */
 		final int MAX_EXCLUDED = 10;
 		int excluded = 0;
-		while(true) {
-			if(grabArrays.length == 0) return null;
-			int x = context.fastWeakRandom.nextInt(grabArrays.length);
-			RemoveRandomWithObject<T> rga = grabArrays[x];
-			if(rga == null) {
-				// We handle this in the other cases so we should handle it here.
-				Logger.error(this, "Slot "+x+" is null for client "+grabClients[x]);
-				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					if(logMINOR)
-						Logger.minor(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+grabArrays.length, new Exception("error"));
-					return null;
-				}
-				continue;
-			}
+		while(excluded <= MAX_EXCLUDED) {
+			int x = context.fastWeakRandom.nextInt(arrays.length);
+			RemoveRandomWithObject<T> rga = arrays[x];
 			long excludeTime = rga.getWakeupTime(context, now);
 			if(excludeTime > 0) {
 				excluded++;
-				if(excluded > MAX_EXCLUDED) {
-					if (logMINOR)
-						Logger.minor(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+grabArrays.length, new Exception("error"));
-					return null;
-				}
 				continue;
 			}
 			if(logMINOR)
-				Logger.minor(this, "Picked "+x+" of "+grabArrays.length+" : "+rga+" on "+this);
+				Logger.minor(this, "Picked "+x+" of "+arrays.length+" : "+rga+" on "+this);
 
 			RandomGrabArrayItem item = null;
 			RemoveRandomReturn val = rga.removeRandom(excluding, context, now);
 			if(val != null && val.item != null) item = val.item;
 			if(logMINOR)
-				Logger.minor(this, "RGA has picked "+x+"/"+grabArrays.length+": "+item+
+				Logger.minor(this, "RGA has picked "+x+"/"+arrays.length+": "+item+
 						" rga.isEmpty="+rga.isEmpty());
-			// If it is not empty but returns null we exclude it, and count the exclusion.
-			// If it is empty we remove it, and don't count the exclusion.
 			if(item != null) {
 				return item;
-			} else {
-				if(rga.isEmpty()) {
-					if(logMINOR)
-						Logger.minor(this, "Removing grab array "+x+" : "+rga+" (is empty)");
-					removeElement(x);
-				} else {
-					excluded++;
-					if(excluded > MAX_EXCLUDED) {
-						if (logMINOR)
-							Logger.minor(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+grabArrays.length, new Exception("error"));
-						return null;
-					}
-				}
-				continue;
-			}
-		}
-	    }
-	}
-
-	private RemoveRandomReturn removeRandomTwoOnly(
-			RandomGrabArrayItemExclusionList excluding,
-			ClientContext context, long now) {
-	    synchronized(root) {
-		long wakeupTime = Long.MAX_VALUE;
-		// Another simple common case
-		int x = context.fastWeakRandom.nextBoolean() ? 1 : 0;
-		RemoveRandomWithObject<T> rga = grabArrays[x];
-		RemoveRandomWithObject<T> firstRGA = rga;
-		if(rga == null) {
-			Logger.error(this, "rga = null on "+this);
-			if(grabArrays[1-x] == null) {
-				Logger.error(this, "other rga is also null on "+this);
-				grabArrays = newGrabberArray(0);
-				grabClients = newClientArray(0);
-				return null;
-			} else {
-				Logger.error(this, "grabArrays["+(1-x)+"] is valid but ["+x+"] is null, correcting...");
-				grabArrays = asGrabberArray(grabArrays[1-x]);
-				grabClients = asClientArray(grabClients[1-x]);
-				return null;
 			}
-		}
-		RandomGrabArrayItem item = null;
-		RemoveRandomReturn val = null;
-		if(logMINOR) Logger.minor(this, "Only 2, trying "+rga);
-		long excludeTime = rga.getWakeupTime(context, now);
-		if(excludeTime > 0) {
-			wakeupTime = excludeTime;
-			rga = null;
-			firstRGA = null;
-		} else {
-			val = rga.removeRandom(excluding, context, now);
-			if(val != null) {
-				if(val.item != null)
-					item = val.item;
-				else {
-					if(wakeupTime > val.wakeupTime) wakeupTime = val.wakeupTime;
-				}
-			}
-		}
-		if(item != null) {
-			if(logMINOR)
-				Logger.minor(this, "Returning (two items only) "+item+" for "+rga);
-			return new RemoveRandomReturn(item);
-		} else {
-			x = 1-x;
-			rga = grabArrays[x];
-			if(rga == null) {
-				Logger.error(this, "Other RGA is null later on on "+this);
-				grabArrays = asGrabberArray(grabArrays[1-x]);
-				grabClients = asClientArray(grabClients[1-x]);
-                reduceWakeupTime(wakeupTime, context);
-				return new RemoveRandomReturn(wakeupTime);
-			}
-			excludeTime = rga.getWakeupTime(context, now);
-			if(excludeTime > 0) {
-				if(wakeupTime > excludeTime) wakeupTime = excludeTime;
-				rga = null;
-			} else {
-				val = rga.removeRandom(excluding, context, now);
-				if(val != null) {
-					if(val.item != null)
-						item = val.item;
-					else {
-						if(wakeupTime > val.wakeupTime) wakeupTime = val.wakeupTime;
-					}
-				}
-			}
-			if(firstRGA != null && firstRGA.isEmpty() && rga != null && rga.isEmpty()) {
-				if(logMINOR) Logger.minor(this, "Removing both on "+this+" : "+firstRGA+" and "+rga+" are empty");
-				grabArrays = newGrabberArray(0);
-				grabClients = newClientArray(0);
-			} else if(firstRGA != null && firstRGA.isEmpty()) {
-				if(logMINOR) Logger.minor(this, "Removing first: "+firstRGA+" is empty on "+this);
-				grabArrays = asGrabberArray(grabArrays[x]); // don't use RGA, it may be nulled out
-				grabClients = asClientArray(grabClients[x]);
-			}
-			if(logMINOR)
-				Logger.minor(this, "Returning (two items only) "+item+" for "+rga);
-			if(item == null) {
-				if(grabArrays.length == 0)
-					return null; // Remove this as well
-                reduceWakeupTime(wakeupTime, context);
-				return new RemoveRandomReturn(wakeupTime);
-			} else return new RemoveRandomReturn(item);
-		}
-	    }
-	}
-
-	private RemoveRandomReturn removeRandomOneOnly(
-			RandomGrabArrayItemExclusionList excluding,
-			ClientContext context, long now) {
-	    synchronized(root) {
-		long wakeupTime = Long.MAX_VALUE;
-		// Optimise the common case
-		RemoveRandomWithObject<T> rga = grabArrays[0];
-		if(logMINOR) Logger.minor(this, "Only one RGA: "+rga);
-		long excludeTime = rga.getWakeupTime(context, now);
-		if(excludeTime > 0)
-			return new RemoveRandomReturn(excludeTime);
-		if(rga == null) {
-			Logger.error(this, "Only one entry and that is null");
-			// We are sure
-			grabArrays = newGrabberArray(0);
-			grabClients = newClientArray(0);
-			return null;
-		}
-		RemoveRandomReturn val = rga.removeRandom(excluding, context, now);
-		RandomGrabArrayItem item = null;
-		if(val != null) { // val == null => remove it
-			if(val.item != null)
-				item = val.item;
-			else {
-				wakeupTime = val.wakeupTime;
+			// If it is empty we remove it. Either way it stays in our snapshot, so count it.
+			if(rga.isEmpty()) {
+				if(logMINOR)
+					Logger.minor(this, "Removing grab array "+x+" : "+rga+" (is empty)");
+				maybeRemove(rga, context);
 			}
+			excluded++;
 		}
-		if(rga.isEmpty()) {
-			if(logMINOR)
-				Logger.minor(this, "Removing only grab array (0) : "+rga);
-			grabArrays = newGrabberArray(0);
-			grabClients = newClientArray(0);
-		}
-		if(logMINOR)
-			Logger.minor(this, "Returning (one item only) "+item+" for "+rga);
-		if(item == null) {
-			if(grabArrays.length == 0) {
-				if(logMINOR) Logger.minor(this, "Arrays are empty on "+this);
-				return null; // Remove this as well
-			}
-            reduceWakeupTime(wakeupTime, context);
-			return new RemoveRandomReturn(wakeupTime);
-		} else return new RemoveRandomReturn(item);
-	    }
-	}
-
-	private void removeElement(int x) {
-	    synchronized(root) {
-		final int grabArraysLength = grabArrays.length;
-		int newLen = grabArraysLength > 1 ? grabArraysLength-1 : 0;
-		RemoveRandomWithObject<T>[] newArray = newGrabberArray(newLen);
-		if(x > 0)
-			System.arraycopy(grabArrays, 0, newArray, 0, x);
-		if(x < grabArraysLength-1)
-			System.arraycopy(grabArrays, x+1, newArray, x, grabArraysLength - (x+1));
-		grabArrays = newArray;
-		
-		T[] newClients = newClientArray(newLen);
-		if(x > 0)
-			System.arraycopy(grabClients, 0, newClients, 0, x);
-		if(x < grabArraysLength-1)
-			System.arraycopy(grabClients, x+1, newClients, x, grabArraysLength - (x+1));
-		grabClients = newClients;
-	    }
+		if (logMINOR)
+			Logger.minor(this, "Too many sub-arrays are entirely excluded on "+this+" length = "+arrays.length, new Exception("error"));
+		return null;
 	}
 
 	public boolean isEmpty() {
-	    synchronized(root) {
 		return grabArrays.length == 0;
-	    }
 	}
-	
+
 	public int size() {
-	    synchronized(root) {
 		return grabArrays.length;
-	    }
 	}
-	
+
 	@Override
 	public void maybeRemove(RemoveRandom r, ClientContext context) {
+		if(!r.markRemovedIfEmpty()) {
+			// Not empty any more, or someone else is removing it.
+			if(logMINOR) Logger.minor(this, "Not removing "+r+" from "+this);
+			return;
+		}
+		unlink(r, context);
+	}
+
+	/** Remove a grabber even if it is not empty, e.g. to move it to a different priority.
+	 * @return False if it wasn't found. */
+	public boolean removeGrabber(C r, ClientContext context) {
+		return unlink(r, context);
+	}
+
+	private boolean unlink(RemoveRandom r, ClientContext context) {
 		int count = 0;
-		int finalSize;
-		synchronized(root) {
+		boolean empty;
+		synchronized(this) {
 			while(true) {
 				int found = -1;
 				for(int i=0;i<grabArrays.length;i++) {
@@ -410,69 +247,90 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 					break;
 				}
 			}
-			finalSize = grabArrays.length;
+			empty = grabArrays.length == 0;
 		}
 		if(count == 0) {
 			// This is not unusual, it was e.g. removed because of being empty.
-			// And it has already been removeFrom()'ed.
 			if(logMINOR) Logger.minor(this, "Not in parent: "+r+" for "+this, new Exception("error"));
+			return false;
 		}
-		if(finalSize == 0 && parent != null) {
-			parent.maybeRemove(this, context);
+		RemoveRandomParent p = parent;
+		if(empty && p != null) {
+			p.maybeRemove(this, context);
 		}
+		return true;
+	}
+
+	/** LOCKING: Caller must hold the lock on this. */
+	private void removeElement(int x) {
+		final int grabArraysLength = grabArrays.length;
+		int newLen = grabArraysLength > 1 ? grabArraysLength-1 : 0;
+		RemoveRandomWithObject<T>[] newArray = newGrabberArray(newLen);
+		if(x > 0)
+			System.arraycopy(grabArrays, 0, newArray, 0, x);
+		if(x < grabArraysLength-1)
+			System.arraycopy(grabArrays, x+1, newArray, x, grabArraysLength - (x+1));
+
+		T[] newClients = newClientArray(newLen);
+		if(x > 0)
+			System.arraycopy(grabClients, 0, newClients, 0, x);
+		if(x < grabArraysLength-1)
+			System.arraycopy(grabClients, x+1, newClients, x, grabArraysLength - (x+1));
+		grabClients = newClients;
+		grabArrays = newArray;
 	}
 
 	@Override
 	public void setParent(RemoveRandomParent newParent) {
-	    synchronized(root) {
 		this.parent = newParent;
-	    }
+	}
+
+	@Override
+	public synchronized boolean markRemovedIfEmpty() {
+		if(removed || grabArrays.length != 0) return false;
+		removed = true;
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isRemoved() {
+		return removed;
 	}
 
     @Override
     public RequestSelectionTreeNode getParentGrabArray() {
-        synchronized(root) {
-            return parent;
-        }
+        return parent;
     }
-	
+
     @Override
     public long getWakeupTime(ClientContext context, long now) {
-        synchronized(root) {
-            if(wakeupTime < now) wakeupTime = 0;
-            return wakeupTime;
-        }
+        long w = wakeupTime;
+        return w < now ? 0 : w;
     }
-    
+
     @Override
     public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "reduceCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
-        boolean reachedRoot = false;
-        synchronized(root) {
-            if(this.wakeupTime > wakeupTime) {
-                this.wakeupTime = wakeupTime;
-                if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
-                else reachedRoot = true; // Even if it reduces it we need to wake it up.
-            } else return false;
+        synchronized(this) {
+            if(this.wakeupTime <= wakeupTime) return false;
+            this.wakeupTime = wakeupTime;
         }
-        if(reachedRoot)
-            root.wakeUp(context);
+        RemoveRandomParent p = parent;
+        if(p != null)
+            p.reduceWakeupTime(wakeupTime, context);
+        else
+            root.wakeUp(context); // Even if it reduces it we need to wake it up.
         return true;
     }
-    
+
     @Override
     public void clearWakeupTime(ClientContext context) {
         if(logMINOR) Logger.minor(this, "clearCooldownTime() on "+this);
-        synchronized(root) {
+        synchronized(this) {
             wakeupTime = 0;
-            if(parent != null) parent.clearWakeupTime(context);
         }
-    }
-
-    private T[] asClientArray(T client) {
-        T[] clients = newClientArray(1);
-        clients[0] = client;
-        return clients;
+        RemoveRandomParent p = parent;
+        if(p != null) p.clearWakeupTime(context);
     }
 
     @SuppressWarnings("unchecked")
@@ -480,12 +338,6 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
         return (T[])new Object[length];
     }
 
-    private RemoveRandomWithObject<T>[] asGrabberArray(RemoveRandomWithObject<T> grabber) {
-        RemoveRandomWithObject<T>[] grabbers = newGrabberArray(1);
-        grabbers[0] = grabber;
-        return grabbers;
-    }
-
     @SuppressWarnings("unchecked")
     private RemoveRandomWithObject<T>[] newGrabberArray(int length) {
         return (RemoveRandomWithObject<T>[])new RemoveRandomWithObject<?>[length];
@@ -20,25 +20,26 @@ public class SectoredRandomGrabArraySimple<MyType,ChildType> extends SectoredRan
         super(object, parent, root);
     }
 
-    /** Add directly to a RandomGrabArrayWithObject under us. */
-    public void add(ChildType client, RandomGrabArrayItem item, ClientContext context) {
-        synchronized(root) {
-        RandomGrabArrayWithObject<ChildType> rga = getGrabber(client);
-        if(rga == null) {
+    /** Add directly to a RandomGrabArrayWithObject under us.
+     * @return False if we have been removed from the tree, in which case the caller must start
+     * again from the top. */
+    public boolean add(ChildType client, RandomGrabArrayItem item, ClientContext context) {
+        while(true) {
+            RandomGrabArrayWithObject<ChildType> rga = getGrabber(client);
+            if(rga == null || rga.isRemoved()) {
+                if(logMINOR)
+                    Logger.minor(this, "Adding new RGAWithClient for "+client+" on "+this+" for "+item);
+                rga = addGrabber(client, new RandomGrabArrayWithObject<ChildType>(client, this, root), context);
+                if(rga == null) return false;
+            }
             if(logMINOR)
-                Logger.minor(this, "Adding new RGAWithClient for "+client+" on "+this+" for "+item);
-            rga = new RandomGrabArrayWithObject<ChildType>(client, this, root);
-            addElement(client, rga);
-        }
-        if(logMINOR)
-            Logger.minor(this, "Adding "+item+" to RGA "+rga+" for "+client);
-        rga.add(item, context);
-        if(context != null) {
-            clearWakeupTime(context);
+                Logger.minor(this, "Adding "+item+" to RGA "+rga+" for "+client);
+            // Fails if it was removed for being empty after we found it.
+            if(rga.add(item, context)) break;
         }
         if(logMINOR)
             Logger.minor(this, "Size now " + size() + " on " + this);
-        }
+        return true;
     }
 
 }
@@ -185,6 +185,35 @@ public class Serializer {
 		}
 	}
 
+	/** @return The number of bytes writeToDataOutputStream() will write for the object, or -1 if
+	 * this is not known in advance. */
+	public static int encodedLength(Object object) {
+		Class<?> type = object.getClass();
+		if (type.equals(Long.class) || type.equals(Double.class)) {
+			return 8;
+		} else if (type.equals(Integer.class) || type.equals(Float.class)) {
+			return 4;
+		} else if (type.equals(Short.class)) {
+			return 2;
+		} else if (type.equals(Boolean.class) || type.equals(Byte.class)) {
+			return 1;
+		} else if (type.equals(Buffer.class)) {
+			return 4 + ((Buffer) object).getLength();
+		} else if (type.equals(ShortBuffer.class)) {
+			return 2 + ((ShortBuffer) object).getLength();
+		} else if (type.equals(BitArray.class)) {
+			return BitArray.serializedLength(((BitArray) object).getSize());
+		} else if (type.equals(String.class)) {
+			return 4 + ((String) object).length() * 2;
+		} else if (type.equals(double[].class)) {
+			return 1 + ((double[]) object).length * 8;
+		} else if (type.equals(float[].class)) {
+			return 2 + ((float[]) object).length * 4;
+		} else {
+			return -1;
+		}
+	}
+
 	/** Only works for simple messages!! */
 	public static int length(Class<?> type, int maxStringLength) {
 		if (type.equals(Long.class)) {
@@ -0,0 +1,147 @@
+package network.crypta.support;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+import network.crypta.support.io.NativeThread;
+
+/**
+ * A Ticker driven by a virtual clock rather than the wall clock, for simulations. Nothing runs
+ * until advance() is called. Jobs then run on the calling thread in order of their scheduled time
+ * (and in the order they were queued for the same time), and the clock jumps straight to each
+ * job's time, so simulated time passes as fast as the jobs can run and runs are reproducible.
+ * Only code that takes the time from currentTimeMillis() here can run on it, e.g. a
+ * SimulatedNetwork on its own. A Node reads the wall clock.
+ */
+public class VirtualTicker implements Ticker {
+
+	private final PriorityQueue<Job> jobs = new PriorityQueue<Job>();
+	private long now;
+	private long sequence;
+	private final Executor executor = new InlineExecutor();
+
+	private static class Job implements Comparable<Job> {
+		final long time;
+		final long sequence;
+		final Runnable job;
+
+		Job(long time, long sequence, Runnable job) {
+			this.time = time;
+			this.sequence = sequence;
+			this.job = job;
+		}
+
+		@Override
+		public int compareTo(Job o) {
+			if(time != o.time) return time < o.time ? -1 : 1;
+			return Long.compare(sequence, o.sequence);
+		}
+	}
+
+	public VirtualTicker(long startTime) {
+		now = startTime;
+	}
+
+	/** @return The virtual time. */
+	public synchronized long currentTimeMillis() {
+		return now;
+	}
+
+	@Override
+	public void queueTimedJob(Runnable job, long offset) {
+		queueTimedJob(job, null, offset, false, false);
+	}
+
+	@Override
+	public synchronized void queueTimedJob(Runnable job, String name, long offset, boolean runOnTickerAnyway, boolean noDupes) {
+		queueTimedJobAbsolute(job, name, now + Math.max(0, offset), runOnTickerAnyway, noDupes);
+	}
+
+	@Override
+	public synchronized void queueTimedJobAbsolute(Runnable job, String name, long time, boolean runOnTickerAnyway, boolean noDupes) {
+		if(noDupes) {
+			for(Job j : jobs)
+				if(j.job == job) return;
+		}
+		jobs.add(new Job(Math.max(time, now), sequence++, job));
+	}
+
+	@Override
+	public synchronized void removeQueuedJob(Runnable job) {
+		for(Iterator<Job> it = jobs.iterator(); it.hasNext();) {
+			if(it.next().job == job) it.remove();
+		}
+	}
+
+	@Override
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	public synchronized int getQueuedJobs() {
+		return jobs.size();
+	}
+
+	/**
+	 * Move the clock forward, running every job which becomes due, including jobs queued by those
+	 * jobs.
+	 * @return The number of jobs run.
+	 */
+	public int advance(long offset) {
+		long target;
+		synchronized(this) {
+			target = now + offset;
+		}
+		int count = 0;
+		while(true) {
+			Job job;
+			synchronized(this) {
+				job = jobs.peek();
+				if(job == null || job.time > target) {
+					now = target;
+					return count;
+				}
+				jobs.poll();
+				now = job.time;
+			}
+			job.job.run();
+			count++;
+		}
+	}
+
+	/** Runs jobs straight away on the calling thread. */
+	private static class InlineExecutor implements Executor {
+
+		@Override
+		public void execute(Runnable job) {
+			job.run();
+		}
+
+		@Override
+		public void execute(Runnable job, String jobName) {
+			job.run();
+		}
+
+		@Override
+		public void execute(Runnable job, String jobName, boolean fromTicker) {
+			job.run();
+		}
+
+		@Override
+		public int[] waitingThreads() {
+			return new int[NativeThread.JAVA_PRIORITY_RANGE+1];
+		}
+
+		@Override
+		public int[] runningThreads() {
+			return new int[NativeThread.JAVA_PRIORITY_RANGE+1];
+		}
+
+		@Override
+		public int getWaitingThreadsCount() {
+			return 0;
+		}
+
+	}
+
+}
@@ -3,21 +3,29 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package network.crypta.support.compress;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import network.crypta.client.InsertException;
 import network.crypta.client.InsertException.InsertExceptionMode;
 import network.crypta.client.async.ClientContext;
 import network.crypta.node.PrioRunnable;
+import network.crypta.support.compress.Compressor.COMPRESSOR_TYPE;
 import network.crypta.support.Logger;
 import network.crypta.support.io.NativeThread;
 
 public class RealCompressor {
     private final ExecutorService executorService;
+    /** One permit per compressor allowed to run at once, whether a job or an extra codec trial. */
+    private final Semaphore compressorThreads;
     private ClientContext context;
 
     private static volatile boolean logMINOR;
@@ -25,9 +33,24 @@ public class RealCompressor {
         Logger.registerClass(RealCompressor.class);
     }
 
+    private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    // Statistics on insert codec trials.
+    private final AtomicLong inserts = new AtomicLong();
+    private final AtomicLong insertsSkipped = new AtomicLong();
+    private final AtomicLong trialsFinished = new AtomicLong();
+    private final AtomicLong trialsAborted = new AtomicLong();
+    private final AtomicLong cpuTimeUsed = new AtomicLong();
+    private final AtomicLong cpuTimeSaved = new AtomicLong();
+    private final AtomicLong bytesNotCompressed = new AtomicLong();
+    /** Recent CPU nanoseconds per 1024 bytes read for each codec, or 0 if not known yet. */
+    private final AtomicLongArray cpuTimePerKiB = new AtomicLongArray(COMPRESSOR_TYPE.values().length);
+
     public RealCompressor() {
-        this.executorService = Executors.newFixedThreadPool(getMaxRunningCompressionThreads(),
+        int maxRunningThreads = getMaxRunningCompressionThreads();
+        this.executorService = Executors.newFixedThreadPool(maxRunningThreads,
                                                             new CompressorThreadFactory());
+        this.compressorThreads = new Semaphore(maxRunningThreads);
     }
 
     public void setClientContext(ClientContext context) {
@@ -44,6 +67,7 @@ public class RealCompressor {
                     task = executorService.submit(new PrioRunnable() {
                     @Override
                     public void run() {
+                        compressorThreads.acquireUninterruptibly();
                         try {
                             try {
                                 j.tryCompress(context);
@@ -62,6 +86,8 @@ public class RealCompressor {
 
                         } catch (Throwable t) {
                             Logger.error(this, "Caught " + t + " in " + this, t);
+                        } finally {
+                            compressorThreads.release();
                         }
                     }
 
@@ -103,6 +129,105 @@ public class RealCompressor {
         return maxRunningThreads;
     }
 
+    /**
+     * Ask to run another codec trial for a job on a thread of its own. The job's own thread
+     * already counts against the limit on compressors running at once, and so does the trial if
+     * this returns true, until onTrialThreadFinished() is called. If it returns false the job must
+     * run the trial on its own thread.
+     */
+    public boolean tryStartTrialThread() {
+        return compressorThreads.tryAcquire();
+    }
+
+    public void onTrialThreadFinished() {
+        compressorThreads.release();
+    }
+
+    /** CPU time used by the current thread if the JVM can tell us, otherwise the wall clock. In
+     * nanoseconds, only useful for differences. */
+    public static long threadCPUTime() {
+        if(threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled())
+            return threadMXBean.getCurrentThreadCpuTime();
+        return System.nanoTime();
+    }
+
+    /** An insert has finished trying codecs. */
+    public void onInsertCompressed() {
+        inserts.incrementAndGet();
+    }
+
+    /**
+     * A codec trial has finished, whether it completed or stopped early.
+     * @param bytesRead How much of the data the codec read.
+     * @param bytesSkipped How much of the data the codec didn't need to read because it stopped
+     * early.
+     * @param cpuTime CPU time used by the trial, in nanoseconds.
+     */
+    public void onTrialFinished(COMPRESSOR_TYPE type, long bytesRead, long bytesSkipped, long cpuTime) {
+        trialsFinished.incrementAndGet();
+        cpuTimeUsed.addAndGet(cpuTime);
+        if(bytesRead >= 1024) {
+            // Weighted moving average, so it follows the CPU speed and the kind of data inserted.
+            long rate = cpuTime / (bytesRead / 1024);
+            long old = cpuTimePerKiB.get(type.ordinal());
+            cpuTimePerKiB.set(type.ordinal(), old == 0 ? rate : (old * 7 + rate) / 8);
+        }
+        if(bytesSkipped > 0) {
+            trialsAborted.incrementAndGet();
+            onSkipped(type, bytesSkipped);
+        }
+    }
+
+    /** A sample of the data predicted that none of the codecs would compress it well enough, so
+     * they weren't tried. Each would have had to read bytesSkipped bytes to find that out. */
+    public void onTrialsSkipped(COMPRESSOR_TYPE[] types, long bytesSkipped) {
+        insertsSkipped.incrementAndGet();
+        for(COMPRESSOR_TYPE type : types)
+            onSkipped(type, bytesSkipped);
+    }
+
+    private void onSkipped(COMPRESSOR_TYPE type, long bytesSkipped) {
+        bytesNotCompressed.addAndGet(bytesSkipped);
+        cpuTimeSaved.addAndGet(cpuTimePerKiB.get(type.ordinal()) * (bytesSkipped / 1024));
+    }
+
+    public long getInsertsCompressed() {
+        return inserts.get();
+    }
+
+    public long getInsertsSkippedBySampling() {
+        return insertsSkipped.get();
+    }
+
+    public long getTrialsFinished() {
+        return trialsFinished.get();
+    }
+
+    public long getTrialsAborted() {
+        return trialsAborted.get();
+    }
+
+    public long getBytesNotCompressed() {
+        return bytesNotCompressed.get();
+    }
+
+    /** Total CPU time used by codec trials, in milliseconds. */
+    public long getCPUTimeUsed() {
+        return cpuTimeUsed.get() / 1000000;
+    }
+
+    /** Estimated CPU time not spent because trials stopped early or weren't needed, compared to
+     * running every codec over all of the data. In milliseconds. */
+    public long getCPUTimeSaved() {
+        return cpuTimeSaved.get() / 1000000;
+    }
+
+    /** Estimated CPU time saved per insert, in milliseconds. */
+    public long getCPUTimeSavedPerInsert() {
+        long count = inserts.get();
+        return count == 0 ? 0 : getCPUTimeSaved() / count;
+    }
+
     public void shutdown() {
         // TODO: should we wait here?
         this.executorService.shutdown();
@@ -0,0 +1,85 @@
+package network.crypta.support.compress;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The sizes that compression trials running at the same time have to beat. As soon as the output
+ * a trial writes through {@link #wrap(int, OutputStream)} is bigger than its current limit, the
+ * write fails with a CompressionOutputSizeException, so a codec that can no longer win stops early
+ * instead of compressing the rest of the data.
+ * <p>
+ * Trials are numbered in codec order, and the winner is picked in that order: the first result
+ * that fits in minSize, otherwise the first with the fewest blocks. So a trial only lowers the
+ * limits of the trials after it, and only to what they would need to beat it under those rules.
+ * Which trial wins therefore does not depend on which finishes first.
+ */
+public class SharedCompressionLimit {
+
+    private final AtomicLongArray limits;
+    private final long minSize;
+    private final long blockSize;
+
+    /**
+     * @param trials The number of trials.
+     * @param initialLimit The most any trial may write, usually the size of the original data.
+     * @param minSize A result no bigger than this beats any other.
+     * @param blockSize Results are otherwise compared by how many whole blocks of this size they
+     * fill.
+     */
+    public SharedCompressionLimit(int trials, long initialLimit, long minSize, long blockSize) {
+        limits = new AtomicLongArray(trials);
+        this.minSize = minSize;
+        this.blockSize = blockSize;
+        long limit = Math.min(initialLimit, limitToBeat(initialLimit));
+        for(int i=0;i<trials;i++)
+            limits.set(i, limit);
+    }
+
+    /** @return The most trial may write, or -1 if it can't win. */
+    public long get(int trial) {
+        return limits.get(trial);
+    }
+
+    /** Trial has finished with a result of the given size, so the trials after it must beat that. */
+    public void finished(int trial, long size) {
+        long limit = size <= minSize ? -1 : limitToBeat(size);
+        for(int i=trial+1;i<limits.length();i++)
+            limits.accumulateAndGet(i, limit, Math::min);
+    }
+
+    /** @return The most a later trial may write and still beat a result of the given size. */
+    private long limitToBeat(long size) {
+        // Fewer blocks, or fits in minSize.
+        return Math.max((size / blockSize) * blockSize - 1, minSize);
+    }
+
+    public OutputStream wrap(final int trial, OutputStream os) {
+        return new FilterOutputStream(os) {
+
+            private long written;
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                check(1);
+            }
+
+            @Override
+            public void write(byte[] buf, int off, int len) throws IOException {
+                out.write(buf, off, len);
+                check(len);
+            }
+
+            private void check(int len) throws CompressionOutputSizeException {
+                written += len;
+                if(written > limits.get(trial))
+                    throw new CompressionOutputSizeException(written);
+            }
+
+        };
+    }
+
+}
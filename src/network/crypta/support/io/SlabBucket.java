@@ -0,0 +1,247 @@
+package network.crypta.support.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import network.crypta.client.async.ClientContext;
+import network.crypta.support.api.Bucket;
+import network.crypta.support.api.LockableRandomAccessBuffer;
+import network.crypta.support.api.RandomAccessBucket;
+
+/**
+ * A bucket that stores data in memory, in slabs from a SlabPool. Like ArrayBucket, opening a new
+ * OutputStream starts again from empty, but written data can be read straight away.
+ */
+class SlabBucket implements Bucket, RandomAccessBucket {
+
+    private final SlabPool pool;
+    /** Null once freed. */
+    private Contents contents;
+    private boolean readOnly;
+
+    /** The data, which InputStreams keep a reference to, so that like with ArrayBucket they can
+     * still be read after the bucket is freed or rewritten, e.g. while TempBucket migrates to
+     * disk. The slabs are released when it has been replaced and the last reader has closed. */
+    private static class Contents {
+        final ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+        long size;
+        int readers;
+        boolean replaced;
+    }
+
+    SlabBucket(SlabPool pool) {
+        this.pool = pool;
+        contents = new Contents();
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if(readOnly) throw new IOException("Read only");
+        if(contents == null) throw new IOException("Already freed");
+        replaceContents(new Contents());
+        return new SlabBucketOutputStream(contents);
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if(contents == null) throw new IOException("Already freed");
+        return new SlabBucketInputStream(contents);
+    }
+
+    @Override
+    public OutputStream getOutputStreamUnbuffered() throws IOException {
+        return getOutputStream();
+    }
+
+    @Override
+    public InputStream getInputStreamUnbuffered() throws IOException {
+        return getInputStream();
+    }
+
+    @Override
+    public String getName() {
+        return "SlabBucket";
+    }
+
+    @Override
+    public synchronized long size() {
+        return contents == null ? 0 : contents.size;
+    }
+
+    @Override
+    public synchronized boolean isReadOnly() {
+        return readOnly;
+    }
+
+    @Override
+    public synchronized void setReadOnly() {
+        readOnly = true;
+    }
+
+    @Override
+    public synchronized void free() {
+        if(contents == null) return;
+        replaceContents(null);
+    }
+
+    /** LOCKING: Caller must hold the lock on this. */
+    private void replaceContents(Contents newContents) {
+        Contents old = contents;
+        contents = newContents;
+        if(old == null) return;
+        old.replaced = true;
+        if(old.readers == 0) release(old);
+    }
+
+    /** LOCKING: Caller must hold the lock on this. */
+    private void release(Contents c) {
+        for(ByteBuffer slab : c.slabs)
+            pool.release(slab);
+        c.slabs.clear();
+        c.size = 0;
+    }
+
+    private class SlabBucketOutputStream extends OutputStream {
+
+        private final Contents c;
+        private boolean closed;
+
+        SlabBucketOutputStream(Contents c) {
+            this.c = c;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buf, int offset, int length) throws IOException {
+            synchronized(SlabBucket.this) {
+                if(closed) throw new IOException("Closed");
+                if(c.replaced) throw new IOException("Already freed");
+                if(readOnly) throw new IOException("Read only");
+                int slabSize = pool.getSlabSize();
+                while(length > 0) {
+                    int slabIndex = (int)(c.size / slabSize);
+                    int slabOffset = (int)(c.size % slabSize);
+                    if(slabIndex == c.slabs.size())
+                        c.slabs.add(pool.allocate());
+                    int count = Math.min(length, slabSize - slabOffset);
+                    c.slabs.get(slabIndex).put(slabOffset, buf, offset, count);
+                    c.size += count;
+                    offset += count;
+                    length -= count;
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized(SlabBucket.this) {
+                closed = true;
+            }
+        }
+
+    }
+
+    private class SlabBucketInputStream extends InputStream {
+
+        private final Contents c;
+        private long position;
+        private boolean closed;
+
+        SlabBucketInputStream(Contents c) {
+            this.c = c;
+            c.readers++;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buf = new byte[1];
+            if(read(buf, 0, 1) <= 0) return -1;
+            return buf[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buf, int offset, int length) throws IOException {
+            synchronized(SlabBucket.this) {
+                if(closed) throw new IOException("Closed");
+                if(length == 0) return 0;
+                if(position >= c.size) return -1;
+                length = (int)Math.min(length, c.size - position);
+                int slabSize = pool.getSlabSize();
+                int read = 0;
+                while(read < length) {
+                    int slabOffset = (int)(position % slabSize);
+                    int count = Math.min(length - read, slabSize - slabOffset);
+                    c.slabs.get((int)(position / slabSize)).get(slabOffset, buf, offset + read, count);
+                    position += count;
+                    read += count;
+                }
+                return read;
+            }
+        }
+
+        @Override
+        public long skip(long n) {
+            synchronized(SlabBucket.this) {
+                long skipped = Math.max(0, Math.min(n, c.size - position));
+                position += skipped;
+                return skipped;
+            }
+        }
+
+        @Override
+        public int available() {
+            synchronized(SlabBucket.this) {
+                return (int)Math.max(0, Math.min(Integer.MAX_VALUE, c.size - position));
+            }
+        }
+
+        @Override
+        public void close() {
+            synchronized(SlabBucket.this) {
+                if(closed) return;
+                closed = true;
+                c.readers--;
+                if(c.replaced && c.readers == 0) release(c);
+            }
+        }
+
+    }
+
+    @Override
+    public RandomAccessBucket createShadow() {
+        return null;
+    }
+
+    @Override
+    public void onResume(ClientContext context) {
+        // Do nothing.
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) {
+        // Should not be used for persistent requests.
+        throw new UnsupportedOperationException();
+    }
+
+    /** The slabs are handed over to the SlabRandomAccessBuffer, which will release them when it is
+     * freed, so we can't be used afterwards. */
+    @Override
+    public synchronized LockableRandomAccessBuffer toRandomAccessBuffer() throws IOException {
+        if(contents == null) throw new IOException("Already freed");
+        if(contents.readers != 0) throw new IOException("Can't convert with open InputStream's");
+        readOnly = true;
+        Contents c = contents;
+        contents = null;
+        c.replaced = true;
+        return new SlabRandomAccessBuffer(pool, c.slabs.toArray(new ByteBuffer[c.slabs.size()]), c.size);
+    }
+
+}
@@ -0,0 +1,97 @@
+package network.crypta.support.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * A pool of fixed size slabs of memory for in-RAM temporary storage. Buckets made of slabs don't
+ * need to grow and copy a single array, and freed slabs are reused, so lots of small, short lived
+ * buckets don't fragment the heap. The slabs can also be direct buffers, outside the heap.
+ *
+ * Freed slabs are kept as long as the slabs in use plus the free slabs fit in the budget. The
+ * caller is responsible for not going over the budget with the slabs in use.
+ */
+public class SlabPool {
+
+    public static final int DEFAULT_SLAB_SIZE = 4096;
+
+    private final int slabSize;
+    /** Maximum bytes in use plus bytes kept for reuse. */
+    private long maxBytes;
+    private boolean direct;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<ByteBuffer>();
+    private long slabsInUse;
+    private long slabsAllocated;
+    private long slabsReused;
+
+    public SlabPool(int slabSize, long maxBytes, boolean direct) {
+        if(slabSize <= 0) throw new IllegalArgumentException();
+        this.slabSize = slabSize;
+        this.maxBytes = maxBytes;
+        this.direct = direct;
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    /** @return The number of bytes needed to store the given number of bytes in whole slabs. */
+    public long slabBytes(long size) {
+        return ((size + slabSize - 1) / slabSize) * slabSize;
+    }
+
+    /** Get a slab. It may contain old data, so callers must keep track of what they have written. */
+    public synchronized ByteBuffer allocate() {
+        slabsInUse++;
+        ByteBuffer slab = free.pollFirst();
+        if(slab != null) {
+            slabsReused++;
+            return slab;
+        }
+        slabsAllocated++;
+        return direct ? ByteBuffer.allocateDirect(slabSize) : ByteBuffer.allocate(slabSize);
+    }
+
+    public synchronized void release(ByteBuffer slab) {
+        slabsInUse--;
+        if(slab.isDirect() != direct) return;
+        if((slabsInUse + free.size() + 1) * slabSize > maxBytes) return;
+        free.addFirst(slab);
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        while(!free.isEmpty() && (slabsInUse + free.size()) * slabSize > maxBytes)
+            free.pollLast();
+    }
+
+    /** Use direct buffers for new slabs. Free slabs of the other kind are dropped. */
+    public synchronized void setDirect(boolean direct) {
+        if(this.direct == direct) return;
+        this.direct = direct;
+        free.clear();
+    }
+
+    public synchronized boolean isDirect() {
+        return direct;
+    }
+
+    public synchronized long getBytesInUse() {
+        return slabsInUse * slabSize;
+    }
+
+    /** @return Bytes in free slabs kept for reuse. */
+    public synchronized long getBytesPooled() {
+        return (long)free.size() * slabSize;
+    }
+
+    /** @return The number of slabs that have been created rather than reused. */
+    public synchronized long getSlabsAllocated() {
+        return slabsAllocated;
+    }
+
+    public synchronized long getSlabsReused() {
+        return slabsReused;
+    }
+
+}
@@ -0,0 +1,98 @@
+package network.crypta.support.io;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import network.crypta.client.async.ClientContext;
+import network.crypta.support.api.LockableRandomAccessBuffer;
+
+/** A read-only LockableRandomAccessBuffer over the slabs of a SlabBucket. The slabs are returned
+ * to the pool when it is freed. */
+class SlabRandomAccessBuffer implements LockableRandomAccessBuffer {
+
+    private final SlabPool pool;
+    private ByteBuffer[] slabs;
+    private final long size;
+    private boolean closed;
+
+    SlabRandomAccessBuffer(SlabPool pool, ByteBuffer[] slabs, long size) {
+        this.pool = pool;
+        this.slabs = slabs;
+        this.size = size;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public synchronized void pread(long fileOffset, byte[] buf, int bufOffset, int length)
+            throws IOException {
+        if(closed || slabs == null) throw new IOException("Closed");
+        if(fileOffset < 0) throw new IllegalArgumentException("Cannot read before zero");
+        if(fileOffset + length > size) throw new IOException("Cannot read after end: trying to read from "+fileOffset+" to "+(fileOffset+length)+" on block length "+size);
+        int slabSize = pool.getSlabSize();
+        while(length > 0) {
+            int slabOffset = (int)(fileOffset % slabSize);
+            int count = Math.min(length, slabSize - slabOffset);
+            slabs[(int)(fileOffset / slabSize)].get(slabOffset, buf, bufOffset, count);
+            fileOffset += count;
+            bufOffset += count;
+            length -= count;
+        }
+    }
+
+    @Override
+    public void pwrite(long fileOffset, byte[] buf, int bufOffset, int length)
+            throws IOException {
+        throw new IOException("Read-only");
+    }
+
+    /** Copy the contents to a single array, e.g. to migrate to disk. */
+    synchronized byte[] toByteArray() throws IOException {
+        byte[] buf = new byte[(int)size];
+        pread(0, buf, 0, buf.length);
+        return buf;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    @Override
+    public synchronized void free() {
+        closed = true;
+        if(slabs == null) return;
+        for(ByteBuffer slab : slabs)
+            pool.release(slab);
+        slabs = null;
+    }
+
+    @Override
+    public RAFLock lockOpen() {
+        return new RAFLock() {
+
+            @Override
+            protected void innerUnlock() {
+                // Do nothing. Always open.
+            }
+
+        };
+    }
+
+    @Override
+    public void onResume(ClientContext context) {
+        // Do nothing.
+    }
+
+    @Override
+    public void storeTo(DataOutputStream dos) {
+        throw new UnsupportedOperationException();
+    }
+
+    // Default hashCode() and equals() are correct for this type.
+
+}
@@ -19,6 +19,7 @@ import java.util.ListIterator;
 import java.util.Queue;
 import java.util.Random;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Iterator;
 
 import network.crypta.client.async.ClientContext;
 import network.crypta.crypt.EncryptedRandomAccessBucket;
@@ -30,6 +31,7 @@ import network.crypta.support.LogThresholdCallback;
 import network.crypta.support.Logger;
 import network.crypta.support.Logger.LogLevel;
 import network.crypta.support.SizeUtil;
+import network.crypta.support.Ticker;
 import network.crypta.support.TimeUtil;
 import network.crypta.support.api.Bucket;
 import network.crypta.support.api.BucketFactory;
@@ -41,19 +43,23 @@ import network.crypta.support.api.RandomAccessBucket;
  * Temporary Bucket Factory
  * 
  * Buckets created by this factory can be either:
- *	- ArrayBuckets
+ *	- SlabBuckets, made of fixed size slabs from a SlabPool
  * OR
  *	- FileBuckets
  * 
- * ArrayBuckets are used if and only if:
+ * SlabBuckets are used if and only if:
  *	1) there is enough room remaining on the pool (@see maxRamUsed and @see bytesInUse)
  *	2) the initial size is smaller than (@maxRAMBucketSize)
+ * RAM usage is counted in whole slabs.
  * 
  * Depending on how they are used they might switch from one type to another transparently.
  * 
  * Currently they are two factors considered for a migration:
  *	- if they are long-lived or not (@see RAMBUCKET_MAX_AGE)
  *	- if their size is over RAMBUCKET_CONVERSION_FACTOR*maxRAMBucketSize
+ * Migration is mostly done in the background by the cleaner, which is started when RAM usage goes
+ * over MAX_USAGE_HIGH, and periodically to migrate old buckets. A bucket being written is only
+ * migrated on the writer's thread if it is too big or the pool is completely full.
  */
 public class TempBucketFactory implements BucketFactory, LockableRandomAccessBufferFactory {
 	public final static long defaultIncrement = 4096;
@@ -77,6 +83,22 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	private final static long RAMBUCKET_MAX_AGE = MINUTES.toMillis(5);
 	/** How many times the maxRAMBucketSize can a RAMBucket be before it gets migrated? */
 	final static int RAMBUCKET_CONVERSION_FACTOR = 4;
+	/** How often to check for long-lived RAMBuckets, once start() has been called */
+	private final static long AGE_CHECK_INTERVAL = MINUTES.toMillis(1);
+	/** When we have to migrate something to free up RAM, migrate the biggest of this many of the
+	 * oldest buckets. */
+	private final static int FORCE_MIGRATE_CANDIDATES = 8;
+
+	private final SlabPool slabPool;
+	/** Number of buckets and RAFs migrated to disk */
+	private long migrations;
+	/** Bytes copied to disk by migrations */
+	private long bytesSpilled;
+	/** For migrations per second: the start of the current minute, and counts for it and the
+	 * previous one. */
+	private long migrationsMinuteStart;
+	private long migrationsThisMinute;
+	private long migrationsLastMinute;
 	
 	final static boolean TRACE_BUCKET_LEAKS = false;
 
@@ -94,6 +116,9 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 
         long creationTime();
 
+        /** Bytes of RAM used. Must not take any locks. */
+        long ramBytes();
+
         boolean migrateToDisk() throws IOException;
 	    
 	}
@@ -114,6 +139,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		/** A timestamp used to evaluate the age of the bucket and maybe consider it for a migration */
 		public final long creationTime;
 		private boolean hasBeenFreed = false;
+		/** Bytes of RAM counted in bytesInUse for this bucket, i.e. whole slabs. */
+		private volatile long ramBytes;
 		
 		private final Throwable tracer;
 		
@@ -156,6 +183,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		public final boolean migrateToDisk() throws IOException {
 			Bucket toMigrate = null;
 			long size;
+			long freedRAM;
 			synchronized(this) {
 				if(!isRAMBucket() || hasBeenFreed)
 					// Nothing to migrate! We don't want to switch back to ram, do we?					
@@ -187,6 +215,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 				
 				currentBucket = tempFB;
 				// We need streams to be reset to point to the new bucket
+				freedRAM = ramBytes;
+				ramBytes = 0;
 			}
 			if(logMINOR)
 				Logger.minor(this, "We have migrated "+toMigrate.hashCode());
@@ -198,12 +228,13 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			// We can free it on-thread as it's a rambucket
 			toMigrate.free();
 			// Might have changed already so we can't rely on currentSize!
-			_hasFreed(size);
+			_hasFreed(freedRAM);
+			onMigrated(size);
 			return true;
 		}
 		
 		public synchronized final boolean isRAMBucket() {
-			return (currentBucket instanceof ArrayBucket);
+			return (currentBucket instanceof SlabBucket);
 		}
 		
 		@Override
@@ -245,7 +276,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 					if(futureSize >= Math.min(Integer.MAX_VALUE, maxRAMBucketSize * RAMBUCKET_CONVERSION_FACTOR)) {
 						isOversized = true;
 						shouldMigrate = true;
-					} else if ((futureSize - currentSize) + bytesInUse >= maxRamUsed)
+					} else if ((slabPool.slabBytes(futureSize) - ramBytes) + bytesInUse >= maxRamUsed)
 						shouldMigrate = true;
 					
 					if(shouldMigrate) {
@@ -277,7 +308,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 					os.write(b);
 					currentSize = futureSize;
 					if(isRAMBucket()) // We need to re-check because it might have changed!
-						_hasTaken(1);
+						takeRAM(futureSize);
 				}
 			}
 			
@@ -290,7 +321,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 					os.write(b, off, len);
 					currentSize = futureSize;
 					if(isRAMBucket()) // We need to re-check because it might have changed!
-						_hasTaken(len);
+						takeRAM(futureSize);
 				}
 			}
 			
@@ -317,6 +348,15 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 			}
 		}
 		
+		/** Count the slabs needed for the new size.
+		 * LOCKING: Caller must hold the lock on this. */
+		private void takeRAM(long size) {
+			long bytes = slabPool.slabBytes(size);
+			if(bytes <= ramBytes) return;
+			_hasTaken(bytes - ramBytes);
+			ramBytes = bytes;
+		}
+
 		@Override
 		public InputStream getInputStream() throws IOException {
 		    return new BufferedInputStream(getInputStreamUnbuffered());
@@ -454,7 +494,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		        if(isRAMBucket()) {
 		            // If it's in memory we must free before removing from the queue.
 		            currentBucket.free();
-		            _hasFreed(currentSize);
+		            _hasFreed(ramBytes);
+		            ramBytes = 0;
 		            synchronized(ramBucketQueue) {
 		                ramBucketQueue.remove(getReference());
 		            }
@@ -502,6 +543,11 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
             return creationTime;
         }
 
+        @Override
+        public long ramBytes() {
+            return ramBytes;
+        }
+
         @Override
         public void onResume(ClientContext context) {
             // Not persistent.
@@ -520,8 +566,11 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
                 if(os != null) throw new IOException("Can't migrate with open OutputStream's");
                 if(!tbis.isEmpty()) throw new IOException("Can't migrate with open InputStream's");
                 setReadOnly();
-                TempRandomAccessBuffer raf = new TempRandomAccessBuffer(currentBucket.toRandomAccessBuffer(), creationTime, !isRAMBucket(), this);
-                if(isRAMBucket()) {
+                boolean ram = isRAMBucket();
+                TempRandomAccessBuffer raf = new TempRandomAccessBuffer(currentBucket.toRandomAccessBuffer(), creationTime, !ram, this, ram ? ramBytes : 0);
+                // The RAF frees the RAM now.
+                ramBytes = 0;
+                if(ram) {
                     synchronized(ramBucketQueue) {
                         // No change in space usage.
                         ramBucketQueue.remove(getReference());
@@ -552,6 +601,24 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		this.diskRAFFactory = new DiskSpaceCheckingRandomAccessBufferFactory(underlyingDiskRAFFactory, 
 		        filenameGenerator.getDir(), minDiskSpace - maxRamUsed);
 		this.secret = masterSecret;
+		int slabSize = (int)Math.max(1, Math.min(SlabPool.DEFAULT_SLAB_SIZE, maxBucketSizeKeptInRam));
+		this.slabPool = new SlabPool(slabSize, maxRamUsed, false);
+	}
+
+	/** Check for long-lived RAMBuckets periodically, rather than only when RAM is short. */
+	public void start(final Ticker ticker) {
+		ticker.queueTimedJob(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					checkAge(System.currentTimeMillis());
+				} finally {
+					ticker.queueTimedJob(this, AGE_CHECK_INTERVAL);
+				}
+			}
+
+		}, AGE_CHECK_INTERVAL);
 	}
 	
 	@Override
@@ -565,6 +632,85 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	
 	private synchronized void _hasTaken(long size) {
 		bytesInUse += size;
+		maybeStartCleaner();
+	}
+
+	/** Start the cleaner if RAM usage is over the high threshold.
+	 * LOCKING: Caller must hold the lock on this. */
+	private void maybeStartCleaner() {
+		if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
+			runningCleaner = true;
+			executor.execute(cleaner);
+		}
+	}
+
+	/** Start the cleaner if the oldest RAMBucket is long-lived. */
+	private void checkAge(long now) {
+		boolean old = false;
+		synchronized(ramBucketQueue) {
+			for(WeakReference<Migratable> ref : ramBucketQueue) {
+				Migratable m = ref.get();
+				if(m == null) continue;
+				old = m.creationTime() + RAMBUCKET_MAX_AGE <= now;
+				break;
+			}
+		}
+		if(!old) return;
+		synchronized(this) {
+			if(runningCleaner) return;
+			runningCleaner = true;
+		}
+		executor.execute(cleaner);
+	}
+
+	private synchronized void onMigrated(long size) {
+		migrations++;
+		bytesSpilled += size;
+		updateMigrationsMinute(System.currentTimeMillis());
+		migrationsThisMinute++;
+	}
+
+	/** LOCKING: Caller must hold the lock on this. */
+	private void updateMigrationsMinute(long now) {
+		long elapsed = now - migrationsMinuteStart;
+		if(elapsed < MINUTES.toMillis(1)) return;
+		migrationsLastMinute = elapsed < MINUTES.toMillis(2) ? migrationsThisMinute : 0;
+		migrationsThisMinute = 0;
+		migrationsMinuteStart = now;
+	}
+
+	/** @return Number of buckets and RAFs migrated from RAM to disk. */
+	public synchronized long getMigrations() {
+		return migrations;
+	}
+
+	/** @return Migrations per second over the last full minute. */
+	public synchronized double getMigrationsPerSecond() {
+		updateMigrationsMinute(System.currentTimeMillis());
+		return migrationsLastMinute / 60.0;
+	}
+
+	/** @return Bytes copied from RAM to disk by migrations. */
+	public synchronized long getBytesSpilled() {
+		return bytesSpilled;
+	}
+
+	/** @return Bytes in free slabs kept for reuse, not counted in getRamUsed(). */
+	public long getRamPooled() {
+		return slabPool.getBytesPooled();
+	}
+
+	public SlabPool getSlabPool() {
+		return slabPool;
+	}
+
+	/** Use direct buffers, outside the Java heap, for new slabs. */
+	public void setUseDirectSlabs(boolean direct) {
+		slabPool.setDirect(direct);
+	}
+
+	public boolean isUsingDirectSlabs() {
+		return slabPool.isDirect();
 	}
 	
 	private synchronized void _hasFreed(long size) {
@@ -577,6 +723,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	
 	public synchronized void setMaxRamUsed(long size) {
 		maxRamUsed = size;
+		slabPool.setMaxBytes(size);
 	}
 	
 	public synchronized long getMaxRamUsed() {
@@ -628,17 +775,14 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		long now = System.currentTimeMillis();
 		
 		synchronized(this) {
-			if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + size <= maxRamUsed)) {
+			if((size > 0) && (size <= maxRAMBucketSize) && (bytesInUse < maxRamUsed) && (bytesInUse + slabPool.slabBytes(size) <= maxRamUsed)) {
 				useRAMBucket = true;
 			}
-			if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
-				runningCleaner = true;
-				executor.execute(cleaner);
-			}
+			maybeStartCleaner();
 		}
 		
 		// Do we want a RAMBucket or a FileBucket?
-		realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
+		realBucket = (useRAMBucket ? new SlabBucket(slabPool) : _makeFileBucket());
 		
 		TempBucket toReturn = new TempBucket(now, realBucket);
 		if(useRAMBucket) { // No need to consider them for migration if they can't be migrated
@@ -716,8 +860,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	/** Migrate all long-lived buckets from the queue.
 	 * @param now The current time (System.currentTimeMillis()).
 	 * @param force If true, migrate one bucket which isn't necessarily long lived, 
-	 * just to free up space. Otherwise we will migrate all long-lived buckets but
-	 * not any others. 
+	 * just to free up space: the biggest of the oldest FORCE_MIGRATE_CANDIDATES. Otherwise we
+	 * will migrate all long-lived buckets but not any others.
 	 * @return True if we migrated any buckets.
 	 * @throws InsufficientSpaceException If there is not enough space to migrate buckets to disk.
 	 */
@@ -740,9 +884,16 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 					}
 
 					// Don't access the buckets inside the lock, will deadlock.
-					if (tmpBucket.creationTime() + RAMBUCKET_MAX_AGE > now && !force)
+					if (tmpBucket.creationTime() + RAMBUCKET_MAX_AGE > now) {
+						if(force) {
+							tmpBucket = chooseBiggest();
+							if(tmpBucket != null) {
+								if(toMigrate == null) toMigrate = new LinkedList<Migratable>();
+								toMigrate.add(tmpBucket);
+							}
+						}
 						shouldContinue = false;
-					else {
+					} else {
 						if (logMINOR)
 							Logger.minor(this, "The bucket "+tmpBucket+" is " + TimeUtil.formatTime(now - tmpBucket.creationTime())
 							        + " old: we will force-migrate it to disk.");
@@ -773,6 +924,29 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 		return false;
 	}
 	
+	/** Remove and return the bucket using the most RAM out of the oldest few.
+	 * LOCKING: Caller must hold the lock on ramBucketQueue. */
+	private Migratable chooseBiggest() {
+		WeakReference<Migratable> best = null;
+		Migratable bestBucket = null;
+		int checked = 0;
+		for(Iterator<WeakReference<Migratable>> it = ramBucketQueue.iterator(); it.hasNext() && checked < FORCE_MIGRATE_CANDIDATES;) {
+			WeakReference<Migratable> ref = it.next();
+			Migratable m = ref.get();
+			if(m == null) {
+				it.remove();
+				continue;
+			}
+			checked++;
+			if(bestBucket == null || m.ramBytes() > bestBucket.ramBytes()) {
+				best = ref;
+				bestBucket = m;
+			}
+		}
+		if(best != null) ramBucketQueue.remove(best);
+		return bestBucket;
+	}
+
 	private final Queue<WeakReference<Migratable>> ramBucketQueue = new LinkedBlockingQueue<WeakReference<Migratable>>();
 	
 	private RandomAccessBucket _makeFileBucket() throws IOException {
@@ -791,6 +965,8 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    protected boolean hasMigrated = false;
 	    /** If false, there is in-memory storage that needs to be freed. */
 	    private boolean hasFreedRAM = false;
+	    /** Bytes of RAM counted in bytesInUse, until hasFreedRAM. */
+	    private final long ramBytes;
 	    private final long creationTime;
 	    /** Kept in RAM so that finalizer is called on the TempBucket when *both* the 
 	     * TempRandomAccessBuffer *and* the TempBucket are no longer reachable, in which case we
@@ -804,6 +980,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	    TempRandomAccessBuffer(int size, long time) throws IOException {
 	        super(new ByteArrayRandomAccessBuffer(size), size);
 	        creationTime = time;
+	        ramBytes = size;
 	        hasMigrated = false;
 	        original = null;
             if (TRACE_BUCKET_LEAKS)
@@ -815,6 +992,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
         public TempRandomAccessBuffer(byte[] initialContents, int offset, int size, long time, boolean readOnly) throws IOException {
             super(new ByteArrayRandomAccessBuffer(initialContents, offset, size, readOnly), size);
             creationTime = time;
+            ramBytes = size;
             hasMigrated = false;
             original = null;
             if (TRACE_BUCKET_LEAKS)
@@ -823,9 +1001,10 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
                 tracer = null;
         }
 
-        public TempRandomAccessBuffer(LockableRandomAccessBuffer underlying, long creationTime, boolean migrated, TempBucket tempBucket) throws IOException {
+        public TempRandomAccessBuffer(LockableRandomAccessBuffer underlying, long creationTime, boolean migrated, TempBucket tempBucket, long ramBytes) throws IOException {
             super(underlying, underlying.size());
             this.creationTime = creationTime;
+            this.ramBytes = ramBytes;
             this.hasMigrated = hasFreedRAM = migrated;
             this.original = tempBucket;
             if (TRACE_BUCKET_LEAKS)
@@ -836,6 +1015,11 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 
         @Override
         protected LockableRandomAccessBuffer innerMigrate(LockableRandomAccessBuffer underlying) throws IOException {
+            if(underlying instanceof SlabRandomAccessBuffer) {
+                // Always read-only, see SlabBucket.toRandomAccessBuffer().
+                byte[] buf = ((SlabRandomAccessBuffer)underlying).toByteArray();
+                return diskRAFFactory.makeRAF(buf, 0, buf.length, true);
+            }
             ByteArrayRandomAccessBuffer b = (ByteArrayRandomAccessBuffer)underlying;
             byte[] buf = b.getBuffer();
             return diskRAFFactory.makeRAF(buf, 0, (int)size, b.isReadOnly());
@@ -858,7 +1042,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
                 if(hasFreedRAM) return;
                 hasFreedRAM = true;
             }
-            _hasFreed(size);
+            _hasFreed(ramBytes);
             synchronized(ramBucketQueue) {
                 ramBucketQueue.remove(getReference());
             }
@@ -875,6 +1059,11 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
             return creationTime;
         }
 
+        @Override
+        public long ramBytes() {
+            return ramBytes;
+        }
+
         @Override
         public boolean migrateToDisk() throws IOException {
             synchronized(this) {
@@ -882,6 +1071,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
                 hasMigrated = true;
             }
             migrate();
+            onMigrated(size);
             return true;
         }
 
@@ -931,10 +1121,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
 	            raf = new TempRandomAccessBuffer((int)size, now);
 	            bytesInUse += size;
 	        }
-	        if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
-	            runningCleaner = true;
-	            executor.execute(cleaner);
-	        }
+	        maybeStartCleaner();
 	    }
 	    
 	    if(raf != null) {
@@ -979,10 +1166,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
                 raf = new TempRandomAccessBuffer(initialContents, offset, size, now, readOnly);
                 bytesInUse += size;
             }
-            if(bytesInUse >= maxRamUsed * MAX_USAGE_HIGH && !runningCleaner) {
-                runningCleaner = true;
-                executor.execute(cleaner);
-            }
+            maybeStartCleaner();
         }
         
         if(raf != null) {
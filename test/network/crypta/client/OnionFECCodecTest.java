@@ -15,9 +15,14 @@ import network.crypta.support.TestProperty;
  */
 public class OnionFECCodecTest {
 
+    protected FECCodec makeCodec() {
+        return new OnionFECCodec();
+    }
+
     @Before
     public void setUp() throws Exception {
         random = new Random(21482106);
+        codec = makeCodec();
     }
 
     @Test
@@ -211,7 +216,7 @@ public class OnionFECCodecTest {
         }
     }
     private static final int BLOCK_SIZE = 4096;
-    private final OnionFECCodec codec = new OnionFECCodec();
+    private FECCodec codec;
     private byte[][] originalDataBlocks;
     private byte[][] dataBlocks;
     private byte[][] originalCheckBlocks;
@@ -0,0 +1,208 @@
+package network.crypta.client;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.Test;
+
+import network.crypta.support.TestProperty;
+
+/** Runs all of OnionFECCodecTest against the in-tree codec, and checks it against PureCode. */
+public class ReedSolomonFECCodecTest extends OnionFECCodecTest {
+
+    @Override
+    protected FECCodec makeCodec() {
+        return new ReedSolomonFECCodec();
+    }
+
+    /** With one data block, every check block is a copy of it. */
+    @Test
+    public void testOneDataBlock() {
+        byte[][] data = randomBlocks(new Random(1), 1, 100);
+        byte[][] check = new byte[5][100];
+        new ReedSolomonFECCodec().encode(data, check, new boolean[5], 100);
+        for(byte[] block : check)
+            assertArrayEquals(data[0], block);
+    }
+
+    /** k=2, n=3: points 0, 1, a, so the check block is 3*d0 + 2*d1. */
+    @Test
+    public void testSmallCodeByHand() {
+        byte[][] data = new byte[][] { { 1, 0, 7 }, { 0, 1, 9 } };
+        byte[][] check = new byte[1][3];
+        new ReedSolomonFECCodec().encode(data, check, new boolean[1], 3);
+        byte expected = (byte) (GF256.mul(3, 7) ^ GF256.mul(2, 9));
+        assertArrayEquals(new byte[] { 3, 2, expected }, check[0]);
+    }
+
+    /** The check rows must be the Vandermonde rows for the points 0, 1, 2, 2^2 ... times the
+     * inverse of the top k rows, as in Rizzo's code. */
+    @Test
+    public void testEncodeMatrix() {
+        for(int[] size : new int[][] { { 1, 2 }, { 3, 7 }, { 128, 256 }, { 200, 255 } }) {
+            int k = size[0], n = size[1];
+            int[] vdm = new int[n * k];
+            int point = 0;
+            for(int row=0;row<n;row++) {
+                int power = 1;
+                for(int col=0;col<k;col++) {
+                    vdm[row * k + col] = power;
+                    power = GF256.mul(power, point);
+                }
+                point = row == 0 ? 1 : GF256.mul(point, 2);
+            }
+            int[] top = Arrays.copyOf(vdm, k * k);
+            GF256.invert(top, k);
+            byte[] enc = GF256.createEncodeMatrix(k, n);
+            for(int row=k;row<n;row++) {
+                for(int col=0;col<k;col++) {
+                    int acc = 0;
+                    for(int x=0;x<k;x++) acc ^= GF256.mul(vdm[row * k + x], top[x * k + col]);
+                    assertEquals(acc, enc[(row - k) * k + col] & 0xff);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testInvert() {
+        Random random = new Random(2);
+        for(int k : new int[] { 1, 2, 3, 17, 128 }) {
+            // Any k distinct rows of the code, as in a decode, so we know it's invertible.
+            int n = Math.min(256, 2 * k + 1);
+            byte[] enc = GF256.createEncodeMatrix(k, n);
+            Integer[] rows = new Integer[n];
+            for(int i=0;i<n;i++) rows[i] = i;
+            Collections.shuffle(Arrays.asList(rows), random);
+            int[] m = new int[k * k];
+            for(int i=0;i<k;i++) {
+                int row = rows[i];
+                if(row < k)
+                    m[i * k + row] = 1;
+                else
+                    for(int j=0;j<k;j++) m[i * k + j] = enc[(row - k) * k + j] & 0xff;
+            }
+            int[] inverse = m.clone();
+            GF256.invert(inverse, k);
+            for(int i=0;i<k;i++) {
+                for(int j=0;j<k;j++) {
+                    int acc = 0;
+                    for(int x=0;x<k;x++) acc ^= GF256.mul(m[i * k + x], inverse[x * k + j]);
+                    assertEquals(i == j ? 1 : 0, acc);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testKernels() {
+        assertTrue(GF256Kernel.sameResults(new GF256Kernel.Scalar(), GF256Kernel.INSTANCE));
+        Random random = new Random(3);
+        byte[][] data = randomBlocks(random, 50, 4099);
+        byte[][] check1 = new byte[30][4099];
+        byte[][] check2 = new byte[30][4099];
+        new ReedSolomonFECCodec(new GF256Kernel.Scalar()).encode(data, check1, new boolean[30], 4099);
+        new ReedSolomonFECCodec().encode(data, check2, new boolean[30], 4099);
+        for(int i=0;i<check1.length;i++)
+            assertArrayEquals(check1[i], check2[i]);
+    }
+
+    @Test
+    public void testParallel() {
+        Random random = new Random(6);
+        byte[][] data = randomBlocks(random, 100, 32768);
+        byte[][] check1 = new byte[60][32768];
+        byte[][] check2 = new byte[60][32768];
+        ReedSolomonFECCodec codec = new ReedSolomonFECCodec();
+        codec.encode(data, check1, new boolean[60], 32768);
+        try {
+            ReedSolomonFECCodec.setMaxParallelism(3);
+            codec.encode(data, check2, new boolean[60], 32768);
+            for(int i=0;i<check1.length;i++)
+                assertArrayEquals(check1[i], check2[i]);
+            byte[][] decoded = new byte[100][32768];
+            boolean[] dataPresent = new boolean[100];
+            boolean[] checkPresent = new boolean[60];
+            for(int i=0;i<40;i++) {
+                decoded[i] = data[i].clone();
+                dataPresent[i] = true;
+            }
+            Arrays.fill(checkPresent, true);
+            codec.decode(decoded, check2, dataPresent, checkPresent, 32768);
+            for(int i=0;i<data.length;i++)
+                assertArrayEquals(data[i], decoded[i]);
+        } finally {
+            ReedSolomonFECCodec.setMaxParallelism(1);
+        }
+    }
+
+    /** Old files must still decode, so the check blocks must be exactly what PureCode makes. */
+    @Test
+    public void testSameAsOnionFECCodec() {
+        Random random = new Random(4);
+        int[][] sizes = { { 1, 1 }, { 2, 3 }, { 128, 128 }, { 129, 127 }, { 253, 2 }, { 5, 250 } };
+        for(int[] size : sizes) {
+            byte[][] data = randomBlocks(random, size[0], 1024);
+            byte[][] check1 = new byte[size[1]][1024];
+            byte[][] check2 = new byte[size[1]][1024];
+            new OnionFECCodec().encode(data, check1, new boolean[size[1]], 1024);
+            new ReedSolomonFECCodec().encode(data, check2, new boolean[size[1]], 1024);
+            for(int i=0;i<check1.length;i++)
+                assertArrayEquals("k="+size[0]+" m="+size[1]+" block "+i, check1[i], check2[i]);
+        }
+    }
+
+    /** Encode then decode a 128+128 segment of 32KB blocks, with the scalar and default kernels,
+     * on one thread and on all of them. */
+    @Test
+    public void testBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+        Random random = new Random(5);
+        byte[][] original = randomBlocks(random, 128, 32768);
+        try {
+            for(int threads : new int[] { 1, Runtime.getRuntime().availableProcessors() }) {
+                ReedSolomonFECCodec.setMaxParallelism(threads);
+                benchmark(original, new GF256Kernel.Scalar(), threads);
+                benchmark(original, GF256Kernel.INSTANCE, threads);
+            }
+        } finally {
+            ReedSolomonFECCodec.setMaxParallelism(1);
+        }
+    }
+
+    private void benchmark(byte[][] original, GF256Kernel kernel, int threads) {
+        final int blockLength = original[0].length;
+        ReedSolomonFECCodec codec = new ReedSolomonFECCodec(kernel);
+        long encodeTime = Long.MAX_VALUE, decodeTime = Long.MAX_VALUE;
+        for(int run=0;run<5;run++) {
+            byte[][] data = copy(original);
+            byte[][] check = new byte[128][blockLength];
+            long start = System.nanoTime();
+            codec.encode(data, check, new boolean[128], blockLength);
+            encodeTime = Math.min(encodeTime, System.nanoTime() - start);
+            // Worst case: all the data blocks are missing.
+            boolean[] dataPresent = new boolean[128];
+            boolean[] checkPresent = new boolean[128];
+            Arrays.fill(checkPresent, true);
+            for(byte[] block : data) Arrays.fill(block, (byte)0);
+            start = System.nanoTime();
+            codec.decode(data, check, dataPresent, checkPresent, blockLength);
+            decodeTime = Math.min(decodeTime, System.nanoTime() - start);
+            for(int i=0;i<data.length;i++)
+                assertArrayEquals(original[i], data[i]);
+        }
+        System.out.println("128+128 x 32KB with " + kernel + ", " + threads + " threads: encode " +
+                encodeTime / 1000000 + "ms, decode " + decodeTime / 1000000 + "ms");
+    }
+
+    private static byte[][] randomBlocks(Random random, int count, int length) {
+        byte[][] blocks = new byte[count][length];
+        for(byte[] block : blocks)
+            random.nextBytes(block);
+        return blocks;
+    }
+
+}
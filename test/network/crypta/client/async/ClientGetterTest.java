@@ -0,0 +1,169 @@
+package network.crypta.client.async;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import network.crypta.client.ClientMetadata;
+import network.crypta.client.FetchContext;
+import network.crypta.client.FetchException;
+import network.crypta.client.FetchResult;
+import network.crypta.client.HighLevelSimpleClientImpl;
+import network.crypta.client.events.SimpleEventProducer;
+import network.crypta.keys.FreenetURI;
+import network.crypta.node.RequestClient;
+import network.crypta.node.RequestStarter;
+import network.crypta.support.PooledExecutor;
+import network.crypta.support.io.ArrayBucket;
+import network.crypta.support.io.ArrayBucketFactory;
+import network.crypta.support.io.BucketTools;
+import network.crypta.support.io.TempBucketFactory;
+
+public class ClientGetterTest {
+
+    private static final byte[] DATA = "the data from the state that succeeded".getBytes();
+
+    /** Remembers the result. */
+    private static class Callback implements ClientGetCallback {
+
+        private final RequestClient client = mock(RequestClient.class);
+        private FetchResult result;
+        private FetchException failure;
+
+        @Override
+        public void onSuccess(FetchResult result, ClientGetter state) {
+            this.result = result;
+        }
+
+        @Override
+        public void onFailure(FetchException e, ClientGetter state) {
+            failure = e;
+        }
+
+        @Override
+        public void onResume(ClientContext context) {
+        }
+
+        @Override
+        public RequestClient getRequestClient() {
+            return client;
+        }
+
+    }
+
+    /** Blocks until released, then fails like the stream of a fetcher that has finished. */
+    private static class BlockedStream implements StreamGenerator {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean stopped;
+
+        @Override
+        public void writeTo(OutputStream os, ClientContext context) throws IOException {
+            started.countDown();
+            try {
+                release.await();
+                os.write("stale".getBytes());
+                throw new IOException("Fetcher finished");
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } finally {
+                stopped = true;
+            }
+        }
+
+        @Override
+        public long size() {
+            return -1;
+        }
+
+    }
+
+    /** Records whether the old stream was still running when it was asked for the data. */
+    private static class Stream implements StreamGenerator {
+
+        final BlockedStream old;
+        volatile boolean overlapped;
+
+        Stream(BlockedStream old) {
+            this.old = old;
+        }
+
+        @Override
+        public void writeTo(OutputStream os, ClientContext context) throws IOException {
+            overlapped = !old.stopped;
+            os.write(DATA);
+            os.close();
+        }
+
+        @Override
+        public long size() {
+            return DATA.length;
+        }
+
+    }
+
+    private ClientContext makeContext() throws IOException {
+        TempBucketFactory tbf = mock(TempBucketFactory.class);
+        when(tbf.makeBucket(anyLong())).thenAnswer(new Answer<ArrayBucket>() {
+            @Override
+            public ArrayBucket answer(InvocationOnMock invocation) {
+                return new ArrayBucket();
+            }
+        });
+        return new ClientContext(0, null, new PooledExecutor(), null, null, tbf, null, null,
+                mock(USKManager.class), null, null, null, null, null, null, null, null, null, null,
+                null, null, null, null, null, null, null, null);
+    }
+
+    @Test
+    public void testSuccessFromOtherStateAbandonsStream() throws Exception {
+        final ClientContext context = makeContext();
+        FetchContext ctx = HighLevelSimpleClientImpl.makeDefaultFetchContext(Long.MAX_VALUE,
+                Long.MAX_VALUE, new ArrayBucketFactory(), new SimpleEventProducer());
+        ctx.filterData = false;
+        final Callback cb = new Callback();
+        ArrayBucket returnBucket = new ArrayBucket();
+        final ClientGetter getter = new ClientGetter(cb, new FreenetURI("KSK@test"), ctx,
+                RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, returnBucket);
+        ClientGetState oldState = mock(ClientGetState.class);
+        final ClientGetState newState = mock(ClientGetState.class);
+        getter.onTransition(null, oldState, context);
+
+        BlockedStream old = new BlockedStream();
+        assertTrue(getter.onStreamStart(old, new ClientMetadata(), null, oldState, context));
+        assertTrue(old.started.await(10, TimeUnit.SECONDS));
+        // E.g. an archive restart replaced the state that started streaming.
+        getter.onTransition(oldState, newState, context);
+        final Stream stream = new Stream(old);
+        Thread success = new Thread() {
+            @Override
+            public void run() {
+                getter.onSuccess(stream, new ClientMetadata(), null, newState, context);
+            }
+        };
+        success.start();
+        Thread.sleep(100);
+        // Still waiting for the old stream to stop.
+        assertTrue(success.isAlive());
+        old.release.countDown();
+        success.join();
+
+        assertFalse(stream.overlapped);
+        assertNull(cb.failure);
+        assertNotNull(cb.result);
+        assertSame(returnBucket, cb.result.asBucket());
+        assertArrayEquals(DATA, BucketTools.toByteArray(returnBucket));
+    }
+
+}
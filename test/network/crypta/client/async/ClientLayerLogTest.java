@@ -0,0 +1,115 @@
+package network.crypta.client.async;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import network.crypta.crypt.CRCChecksumChecker;
+import network.crypta.crypt.ChecksumChecker;
+import network.crypta.support.io.FileUtil;
+
+public class ClientLayerLogTest {
+
+    private File tempDir;
+    private ClientLayerLog log;
+
+    @Before
+    public void setUp() {
+        tempDir = new File("tmp-clientlayerlogtest");
+        tempDir.mkdir();
+        log = new ClientLayerLog(tempDir, "client.dat");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.removeAll(tempDir);
+    }
+
+    @Test
+    public void testHeaderRoundTrip() throws IOException {
+        ChecksumChecker checker = new CRCChecksumChecker();
+        byte[] salt = new byte[32];
+        new Random(1).nextBytes(salt);
+        long generation = 0xfedcba9876543210L;
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ClientLayerLog.writeHeader(new DataOutputStream(baos), ClientLayerLog.SEGMENT_DELTA,
+                generation, 7, salt, checker);
+        byte[] buf = baos.toByteArray();
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(buf));
+        assertEquals(ClientLayerLog.MAGIC, dis.readLong());
+        ClientLayerLog.Header header = ClientLayerLog.readHeader(dis, checker);
+        assertEquals(ClientLayerLog.SEGMENT_DELTA, header.type);
+        assertEquals(generation, header.generation);
+        assertEquals(7, header.sequence);
+        assertArrayEquals(salt, header.salt);
+
+        // Corrupt the salt.
+        buf[buf.length - 10] ^= 1;
+        dis = new DataInputStream(new ByteArrayInputStream(buf));
+        dis.readLong();
+        header = ClientLayerLog.readHeader(dis, checker);
+        assertEquals(generation, header.generation);
+        assertNull(header.salt);
+    }
+
+    @Test
+    public void testListDeltas() throws IOException {
+        long generation = 0x8000000000000001L;
+        // Out of order, and more than 9 so a string sort would get it wrong.
+        for(int seq : new int[] { 10, 2, 1, 11, 3 })
+            touch(log.deltaFile(generation, seq, true));
+        touch(log.deltaFile(generation, 4, false));
+        touch(log.deltaFile(5, 1, true));
+        touch(new File(tempDir, "client.dat.delta-garbage"));
+        touch(new File(tempDir, "client.dat.crypt"));
+
+        List<ClientLayerLog.Delta> deltas = log.listDeltas(generation, true);
+        assertEquals(5, deltas.size());
+        int[] expected = new int[] { 1, 2, 3, 10, 11 };
+        for(int i=0;i<expected.length;i++) {
+            ClientLayerLog.Delta d = deltas.get(i);
+            assertEquals(expected[i], d.sequence);
+            assertEquals(generation, d.generation);
+            assertTrue(d.encrypted);
+            assertEquals(log.deltaFile(generation, expected[i], true), d.file);
+        }
+        assertEquals(1, log.listDeltas(generation, false).size());
+        assertEquals(1, log.listDeltas(5, true).size());
+        assertEquals(7, log.listAllDeltas().size());
+    }
+
+    @Test
+    public void testDeleteDeltasExcept() throws IOException {
+        touch(log.deltaFile(1, 1, true));
+        touch(log.deltaFile(1, 2, true));
+        touch(log.deltaFile(1, 1, false));
+        touch(log.deltaFile(2, 1, true));
+        File other = new File(tempDir, "client.dat.crypt");
+        touch(other);
+
+        log.deleteDeltasExcept(1, true);
+        assertEquals(2, log.listAllDeltas().size());
+        assertEquals(2, log.listDeltas(1, true).size());
+        assertTrue(other.exists());
+
+        log.secureDeleteAllDeltas();
+        assertTrue(log.listAllDeltas().isEmpty());
+        assertTrue(other.exists());
+    }
+
+    private static void touch(File f) throws IOException {
+        assertTrue(f.createNewFile());
+    }
+
+}
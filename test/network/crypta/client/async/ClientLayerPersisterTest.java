@@ -0,0 +1,211 @@
+package network.crypta.client.async;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import network.crypta.clients.fcp.ClientRequest;
+import network.crypta.clients.fcp.DummyClientRequest;
+import network.crypta.clients.fcp.PersistentRequestRoot;
+import network.crypta.crypt.CRCChecksumChecker;
+import network.crypta.crypt.ChecksumChecker;
+import network.crypta.node.Node;
+import network.crypta.node.NodeClientCore;
+import network.crypta.node.RequestStarterGroup;
+import network.crypta.support.Executor;
+import network.crypta.support.Ticker;
+import network.crypta.support.io.ArrayBucket;
+import network.crypta.support.io.FileUtil;
+import network.crypta.support.io.PersistentTempBucketFactory;
+import network.crypta.support.io.PrependLengthOutputStream;
+import network.crypta.support.io.TempBucketFactory;
+
+public class ClientLayerPersisterTest {
+
+    private File tempDir;
+    private final List<ClientRequest> requests = new ArrayList<ClientRequest>();
+    private final ChecksumChecker checker = new CRCChecksumChecker();
+    private TempBucketFactory tempBucketFactory;
+
+    /** Doesn't need a real node. */
+    private static class Stats extends PersistentStatsPutter {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void updateData(Node n) {
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        tempDir = new File("tmp-clientlayerpersistertest");
+        FileUtil.removeAll(tempDir);
+        tempDir.mkdir();
+        tempBucketFactory = mock(TempBucketFactory.class);
+        when(tempBucketFactory.makeBucket(anyLong())).thenAnswer(new Answer<ArrayBucket>() {
+            @Override
+            public ArrayBucket answer(InvocationOnMock invocation) {
+                return new ArrayBucket();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        FileUtil.removeAll(tempDir);
+    }
+
+    /** Create a persister and load whatever is in tempDir into root. */
+    private ClientLayerPersister load(PersistentRequestRoot root) throws Exception {
+        Node node = mock(Node.class);
+        when(node.getFastWeakRandom()).thenReturn(new Random(0));
+        NodeClientCore core = mock(NodeClientCore.class);
+        when(core.getPersistentRequests()).thenAnswer(new Answer<ClientRequest[]>() {
+            @Override
+            public ClientRequest[] answer(InvocationOnMock invocation) {
+                return requests.toArray(new ClientRequest[requests.size()]);
+            }
+        });
+        ClientContext context = mock(ClientContext.class);
+        Field f = ClientContext.class.getField("persistentRoot");
+        f.setAccessible(true);
+        f.set(context, root);
+        ClientLayerPersister persister = new ClientLayerPersister(mock(Executor.class),
+                mock(Ticker.class), node, core, mock(PersistentTempBucketFactory.class),
+                tempBucketFactory, new Stats());
+        persister.start(context);
+        persister.setFilesAndLoad(tempDir, "client.dat", false, false, null, context,
+                mock(RequestStarterGroup.class), new Random(0));
+        return persister;
+    }
+
+    /** Load into a new root and return the state of each request by identifier. */
+    private Map<String, String> reload() throws Exception {
+        PersistentRequestRoot root = new PersistentRequestRoot();
+        load(root);
+        Map<String, String> states = new HashMap<String, String>();
+        for(ClientRequest req : root.getPersistentRequests())
+            states.put(req.getIdentifier(), ((DummyClientRequest) req).getState());
+        return states;
+    }
+
+    @Test
+    public void testSnapshotDeltaAndRemoval() throws Exception {
+        PersistentRequestRoot root = new PersistentRequestRoot();
+        ClientLayerPersister persister = load(root);
+        ClientLayerLog log = new ClientLayerLog(tempDir, "client.dat");
+        DummyClientRequest a = new DummyClientRequest(root, "a", "a1");
+        DummyClientRequest b = new DummyClientRequest(root, "b", "b1");
+        DummyClientRequest c = new DummyClientRequest(root, "c", "c1");
+        requests.add(a);
+        requests.add(b);
+        requests.add(c);
+        persister.save(false);
+        assertTrue(new File(tempDir, "client.dat").exists());
+        assertTrue(log.listAllDeltas().isEmpty());
+        assertEquals(1, a.getTimesWritten());
+
+        a.setState("a2");
+        requests.remove(b);
+        DummyClientRequest d = new DummyClientRequest(root, "d", "d1");
+        requests.add(d);
+        persister.save(false);
+        assertEquals(1, log.listAllDeltas().size());
+        // Only the requests that changed are serialized.
+        assertEquals(2, a.getTimesWritten());
+        assertEquals(1, c.getTimesWritten());
+        assertEquals(1, d.getTimesWritten());
+
+        c.setState("c2");
+        persister.save(false);
+        assertEquals(2, log.listAllDeltas().size());
+        assertEquals(2, a.getTimesWritten());
+        assertEquals(2, c.getTimesWritten());
+
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("a", "a2");
+        expected.put("c", "c2");
+        expected.put("d", "d1");
+        assertEquals(expected, reload());
+    }
+
+    @Test
+    public void testLoadVersion1() throws Exception {
+        PersistentRequestRoot root = new PersistentRequestRoot();
+        DummyClientRequest a = new DummyClientRequest(root, "a", "a1");
+        DummyClientRequest b = new DummyClientRequest(root, "b", "b1");
+        writeVersion1(new File(tempDir, "client.dat"), a, b);
+
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("a", "a1");
+        expected.put("b", "b1");
+        assertEquals(expected, reload());
+
+        // The first checkpoint after loading converts it to a snapshot.
+        PersistentRequestRoot root2 = new PersistentRequestRoot();
+        ClientLayerPersister persister = load(root2);
+        for(ClientRequest req : root2.getPersistentRequests())
+            requests.add(req);
+        persister.save(false);
+        DataInputStream dis = new DataInputStream(new FileInputStream(new File(tempDir, "client.dat")));
+        try {
+            assertEquals(ClientLayerLog.MAGIC, dis.readLong());
+        } finally {
+            dis.close();
+        }
+        requests.clear();
+        assertEquals(expected, reload());
+    }
+
+    /** Write client.dat as it was before deltas. */
+    private void writeVersion1(File file, ClientRequest... reqs) throws IOException {
+        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(file));
+        oos.writeLong(0xd332925f3caf4aedL);
+        oos.writeInt(1);
+        checker.writeAndChecksum(oos, new byte[32]);
+        oos.writeInt(reqs.length);
+        for(ClientRequest req : reqs) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(checker.checksumWriter(baos));
+            req.getRequestIdentifier().writeTo(dos);
+            dos.close();
+            byte[] buf = baos.toByteArray();
+            oos.writeShort(buf.length - checker.checksumLength());
+            oos.write(buf);
+            PrependLengthOutputStream os = checker.checksumWriterWithLength(oos, tempBucketFactory);
+            ObjectOutputStream innerOOS = new ObjectOutputStream(os);
+            innerOOS.writeObject(req);
+            innerOOS.close();
+            os = checker.checksumWriterWithLength(oos, tempBucketFactory);
+            dos = new DataOutputStream(os);
+            req.getClientDetail(dos, checker);
+            dos.close();
+        }
+        oos.writeObject(new Stats());
+        oos.writeInt(0);
+        oos.close();
+    }
+
+}
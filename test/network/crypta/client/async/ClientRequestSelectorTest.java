@@ -5,7 +5,13 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Test;
 
@@ -25,11 +31,23 @@ import network.crypta.crypt.HashResult;
 import network.crypta.crypt.HashType;
 import network.crypta.crypt.MultiHashInputStream;
 import network.crypta.crypt.RandomSource;
+import network.crypta.keys.ClientKey;
 import network.crypta.keys.Key;
+import network.crypta.node.KeysFetchingLocally;
+import network.crypta.node.LowLevelPutException;
+import network.crypta.node.RequestClient;
+import network.crypta.node.RequestStarter;
+import network.crypta.node.SendableInsert;
+import network.crypta.node.SendableRequestItem;
+import network.crypta.node.SendableRequestSender;
 import network.crypta.support.CheatingTicker;
 import network.crypta.support.DummyJobRunner;
 import network.crypta.support.MemoryLimitedJobRunner;
 import network.crypta.support.PooledExecutor;
+import network.crypta.support.RandomGrabArray;
+import network.crypta.support.RandomGrabArrayItem;
+import network.crypta.support.RandomGrabArrayItemExclusionList;
+import network.crypta.support.TestProperty;
 import network.crypta.support.Ticker;
 import network.crypta.support.WaitableExecutor;
 import network.crypta.support.api.BucketFactory;
@@ -46,6 +64,7 @@ import network.crypta.support.io.PersistentFileTracker;
 import network.crypta.support.io.PooledFileRandomAccessBufferFactory;
 import network.crypta.support.io.RAFInputStream;
 import network.crypta.support.io.ReadOnlyRandomAccessBuffer;
+import network.crypta.support.io.ResumeFailedException;
 import network.crypta.support.io.TempBucketFactory;
 import network.crypta.support.io.TrivialPersistentFileTracker;
 
@@ -127,6 +146,321 @@ public class ClientRequestSelectorTest {
         assertEquals(storage.getStatus(), Status.SUCCEEDED);
     }
 
+    /** Add, unregister and cancel requests from several threads while another one chooses
+     * requests, as the RequestStarter does. Afterwards every live request must still be
+     * reachable, and once they are all gone the tree must be empty. */
+    @Test
+    public void testConcurrentAddRemoveChoose() throws InterruptedException {
+        final ClientRequestSelector selector = new ClientRequestSelector(true, false, false, null);
+        final ClientContext context = makeContext();
+        final TestClient[] clients = makeClients(4);
+        final ClientRequestSchedulerGroup[] groups = makeGroups(16);
+        final List<Set<TestInsert>> live = new ArrayList<Set<TestInsert>>();
+        final AtomicBoolean done = new AtomicBoolean();
+        List<Thread> mutators = new ArrayList<Thread>();
+        for(int t=0;t<3;t++) {
+            final Set<TestInsert> mine = new HashSet<TestInsert>();
+            live.add(mine);
+            final Random random = new Random(t);
+            mutators.add(new Thread() {
+                @Override
+                public void run() {
+                    List<TestInsert> list = new ArrayList<TestInsert>();
+                    for(int i=0;i<20000;i++) {
+                        if(list.size() < 50 || random.nextBoolean()) {
+                            TestInsert req = randomInsert(random, clients, groups);
+                            selector.addToTree(req.prio, req.client, req.group, req, context);
+                            list.add(req);
+                        } else {
+                            TestInsert req = list.remove(random.nextInt(list.size()));
+                            if(random.nextBoolean())
+                                req.unregister(context, (short)-1);
+                            else
+                                req.cancelled = true; // Removed lazily when chosen.
+                        }
+                    }
+                    mine.addAll(list);
+                }
+            });
+        }
+        final AtomicLong chosen = new AtomicLong();
+        final RandomSource random = new DummyRandomSource(1);
+        Thread chooser = new Thread() {
+            @Override
+            public void run() {
+                while(!done.get()) {
+                    if(choose(selector, random, context, NOT_EXCLUDED) != null)
+                        chosen.incrementAndGet();
+                }
+            }
+        };
+        chooser.start();
+        for(Thread t : mutators) t.start();
+        for(Thread t : mutators) t.join();
+        done.set(true);
+        chooser.join();
+        assertTrue(chosen.get() > 0);
+
+        Set<TestInsert> expected = new HashSet<TestInsert>();
+        for(Set<TestInsert> set : live) expected.addAll(set);
+        // Choose everything once, excluding what we've already seen.
+        final Set<RandomGrabArrayItem> seen = new HashSet<RandomGrabArrayItem>();
+        RandomGrabArrayItemExclusionList excludeSeen = new RandomGrabArrayItemExclusionList() {
+            @Override
+            public long exclude(RandomGrabArrayItem item, ClientContext context, long now) {
+                return seen.contains(item) ? Long.MAX_VALUE : 0;
+            }
+        };
+        TestInsert req;
+        while((req = choose(selector, random, context, excludeSeen)) != null) {
+            assertTrue(seen.add(req));
+        }
+        assertEquals(expected, seen);
+
+        for(TestInsert r : expected)
+            r.unregister(context, (short)-1);
+        for(int i=0;i<selector.priorities.length;i++)
+            assertTrue(selector.priorities[i].isEmpty());
+    }
+
+    /** Requests chosen per second by one thread, while other threads add and remove requests.
+     * Set the number of adding threads with -Dtest.selector.threads. */
+    /** Moving items to a RandomGrabArray that has been removed hands them back to the caller, and
+     * the source rejects adds afterwards so they are retried from the top. */
+    @Test
+    public void testMoveElementsTo() {
+        ClientContext context = makeContext();
+        TestClient[] clients = makeClients(1);
+        ClientRequestSchedulerGroup[] groups = makeGroups(1);
+        Random r = new Random(1);
+        TestInsert a = randomInsert(r, clients, groups);
+        TestInsert b = randomInsert(r, clients, groups);
+        RandomGrabArray from = new RandomGrabArray(null, null);
+        RandomGrabArray to = new RandomGrabArray(null, null);
+        assertTrue(from.add(a, context));
+        assertTrue(to.markRemovedIfEmpty());
+        RandomGrabArrayItem[] failed = from.moveElementsTo(to, context);
+        assertEquals(1, failed.length);
+        assertSame(a, failed[0]);
+        assertTrue(from.isEmpty());
+        assertTrue(from.isRemoved());
+        assertFalse(from.add(b, context));
+
+        from = new RandomGrabArray(null, null);
+        to = new RandomGrabArray(null, null);
+        assertTrue(from.add(a, context));
+        assertEquals(0, from.moveElementsTo(to, context).length);
+        assertTrue(to.contains(a));
+        assertSame(to, a.getParentGrabArray());
+    }
+
+    @Test
+    public void testBenchmarkChooseRequest() throws InterruptedException {
+        if(!TestProperty.BENCHMARK) return;
+        int maxThreads = Integer.getInteger("test.selector.threads", 3);
+        for(int threads=0;threads<=maxThreads;threads++) {
+            final ClientRequestSelector selector = new ClientRequestSelector(true, false, false, null);
+            final ClientContext context = makeContext();
+            final TestClient[] clients = makeClients(8);
+            final ClientRequestSchedulerGroup[] groups = makeGroups(64);
+            Random r = new Random(threads);
+            for(int i=0;i<1000;i++) {
+                TestInsert req = randomInsert(r, clients, groups);
+                selector.addToTree(req.prio, req.client, req.group, req, context);
+            }
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicLong mutations = new AtomicLong();
+            List<Thread> mutators = new ArrayList<Thread>();
+            for(int t=0;t<threads;t++) {
+                final Random random = new Random(t);
+                mutators.add(new Thread() {
+                    @Override
+                    public void run() {
+                        while(!done.get()) {
+                            TestInsert req = randomInsert(random, clients, groups);
+                            selector.addToTree(req.prio, req.client, req.group, req, context);
+                            req.unregister(context, (short)-1);
+                            mutations.addAndGet(2);
+                        }
+                    }
+                });
+            }
+            for(Thread t : mutators) t.start();
+            RandomSource random = new DummyRandomSource(threads);
+            long count = 0;
+            long start = System.nanoTime();
+            long end = start + 2000 * 1000 * 1000L;
+            while(System.nanoTime() < end) {
+                assertNotNull(choose(selector, random, context, NOT_EXCLUDED));
+                count++;
+            }
+            long elapsed = System.nanoTime() - start;
+            done.set(true);
+            for(Thread t : mutators) t.join();
+            System.out.println("ClientRequestSelector with " + threads + " adding threads: " +
+                    (count * 1000 * 1000 * 1000L / elapsed) + " chosen/sec, " +
+                    (mutations.get() * 1000 * 1000 * 1000L / elapsed) + " adds+removes/sec");
+        }
+    }
+
+    private static final RandomGrabArrayItemExclusionList NOT_EXCLUDED =
+        new RandomGrabArrayItemExclusionList() {
+            @Override
+            public long exclude(RandomGrabArrayItem item, ClientContext context, long now) {
+                return 0;
+            }
+        };
+
+    private static TestInsert choose(ClientRequestSelector selector, RandomSource random,
+            ClientContext context, RandomGrabArrayItemExclusionList excluding) {
+        ClientRequestSelector.SelectorReturn r = selector.chooseRequestInner(0, random, null,
+                excluding, false, context, System.currentTimeMillis());
+        return (TestInsert) r.req;
+    }
+
+    private static ClientContext makeContext() {
+        return new ClientContext(0, null, null, null, null, null, null, null, null, null,
+                                 new Random(1), null, null, null, null, null, null, null, null,
+                                 null, null, null, null, null, null, null, null);
+    }
+
+    private static TestClient[] makeClients(int count) {
+        TestClient[] clients = new TestClient[count];
+        for(int i=0;i<count;i++) clients[i] = new TestClient();
+        return clients;
+    }
+
+    private static ClientRequestSchedulerGroup[] makeGroups(int count) {
+        ClientRequestSchedulerGroup[] groups = new ClientRequestSchedulerGroup[count];
+        for(int i=0;i<count;i++) groups[i] = new ClientRequestSchedulerGroup() {};
+        return groups;
+    }
+
+    private static TestInsert randomInsert(Random random, TestClient[] clients,
+            ClientRequestSchedulerGroup[] groups) {
+        // The request group decides the client and priority, as for real requests.
+        int g = random.nextInt(groups.length);
+        short prio = (short)(g % (RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CLASS + 1));
+        return new TestInsert(prio, clients[g % clients.length], groups[g]);
+    }
+
+    private static class TestClient implements RequestClient {
+
+        @Override
+        public boolean persistent() {
+            return false;
+        }
+
+        @Override
+        public boolean realTimeFlag() {
+            return false;
+        }
+
+    }
+
+    private static class TestInsert extends SendableInsert {
+
+        private static final long serialVersionUID = 1L;
+        final short prio;
+        final transient TestClient client;
+        final transient ClientRequestSchedulerGroup group;
+        volatile boolean cancelled;
+
+        TestInsert(short prio, TestClient client, ClientRequestSchedulerGroup group) {
+            super(false, false);
+            this.prio = prio;
+            this.client = client;
+            this.group = group;
+        }
+
+        @Override
+        public short getPriorityClass() {
+            return prio;
+        }
+
+        @Override
+        public RequestClient getClient() {
+            return client;
+        }
+
+        @Override
+        public ClientRequestSchedulerGroup getSchedulerGroup() {
+            return group;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return cancelled;
+        }
+
+        @Override
+        public SendableRequestItem chooseKey(KeysFetchingLocally keys, ClientContext context) {
+            return null;
+        }
+
+        @Override
+        public long countAllKeys(ClientContext context) {
+            return 1;
+        }
+
+        @Override
+        public long countSendableKeys(ClientContext context) {
+            return 1;
+        }
+
+        @Override
+        public SendableRequestSender getSender(ClientContext context) {
+            return null;
+        }
+
+        @Override
+        public ClientRequester getClientRequest() {
+            return null;
+        }
+
+        @Override
+        public boolean isSSK() {
+            return false;
+        }
+
+        @Override
+        public void onSuccess(SendableRequestItem keyNum, ClientKey key, ClientContext context) {
+        }
+
+        @Override
+        public void onFailure(LowLevelPutException e, SendableRequestItem keyNum, ClientContext context) {
+        }
+
+        @Override
+        public boolean canWriteClientCache() {
+            return false;
+        }
+
+        @Override
+        public boolean localRequestOnly() {
+            return false;
+        }
+
+        @Override
+        public boolean forkOnCacheable() {
+            return false;
+        }
+
+        @Override
+        public void onEncode(SendableRequestItem token, ClientKey key, ClientContext context) {
+        }
+
+        @Override
+        protected void innerOnResume(ClientContext context) throws InsertException, ResumeFailedException {
+        }
+
+    }
+
     private HashResult[] getHashes(LockableRandomAccessBuffer data) throws IOException {
         InputStream is = new RAFInputStream(data, 0, data.size());
         MultiHashInputStream hashStream = new MultiHashInputStream(is, HashType.SHA256.bitmask);
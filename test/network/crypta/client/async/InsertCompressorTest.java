@@ -0,0 +1,74 @@
+package network.crypta.client.async;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import network.crypta.keys.CHKBlock;
+import network.crypta.support.compress.CompressionOutputSizeException;
+import network.crypta.support.compress.SharedCompressionLimit;
+import org.junit.Test;
+
+public class InsertCompressorTest {
+
+    private static final int BLOCK = CHKBlock.DATA_LENGTH;
+    private static final int MIN_SIZE = CHKBlock.MAX_COMPRESSED_DATA_LENGTH;
+    private static final long ORIG_SIZE = 10L * BLOCK;
+
+    private static final int[][] ORDERS = {
+        { 0, 1, 2 }, { 0, 2, 1 }, { 1, 0, 2 }, { 1, 2, 0 }, { 2, 0, 1 }, { 2, 1, 0 }
+    };
+
+    /**
+     * Run trials with the given output sizes through a SharedCompressionLimit, finishing in the
+     * given order, and pick the winner as InsertCompressor does.
+     */
+    private static int choose(long[] outputSizes, int[] order) throws IOException {
+        SharedCompressionLimit limit = new SharedCompressionLimit(outputSizes.length, ORIG_SIZE, MIN_SIZE, BLOCK);
+        long[] sizes = new long[outputSizes.length];
+        for (int trial : order) {
+            // A trial has written all its output when it finishes, so it has seen the lowest
+            // limit by then.
+            OutputStream os = limit.wrap(trial, new ByteArrayOutputStream());
+            try {
+                os.write(new byte[(int) outputSizes[trial]]);
+                limit.finished(trial, outputSizes[trial]);
+                sizes[trial] = outputSizes[trial];
+            } catch (CompressionOutputSizeException e) {
+                sizes[trial] = -1;
+            }
+        }
+        return InsertCompressor.chooseResult(sizes, ORIG_SIZE, MIN_SIZE);
+    }
+
+    private static void assertWinner(int expected, long... outputSizes) throws IOException {
+        for (int[] order : ORDERS)
+            assertEquals(expected, choose(outputSizes, order));
+    }
+
+    @Test
+    public void winnerDoesNotDependOnCompletionOrder() throws IOException {
+        // Same number of blocks: the first codec wins, even if a later one is smaller.
+        assertWinner(0, 3L * BLOCK + 100, 3L * BLOCK + 50, 3L * BLOCK + 10);
+        // Fewer blocks wins.
+        assertWinner(2, 3L * BLOCK + 100, 3L * BLOCK + 50, 2L * BLOCK + 10);
+        assertWinner(1, 4L * BLOCK, 2L * BLOCK + 50, 2L * BLOCK + 10);
+        // The first to fit in one block wins.
+        assertWinner(1, BLOCK + 100, 20000, 10000);
+        assertWinner(0, 20000, 15000, 10000);
+        // Nothing helps.
+        assertWinner(-1, 10L * BLOCK + 100, 11L * BLOCK, 10L * BLOCK);
+    }
+
+    @Test
+    public void chooseResult() {
+        assertEquals(-1, InsertCompressor.chooseResult(new long[0], ORIG_SIZE, MIN_SIZE));
+        assertEquals(1, InsertCompressor.chooseResult(new long[] { -1, 5L * BLOCK, -1 }, ORIG_SIZE, MIN_SIZE));
+        // Small data only helps if it then fits in one block.
+        assertEquals(-1, InsertCompressor.chooseResult(new long[] { BLOCK - 2 }, BLOCK - 1, MIN_SIZE));
+        assertEquals(0, InsertCompressor.chooseResult(new long[] { MIN_SIZE }, BLOCK - 1, MIN_SIZE));
+    }
+
+}
@@ -0,0 +1,260 @@
+package network.crypta.client.async;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import network.crypta.crypt.DummyRandomSource;
+import network.crypta.keys.Key;
+import network.crypta.keys.KeyBlock;
+import network.crypta.keys.NodeCHK;
+import network.crypta.node.SendableGet;
+import network.crypta.support.BloomFilter;
+import network.crypta.support.TestProperty;
+
+public class KeyListenerTrackerTest {
+
+    private final Random random = new Random(4321);
+
+    private KeyListenerTracker makeTracker() {
+        byte[] salt = new byte[32];
+        random.nextBytes(salt);
+        return new KeyListenerTracker(false, false, false, new DummyRandomSource(1), null, salt, false);
+    }
+
+    private NodeCHK randomKey() {
+        byte[] routingKey = new byte[32];
+        random.nextBytes(routingKey);
+        return new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+    }
+
+    /** Like a splitfile fetch: a Bloom filter of salted keys to answer probablyWantKey(). */
+    private class TestListener implements IndexableKeyListener, HasKeyListener {
+
+        final Set<Key> wanted = new HashSet<Key>();
+        final BloomFilter filter;
+        final boolean indexable;
+        int probes;
+        int blocks;
+
+        TestListener(KeyListenerTracker tracker, int keys, boolean indexable) {
+            this.indexable = indexable;
+            filter = BloomFilter.createFilter(Math.max(64, keys * 19), 13, false);
+            for(int i=0;i<keys;i++) {
+                NodeCHK key = randomKey();
+                wanted.add(key);
+                filter.addKey(tracker.saltKey(key));
+            }
+        }
+
+        @Override
+        public List<Key> getWantedKeys() {
+            return indexable ? new ArrayList<Key>(wanted) : null;
+        }
+
+        @Override
+        public boolean probablyWantKey(Key key, byte[] saltedKey) {
+            probes++;
+            return filter.checkFilter(saltedKey);
+        }
+
+        @Override
+        public short definitelyWantKey(Key key, byte[] saltedKey, ClientContext context) {
+            return wanted.contains(key) ? (short)0 : -1;
+        }
+
+        @Override
+        public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ClientContext context) {
+            return null;
+        }
+
+        @Override
+        public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ClientContext context) {
+            blocks++;
+            return wanted.remove(key);
+        }
+
+        @Override
+        public boolean persistent() {
+            return false;
+        }
+
+        @Override
+        public short getPriorityClass() {
+            return 0;
+        }
+
+        @Override
+        public long countKeys() {
+            return wanted.size();
+        }
+
+        @Override
+        public HasKeyListener getHasKeyListener() {
+            return this;
+        }
+
+        @Override
+        public void onRemove() {
+            // Ignore.
+        }
+
+        @Override
+        public boolean isEmpty() {
+            // Stay registered so we can check the index drops found keys.
+            return false;
+        }
+
+        @Override
+        public boolean isSSK() {
+            return false;
+        }
+
+        @Override
+        public byte[] getWantedKey() {
+            return null;
+        }
+
+        @Override
+        public KeyListener makeKeyListener(ClientContext context, boolean onStartup) {
+            return this;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+    }
+
+    @Test
+    public void testIndexedAndScannedListeners() {
+        KeyListenerTracker tracker = makeTracker();
+        TestListener indexed = new TestListener(tracker, 100, true);
+        TestListener scanned = new TestListener(tracker, 100, false);
+        tracker.addPendingKeys(indexed);
+        tracker.addPendingKeys(scanned);
+        assertTrue(tracker.indexListener(indexed));
+        assertFalse(tracker.indexListener(indexed));
+        assertFalse(tracker.indexListener(scanned));
+        assertEquals(1, tracker.countIndexedListeners());
+        assertEquals(100, tracker.countIndexedKeys());
+        assertEquals(200, tracker.countWaitingKeys());
+
+        for(Key key : indexed.wanted)
+            assertTrue(tracker.anyProbablyWantKey(key, null));
+        for(Key key : scanned.wanted)
+            assertTrue(tracker.anyProbablyWantKey(key, null));
+        indexed.probes = 0;
+        scanned.probes = 0;
+        for(int i=0;i<1000;i++)
+            tracker.anyProbablyWantKey(randomKey(), null); // May be a Bloom false positive.
+        // The indexed listener is never asked about keys it doesn't want.
+        assertEquals(0, indexed.probes);
+        assertEquals(1000, scanned.probes);
+
+        Key key = indexed.wanted.iterator().next();
+        assertTrue(tracker.tripPendingKey(key, null, null));
+        assertEquals(1, indexed.blocks);
+        assertEquals(99, tracker.countIndexedKeys());
+        assertFalse(tracker.anyProbablyWantKey(key, null));
+        assertFalse(tracker.tripPendingKey(key, null, null));
+        assertEquals(1, indexed.blocks);
+    }
+
+    @Test
+    public void testRemoveIndexedListener() {
+        KeyListenerTracker tracker = makeTracker();
+        TestListener first = new TestListener(tracker, 10, true);
+        TestListener second = new TestListener(tracker, 10, true);
+        tracker.addPendingKeys(first);
+        tracker.addPendingKeys(second);
+        // Removed before it is indexed.
+        assertTrue(tracker.removePendingKeys((KeyListener)first));
+        assertFalse(tracker.indexListener(first));
+        tracker.addPendingKeys(first);
+        assertTrue(tracker.indexListener(first));
+        assertTrue(tracker.indexListener(second));
+        // Re-adding an indexed listener is a no-op.
+        tracker.addPendingKeys(first);
+        assertEquals(2, tracker.countIndexedListeners());
+
+        assertTrue(tracker.removePendingKeys((KeyListener)first));
+        assertFalse(tracker.removePendingKeys((KeyListener)first));
+        for(Key key : first.wanted)
+            assertFalse(tracker.anyProbablyWantKey(key, null));
+        assertTrue(tracker.removePendingKeys((HasKeyListener)second));
+        for(Key key : second.wanted)
+            assertFalse(tracker.anyProbablyWantKey(key, null));
+        assertEquals(0, tracker.countIndexedListeners());
+    }
+
+    /** Removing most listeners compacts the index without losing the others. */
+    @Test
+    public void testCompaction() {
+        KeyListenerTracker tracker = makeTracker();
+        TestListener[] listeners = new TestListener[200];
+        for(int i=0;i<listeners.length;i++) {
+            listeners[i] = new TestListener(tracker, 20, true);
+            tracker.addPendingKeys(listeners[i]);
+            assertTrue(tracker.indexListener(listeners[i]));
+        }
+        for(int i=0;i<listeners.length;i++) {
+            if(i % 7 != 0)
+                assertTrue(tracker.removePendingKeys((KeyListener)listeners[i]));
+        }
+        assertEquals(29, tracker.countIndexedListeners());
+        // Entries for removed listeners stay until the index is compacted.
+        assertTrue(tracker.countIndexedKeys() < listeners.length * 20 / 2);
+        for(int i=0;i<listeners.length;i++) {
+            for(Key key : listeners[i].wanted)
+                assertEquals(i % 7 == 0, tracker.anyProbablyWantKey(key, null));
+        }
+        for(int i=0;i<listeners.length;i+=7) {
+            Key key = listeners[i].wanted.iterator().next();
+            assertTrue(tracker.tripPendingKey(key, null, null));
+        }
+    }
+
+    /**
+     * Cost of checking blocks against N queued splitfiles of M keys each, with and without the
+     * index. Set the sizes with -Dtest.keylisteners.listeners and -Dtest.keylisteners.keys.
+     */
+    @Test
+    public void testBenchmarkMatching() {
+        if(!TestProperty.BENCHMARK) return;
+        int listenerCount = Integer.getInteger("test.keylisteners.listeners", 1000);
+        int keyCount = Integer.getInteger("test.keylisteners.keys", 256);
+        for(boolean indexed : new boolean[] { false, true }) {
+            KeyListenerTracker tracker = makeTracker();
+            List<Key> wanted = new ArrayList<Key>();
+            for(int i=0;i<listenerCount;i++) {
+                TestListener listener = new TestListener(tracker, keyCount, indexed);
+                tracker.addPendingKeys(listener);
+                if(indexed) tracker.indexListener(listener);
+                wanted.addAll(listener.wanted);
+            }
+            Key[] probes = new Key[10000];
+            for(int i=0;i<probes.length;i++)
+                probes[i] = i % 10 == 0 ? wanted.get(random.nextInt(wanted.size())) : randomKey();
+            int rounds = indexed ? 100 : 3;
+            int matched = 0;
+            long start = System.nanoTime();
+            for(int r=0;r<rounds;r++) {
+                for(Key key : probes)
+                    if(tracker.anyProbablyWantKey(key, null)) matched++;
+            }
+            long nanos = (System.nanoTime() - start) / ((long)rounds * probes.length);
+            assertTrue(matched >= rounds * probes.length / 10);
+            System.out.println("KeyListenerTracker " + listenerCount + " listeners x " + keyCount +
+                    " keys, " + (indexed ? "indexed" : "scanned") + ": " + nanos + " ns per key");
+        }
+    }
+
+}
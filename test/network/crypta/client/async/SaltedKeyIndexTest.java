@@ -0,0 +1,88 @@
+package network.crypta.client.async;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SaltedKeyIndexTest {
+
+    @Test
+    public void testAddGetRemove() {
+        SaltedKeyIndex index = new SaltedKeyIndex();
+        assertNull(index.get(1));
+        assertTrue(index.add(1, 1));
+        assertTrue(index.add(1, 2));
+        assertFalse(index.add(1, 1));
+        assertTrue(index.add(2, 1));
+        assertEquals(3, index.size());
+        int[] ids = index.get(1);
+        Arrays.sort(ids);
+        assertArrayEquals(new int[] { 1, 2 }, ids);
+        assertArrayEquals(new int[] { 1 }, index.get(2));
+        assertTrue(index.remove(1, 1));
+        assertFalse(index.remove(1, 1));
+        assertArrayEquals(new int[] { 2 }, index.get(1));
+        assertEquals(2, index.size());
+    }
+
+    /** Random adds and removes, including lots of fingerprints with the same home slot, checked
+     * against a HashMap. Exercises growth and backward-shift deletion. */
+    @Test
+    public void testRandomAgainstMap() {
+        Random random = new Random(1234);
+        SaltedKeyIndex index = new SaltedKeyIndex();
+        Map<Long,Integer> expected = new HashMap<Long,Integer>();
+        for(int i=0;i<100000;i++) {
+            // Few distinct values so we get collisions and removes of present entries.
+            long fingerprint = random.nextInt(5000);
+            if(random.nextBoolean()) fingerprint <<= 40;
+            if(random.nextInt(3) != 0) {
+                boolean added = index.add(fingerprint, 7);
+                assertEquals(expected.put(fingerprint, 7) == null, added);
+            } else {
+                boolean removed = index.remove(fingerprint, 7);
+                assertEquals(expected.remove(fingerprint) != null, removed);
+            }
+        }
+        assertEquals(expected.size(), index.size());
+        for(long fingerprint=0;fingerprint<5000;fingerprint++) {
+            for(long f : new long[] { fingerprint, fingerprint << 40 }) {
+                int[] ids = index.get(f);
+                if(expected.containsKey(f))
+                    assertArrayEquals(new int[] { 7 }, ids);
+                else
+                    assertNull(ids);
+            }
+        }
+    }
+
+    @Test
+    public void testRenumber() {
+        SaltedKeyIndex index = new SaltedKeyIndex();
+        for(int id=1;id<=100;id++)
+            for(long fingerprint=0;fingerprint<10;fingerprint++)
+                index.add(id * 1000 + fingerprint, id);
+        assertEquals(1000, index.size());
+        int capacity = index.capacity();
+        int[] renumber = new int[101];
+        // Keep every tenth id.
+        for(int id=10;id<=100;id+=10)
+            renumber[id] = id / 10;
+        index.renumber(renumber);
+        assertEquals(100, index.size());
+        assertTrue(index.capacity() < capacity);
+        for(int id=1;id<=100;id++) {
+            int[] ids = index.get(id * 1000 + 5);
+            if(id % 10 == 0)
+                assertArrayEquals(new int[] { id / 10 }, ids);
+            else
+                assertNull(ids);
+        }
+    }
+
+}
@@ -2,6 +2,7 @@ package network.crypta.client.async;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -183,6 +184,113 @@ public class SplitFileFetcherStorageTest {
         // FIXME test really old splitfiles: non-redundant support
     }
 
+    @Test
+    public void testIncrementalStream()
+        throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException,
+               FetchException, InterruptedException {
+        TestSplitfile test =
+            TestSplitfile.constructMultipleSegments(32768 * 9 - 1, new int[]{3, 3, 3},
+                                                    new int[]{4, 4, 4}, 3, 4, 0,
+                                                    InsertContext.CompatibilityMode.COMPAT_1416);
+        StorageCallback cb = test.createStorageCallback();
+        SplitFileFetcherStorage storage = test.createStorage(cb);
+        for (SplitFileFetcherSegmentStorage segment : storage.segments) {
+            for (int i = 0; i < segment.totalBlocks(); i++) {
+                segment.onNonFatalFailure(i);
+            }
+        }
+        // Fetch the first segment only.
+        fetchDataBlocks(test, storage, cb, 0, 3);
+        waitForDecode(storage.segments[0]);
+        cb.waitForFirstSegment();
+        StreamWriter writer = new StreamWriter(storage.incrementalStreamGenerator());
+        writer.start();
+        // It writes the first segment, then waits for the second.
+        writer.waitForBytes(3 * BLOCK_SIZE);
+        Thread.sleep(100);
+        assertTrue(writer.isAlive());
+        assertEquals(3 * BLOCK_SIZE, writer.out.size());
+        // Fetch the last segment. Still need the second.
+        fetchDataBlocks(test, storage, cb, 6, 9);
+        waitForDecode(storage.segments[2]);
+        Thread.sleep(100);
+        assertTrue(writer.isAlive());
+        assertEquals(3 * BLOCK_SIZE, writer.out.size());
+        fetchDataBlocks(test, storage, cb, 3, 6);
+        writer.join();
+        assertNull(writer.error);
+        assertArrayEquals(BucketTools.toByteArray(test.originalData), writer.out.toByteArray());
+        cb.waitForFinished();
+        storage.finishedFetcher();
+        for (SplitFileFetcherSegmentStorage segment : storage.segments) {
+            waitForFinished(segment);
+        }
+        cb.waitForFree();
+        cb.checkFailed();
+        test.free();
+    }
+
+    @Test
+    public void testIncrementalStreamCancel()
+        throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException,
+               FetchException, InterruptedException {
+        TestSplitfile test =
+            TestSplitfile.constructMultipleSegments(32768 * 4, new int[]{2, 2}, new int[]{3, 3}, 2,
+                                                    3, 0, InsertContext.CompatibilityMode.COMPAT_1416);
+        StorageCallback cb = test.createStorageCallback();
+        SplitFileFetcherStorage storage = test.createStorage(cb);
+        fetchDataBlocks(test, storage, cb, 0, 2);
+        waitForDecode(storage.segments[0]);
+        StreamWriter writer = new StreamWriter(storage.incrementalStreamGenerator());
+        writer.start();
+        writer.waitForBytes(2 * BLOCK_SIZE);
+        storage.cancel();
+        writer.join();
+        assertNotNull(writer.error);
+        assertEquals(2 * BLOCK_SIZE, writer.out.size());
+        test.free();
+    }
+
+    private void fetchDataBlocks(
+        TestSplitfile test, SplitFileFetcherStorage storage, StorageCallback cb, int from, int to)
+        throws CHKEncodeException, IOException {
+        for (int block = from; block < to; block++) {
+            SplitFileFetcherSegmentStorage segment = storage.segments[test.segmentFor(block)];
+            assertTrue(segment.onGotKey(test.getCHK(block), test.encodeBlock(block)));
+            cb.markDownloadedBlock(block);
+        }
+    }
+
+    /** Runs an incremental stream generator on another thread. */
+    private static class StreamWriter extends Thread {
+
+        StreamWriter(StreamGenerator generator) {
+            this.generator = generator;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                generator.writeTo(out, null);
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        void waitForBytes(int bytes) throws InterruptedException {
+            while (out.size() < bytes) {
+                assertTrue(isAlive());
+                Thread.sleep(1);
+            }
+        }
+
+        final StreamGenerator generator;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        volatile IOException error;
+
+    }
+
     @Test
     public void testChooseKeyOneTry()
         throws CHKEncodeException, IOException, MetadataUnresolvedException, MetadataParseException,
@@ -1021,6 +1129,12 @@ public class SplitFileFetcherStorageTest {
             notifyAll();
         }
 
+        @Override
+        public synchronized void onFirstSegmentSucceeded() {
+            firstSegmentSucceeded = true;
+            notifyAll();
+        }
+
         @Override
         public synchronized void onClosed() {
             closed = true;
@@ -1094,6 +1208,17 @@ public class SplitFileFetcherStorageTest {
             }
         }
 
+        public synchronized void waitForFirstSegment() {
+            while (!(firstSegmentSucceeded || failed)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+            assertTrue(firstSegmentSucceeded);
+        }
+
         public synchronized void waitForFailed() {
             while (!(succeeded || failed)) {
                 try {
@@ -1210,6 +1335,7 @@ public class SplitFileFetcherStorageTest {
         private boolean succeeded;
         private boolean closed;
         private boolean failed;
+        private boolean firstSegmentSucceeded;
         private LockableRandomAccessBuffer raf;
 
     }
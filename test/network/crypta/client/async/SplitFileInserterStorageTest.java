@@ -1339,6 +1339,11 @@ public class SplitFileInserterStorageTest {
             notifyAll();
         }
 
+        @Override
+        public void onFirstSegmentSucceeded() {
+            // Ignore.
+        }
+
         public synchronized int getRequiredBlocks() {
             return requiredBlocks;
         }
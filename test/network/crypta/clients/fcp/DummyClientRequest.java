@@ -0,0 +1,143 @@
+package network.crypta.clients.fcp;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+import network.crypta.client.async.ClientContext;
+import network.crypta.client.async.ClientRequester;
+import network.crypta.node.RequestStarter;
+
+/** A persistent request on the global queue that does nothing, for testing persistence. */
+public class DummyClientRequest extends ClientRequest {
+
+    private static final long serialVersionUID = 1L;
+
+    private String state;
+    private transient int timesWritten;
+
+    public DummyClientRequest(PersistentRequestRoot root, String identifier, String state) {
+        super(null, identifier, 0, null, null, root.getGlobalForeverClient(),
+                RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, Persistence.FOREVER, false, null, true);
+        this.state = state;
+    }
+
+    public String getState() {
+        return state;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+        changed();
+    }
+
+    /** @return How many times this instance has been serialized. */
+    public int getTimesWritten() {
+        return timesWritten;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        timesWritten++;
+        out.defaultWriteObject();
+    }
+
+    @Override
+    public void onLostConnection(ClientContext context) {
+    }
+
+    @Override
+    public void sendPendingMessages(FCPConnectionOutputHandler handler, String listRequestIdentifier,
+            boolean includeData, boolean onlyData) {
+    }
+
+    @Override
+    void register(boolean noTags) {
+    }
+
+    @Override
+    protected ClientRequester getClientRequest() {
+        return null;
+    }
+
+    @Override
+    protected void freeData() {
+    }
+
+    @Override
+    public double getSuccessFraction() {
+        return 0;
+    }
+
+    @Override
+    public double getTotalBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getMinBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getFetchedBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getFailedBlocks() {
+        return 0;
+    }
+
+    @Override
+    public double getFatalyFailedBlocks() {
+        return 0;
+    }
+
+    @Override
+    public String getFailureReason(boolean longDescription) {
+        return null;
+    }
+
+    @Override
+    public boolean isTotalFinalized() {
+        return false;
+    }
+
+    @Override
+    public void start(ClientContext context) {
+    }
+
+    @Override
+    public boolean hasSucceeded() {
+        return false;
+    }
+
+    @Override
+    public boolean canRestart() {
+        return false;
+    }
+
+    @Override
+    public boolean restart(ClientContext context, boolean disableFilterData) {
+        return false;
+    }
+
+    @Override
+    RequestStatus getStatus() {
+        return null;
+    }
+
+    @Override
+    protected void innerResume(ClientContext context) {
+    }
+
+    @Override
+    RequestIdentifier.RequestType getType() {
+        return RequestIdentifier.RequestType.PUT;
+    }
+
+    @Override
+    public boolean fullyResumed() {
+        return true;
+    }
+
+}
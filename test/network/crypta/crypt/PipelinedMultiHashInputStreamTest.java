@@ -0,0 +1,96 @@
+package network.crypta.crypt;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import network.crypta.support.Executor;
+import network.crypta.support.PooledExecutor;
+
+public class PipelinedMultiHashInputStreamTest {
+
+	private static final long ALL_HASHES = HashType.SHA256.bitmask | HashType.SHA1.bitmask |
+		HashType.MD5.bitmask | HashType.ED2K.bitmask | HashType.TTH.bitmask | HashType.SHA512.bitmask;
+
+	private final PooledExecutor executor = new PooledExecutor();
+
+	public PipelinedMultiHashInputStreamTest() {
+		executor.start();
+	}
+
+	@Test
+	public void testSameAsMultiHashInputStream() throws IOException {
+		Random random = new Random(1);
+		int chunk = PipelinedMultiHashInputStream.CHUNK_SIZE;
+		for(int size : new int[] { 0, 1, 1000, chunk - 1, chunk, chunk + 1, 40 * chunk + 17 }) {
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			MultiHashInputStream expected = new MultiHashInputStream(new ByteArrayInputStream(data), ALL_HASHES);
+			expected.skip(Long.MAX_VALUE);
+			PipelinedMultiHashInputStream actual =
+				PipelinedMultiHashInputStream.start(new ByteArrayInputStream(data), ALL_HASHES, executor);
+			// Odd sized reads.
+			byte[] buf = new byte[777];
+			int total = 0;
+			int read;
+			while((read = actual.read(buf)) > 0) {
+				assertArrayEquals(Arrays.copyOfRange(data, total, total + read),
+					Arrays.copyOf(buf, read));
+				total += read;
+			}
+			assertEquals(size, total);
+			assertEquals(size, actual.getReadBytes());
+			assertArrayEquals(expected.getResults(), actual.getResults());
+			actual.close();
+		}
+	}
+
+	@Test
+	public void testSingleByteReads() throws IOException {
+		byte[] data = new byte[3000];
+		new Random(2).nextBytes(data);
+		MultiHashInputStream expected = new MultiHashInputStream(new ByteArrayInputStream(data), ALL_HASHES);
+		expected.skip(Long.MAX_VALUE);
+		InputStream is = PipelinedMultiHashInputStream.start(new ByteArrayInputStream(data), ALL_HASHES, executor);
+		for(int i=0;i<data.length;i++)
+			assertEquals(data[i] & 0xFF, is.read());
+		assertEquals(-1, is.read());
+		assertArrayEquals(expected.getResults(), ((PipelinedMultiHashInputStream)is).getResults());
+	}
+
+	/** Closing without getting the results must let the hashing threads exit. */
+	@Test
+	public void testClose() throws IOException, InterruptedException {
+		byte[] data = new byte[100 * PipelinedMultiHashInputStream.CHUNK_SIZE];
+		final CountDownLatch exited = new CountDownLatch(6);
+		Executor counting = new PooledExecutor() {
+			@Override
+			public void execute(final Runnable job, String jobName) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							job.run();
+						} finally {
+							exited.countDown();
+						}
+					}
+				}, jobName);
+			}
+		};
+		PipelinedMultiHashInputStream is =
+			PipelinedMultiHashInputStream.start(new ByteArrayInputStream(data), ALL_HASHES, counting);
+		is.skip(data.length / 2);
+		is.close();
+		assertTrue(exited.await(10, TimeUnit.SECONDS));
+	}
+
+}
@@ -0,0 +1,189 @@
+package network.crypta.io.comm;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import network.crypta.support.PooledExecutor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IncomingPacketDispatcherTest {
+
+    private PooledExecutor executor;
+    private IncomingPacketDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        executor = new PooledExecutor();
+        executor.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (dispatcher != null)
+            dispatcher.stop();
+    }
+
+    private static Peer peer(int i) throws Exception {
+        return new Peer(InetAddress.getByAddress(new byte[] { 10, 0, (byte) (i >> 8), (byte) i }), 1000 + i);
+    }
+
+    private static ByteBuffer packet(IncomingPacketDispatcher dispatcher, int seq) {
+        ByteBuffer buf = dispatcher.acquireBuffer();
+        buf.putInt(seq);
+        buf.flip();
+        return buf;
+    }
+
+    /** Records which thread decoded each packet, per sender. Addresses are mapped to senders by a
+     * fixed table; addresses not in it are unknown. */
+    private static class RecordingFilter implements IncomingPacketFilter {
+
+        final Map<Peer, Object> senders = new HashMap<Peer, Object>();
+        final Map<Object, List<Integer>> received = new HashMap<Object, List<Integer>>();
+        final Map<Object, Set<Thread>> threads = new HashMap<Object, Set<Thread>>();
+        final Set<Object> decoding = Collections.synchronizedSet(new HashSet<Object>());
+        volatile boolean concurrent;
+        final CountDownLatch done;
+
+        RecordingFilter(int packets) {
+            done = new CountDownLatch(packets);
+        }
+
+        @Override
+        public Object getSender(Peer peer) {
+            return senders.get(peer);
+        }
+
+        @Override
+        public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+            throw new AssertionError("Sender should have been looked up already");
+        }
+
+        @Override
+        public DECODED process(byte[] buf, int offset, int length, Peer peer, Object sender, long now) {
+            Object key = sender == null ? "unknown" : sender;
+            if (!decoding.add(key)) concurrent = true;
+            try {
+                int seq = ByteBuffer.wrap(buf, offset, length).getInt();
+                synchronized (this) {
+                    received.computeIfAbsent(key, k -> new ArrayList<Integer>()).add(seq);
+                    threads.computeIfAbsent(key, k -> new HashSet<Thread>()).add(Thread.currentThread());
+                }
+                Thread.yield();
+            } finally {
+                decoding.remove(key);
+                done.countDown();
+            }
+            return DECODED.DECODED;
+        }
+
+        @Override
+        public boolean isDisconnected(PeerContext context) {
+            return false;
+        }
+
+    }
+
+    @Test
+    public void testOrderPerSender() throws Exception {
+        final int senders = 8;
+        final int packetsPerAddress = 200;
+        RecordingFilter filter = new RecordingFilter(senders * 2 * packetsPerAddress + packetsPerAddress);
+        // Each sender is reachable from two addresses.
+        for (int i = 0; i < senders; i++) {
+            Object sender = "sender" + i;
+            filter.senders.put(peer(2 * i), sender);
+            filter.senders.put(peer(2 * i + 1), sender);
+        }
+        dispatcher = new IncomingPacketDispatcher(filter, 4, 64, "test");
+        dispatcher.start(executor);
+        int seq = 0;
+        for (int n = 0; n < packetsPerAddress; n++) {
+            for (int i = 0; i < senders * 2; i++) {
+                while (!dispatcher.dispatch(packet(dispatcher, seq), peer(i), 0))
+                    Thread.sleep(1);
+                seq++;
+            }
+            while (!dispatcher.dispatch(packet(dispatcher, seq++), peer(1000), 0))
+                Thread.sleep(1);
+        }
+        assertTrue(filter.done.await(30, TimeUnit.SECONDS));
+        assertFalse(filter.concurrent);
+
+        Set<Thread> unknownThreads = filter.threads.get("unknown");
+        assertEquals(1, unknownThreads.size());
+        for (int i = 0; i < senders; i++) {
+            Object sender = "sender" + i;
+            List<Integer> received = filter.received.get(sender);
+            assertEquals(2 * packetsPerAddress, received.size());
+            for (int j = 1; j < received.size(); j++)
+                assertTrue(received.get(j) > received.get(j - 1));
+            assertEquals(1, filter.threads.get(sender).size());
+            // Unknown addresses have a worker of their own.
+            assertFalse(unknownThreads.containsAll(filter.threads.get(sender)));
+        }
+        // The worker counts a packet after the filter has returned, so the last may not be counted yet.
+        long deadline = System.currentTimeMillis() + 10000;
+        while (dispatcher.getPacketsProcessed() < dispatcher.getPacketsQueued()
+                && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(dispatcher.getPacketsQueued(), dispatcher.getPacketsProcessed());
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final int total = IncomingPacketDispatcher.QUEUE_SIZE_PER_WORKER + 10;
+        RecordingFilter filter = new RecordingFilter(total) {
+            @Override
+            public DECODED process(byte[] buf, int offset, int length, Peer peer, Object sender, long now) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                return super.process(buf, offset, length, peer, sender, now);
+            }
+        };
+        Peer peer = peer(1);
+        filter.senders.put(peer, "sender");
+        dispatcher = new IncomingPacketDispatcher(filter, 1, 64, "test");
+        dispatcher.start(executor);
+        // The worker takes the first packet and blocks, so the queue can fill up.
+        assertTrue(dispatcher.dispatch(packet(dispatcher, 0), peer, 0));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        int accepted = 1;
+        for (int i = 1; i < total; i++) {
+            if (dispatcher.dispatch(packet(dispatcher, i), peer, 0))
+                accepted++;
+        }
+        assertEquals(1 + IncomingPacketDispatcher.QUEUE_SIZE_PER_WORKER, accepted);
+        assertEquals(total - accepted, dispatcher.getPacketsDropped());
+        assertEquals(IncomingPacketDispatcher.QUEUE_SIZE_PER_WORKER, dispatcher.getQueueDepth());
+        release.countDown();
+        for (int i = 0; i < total - accepted; i++)
+            filter.done.countDown();
+        assertTrue(filter.done.await(30, TimeUnit.SECONDS));
+        // The packets which were queued are still decoded in order.
+        List<Integer> received = filter.received.get("sender");
+        assertEquals(accepted, received.size());
+        for (int j = 0; j < received.size(); j++)
+            assertEquals(j, (int) received.get(j));
+    }
+
+}
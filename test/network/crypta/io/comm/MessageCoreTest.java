@@ -0,0 +1,246 @@
+package network.crypta.io.comm;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import network.crypta.support.PooledExecutor;
+import network.crypta.support.PrioritizedTicker;
+
+public class MessageCoreTest {
+
+	private PooledExecutor executor;
+	private MessageCore core;
+
+	@Before
+	public void setUp() {
+		executor = new PooledExecutor();
+		core = new MessageCore(executor);
+	}
+
+	private static class Callback implements AsyncMessageFilterCallback {
+
+		final List<Message> matched = new ArrayList<Message>();
+		int timedOut;
+
+		@Override
+		public synchronized void onMatched(Message m) {
+			matched.add(m);
+			notifyAll();
+		}
+
+		@Override
+		public boolean shouldTimeout() {
+			return false;
+		}
+
+		@Override
+		public synchronized void onTimeout() {
+			timedOut++;
+			notifyAll();
+		}
+
+		@Override
+		public void onDisconnect(PeerContext ctx) {
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+		}
+
+		synchronized void waitForTimeout(long maxWait) throws InterruptedException {
+			long end = System.currentTimeMillis() + maxWait;
+			long now;
+			while(timedOut == 0 && (now = System.currentTimeMillis()) < end)
+				wait(end - now);
+		}
+
+	}
+
+	private static MessageFilter accepted(long uid, long timeout) {
+		return MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, uid).setTimeout(timeout);
+	}
+
+	private static MessageFilter rejectedLoop(long uid, long timeout) {
+		return MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, uid).setTimeout(timeout);
+	}
+
+	@Test
+	public void testNearestTimeoutGetsMessage() throws DisconnectedException {
+		Callback later = new Callback();
+		Callback sooner = new Callback();
+		core.addAsyncFilter(accepted(1, 20000), later, null);
+		core.addAsyncFilter(accepted(1, 10000), sooner, null);
+		Message m = DMT.createFNPAccepted(1);
+		core.checkFilters(m, null);
+		assertEquals(List.of(m), sooner.matched);
+		assertTrue(later.matched.isEmpty());
+		Message m2 = DMT.createFNPAccepted(1);
+		core.checkFilters(m2, null);
+		assertEquals(List.of(m2), later.matched);
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	@Test
+	public void testNearestTimeoutAcrossUIDs() throws DisconnectedException {
+		Callback byUID = new Callback();
+		Callback anyUID = new Callback();
+		core.addAsyncFilter(accepted(1, 20000), byUID, null);
+		core.addAsyncFilter(MessageFilter.create().setType(DMT.FNPAccepted).setTimeout(10000), anyUID, null);
+		Message m = DMT.createFNPAccepted(1);
+		core.checkFilters(m, null);
+		assertEquals(List.of(m), anyUID.matched);
+		assertTrue(byUID.matched.isEmpty());
+		Message m2 = DMT.createFNPAccepted(1);
+		core.checkFilters(m2, null);
+		assertEquals(List.of(m2), byUID.matched);
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	@Test
+	public void testMatchByUID() throws DisconnectedException {
+		Callback one = new Callback();
+		Callback two = new Callback();
+		Callback any = new Callback();
+		core.addAsyncFilter(accepted(1, 10000), one, null);
+		core.addAsyncFilter(accepted(2, 10000), two, null);
+		Message m = DMT.createFNPAccepted(2);
+		core.checkFilters(m, null);
+		assertEquals(List.of(m), two.matched);
+		assertTrue(one.matched.isEmpty());
+		// Neither the UID nor the type match.
+		core.checkFilters(DMT.createFNPAccepted(3), null);
+		core.checkFilters(DMT.createFNPRejectedLoop(1), null);
+		assertTrue(one.matched.isEmpty());
+		assertEquals(2, core.getUnclaimedFIFOSize());
+		assertEquals(Integer.valueOf(1), core.getUnclaimedFIFOMessageCounts().get(DMT.FNPAccepted.getName()));
+		assertEquals(Integer.valueOf(1), core.getUnclaimedFIFOMessageCounts().get(DMT.FNPRejectedLoop.getName()));
+		// A filter without a UID takes the oldest message of its type.
+		core.addAsyncFilter(MessageFilter.create().setType(DMT.FNPRejectedLoop).setTimeout(10000), any, null);
+		assertEquals(1, any.matched.size());
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	@Test
+	public void testOrAcrossTypes() throws DisconnectedException {
+		Message loop = DMT.createFNPRejectedLoop(5);
+		Message acc = DMT.createFNPAccepted(5);
+		core.checkFilters(DMT.createFNPAccepted(6), null);
+		core.checkFilters(loop, null);
+		core.checkFilters(acc, null);
+		assertEquals(3, core.getUnclaimedFIFOSize());
+		// The oldest unclaimed message matching any part of the filter wins.
+		Callback first = new Callback();
+		core.addAsyncFilter(accepted(5, 10000).or(rejectedLoop(5, 10000)), first, null);
+		assertEquals(List.of(loop), first.matched);
+		Callback second = new Callback();
+		core.addAsyncFilter(accepted(5, 10000).or(rejectedLoop(5, 10000)), second, null);
+		assertEquals(List.of(acc), second.matched);
+		// And a newly arrived message of either type.
+		Callback third = new Callback();
+		core.addAsyncFilter(accepted(7, 10000).or(rejectedLoop(7, 10000)), third, null);
+		Message m = DMT.createFNPRejectedLoop(7);
+		core.checkFilters(m, null);
+		assertEquals(List.of(m), third.matched);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	@Test
+	public void testWaitFor() throws DisconnectedException {
+		final Message m = DMT.createFNPAccepted(9);
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+				core.checkFilters(m, null);
+			}
+
+		});
+		assertSame(m, core.waitFor(accepted(9, 10000), null));
+		assertNull(core.waitFor(accepted(10, 100), null));
+		// The timed out filter must not take a later message.
+		core.checkFilters(DMT.createFNPAccepted(10), null);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	@Test
+	public void testAsyncFilterTimesOut() throws Exception {
+		PrioritizedTicker ticker = new PrioritizedTicker(executor, 0);
+		ticker.start();
+		core.start(ticker);
+		Callback cb = new Callback();
+		core.addAsyncFilter(accepted(1, 200), cb, null);
+		cb.waitForTimeout(5000);
+		assertEquals(1, cb.timedOut);
+		// It has been removed, so the message is unclaimed.
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertTrue(cb.matched.isEmpty());
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	@Test
+	public void testConcurrentStripes() throws Exception {
+		final int threads = 4, count = 2000;
+		final Callback[] callbacks = new Callback[threads * count];
+		for(int i = 0; i < callbacks.length; i++)
+			callbacks[i] = new Callback();
+		// Takes every FNPRejectedLoop, whatever the UID, so the matching thread has to take all the locks.
+		final Callback any = new Callback();
+		List<Thread> workers = new ArrayList<Thread>();
+		for(int t = 0; t < threads; t++) {
+			final int first = t * count;
+			workers.add(new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int i = first; i < first + count; i++) {
+							// Half the messages arrive before their filter.
+							if(i % 2 == 0) core.checkFilters(DMT.createFNPAccepted(i), null);
+							core.addAsyncFilter(accepted(i, 60000), callbacks[i], null);
+							if(i % 2 == 1) core.checkFilters(DMT.createFNPAccepted(i), null);
+							if(i % 10 == 0) {
+								core.addAsyncFilter(MessageFilter.create().setType(DMT.FNPRejectedLoop).setTimeout(60000), any, null);
+								core.checkFilters(DMT.createFNPRejectedLoop(i), null);
+							}
+						}
+					} catch (DisconnectedException e) {
+						fail();
+					}
+				}
+			});
+		}
+		for(Thread t : workers)
+			t.start();
+		for(Thread t : workers)
+			t.join();
+		for(Callback cb : callbacks)
+			assertEquals(1, cb.matched.size());
+		assertEquals(threads * count / 10, any.matched.size());
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	@Test
+	public void testShortenedTimeout() throws Exception {
+		PrioritizedTicker ticker = new PrioritizedTicker(executor, 0);
+		ticker.start();
+		core.start(ticker);
+		Callback cb = new Callback();
+		MessageFilter filter = accepted(1, 60000);
+		core.addAsyncFilter(filter, cb, null);
+		filter.setTimeout(200);
+		cb.waitForTimeout(5000);
+		assertEquals(1, cb.timedOut);
+		core.checkFilters(DMT.createFNPAccepted(1), null);
+		assertTrue(cb.matched.isEmpty());
+	}
+
+}
@@ -0,0 +1,31 @@
+package network.crypta.io.comm;
+
+import static org.junit.Assert.*;
+
+import network.crypta.support.BitArray;
+import network.crypta.support.Buffer;
+import org.junit.Test;
+
+public class MessageTest {
+
+    @Test
+    public void testEncodeCopiesBlockDataOnce() {
+        byte[] block = new byte[32768];
+        for (int i = 0; i < block.length; i++)
+            block[i] = (byte) i;
+        long[] before = Message.getEncodeStats();
+        Message msg = DMT.createPacketTransmit(1234, 5, new BitArray(32), new Buffer(block, 5 * 1024, 1024), false);
+        byte[] encoded = msg.encodeToPacket();
+        long[] after = Message.getEncodeStats();
+        // Header, uid, packet number, sent packets and the data.
+        assertEquals(4 + 8 + 4 + BitArray.serializedLength(32) + 4 + 1024, encoded.length);
+        assertEquals(encoded.length, after[0] - before[0]);
+        assertEquals(encoded.length, after[1] - before[1]);
+        assertEquals(encoded.length, after[2] - before[2]);
+
+        Message decoded = Message.decodeMessageFromPacket(encoded, 0, encoded.length, null, 0);
+        assertArrayEquals(new Buffer(block, 5 * 1024, 1024).getData(), ((Buffer) decoded.getObject(DMT.DATA)).getData());
+        assertEquals(5, decoded.getInt(DMT.PACKET_NO));
+    }
+
+}
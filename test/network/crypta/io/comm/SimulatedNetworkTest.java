@@ -0,0 +1,139 @@
+package network.crypta.io.comm;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import network.crypta.support.VirtualTicker;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SimulatedNetworkTest {
+
+    private VirtualTicker ticker;
+    private SimulatedNetwork network;
+    private InetAddress localhost;
+
+    @Before
+    public void setUp() throws Exception {
+        ticker = new VirtualTicker(1000000);
+        network = new SimulatedNetwork(ticker, new Random(1234));
+        localhost = InetAddress.getByName("127.0.0.1");
+    }
+
+    private void send(SimulatedNetwork.Endpoint from, int toPort, int length) throws IOException {
+        from.send(ByteBuffer.wrap(new byte[length]), new InetSocketAddress(localhost, toPort));
+    }
+
+    private int drain(SimulatedNetwork.Endpoint to) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1500);
+        int count = 0;
+        while (to.receive(buf) != null) {
+            buf.clear();
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testLatency() throws IOException {
+        network.setLatency(100);
+        SimulatedNetwork.Endpoint a = network.open(1);
+        SimulatedNetwork.Endpoint b = network.open(2);
+        a.send(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), new InetSocketAddress(localhost, 2));
+        ticker.advance(99);
+        ByteBuffer buf = ByteBuffer.allocate(1500);
+        assertNull(b.receive(buf));
+        ticker.advance(1);
+        InetSocketAddress source = b.receive(buf);
+        assertEquals(new InetSocketAddress(localhost, 1), source);
+        buf.flip();
+        assertEquals(3, buf.remaining());
+        assertEquals(3, buf.get(2));
+        assertEquals(1, network.getPacketsDelivered());
+        assertEquals(3, network.getBytesDelivered());
+    }
+
+    @Test
+    public void testBandwidth() throws IOException {
+        network.setBandwidth(10000);
+        network.setLatency(10);
+        SimulatedNetwork.Endpoint a = network.open(1);
+        SimulatedNetwork.Endpoint b = network.open(2);
+        for (int i = 0; i < 10; i++)
+            send(a, 2, 1000);
+        // 10KB at 10KB/sec takes a second to leave the uplink.
+        ticker.advance(510);
+        assertEquals(5, drain(b));
+        ticker.advance(500);
+        assertEquals(5, drain(b));
+        assertEquals(10000 * 1000.0 / 1010, network.getThroughput(), 1.0);
+    }
+
+    @Test
+    public void testQueueLimit() throws IOException {
+        network.setBandwidth(1000);
+        network.setMaxQueueTime(2000);
+        SimulatedNetwork.Endpoint a = network.open(1);
+        SimulatedNetwork.Endpoint b = network.open(2);
+        for (int i = 0; i < 5; i++)
+            send(a, 2, 1000);
+        assertEquals(2, network.getPacketsDropped());
+        ticker.advance(3000);
+        assertEquals(3, drain(b));
+    }
+
+    @Test
+    public void testLoss() throws IOException {
+        network.setLoss(0.5);
+        SimulatedNetwork.Endpoint a = network.open(1);
+        SimulatedNetwork.Endpoint b = network.open(2);
+        int received = 0;
+        for (int i = 0; i < 1000; i++) {
+            send(a, 2, 100);
+            ticker.advance(1);
+            received += drain(b);
+        }
+        assertEquals(1000, network.getPacketsSent());
+        assertEquals(1000, network.getPacketsLost() + network.getPacketsDelivered());
+        assertEquals(received, network.getPacketsDelivered());
+        assertTrue(received > 400 && received < 600);
+    }
+
+    @Test
+    public void testPorts() throws IOException {
+        SimulatedNetwork.Endpoint a = network.open(1);
+        try {
+            network.open(1);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        send(a, 3, 100);
+        assertEquals(1, network.getPacketsDropped());
+        a.close();
+        try {
+            send(a, 3, 100);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        network.open(1).close();
+    }
+
+    @Test
+    public void testReceiveBuffer() throws IOException {
+        SimulatedNetwork.Endpoint a = network.open(1);
+        SimulatedNetwork.Endpoint b = network.open(2);
+        for (int i = 0; i < 100; i++)
+            send(a, 2, 1000);
+        ticker.advance(1);
+        assertEquals(65, drain(b));
+        assertEquals(35, network.getPacketsDropped());
+    }
+
+}
@@ -13,6 +13,20 @@ import network.crypta.node.MessageWrapper;
 import org.junit.Test;
 
 public class MessageWrapperTest {
+    @Test
+    public void testFragmentsShareMessage() {
+        MessageItem item = new MessageItem(new byte[1024], null, false, null, (short) 0);
+        MessageWrapper wrapper = new MessageWrapper(item, 0);
+
+        MessageFragment frag = wrapper.getMessageFragment(128);
+        assertSame(item.buf, frag.fragmentData);
+        assertEquals(0, frag.fragmentDataOffset);
+        frag = wrapper.getMessageFragment(128);
+        assertSame(item.buf, frag.fragmentData);
+        assertEquals(121, frag.fragmentDataOffset);
+        assertTrue(frag.length() <= 128);
+    }
+
     @Test
     public void testGetFragment() {
         MessageItem item = new MessageItem(new byte[1024], null, false, null, (short) 0);
@@ -422,6 +422,21 @@ public class NPFPacketTest {
 		assertEquals(46, p.getLength());
 	}
 	
+	@Test
+	public void testEncodeFragmentOfMessage() {
+		byte[] message = new byte[100];
+		for(int i = 0; i < message.length; i++) message[i] = (byte) i;
+		NPFPacket p = new NPFPacket();
+		p.addMessageFragment(new MessageFragment(true, true, false, 0, 10, 100, 40, message, 40, null));
+		byte[] encoded = new byte[p.getLength()];
+		p.toBytes(encoded, 0, null);
+		NPFPacket received = NPFPacket.create(encoded, pn);
+		assertEquals(1, received.getFragments().size());
+		MessageFragment frag = received.getFragments().get(0);
+		assertEquals(40, frag.fragmentOffset);
+		checkEquals(Arrays.copyOfRange(message, 40, 50), frag.fragmentData);
+	}
+
 	@Test
 	public void testEncodeDecodeLossyPerPacketMessages() {
 		NPFPacket p = new NPFPacket();
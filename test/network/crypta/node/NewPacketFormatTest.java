@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package network.crypta.node;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -13,7 +15,9 @@ import network.crypta.crypt.DummyRandomSource;
 import network.crypta.crypt.ciphers.Rijndael;
 import network.crypta.io.comm.FreenetInetAddress;
 import network.crypta.io.comm.Peer;
+import network.crypta.io.comm.Peer.LocalAddressException;
 import network.crypta.node.*;
+import network.crypta.support.TestProperty;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -292,4 +296,123 @@ public class NewPacketFormatTest {
         assertArrayEquals(message, copyOfMessage);
         assertArrayEquals(message, receiverNode.decryptedMessages.get(0));
 	}
+
+	/** The per-key buffers are reused for packets of different sizes, so check that nothing
+	 * from a longer packet leaks into a shorter one. */
+	@Test
+	public void testEncryptionReusesBuffers()
+			throws BlockedTooLongException, UnknownHostException, InterruptedException {
+		Random random = new Random(250117);
+		NullBasePeerNode senderNode = new NullBasePeerNode();
+		NullBasePeerNode receiverNode = new NullBasePeerNode();
+		SessionKey[] keys = createKeyPair(random, 1000, 2000);
+		senderNode.currentKey = keys[0];
+		receiverNode.currentKey = keys[1];
+		NewPacketFormat senderNPF = new NewPacketFormat(senderNode, 1000, 2000);
+		NewPacketFormat receiverNPF = new NewPacketFormat(receiverNode, 2000, 1000);
+		PeerMessageQueue senderQueue = new PeerMessageQueue(new DummyRandomSource(1234));
+		senderNode.messageQueue = senderQueue;
+		receiverNode.decryptedMessages = new ArrayList<byte[]>();
+		Peer peer = new Peer(new FreenetInetAddress("127.0.0.1", true), 1234);
+
+		int[] sizes = new int[] { 1024, 16, 700, 1, 1100, 64 };
+		for(int size : sizes) {
+			byte[] message = new byte[size];
+			random.nextBytes(message);
+			senderQueue.queueAndEstimateSize(new MessageItem(message, null, false, null, (short) 0), size);
+			Thread.sleep(PacketSender.MAX_COALESCING_DELAY * 2);
+			assertTrue(senderNPF.maybeSendPacket(false, keys[0]));
+			byte[] data = senderNode.sentEncryptedPacket;
+			// Decode from the middle of a larger buffer, as the socket would.
+			byte[] buf = new byte[data.length + 20];
+			System.arraycopy(data, 0, buf, 10, data.length);
+			receiverNode.decryptedMessages.clear();
+			receiverNPF.handleReceivedPacket(buf, 10, data.length, System.currentTimeMillis(), peer);
+			assertEquals(1, receiverNode.decryptedMessages.size());
+			assertArrayEquals(message, receiverNode.decryptedMessages.get(0));
+		}
+	}
+
+	// ./gradlew test --tests network.crypta.node.NewPacketFormatTest -Dtest.benchmark=true
+	@Test
+	public void testBenchmarkRoundTrip() throws LocalAddressException, UnknownHostException {
+		if(!TestProperty.BENCHMARK) {
+			return;
+		}
+
+		Random random = new Random(250118);
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean ?
+				(com.sun.management.ThreadMXBean) threads : null;
+		Peer peer = new Peer(new FreenetInetAddress("127.0.0.1", true), 1234);
+		for(int size = 16; size <= 1024; size *= 4) {
+			NullBasePeerNode senderNode = new NullBasePeerNode();
+			NullBasePeerNode receiverNode = new NullBasePeerNode();
+			SessionKey[] keys = createKeyPair(random, 1000, 2000);
+			senderNode.currentKey = keys[0];
+			receiverNode.currentKey = keys[1];
+			NewPacketFormat senderNPF = new NewPacketFormat(senderNode, 1000, 2000);
+			NewPacketFormat receiverNPF = new NewPacketFormat(receiverNode, 2000, 1000);
+			receiverNode.decryptedMessages = new ArrayList<byte[]>();
+			byte[] message = new byte[size];
+			random.nextBytes(message);
+
+			// Build, encode, encrypt, decrypt, decode and reassemble one message per packet. This
+			// leaves out the message queue and acks, and includes the copy NullBasePeerNode makes of
+			// each packet sent.
+			int iterations = 50000;
+			long startBytes = 0;
+			long t1 = 0;
+			for(int i = 0; i < iterations * 2; i++) {
+				if(i == iterations) {
+					// The first half is warm up.
+					startBytes = allocations == null ? 0 : allocations.getThreadAllocatedBytes(Thread.currentThread().threadId());
+					t1 = System.nanoTime();
+				}
+				NPFPacket packet = new NPFPacket();
+				packet.setSequenceNumber(1000 + i);
+				packet.addMessageFragment(new MessageFragment(size < 256, false, true, 1000 + i, size, size, 0, message, null));
+				senderNPF.encryptAndSend(packet, packet.getLength() + NewPacketFormat.HMAC_LENGTH, keys[0]);
+				byte[] data = senderNode.sentEncryptedPacket;
+				receiverNPF.handleReceivedPacket(data, 0, data.length, System.currentTimeMillis(), peer);
+				if(receiverNode.decryptedMessages.size() != 1) fail("Lost packet "+i);
+				receiverNode.decryptedMessages.clear();
+			}
+			long t2 = System.nanoTime();
+			long endBytes = allocations == null ? 0 : allocations.getThreadAllocatedBytes(Thread.currentThread().threadId());
+			System.out.println("Message size " + size + ": " +
+					((t2 - t1) / iterations) + "ns and " + ((endBytes - startBytes) / iterations) +
+					" bytes allocated per round trip");
+		}
+	}
+
+	/** @return The sender's and the receiver's keys for a session. */
+	private static SessionKey[] createKeyPair(Random random, int senderStartSeq, int receiverStartSeq) {
+		byte[] outgoingKey = new byte[32];
+		random.nextBytes(outgoingKey);
+		BlockCipher outgoingCipher = new Rijndael();
+		outgoingCipher.initialize(outgoingKey);
+		byte[] incomingKey = new byte[32];
+		random.nextBytes(incomingKey);
+		BlockCipher incomingCipher = new Rijndael();
+		incomingCipher.initialize(incomingKey);
+		BlockCipher ivCipher = new Rijndael();
+		byte[] ivKey = new byte[32];
+		random.nextBytes(ivKey);
+		ivCipher.initialize(ivKey);
+		byte[] ivNonce = new byte[16];
+		random.nextBytes(ivNonce);
+		byte[] hmacKey = new byte[32];
+		random.nextBytes(hmacKey);
+
+		SessionKey sender = new SessionKey(null, outgoingCipher, outgoingKey,
+							     incomingCipher, incomingKey, ivCipher,
+							     ivNonce, hmacKey,
+							     new NewPacketFormatKeyContext(senderStartSeq, receiverStartSeq), 0);
+		SessionKey receiver = new SessionKey(null, incomingCipher, incomingKey,
+							       outgoingCipher, outgoingKey,
+							       ivCipher, ivNonce, hmacKey,
+							       new NewPacketFormatKeyContext(receiverStartSeq, senderStartSeq), 0);
+		return new SessionKey[] { sender, receiver };
+	}
 }
@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import network.crypta.node.Location;
 import network.crypta.node.PeerLocation;
@@ -44,7 +45,7 @@ public class PeerLocationTest {
     @Test
     public void testGetClosestPeerLocation() {
         for (double[] peers : PEER_LOCATIONS) {
-            PeerLocation pl = new PeerLocation("0.0");
+            PeerLocation pl = new PeerLocation("0.0", new AtomicLong());
             assertTrue(pl.updateLocation(0.0, peers));
             for (double target : TARGET_LOCATIONS) {
                 for (Set<Double> exclude : omit(peers)) {
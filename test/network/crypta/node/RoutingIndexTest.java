@@ -0,0 +1,196 @@
+package network.crypta.node;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class RoutingIndexTest {
+
+    /** A random set of peers, with the per-request state closerPeer() would check. */
+    private static class Topology implements RoutingIndex.Filter {
+        final PeerLocation[] locations;
+        final boolean[] routable;
+        final boolean[] foaf;
+        final boolean[] backedOff;
+        int visited;
+
+        Topology(Random random, int peers) {
+            locations = new PeerLocation[peers];
+            routable = new boolean[peers];
+            foaf = new boolean[peers];
+            backedOff = new boolean[peers];
+            for (int i = 0; i < peers; i++) {
+                locations[i] = new PeerLocation("0.0", new AtomicLong());
+                double[] peersLocs = new double[random.nextInt(4) == 0 ? 0 : random.nextInt(20)];
+                for (int j = 0; j < peersLocs.length; j++)
+                    peersLocs[j] = randomLocation(random);
+                assertTrue(locations[i].updateLocation(randomLocation(random), peersLocs));
+                routable[i] = random.nextInt(5) != 0;
+                foaf[i] = random.nextBoolean();
+                backedOff[i] = random.nextInt(3) == 0;
+            }
+        }
+
+        @Override
+        public boolean canRouteTo(int peer) {
+            visited++;
+            return routable[peer];
+        }
+
+        @Override
+        public boolean useFOAF(int peer) {
+            return foaf[peer];
+        }
+
+        @Override
+        public boolean isBackedOff(int peer) {
+            return backedOff[peer];
+        }
+
+        /** The loop in PeerManager.closerPeer(), with nothing timed out. */
+        int fullScan(double target, double maxDistance, double maxDiff, boolean ignoreSelf, Set<Double> exclude) {
+            int closestBackedOff = -1;
+            double closestBackedOffDistance = Double.MAX_VALUE;
+            double closestRealBackedOffDistance = Double.MAX_VALUE;
+            int closestNotBackedOff = -1;
+            double closestNotBackedOffDistance = Double.MAX_VALUE;
+            double closestRealNotBackedOffDistance = Double.MAX_VALUE;
+            for (int i = 0; i < locations.length; i++) {
+                if (!routable[i])
+                    continue;
+                double loc = locations[i].getLocation();
+                boolean direct = true;
+                double realDiff = Location.distance(loc, target);
+                double diff = realDiff;
+                if (foaf[i]) {
+                    double l = locations[i].getClosestPeerLocation(target, exclude);
+                    if (!Double.isNaN(l)) {
+                        double newDiff = Location.distance(l, target);
+                        if (newDiff < diff) {
+                            diff = newDiff;
+                            direct = false;
+                        }
+                    }
+                }
+                if (diff > maxDistance)
+                    continue;
+                if ((!ignoreSelf) && (diff > maxDiff))
+                    continue;
+                if (backedOff[i] && (diff < closestBackedOffDistance || (Math.abs(diff - closestBackedOffDistance) < Double.MIN_VALUE * 2 && (direct || realDiff < closestRealBackedOffDistance)))) {
+                    closestBackedOffDistance = diff;
+                    closestBackedOff = i;
+                    closestRealBackedOffDistance = realDiff;
+                }
+                if (!backedOff[i] && (diff < closestNotBackedOffDistance || (Math.abs(diff - closestNotBackedOffDistance) < Double.MIN_VALUE * 2 && (direct || realDiff < closestRealNotBackedOffDistance)))) {
+                    closestNotBackedOffDistance = diff;
+                    closestNotBackedOff = i;
+                    closestRealNotBackedOffDistance = realDiff;
+                }
+            }
+            return closestNotBackedOff != -1 ? closestNotBackedOff : closestBackedOff;
+        }
+    }
+
+    /** Often on a coarse grid, so there are plenty of exact ties, and sometimes at the ends. */
+    private static double randomLocation(Random random) {
+        switch (random.nextInt(8)) {
+        case 0:
+            return 0.0;
+        case 1:
+            return 1.0;
+        case 2:
+        case 3:
+        case 4:
+            return random.nextInt(64) / 64.0;
+        default:
+            return random.nextDouble();
+        }
+    }
+
+    @Test
+    public void testSameAsFullScan() {
+        Random random = new Random(12345);
+        for (int round = 0; round < 3000; round++) {
+            Topology t = new Topology(random, random.nextInt(150));
+            RoutingIndex index = new RoutingIndex(t.locations, 0);
+            assertTrue(index.usable);
+            for (int request = 0; request < 10; request++) {
+                double target = randomLocation(random);
+                Set<Double> exclude = new HashSet<Double>();
+                exclude.add(randomLocation(random));
+                for (int i = 0; i < t.locations.length; i++)
+                    if (random.nextInt(10) == 0)
+                        exclude.add(t.locations[i].getLocation());
+                double maxDistance = random.nextBoolean() ? 2.0 : random.nextDouble() * 0.5;
+                boolean ignoreSelf = random.nextBoolean();
+                double maxDiff = Location.distance(randomLocation(random), target);
+                int expected = t.fullScan(target, maxDistance, maxDiff, ignoreSelf, exclude);
+                int actual = index.closest(target, ignoreSelf ? maxDistance : Math.min(maxDistance, maxDiff), exclude, t);
+                assertEquals("round " + round + " target " + target, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void testVisitsOnlyNearbyPeers() {
+        Random random = new Random(54321);
+        PeerLocation[] locations = new PeerLocation[1000];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = new PeerLocation("0.0", new AtomicLong());
+            assertTrue(locations[i].updateLocation(random.nextDouble(), new double[0]));
+        }
+        Topology t = new Topology(random, 0) {
+            @Override
+            public boolean canRouteTo(int peer) {
+                visited++;
+                return true;
+            }
+
+            @Override
+            public boolean useFOAF(int peer) {
+                return false;
+            }
+
+            @Override
+            public boolean isBackedOff(int peer) {
+                return false;
+            }
+        };
+        RoutingIndex index = new RoutingIndex(locations, 0);
+        for (int i = 0; i < 100; i++) {
+            t.visited = 0;
+            double target = random.nextDouble();
+            int chosen = index.closest(target, 2.0, new HashSet<Double>(), t);
+            for (PeerLocation l : locations)
+                assertTrue(Location.distance(locations[chosen].getLocation(), target) <= Location.distance(l.getLocation(), target));
+            assertTrue(t.visited <= 3);
+        }
+    }
+
+    @Test
+    public void testGenerationChangesWithLocation() {
+        AtomicLong generation = new AtomicLong();
+        PeerLocation l = new PeerLocation("0.1", generation);
+        l.setLocation(0.2);
+        assertEquals(1, generation.get());
+        l.setLocation(0.2);
+        assertEquals(1, generation.get());
+        l.updateLocation(0.2, new double[] { 0.3 });
+        assertEquals(2, generation.get());
+        l.updateLocation(0.2, new double[] { 0.3 });
+        assertEquals(2, generation.get());
+    }
+
+    @Test
+    public void testInvalidLocationNotUsable() {
+        PeerLocation l = new PeerLocation("unknown", new AtomicLong());
+        assertFalse(new RoutingIndex(new PeerLocation[] { l }, 0).usable);
+        assertEquals(-1, new RoutingIndex(new PeerLocation[0], 0).closest(0.5, 2.0, null, null));
+    }
+
+}
@@ -0,0 +1,106 @@
+package network.crypta.node;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SessionTagIndexTest {
+
+	private static SessionKey newKey() {
+		return new SessionKey(null, null, null, null, null, null, null, null, null, 0);
+	}
+
+	private static byte[] tag(int i) {
+		return new byte[] { (byte)(i >>> 24), (byte)(i >>> 16), (byte)(i >>> 8), (byte)i };
+	}
+
+	@Test
+	public void testAddGetRemove() {
+		SessionTagIndex index = new SessionTagIndex();
+		SessionKey a = newKey();
+		SessionKey b = newKey();
+		index.add(tag(1), a);
+		index.add(tag(1), b);
+		index.add(tag(2), a);
+		index.add(tag(2), a);
+		assertEquals(3, index.size());
+		List<SessionKey> found = index.get(tag(1), 0);
+		assertEquals(2, found.size());
+		assertTrue(found.contains(a) && found.contains(b));
+		assertEquals(List.of(a), index.get(tag(2), 0));
+		assertTrue(index.get(tag(3), 0).isEmpty());
+
+		index.remove(tag(1), a);
+		assertEquals(List.of(b), index.get(tag(1), 0));
+		index.remove(tag(1), a);
+		assertEquals(2, index.size());
+	}
+
+	@Test
+	public void testLookupAtOffset() {
+		SessionTagIndex index = new SessionTagIndex();
+		SessionKey a = newKey();
+		index.add(tag(0xcafebabe), a);
+		byte[] packet = new byte[12];
+		System.arraycopy(tag(0xcafebabe), 0, packet, 5, 4);
+		assertEquals(List.of(a), index.get(packet, 5));
+	}
+
+	@Test
+	public void testDiscardRemovesWatchList() {
+		SessionTagIndex index = new SessionTagIndex();
+		NewPacketFormatKeyContext ctx = new NewPacketFormatKeyContext(0, 0, index);
+		SessionKey key = new SessionKey(null, null, null, null, null, null, null, null, ctx, 0);
+		SessionKey other = newKey();
+		index.add(tag(1), other);
+		ctx.seqNumWatchList = new byte[4][];
+		for(int i=0;i<4;i++)
+			ctx.setWatchListEntry(i, tag(i), key);
+		assertEquals(5, index.size());
+		key.discarded();
+		assertEquals(List.of(other), index.get(tag(1), 0));
+		assertEquals(1, index.size());
+		// A late move of the watch list doesn't put it back.
+		ctx.setWatchListEntry(0, tag(4), key);
+		assertTrue(index.get(tag(4), 0).isEmpty());
+		assertEquals(1, index.size());
+	}
+
+	/** Fill the table well beyond its initial size and remove entries in random order, checking
+	 * that nothing becomes unreachable after the backward shifts. */
+	@Test
+	public void testManyEntries() {
+		SessionTagIndex index = new SessionTagIndex();
+		Random random = new Random(1234);
+		SessionKey[] keys = new SessionKey[] { newKey(), newKey(), newKey() };
+		List<Integer> tags = new ArrayList<Integer>();
+		List<SessionKey> owners = new ArrayList<SessionKey>();
+		for(int i=0;i<20000;i++) {
+			// Few distinct values, so there are collisions and long probe sequences.
+			int t = random.nextInt(8192);
+			SessionKey key = keys[random.nextInt(keys.length)];
+			if(index.get(tag(t), 0).contains(key)) continue;
+			index.add(tag(t), key);
+			tags.add(t);
+			owners.add(key);
+		}
+		assertEquals(tags.size(), index.size());
+		while(!tags.isEmpty()) {
+			int i = random.nextInt(tags.size());
+			int t = tags.remove(i);
+			SessionKey key = owners.remove(i);
+			index.remove(tag(t), key);
+			assertFalse(index.get(tag(t), 0).contains(key));
+			if(tags.size() % 997 == 0) {
+				for(int j=0;j<tags.size();j++)
+					assertTrue(index.get(tag(tags.get(j)), 0).contains(owners.get(j)));
+			}
+		}
+		assertEquals(0, index.size());
+	}
+
+}
@@ -0,0 +1,64 @@
+package network.crypta.node;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.Map;
+
+import network.crypta.io.comm.DMT;
+import network.crypta.support.SimpleFieldSet;
+import org.junit.Test;
+
+public class TrafficStatsTest {
+
+    @Test
+    public void testAccounting() {
+        TrafficStats traffic = new TrafficStats();
+        TrafficStats.Counters peer = new TrafficStats.Counters();
+
+        MessageItem ping = new MessageItem(DMT.createFNPPing(1), null, null);
+        MessageItem other = new MessageItem(DMT.createFNPVoid(), null, null);
+        MessageWrapper pingWrapper = new MessageWrapper(ping, 0, traffic.getCounters(ping), peer);
+        MessageWrapper otherWrapper = new MessageWrapper(other, 1, traffic.getCounters(other), peer);
+        assertSame(traffic.getCounters(ping), traffic.getCounters(new MessageItem(DMT.createFNPPing(2), null, null)));
+
+        int pingLength = ping.getLength();
+        // Half the message, then the rest of it, then a resend of the first half.
+        pingWrapper.onSent(0, pingLength / 2 - 1, 10, null);
+        TrafficStats.Counters pingCounters = traffic.getCounters(ping);
+        assertEquals(0, pingCounters.getMessages());
+        pingWrapper.onSent(pingLength / 2, pingLength - 1, 10, null);
+        assertEquals(1, pingCounters.getMessages());
+        pingWrapper.onSent(0, pingLength / 2 - 1, 10, null);
+        assertEquals(1, pingCounters.getMessages());
+        assertEquals(pingLength + pingLength / 2 + 30, pingCounters.getBytes());
+
+        otherWrapper.onSent(0, other.getLength() - 1, 5, null);
+        assertEquals(other.getLength() + 5, traffic.getCounters(other).getBytes());
+        assertEquals(2, peer.getMessages());
+        assertEquals(pingCounters.getBytes() + traffic.getCounters(other).getBytes(), peer.getBytes());
+        assertEquals(2, peer.getQueueTime().count());
+        assertEquals(1, pingCounters.getQueueTime().count());
+
+        List<Map.Entry<String, TrafficStats.Counters>> byType = traffic.getCountersByType();
+        assertEquals(2, byType.size());
+        assertEquals("FNPPing", byType.get(0).getKey());
+
+        SimpleFieldSet fs = traffic.exportFieldSet();
+        assertEquals(1, fs.getLong("FNPPing.messages", -1));
+        assertEquals(pingCounters.getBytes(), fs.getLong("FNPPing.bytes", -1));
+        assertEquals(1, fs.getLong("FNPPing.queueTimeCount", -1));
+    }
+
+    @Test
+    public void testDisabled() {
+        MessageItem item = new MessageItem(DMT.createFNPPing(1), null, null);
+        MessageWrapper wrapper = new MessageWrapper(item, 0);
+        wrapper.onSent(0, item.getLength() - 1, 0, null);
+        assertNull(new NullBasePeerNode().getTrafficStats());
+        TrafficStats traffic = new TrafficStats();
+        assertFalse(traffic.isEnabled());
+        assertTrue(traffic.getCountersByType().isEmpty());
+    }
+
+}
@@ -613,6 +613,100 @@ public class CachingFreenetStoreTest {
         }
     }
 
+    /* Flushing writes a batch, coalescing writes to adjacent slots */
+    @Test
+    public void testBatchedFlushCHK()
+        throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+        CHKStore store = new CHKStore();
+        File f = getStorePath("testBatchedFlushCHK");
+        try (SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f,
+                                                                                           "testCachingFreenetStoreBatchedFlush",
+                                                                                           store,
+                                                                                           weakPRNG, 128,
+                                                                                           true,
+                                                                                           SemiOrderedShutdownHook.get(),
+                                                                                           true, true,
+                                                                                           ticker,
+                                                                                           null)) {
+            // Big enough that nothing is written before we flush.
+            CachingFreenetStoreTracker tracker =
+                new CachingFreenetStoreTracker(cachingFreenetStoreMaxSize * 4, cachingFreenetStorePeriod,
+                                               ticker);
+            tracker.setBatchSize(32);
+            try (CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store,
+                                                                                                saltStore,
+                                                                                                tracker)) {
+                cachingStore.start(null, true);
+
+                List<ClientCHKBlock> blocks = new ArrayList<ClientCHKBlock>();
+                for (int i = 0; i < 30; i++) {
+                    ClientCHKBlock block = encodeBlockCHK("test" + i);
+                    store.put(block.getBlock(), false);
+                    blocks.add(block);
+                }
+                assertEquals(30, tracker.getQueuedBlocks());
+
+                tracker.pushAllCachingStores();
+                assertTrue(cachingStore.isEmpty());
+                assertEquals(0, tracker.getSizeOfCache());
+                assertEquals(30, tracker.getBlocksCached());
+                assertEquals(30, tracker.getBlocksFlushed());
+                assertEquals(1, tracker.getBatchesFlushed());
+                // Unbatched this would be a metadata write and a header+data write per block.
+                assertTrue(tracker.getWriteCalls() < 60);
+
+                for (int i = 0; i < blocks.size(); i++) {
+                    ClientCHK key = blocks.get(i).getClientKey();
+                    CHKBlock verify = saltStore.fetch(key.getRoutingKey(),
+                                                      key.getNodeCHK().getFullKey(), false, false,
+                                                      false, false, null);
+                    assertEquals("test" + i, decodeBlockCHK(verify, key));
+                }
+            }
+        }
+    }
+
+    /* Blocks are written once nothing has been added for a while */
+    @Test
+    public void testIdleFlushCHK()
+        throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException,
+        InterruptedException {
+        CHKStore store = new CHKStore();
+        File f = getStorePath("testIdleFlushCHK");
+        try (SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f,
+                                                                                           "testCachingFreenetStoreIdleFlush",
+                                                                                           store,
+                                                                                           weakPRNG, 10,
+                                                                                           false,
+                                                                                           SemiOrderedShutdownHook.get(),
+                                                                                           true, true,
+                                                                                           ticker,
+                                                                                           null)) {
+            CachingFreenetStoreTracker tracker =
+                new CachingFreenetStoreTracker(cachingFreenetStoreMaxSize, cachingFreenetStorePeriod,
+                                               ticker);
+            tracker.setIdleFlushDelay(100);
+            try (CachingFreenetStore<CHKBlock> cachingStore = new CachingFreenetStore<CHKBlock>(store,
+                                                                                                saltStore,
+                                                                                                tracker)) {
+                cachingStore.start(null, true);
+
+                ClientCHKBlock block = encodeBlockCHK("test");
+                store.put(block.getBlock(), false);
+                ClientCHK key = block.getClientKey();
+
+                long deadline = System.currentTimeMillis() + 10000;
+                while (!cachingStore.isEmpty() && System.currentTimeMillis() < deadline)
+                    Thread.sleep(10);
+                assertTrue(cachingStore.isEmpty());
+                CHKBlock verify = saltStore.fetch(key.getRoutingKey(),
+                                                  key.getNodeCHK().getFullKey(), false, false,
+                                                  false, false, null);
+                assertEquals("test", decodeBlockCHK(verify, key));
+            }
+        }
+    }
+
     /* Test to re-open after close */
     @Test
     public void testOnCloseCHK()
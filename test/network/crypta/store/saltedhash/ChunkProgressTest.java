@@ -0,0 +1,59 @@
+package network.crypta.store.saltedhash;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ChunkProgressTest {
+
+	@Test
+	public void testOutOfOrderForward() {
+		// 10 chunks of 100, the last one partial.
+		ChunkProgress progress = new ChunkProgress(950, 100, 0, false);
+		assertEquals(950, progress.entriesLeft());
+		assertEquals(950, progress.completed(1));
+		assertEquals(950, progress.completed(2));
+		assertEquals(650, progress.completed(0));
+		assertEquals(650, progress.completed(4));
+		assertEquals(450, progress.completed(3));
+		for (int i = 5; i < 9; i++)
+			progress.completed(i);
+		assertEquals(50, progress.entriesLeft());
+		assertEquals(0, progress.completed(9));
+	}
+
+	@Test
+	public void testOutOfOrderReverse() {
+		// The partial chunk at the end of the store is done first.
+		ChunkProgress progress = new ChunkProgress(950, 100, 0, true);
+		assertEquals(950, progress.entriesLeft());
+		assertEquals(950, progress.completed(1));
+		assertEquals(800, progress.completed(0));
+		assertEquals(800, progress.completed(3));
+		assertEquals(600, progress.completed(2));
+		for (int i = 4; i < 9; i++)
+			progress.completed(i);
+		assertEquals(100, progress.entriesLeft());
+		assertEquals(0, progress.completed(9));
+	}
+
+	@Test
+	public void testResume() {
+		for (boolean reverse : new boolean[] { false, true }) {
+			ChunkProgress progress = new ChunkProgress(950, 100, 0, reverse);
+			for (int i = 0; i < 4; i++)
+				progress.completed(i);
+			long left = progress.entriesLeft();
+			assertEquals(4, ChunkProgress.chunksDone(950, 100, left, reverse));
+			ChunkProgress resumed = new ChunkProgress(950, 100, 4, reverse);
+			assertEquals(left, resumed.entriesLeft());
+			// Nothing or everything left means start from scratch.
+			assertEquals(0, ChunkProgress.chunksDone(950, 100, 0, reverse));
+			assertEquals(0, ChunkProgress.chunksDone(950, 100, 950, reverse));
+		}
+		// A chunk which was only partly done is done again.
+		assertEquals(3, ChunkProgress.chunksDone(1000, 100, 650, false));
+		assertEquals(3, ChunkProgress.chunksDone(1000, 100, 650, true));
+	}
+
+}
@@ -0,0 +1,82 @@
+package network.crypta.store.saltedhash;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+
+import org.junit.Test;
+
+public class LockManagerTest {
+
+	private static Thread lockLater(final LockManager manager, final long offset, final boolean shared,
+			final CountDownLatch locked, final AtomicBoolean release) {
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				Condition c = shared ? manager.lockEntryShared(offset) : manager.lockEntry(offset);
+				locked.countDown();
+				while (!release.get())
+					Thread.yield();
+				manager.unlockEntry(offset, c);
+			}
+		};
+		t.start();
+		return t;
+	}
+
+	@Test
+	public void testSharedLocksDoNotBlock() throws InterruptedException {
+		LockManager manager = new LockManager();
+		Condition first = manager.lockEntryShared(1);
+		Condition second = manager.lockEntryShared(1);
+		assertNotNull(first);
+		assertNotNull(second);
+		manager.unlockEntry(1, first);
+		manager.unlockEntry(1, second);
+		// Now free.
+		Condition exclusive = manager.lockEntry(1);
+		assertNotNull(exclusive);
+		manager.unlockEntry(1, exclusive);
+	}
+
+	@Test
+	public void testExclusiveBlocksReaders() throws InterruptedException {
+		LockManager manager = new LockManager();
+		Condition exclusive = manager.lockEntry(5);
+		CountDownLatch locked = new CountDownLatch(1);
+		AtomicBoolean release = new AtomicBoolean(true);
+		Thread t = lockLater(manager, 5, true, locked, release);
+		assertFalse(locked.await(200, TimeUnit.MILLISECONDS));
+		// A different slot is not affected.
+		Condition other = manager.lockEntry(6);
+		manager.unlockEntry(6, other);
+		manager.unlockEntry(5, exclusive);
+		assertTrue(locked.await(10, TimeUnit.SECONDS));
+		t.join();
+	}
+
+	@Test
+	public void testWaitingWriterBlocksNewReaders() throws InterruptedException {
+		LockManager manager = new LockManager();
+		Condition reader = manager.lockEntryShared(7);
+		CountDownLatch writerLocked = new CountDownLatch(1);
+		AtomicBoolean releaseWriter = new AtomicBoolean();
+		Thread writer = lockLater(manager, 7, false, writerLocked, releaseWriter);
+		assertFalse(writerLocked.await(200, TimeUnit.MILLISECONDS));
+		CountDownLatch readerLocked = new CountDownLatch(1);
+		Thread reader2 = lockLater(manager, 7, true, readerLocked, new AtomicBoolean(true));
+		assertFalse(readerLocked.await(200, TimeUnit.MILLISECONDS));
+		manager.unlockEntry(7, reader);
+		assertTrue(writerLocked.await(10, TimeUnit.SECONDS));
+		assertFalse(readerLocked.await(200, TimeUnit.MILLISECONDS));
+		releaseWriter.set(true);
+		assertTrue(readerLocked.await(10, TimeUnit.SECONDS));
+		writer.join();
+		reader2.join();
+		manager.shutdown();
+	}
+
+}
@@ -0,0 +1,104 @@
+package network.crypta.store.saltedhash;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedMetadataFileTest {
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+
+	@Before
+	public void setUp() throws IOException {
+		file = File.createTempFile("mappedmetadata", ".tmp");
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		raf.close();
+		file.delete();
+	}
+
+	private void write(long position, int length, int seed) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(length);
+		for (int i = 0; i < length; i++)
+			buf.put((byte) (seed + i));
+		buf.flip();
+		while (buf.hasRemaining())
+			channel.write(buf, position + buf.position());
+	}
+
+	private static void check(ByteBuffer buf, int length, int seed) {
+		assertEquals(length, buf.limit());
+		for (int i = 0; i < length; i++)
+			assertEquals((byte) (seed + i), buf.get(i));
+	}
+
+	@Test
+	public void testReadAcrossChunks() throws IOException {
+		raf.setLength(1000);
+		write(0, 1000, 7);
+		MappedMetadataFile mapped = new MappedMetadataFile(channel, 256);
+		assertEquals(1000, mapped.length());
+		ByteBuffer buf = ByteBuffer.allocateDirect(600);
+		assertTrue(mapped.read(buf, 100));
+		buf.flip();
+		check(buf, 600, 107);
+		// The last, partial chunk.
+		buf = ByteBuffer.allocate(40);
+		assertTrue(mapped.read(buf, 960));
+		buf.flip();
+		check(buf, 40, 967);
+		// Beyond the end.
+		buf = ByteBuffer.allocate(41);
+		assertFalse(mapped.read(buf, 960));
+		assertEquals(0, buf.position());
+	}
+
+	@Test
+	public void testSeesWrites() throws IOException {
+		raf.setLength(512);
+		MappedMetadataFile mapped = new MappedMetadataFile(channel, 256);
+		write(200, 128, 3);
+		ByteBuffer buf = ByteBuffer.allocate(128);
+		assertTrue(mapped.read(buf, 200));
+		buf.flip();
+		check(buf, 128, 3);
+	}
+
+	@Test
+	public void testResize() throws IOException {
+		raf.setLength(512);
+		MappedMetadataFile mapped = new MappedMetadataFile(channel, 256);
+		raf.setLength(1024);
+		write(900, 100, 11);
+		ByteBuffer buf = ByteBuffer.allocate(100);
+		assertFalse(mapped.read(buf, 900));
+		mapped.remap();
+		assertEquals(1024, mapped.length());
+		assertTrue(mapped.read(buf, 900));
+		buf.flip();
+		check(buf, 100, 11);
+		// Shrink.
+		mapped.limit(300);
+		assertEquals(300, mapped.length());
+		raf.setLength(300);
+		mapped.remap();
+		buf = ByteBuffer.allocate(100);
+		assertFalse(mapped.read(buf, 250));
+		assertTrue(mapped.read(buf, 200));
+	}
+
+}
@@ -5,7 +5,11 @@ import static org.junit.Assert.*;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import network.crypta.store.saltedhash.ResizablePersistentIntBuffer;
 import network.crypta.store.saltedhash.SaltedHashFreenetStore;
@@ -40,11 +44,13 @@ import network.crypta.store.CHKStore;
 import network.crypta.store.GetPubkey;
 import network.crypta.store.KeyCollisionException;
 import network.crypta.store.PubkeyStore;
+import network.crypta.store.ProxyFreenetStore;
 import network.crypta.store.RAMFreenetStore;
 import network.crypta.store.SSKStore;
 import network.crypta.store.SimpleGetPubkey;
 import network.crypta.support.PooledExecutor;
 import network.crypta.support.SimpleReadOnlyArrayBucket;
+import network.crypta.support.TestProperty;
 import network.crypta.support.Ticker;
 import network.crypta.support.TrivialTicker;
 import network.crypta.support.api.Bucket;
@@ -105,6 +111,253 @@ public class SaltedHashFreenetStoreTest {
 		saltStore.close();
 	}
 
+	/* Simple test with CHK for SaltedHashFreenetStore reading metadata through a mapping */
+	@Test
+	public void testMappedMetadataCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMappedCHK", store, weakPRNG, 10, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.setUseMappedMetadata(true);
+		assertTrue(saltStore.isUsingMappedMetadata());
+		saltStore.start(null, true);
+
+		for(int i=0;i<5;i++) {
+			String test = "test" + i;
+			ClientCHKBlock block = encodeBlockCHK(test);
+			store.put(block.getBlock(), false);
+			ClientCHK key = block.getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			String data = decodeBlockCHK(verify, key);
+			assertEquals(test, data);
+		}
+		assertTrue(saltStore.getMetadataReadLatency().count() > 0);
+		assertTrue(saltStore.getHeaderDataReadLatency().count() >= 5);
+
+		saltStore.close();
+		assertFalse(saltStore.isUsingMappedMetadata());
+	}
+
+	/* Batched writes to a small store, so that keys share slots and writes to adjacent slots are coalesced */
+	@Test
+	public void testPutAllCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStorePutAllCHK", store, weakPRNG, 16, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+
+		List<ClientCHKBlock> blocks = new ArrayList<ClientCHKBlock>();
+		List<SaltedHashFreenetStore.BatchedPut<CHKBlock>> puts = new ArrayList<SaltedHashFreenetStore.BatchedPut<CHKBlock>>();
+		for(int i=0;i<12;i++) {
+			ClientCHKBlock block = encodeBlockCHK("test" + i);
+			blocks.add(block);
+			CHKBlock chk = block.getBlock();
+			puts.add(new SaltedHashFreenetStore.BatchedPut<CHKBlock>(chk, chk.getRawData(), chk.getRawHeaders(), false, false));
+		}
+		int calls = saltStore.putAll(puts);
+		assertTrue(calls > 0);
+		assertTrue(calls < 2 * blocks.size());
+
+		int found = 0;
+		for(int i=0;i<blocks.size();i++) {
+			ClientCHK key = blocks.get(i).getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			if(verify == null) continue; // Overwritten by a later block.
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+			found++;
+		}
+		assertTrue(found >= 8);
+		assertEquals(found, saltStore.keyCount());
+
+		saltStore.close();
+	}
+
+	/* The slot hint used to sort batched lookups is stable, within the store, and passed through proxies */
+	@Test
+	public void testSlotHintCHK() throws IOException, CHKEncodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreSlotHintCHK", store, weakPRNG, 16, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		ProxyFreenetStore<CHKBlock> proxy = new ProxyFreenetStore<CHKBlock>(saltStore);
+
+		boolean anyNonZero = false;
+		for(int i=0;i<20;i++) {
+			byte[] routingKey = encodeBlockCHK("test" + i).getBlock().getRoutingKey();
+			long hint = saltStore.getSlotHint(routingKey);
+			assertTrue(hint >= 0 && hint < 16);
+			assertEquals(hint, saltStore.getSlotHint(routingKey));
+			assertEquals(hint, proxy.getSlotHint(routingKey));
+			if(hint != 0) anyNonZero = true;
+		}
+		assertTrue(anyNonZero);
+		assertEquals(0, new RAMFreenetStore<CHKBlock>(new CHKStore(), 10).getSlotHint(new byte[32]));
+
+		saltStore.close();
+	}
+
+	/* Grow and shrink a store spanning several cleaner chunks, with several cleaner threads */
+	@Test
+	public void testParallelResizeCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = true;
+		int oldThreads = SaltedHashFreenetStore.getCleanerThreads();
+		SaltedHashFreenetStore.setCleanerThreads(3);
+		try {
+			CHKStore store = new CHKStore();
+			SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreResizeCHK", store, weakPRNG, 3000, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+			saltStore.start(ticker, true);
+
+			ClientCHKBlock[] blocks = new ClientCHKBlock[20];
+			for(int i=0;i<blocks.length;i++) {
+				blocks[i] = encodeBlockCHK("test" + i);
+				store.put(blocks[i].getBlock(), false);
+			}
+
+			saltStore.setMaxKeys(5000, true);
+			for(int i=0;i<blocks.length;i++) {
+				ClientCHK key = blocks[i].getClientKey();
+				CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+				assertEquals("test" + i, decodeBlockCHK(verify, key));
+			}
+
+			// Shrinking may lose keys to collisions, but whatever is left must be intact.
+			saltStore.setMaxKeys(2100, true);
+			int found = 0;
+			for(int i=0;i<blocks.length;i++) {
+				ClientCHK key = blocks[i].getClientKey();
+				CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+				if(verify == null) continue;
+				assertEquals("test" + i, decodeBlockCHK(verify, key));
+				found++;
+			}
+			assertTrue(found > 0);
+
+			saltStore.close();
+		} finally {
+			SaltedHashFreenetStore.setCleanerThreads(oldThreads);
+			SaltedHashFreenetStore.NO_CLEANER_SLEEP = false;
+		}
+	}
+
+	/* Several threads putting and fetching at once, with the slot filter */
+	@Test
+	public void testConcurrentCHK() throws Exception {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		final CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreConcurrentCHK", store, weakPRNG, 200, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+
+		final int THREADS = 4;
+		final int BLOCKS = 10;
+		final ClientCHKBlock[][] blocks = new ClientCHKBlock[THREADS][BLOCKS];
+		for(int t=0;t<THREADS;t++)
+			for(int i=0;i<BLOCKS;i++)
+				blocks[t][i] = encodeBlockCHK("test" + t + "-" + i);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[THREADS];
+		for(int t=0;t<THREADS;t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for(int i=0;i<BLOCKS;i++) {
+							store.put(blocks[thread][i].getBlock(), false);
+							// Fetch everything this thread has stored so far.
+							for(int j=0;j<=i;j++) {
+								ClientCHK key = blocks[thread][j].getClientKey();
+								CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+								assertEquals("test" + thread + "-" + j, decodeBlockCHK(verify, key));
+							}
+						}
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		if(failure.get() != null)
+			throw new AssertionError(failure.get());
+
+		saltStore.close();
+	}
+
+	/**
+	 * Fetch and mixed fetch/put throughput against one store with increasing numbers of threads.
+	 * The store size can be set with -Dtest.saltedhash.keys, e.g. 100000 for a ~3GB store.
+	 */
+	@Test
+	public void testBenchmarkConcurrentFetch() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		final int keys = Integer.getInteger("test.saltedhash.keys", 4096);
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		final CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "benchmarkSaltedHashFreenetStore", store, weakPRNG, keys, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+
+		final CHKBlock[] blocks = new CHKBlock[keys / 2];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlockCHK("benchmark" + i).getBlock();
+			store.put(blocks[i], false);
+		}
+		for(int threads : new int[] { 1, 2, 4, 8 }) {
+			System.out.println("SaltedHashFreenetStore " + keys + " keys, " + threads + " threads: fetch " +
+					run(store, blocks, threads, 0) + " ops/s, 10% put " + run(store, blocks, threads, 10) + " ops/s");
+		}
+
+		saltStore.close();
+	}
+
+	private static long run(final CHKStore store, final CHKBlock[] blocks, int threads, final int putPercent) throws InterruptedException {
+		final long end = System.currentTimeMillis() + 2000;
+		final AtomicLong ops = new AtomicLong();
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread[] running = new Thread[threads];
+		for(int t=0;t<threads;t++) {
+			final Random random = new Random(t);
+			running[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						long done = 0;
+						while(System.currentTimeMillis() < end) {
+							CHKBlock block = blocks[random.nextInt(blocks.length)];
+							if(random.nextInt(100) < putPercent)
+								store.put(block, false);
+							else
+								store.fetch(block.getKey(), false, false, null); // May miss if evicted
+							done++;
+						}
+						ops.addAndGet(done);
+					} catch (Throwable e) {
+						failure.compareAndSet(null, e);
+					}
+				}
+			};
+			running[t].start();
+		}
+		for(Thread t : running)
+			t.join();
+		if(failure.get() != null)
+			throw new AssertionError(failure.get());
+		return ops.get() / 2;
+	}
+
 	/* Simple test with SSK for SaltedHashFreenetStore without slotFilter */
 	@Test
 	public void testSimpleSSK() throws IOException, KeyCollisionException, SSKVerifyException, KeyDecodeException, SSKEncodeException, InvalidCompressionCodecException {
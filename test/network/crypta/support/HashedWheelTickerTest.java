@@ -0,0 +1,169 @@
+package network.crypta.support;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import network.crypta.node.FastRunnable;
+
+/** Runs the PrioritizedTicker tests against HashedWheelTicker, plus a few of its own. */
+public class HashedWheelTickerTest extends PrioritizedTickerTest {
+
+	private static class MyWheelTicker extends HashedWheelTicker implements TestTicker {
+
+		private final SleepWatcher watcher = new SleepWatcher();
+
+		public MyWheelTicker(Executor executor, int portNumber) {
+			super(executor, portNumber);
+		}
+
+		@Override
+		protected void sleep(long sleepTime) throws InterruptedException {
+			watcher.onSleep(sleepTime, MAX_SLEEP_TIME);
+			super.sleep(sleepTime);
+			watcher.onWake();
+		}
+
+		@Override
+		public int queuedJobs() {
+			return super.queuedJobs();
+		}
+
+		@Override
+		public int queuedJobsUniqueTimes() {
+			return super.queuedJobsUniqueTimes();
+		}
+
+		@Override
+		public void waitForIdle() throws InterruptedException {
+			watcher.waitForIdle(this);
+		}
+
+	}
+
+	@Override
+	protected TestTicker createTicker(Executor executor) {
+		MyWheelTicker t = new MyWheelTicker(executor, 0);
+		t.start();
+		return t;
+	}
+
+	private static class TimedJob implements FastRunnable {
+
+		final long runAt;
+		long ranAt;
+
+		TimedJob(long runAt) {
+			this.runAt = runAt;
+		}
+
+		@Override
+		public synchronized void run() {
+			ranAt = System.currentTimeMillis();
+			notifyAll();
+		}
+
+		synchronized long waitForRun(long maxWait) throws InterruptedException {
+			long end = System.currentTimeMillis() + maxWait;
+			long now;
+			while(ranAt == 0 && (now = System.currentTimeMillis()) < end)
+				wait(end - now);
+			return ranAt;
+		}
+
+	}
+
+	/** Jobs across several wraps of the finest wheel must run, in order, and never early. */
+	@Test
+	public void testTiming() throws InterruptedException {
+		HashedWheelTicker wheel = new HashedWheelTicker(new PooledExecutor(), 0);
+		wheel.start();
+		Random random = new Random(1234);
+		long now = System.currentTimeMillis();
+		List<TimedJob> jobs = new ArrayList<TimedJob>();
+		for(int i=0;i<200;i++) {
+			TimedJob job = new TimedJob(now + random.nextInt(700));
+			jobs.add(job);
+			wheel.queueTimedJobAbsolute(job, "test", job.runAt, true, false);
+		}
+		// Cascaded from the second wheel.
+		TimedJob later = new TimedJob(now + 1500);
+		wheel.queueTimedJobAbsolute(later, "test", later.runAt, true, false);
+		jobs.add(later);
+		for(TimedJob job : jobs) {
+			long ranAt = job.waitForRun(10000);
+			assertTrue("Job did not run", ranAt != 0);
+			assertTrue("Job ran early", ranAt >= job.runAt);
+		}
+		assertEquals(0, wheel.queuedJobs());
+	}
+
+	@Test
+	public void testRemoveFarFuture() {
+		HashedWheelTicker wheel = new HashedWheelTicker(new PooledExecutor(), 0);
+		Runnable[] jobs = new Runnable[10];
+		long[] offsets = new long[] { 10, 300, 20000, 2000000, 200000000L, 20000000000L };
+		for(int i=0;i<jobs.length;i++) {
+			jobs[i] = new TimedJob(0);
+			wheel.queueTimedJob(jobs[i], "test", offsets[i % offsets.length], true, false);
+		}
+		assertEquals(jobs.length, wheel.queuedJobs());
+		for(int i=0;i<jobs.length;i++) {
+			wheel.removeQueuedJob(jobs[i]);
+			assertEquals(jobs.length - i - 1, wheel.queuedJobs());
+		}
+	}
+
+	/** Replay a schedule/cancel mix like that generated by request and message filter timeouts:
+	 * most jobs are short timeouts which are cancelled before they expire. */
+	@Test
+	public void testBenchmarkScheduleCancel() {
+		if(!TestProperty.BENCHMARK) return;
+		final int JOBS = 1000000;
+		final int LIVE = 50000;
+		Random random = new Random(0xBBBBBBBB);
+		long[] offsets = new long[JOBS];
+		boolean[] cancel = new boolean[JOBS];
+		for(int i=0;i<JOBS;i++) {
+			int r = random.nextInt(100);
+			if(r < 60) offsets[i] = 100 + random.nextInt(2000);
+			else if(r < 90) offsets[i] = 5000 + random.nextInt(60000);
+			else offsets[i] = 300000 + random.nextInt(600000);
+			cancel[i] = random.nextInt(100) < 90;
+		}
+		Runnable[] runnables = new Runnable[JOBS];
+		for(int i=0;i<JOBS;i++)
+			runnables[i] = new TimedJob(0);
+		for(int round=0;round<3;round++) {
+			PrioritizedTicker prioritized = new PrioritizedTicker(new PooledExecutor(), 0);
+			prioritized.start();
+			long prioritizedTime = replay(prioritized, runnables, offsets, cancel, LIVE);
+			HashedWheelTicker wheel = new HashedWheelTicker(new PooledExecutor(), 0);
+			wheel.start();
+			long wheelTime = replay(wheel, runnables, offsets, cancel, LIVE);
+			System.out.println("Schedule/cancel "+JOBS+" jobs: PrioritizedTicker "+prioritizedTime+
+					"ms, HashedWheelTicker "+wheelTime+"ms");
+			for(Runnable r : runnables) {
+				prioritized.removeQueuedJob(r);
+				wheel.removeQueuedJob(r);
+			}
+		}
+	}
+
+	private static long replay(Ticker ticker, Runnable[] runnables, long[] offsets, boolean[] cancel, int live) {
+		long start = System.currentTimeMillis();
+		for(int i=0;i<runnables.length;i++) {
+			ticker.queueTimedJob(runnables[i], "benchmark", offsets[i], true, false);
+			// Cancel the job queued a while ago, as a completed request would.
+			int j = i - live;
+			if(j >= 0 && cancel[j])
+				ticker.removeQueuedJob(runnables[j]);
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+}
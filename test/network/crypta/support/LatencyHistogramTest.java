@@ -0,0 +1,40 @@
+package network.crypta.support;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBuckets() {
+		assertEquals(0, LatencyHistogram.bucket(0));
+		assertEquals(1, LatencyHistogram.bucket(1));
+		assertEquals(2, LatencyHistogram.bucket(2));
+		assertEquals(2, LatencyHistogram.bucket(3));
+		assertEquals(3, LatencyHistogram.bucket(4));
+		assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucket(Long.MAX_VALUE / 1000));
+		// Every value is below the limit of its bucket.
+		for (long micros = 0; micros < 5000; micros++)
+			assertTrue(micros < LatencyHistogram.bucketLimit(LatencyHistogram.bucket(micros)));
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram h = new LatencyHistogram();
+		assertEquals(-1, h.percentile(0.5));
+		assertEquals("0", h.toString());
+		for (int i = 0; i < 90; i++)
+			h.report(3000); // 3us
+		for (int i = 0; i < 9; i++)
+			h.report(100000); // 100us
+		h.report(100000000000L); // 100s
+		assertEquals(100, h.count());
+		assertEquals(4, h.percentile(0.5));
+		assertEquals(4, h.percentile(0.9));
+		assertEquals(128, h.percentile(0.99));
+		assertEquals(Long.MAX_VALUE, h.percentile(0.999));
+		assertEquals("100 p50<=4us p90<=4us p99<=128us p99.9>67108864us", h.toString());
+	}
+
+}
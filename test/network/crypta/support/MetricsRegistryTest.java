@@ -0,0 +1,79 @@
+package network.crypta.support;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class MetricsRegistryTest {
+
+    private static String scrape(MetricsRegistry metrics) {
+        int length = metrics.scrape();
+        return new String(metrics.getBuffer(), 0, length, StandardCharsets.US_ASCII);
+    }
+
+    @Test
+    public void testFormat() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        final AtomicLong hits = new AtomicLong(5);
+        metrics.counter("store_hits_total", "Hits.", () -> hits.get(), "key", "chk");
+        metrics.gauge("peers", "Peers by \"status\".\n", () -> 2.0);
+        metrics.counter("store_hits_total", "Ignored.", () -> 7, "key", "s\"s\\ké");
+        metrics.gauge("ratio", "A ratio.", () -> 0.25);
+        metrics.gauge("nan", "Not a number.", () -> Double.NaN);
+        String expected = "# HELP store_hits_total Hits.\n" +
+            "# TYPE store_hits_total counter\n" +
+            "store_hits_total{key=\"chk\"} 5\n" +
+            "store_hits_total{key=\"s\\\"s\\\\k?\"} 7\n" +
+            "# HELP peers Peers by \"status\".\\n\n" +
+            "# TYPE peers gauge\n" +
+            "peers 2\n" +
+            "# HELP ratio A ratio.\n" +
+            "# TYPE ratio gauge\n" +
+            "ratio 0.25\n" +
+            "# HELP nan Not a number.\n" +
+            "# TYPE nan gauge\n" +
+            "nan NaN\n";
+        assertEquals(expected, scrape(metrics));
+        hits.set(6);
+        assertEquals(expected.replace("} 5\n", "} 6\n"), scrape(metrics));
+    }
+
+    @Test
+    public void testBufferReused() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        for (int i = 0; i < 200; i++)
+            metrics.gauge("gauge_" + i, "A gauge with a fairly long description.", () -> 123456789);
+        String first = scrape(metrics);
+        assertTrue(first.length() > 4096);
+        byte[] buffer = metrics.getBuffer();
+        assertEquals(first, scrape(metrics));
+        assertSame(buffer, metrics.getBuffer());
+    }
+
+    @Test
+    public void testInvalid() {
+        MetricsRegistry metrics = new MetricsRegistry();
+        metrics.counter("a_total", "", () -> 0);
+        String[][] invalid = { { "0a" }, { "a-b" }, { "" }, { "ok", "label" }, { "ok", "0label", "v" } };
+        for (String[] args : invalid) {
+            try {
+                String[] labels = new String[args.length - 1];
+                System.arraycopy(args, 1, labels, 0, labels.length);
+                metrics.gauge(args[0], "", () -> 0, labels);
+                fail(String.join(",", args));
+            } catch (IllegalArgumentException e) {
+                // Expected.
+            }
+        }
+        try {
+            metrics.gauge("a_total", "", () -> 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected.
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package network.crypta.support;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import network.crypta.node.PrioRunnable;
+import network.crypta.support.io.NativeThread.PriorityLevel;
+
+public class PooledExecutorTest {
+
+    /** Records the thread it ran on, then blocks until released. */
+    private static class BlockingJob implements PrioRunnable {
+
+        private final int prio;
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile Thread thread;
+
+        BlockingJob(int prio) {
+            this.prio = prio;
+        }
+
+        @Override
+        public void run() {
+            thread = Thread.currentThread();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                // Ignore
+            }
+        }
+
+        @Override
+        public int getPriority() {
+            return prio;
+        }
+
+    }
+
+    @Test
+    public void testPooledThreads() throws InterruptedException {
+        PooledExecutor exec = new PooledExecutor();
+        BlockingJob job = new BlockingJob(PriorityLevel.NORM_PRIORITY.value);
+        exec.execute(job, "test");
+        assertTrue(job.started.await(10, TimeUnit.SECONDS));
+        assertFalse(job.thread.isVirtual());
+        assertEquals(1, exec.runningThreads()[PriorityLevel.NORM_PRIORITY.value - 1]);
+        assertEquals(0, exec.getVirtualThreadCount());
+        job.release.countDown();
+        assertEquals(1, exec.getJobsStarted()[PriorityLevel.NORM_PRIORITY.value - 1]);
+    }
+
+    @Test
+    public void testVirtualThreads() throws InterruptedException {
+        PooledExecutor exec = new PooledExecutor();
+        exec.setUseVirtualThreads(true);
+        BlockingJob[] jobs = new BlockingJob[100];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = new BlockingJob(PriorityLevel.HIGH_PRIORITY.value);
+            exec.execute(jobs[i], "test " + i);
+        }
+        // Still on a native thread, for its priority.
+        BlockingJob max = new BlockingJob(PriorityLevel.MAX_PRIORITY.value);
+        exec.execute(max, "max");
+        for (BlockingJob job : jobs) {
+            assertTrue(job.started.await(10, TimeUnit.SECONDS));
+            assertTrue(job.thread.isVirtual());
+        }
+        assertTrue(max.started.await(10, TimeUnit.SECONDS));
+        assertFalse(max.thread.isVirtual());
+        assertEquals(jobs.length, exec.getVirtualThreadCount());
+        assertEquals(jobs.length, exec.runningThreads()[PriorityLevel.HIGH_PRIORITY.value - 1]);
+        assertEquals(jobs.length, exec.getVirtualThreadsStarted());
+        assertEquals(jobs.length, exec.getJobsStarted()[PriorityLevel.HIGH_PRIORITY.value - 1]);
+        assertTrue(exec.getMaxStartDelay()[PriorityLevel.HIGH_PRIORITY.value - 1] >=
+                   exec.getAverageStartDelay()[PriorityLevel.HIGH_PRIORITY.value - 1]);
+        for (BlockingJob job : jobs) {
+            job.release.countDown();
+            job.thread.join(10000);
+        }
+        max.release.countDown();
+        assertEquals(0, exec.getVirtualThreadCount());
+    }
+
+}
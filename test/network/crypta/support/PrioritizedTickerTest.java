@@ -14,56 +14,91 @@ public class PrioritizedTickerTest {
 	
 	private WaitableExecutor realExec;
 	
-	private MyTicker ticker;
+	private TestTicker ticker;
 	
-	private class MyTicker extends PrioritizedTicker {
-
+	/** The Ticker being tested, with hooks to see what it is doing. */
+	interface TestTicker extends Ticker {
+	    int queuedJobs();
+	    int queuedJobsUniqueTimes();
+	    /** Wait until there are no queued jobs and the ticker is idle. */
+	    void waitForIdle() throws InterruptedException;
+	}
+	
+	/** Tracks whether the ticker is sleeping with nothing to do. */
+	static class SleepWatcher {
+	    
 	    private boolean sleeping;
-	    private final Object sleepSync = new Object();
+	    
+	    synchronized void onSleep(long sleepTime, int maxSleepTime) {
+	        if(sleepTime == maxSleepTime) {
+	            sleeping = true;
+	            notifyAll();
+	        }
+	    }
+	    
+	    synchronized void onWake() {
+	        sleeping = false;
+	    }
+	    
+	    synchronized void waitForSleeping() throws InterruptedException {
+	        while(!sleeping) {
+	            wait();
+	        }
+	    }
+	    
+	    void waitForIdle(TestTicker ticker) throws InterruptedException {
+	        // Wait until all jobs have been removed from the queue.
+	        while(ticker.queuedJobsUniqueTimes() > 0) {
+	            waitForSleeping();
+	        }
+	        // Wait until the jobs have actually been started off thread or completed on thread.
+	        waitForSleeping();
+	    }
+	    
+	}
+	
+	private static class MyTicker extends PrioritizedTicker implements TestTicker {
+
+	    private final SleepWatcher watcher = new SleepWatcher();
 	    
         public MyTicker(Executor executor, int portNumber) {
             super(executor, portNumber);
         }
         
         protected void sleep(long sleepTime) throws InterruptedException {
-            if(sleepTime == MAX_SLEEP_TIME) {
-                synchronized(sleepSync) {
-                    sleeping = true;
-                    sleepSync.notifyAll();
-                }
-            }
+            watcher.onSleep(sleepTime, MAX_SLEEP_TIME);
             super.sleep(sleepTime);
-            if(sleepTime == MAX_SLEEP_TIME) {
-                synchronized(sleepSync) {
-                    sleeping = false;
-                }
-            }
+            watcher.onWake();
         }
         
-        public void waitForSleeping() throws InterruptedException {
-            synchronized(sleepSync) {
-                while(!sleeping) {
-                    sleepSync.wait();
-                }
-            }
+        @Override
+        public int queuedJobs() {
+            return super.queuedJobs();
         }
         
+        @Override
+        public int queuedJobsUniqueTimes() {
+            return super.queuedJobsUniqueTimes();
+        }
+        
+        @Override
         public void waitForIdle() throws InterruptedException {
-            // Wait until all jobs have been removed from the queue.
-            while(queuedJobsUniqueTimes() > 0) {
-                waitForSleeping();
-            }
-            // Wait until the jobs have actually been started off thread or completed on thread.
-            waitForSleeping();
+            watcher.waitForIdle(this);
         }
 	    
 	}
+	
+	/** Create and start the Ticker to test. */
+	protected TestTicker createTicker(Executor executor) {
+	    MyTicker t = new MyTicker(executor, 0);
+	    t.start();
+	    return t;
+	}
 
 	@Before
 	public void setUp() throws Exception {
 		realExec = new WaitableExecutor(new PooledExecutor());
-		ticker = new MyTicker(realExec, 0);
-		ticker.start();
+		ticker = createTicker(realExec);
 	}
 
 	private int runCount = 0;
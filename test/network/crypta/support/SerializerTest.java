@@ -4,6 +4,7 @@ import org.junit.Test;
 
 import java.io.*;
 import java.util.Arrays;
+import java.util.LinkedList;
 
 import static org.junit.Assert.*;
 
@@ -94,4 +95,19 @@ public class SerializerTest {
             e.printStackTrace();
         }
     }
+
+    @Test
+    public void testEncodedLength() throws IOException {
+        final Object[] data =
+                new Object[]{true, (byte) 9, (short) 0xDE, 1234567, 123467890123L, Math.E, 123.4567f,
+                        "testing string", new double[]{Math.PI, 0.1234d}, new float[]{2345.678f, 8901.234f},
+                        new Buffer(new byte[100], 10, 50), new ShortBuffer(new byte[30]), new BitArray(13),
+                        new BitArray(16)};
+        for (Object datum : data) {
+            ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
+            Serializer.writeToDataOutputStream(datum, new DataOutputStream(byteOutputStream));
+            assertEquals(datum.getClass().toString(), byteOutputStream.size(), Serializer.encodedLength(datum));
+        }
+        assertEquals(-1, Serializer.encodedLength(new LinkedList<Object>()));
+    }
 }
@@ -0,0 +1,75 @@
+package network.crypta.support;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class VirtualTickerTest {
+
+    @Test
+    public void testRunsInOrderOfTime() {
+        final VirtualTicker ticker = new VirtualTicker(1000);
+        final List<Long> times = new ArrayList<Long>();
+        final List<String> order = new ArrayList<String>();
+        for (final String s : new String[] { "c", "a", "b" }) {
+            long offset = s.equals("c") ? 30 : 10;
+            ticker.queueTimedJob(new Runnable() {
+                @Override
+                public void run() {
+                    order.add(s);
+                    times.add(ticker.currentTimeMillis());
+                }
+            }, offset);
+        }
+        assertEquals(0, ticker.advance(9));
+        assertEquals(1009, ticker.currentTimeMillis());
+        assertEquals(2, ticker.advance(1));
+        assertEquals(1, ticker.advance(100));
+        assertEquals(1110, ticker.currentTimeMillis());
+        assertEquals("[a, b, c]", order.toString());
+        assertEquals("[1010, 1010, 1030]", times.toString());
+    }
+
+    @Test
+    public void testJobsQueuedByJobs() {
+        final VirtualTicker ticker = new VirtualTicker(0);
+        final int[] count = new int[1];
+        Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                count[0]++;
+                ticker.queueTimedJob(this, 10);
+            }
+        };
+        ticker.queueTimedJob(job, 10);
+        assertEquals(10, ticker.advance(100));
+        assertEquals(10, count[0]);
+        assertEquals(1, ticker.getQueuedJobs());
+    }
+
+    @Test
+    public void testNoDupesAndRemove() {
+        VirtualTicker ticker = new VirtualTicker(0);
+        final int[] count = new int[1];
+        Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                count[0]++;
+            }
+        };
+        ticker.queueTimedJob(job, "job", 10, false, true);
+        ticker.queueTimedJob(job, "job", 20, false, true);
+        assertEquals(1, ticker.getQueuedJobs());
+        ticker.removeQueuedJob(job);
+        assertEquals(0, ticker.getQueuedJobs());
+        ticker.queueTimedJobAbsolute(job, "job", 5, false, false);
+        ticker.getExecutor().execute(job);
+        assertEquals(1, count[0]);
+        ticker.advance(5);
+        assertEquals(2, count[0]);
+    }
+
+}
@@ -0,0 +1,88 @@
+package network.crypta.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import network.crypta.support.compress.Compressor.COMPRESSOR_TYPE;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SharedCompressionLimitTest {
+
+    @Test
+    public void writesUpToTheLimitSucceed() throws IOException {
+        SharedCompressionLimit limit = new SharedCompressionLimit(1, 100, 10, 1);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream os = limit.wrap(0, baos);
+        os.write(new byte[98]);
+        os.write(0);
+        assertEquals(99, baos.size());
+        try {
+            os.write(0);
+            fail();
+        } catch (CompressionOutputSizeException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void limitIsNeverRaised() {
+        SharedCompressionLimit limit = new SharedCompressionLimit(3, 100000, 500, 1000);
+        assertEquals(99999, limit.get(0));
+        limit.finished(0, 5500);
+        limit.finished(1, 9000);
+        assertEquals(4999, limit.get(2));
+    }
+
+    @Test
+    public void onlyEarlierTrialsLowerTheLimit() {
+        SharedCompressionLimit limit = new SharedCompressionLimit(3, 100000, 500, 1000);
+        // Fewer blocks than the second trial, but ties go to the first.
+        limit.finished(1, 9000);
+        assertEquals(99999, limit.get(0));
+        assertEquals(8999, limit.get(2));
+        limit.finished(0, 9500);
+        assertEquals(8999, limit.get(2));
+        // Fitting in minSize beats anything after it.
+        limit.finished(0, 400);
+        assertEquals(-1, limit.get(1));
+        assertEquals(-1, limit.get(2));
+    }
+
+    @Test
+    public void smallDataMustFitInMinSize() {
+        assertEquals(500, new SharedCompressionLimit(1, 900, 500, 1000).get(0));
+        assertEquals(300, new SharedCompressionLimit(1, 300, 500, 1000).get(0));
+    }
+
+    @Test
+    public void loweringTheLimitStopsARunningCodec() throws IOException {
+        byte[] data = new byte[1024 * 1024];
+        new Random(1).nextBytes(data);
+        final SharedCompressionLimit limit = new SharedCompressionLimit(2, Long.MAX_VALUE, 0, 1);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        // As if an earlier codec finished while this one was running.
+        OutputStream os = new FilterOutputStream(limit.wrap(1, baos)) {
+            @Override
+            public void write(byte[] buf, int off, int len) throws IOException {
+                limit.finished(0, 65536);
+                out.write(buf, off, len);
+            }
+        };
+        try {
+            COMPRESSOR_TYPE.GZIP.compress(new ByteArrayInputStream(data), os, data.length, Long.MAX_VALUE);
+            fail();
+        } catch (CompressionOutputSizeException e) {
+            // Expected
+        }
+        assertTrue(baos.size() < data.length / 2);
+    }
+
+}
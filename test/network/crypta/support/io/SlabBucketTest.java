@@ -0,0 +1,82 @@
+package network.crypta.support.io;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import network.crypta.support.api.Bucket;
+
+public class SlabBucketTest extends BucketTestBase {
+    // Small slabs so the test data spans several of them.
+    private final SlabPool pool = new SlabPool(7, 1024 * 1024, false);
+
+    @Override
+    protected Bucket makeBucket(long size) throws IOException {
+        return new SlabBucket(pool);
+    }
+
+    @Override
+    protected void freeBucket(Bucket bucket) throws IOException {
+        bucket.free();
+    }
+
+    @Test
+    public void testSlabsReused() throws IOException {
+        SlabBucket bucket = new SlabBucket(pool);
+        OutputStream os = bucket.getOutputStream();
+        os.write(new byte[20]);
+        os.close();
+        assertEquals(21, pool.getBytesInUse());
+        bucket.free();
+        assertEquals(0, pool.getBytesInUse());
+        assertEquals(21, pool.getBytesPooled());
+
+        bucket = new SlabBucket(pool);
+        os = bucket.getOutputStream();
+        os.write(new byte[14]);
+        os.close();
+        assertEquals(3, pool.getSlabsAllocated());
+        assertEquals(2, pool.getSlabsReused());
+        bucket.free();
+    }
+
+    @Test
+    public void testReadAfterFree() throws IOException {
+        SlabBucket bucket = new SlabBucket(pool);
+        OutputStream os = bucket.getOutputStream();
+        byte[] data = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+        os.write(data);
+        os.close();
+        InputStream is = bucket.getInputStream();
+        bucket.free();
+        // Like ArrayBucket, an open stream can still read the data.
+        assertEquals(14, pool.getBytesInUse());
+        byte[] buf = new byte[data.length];
+        assertEquals(data.length, is.read(buf));
+        assertArrayEquals(data, buf);
+        is.close();
+        assertEquals(0, pool.getBytesInUse());
+    }
+
+    @Test
+    public void testPoolBudget() {
+        SlabPool small = new SlabPool(10, 30, false);
+        ByteBuffer[] slabs = new ByteBuffer[4];
+        for(int i=0;i<slabs.length;i++)
+            slabs[i] = small.allocate();
+        for(ByteBuffer slab : slabs)
+            small.release(slab);
+        // Only as many as fit in the budget are kept.
+        assertEquals(30, small.getBytesPooled());
+        small.setMaxBytes(10);
+        assertEquals(10, small.getBytesPooled());
+        small.setDirect(true);
+        assertEquals(0, small.getBytesPooled());
+        assertTrue(small.allocate().isDirect());
+    }
+}
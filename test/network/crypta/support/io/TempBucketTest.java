@@ -123,6 +123,32 @@ public class TempBucketTest {
             }
         }
 
+        @Test
+        public void testSlabAccountingAndMigrationStats() throws IOException {
+            TempBucketFactory tbf =
+                new TempBucketFactory(exec, fg, 16, 128, weakPRNG, false, MIN_DISK_SPACE, secret);
+
+            TempBucket b = (TempBucket) tbf.makeBucket(16);
+            try {
+                OutputStream os = b.getOutputStreamUnbuffered();
+                os.write(new byte[1]);
+                // RAM is counted in whole slabs.
+                assertEquals(16, tbf.getRamUsed());
+                os.write(new byte[16]);
+                assertEquals(32, tbf.getRamUsed());
+                os.close();
+
+                assertTrue(b.migrateToDisk());
+                assertFalse(b.isRAMBucket());
+                assertEquals(0, tbf.getRamUsed());
+                assertEquals(1, tbf.getMigrations());
+                assertEquals(17, tbf.getBytesSpilled());
+                assertEquals(32, tbf.getRamPooled());
+            } finally {
+                b.free();
+            }
+        }
+
         // This CAN happen due to memory pressure.
         @Test
         public void testConversionWhileReading() throws IOException {